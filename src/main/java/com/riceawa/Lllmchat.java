@@ -3,6 +3,7 @@ package com.riceawa;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,7 +13,9 @@ import com.riceawa.llm.config.LLMChatConfig;
 import com.riceawa.llm.template.PromptTemplateManager;
 import com.riceawa.llm.function.FunctionRegistry;
 import com.riceawa.llm.service.LLMServiceManager;
+import com.riceawa.llm.service.TitleGenerationService;
 import com.riceawa.llm.context.ChatContextManager;
+import com.riceawa.llm.history.ChatHistory;
 import com.riceawa.llm.logging.LogManager;
 
 public class Lllmchat implements ModInitializer {
@@ -82,9 +85,20 @@ public class Lllmchat implements ModInitializer {
 		LogManager.getInstance().system("LLM service manager initialized");
 
 		// 初始化上下文管理器
-		ChatContextManager.getInstance();
+		ChatContextManager contextManager = ChatContextManager.getInstance();
+		// 上下文释放时写入历史记录并释放历史缓存
+		contextManager.addReleaseHook((playerId, context, reason) -> {
+			if (context != null && context.hasConversationMessages()) {
+				ChatHistory.getInstance().saveSession(context);
+			}
+			ChatHistory.getInstance().releasePlayerCache(playerId);
+		});
 		LOGGER.info("Chat context manager initialized");
 		LogManager.getInstance().system("Chat context manager initialized");
+
+		// 历史记录存储后端和格式
+		ChatHistory.configure(config.getHistoryStorage(), config.isCompressHistory());
+		ChatHistory.getInstance().startMaintenance(config::getHistoryRetentionDays);
 	}
 
 	/**
@@ -101,11 +115,18 @@ public class Lllmchat implements ModInitializer {
 	 * 注册事件监听器
 	 */
 	private void registerEvents() {
+		// 玩家退出时释放其上下文
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+			ChatContextManager.getInstance().onPlayerDisconnect(handler.getPlayer().getUuid());
+		});
+
 		// 服务器停止时的清理工作
 		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
 			LOGGER.info("Server stopping, cleaning up LLM Chat resources...");
 			LogManager.getInstance().system("Server stopping, cleaning up resources...");
 			ChatContextManager.getInstance().shutdown();
+			TitleGenerationService.getInstance().shutdown();
+			ChatHistory.getInstance().shutdown();
 			LogManager.getInstance().shutdown();
 		});
 	}
@@ -16,18 +16,24 @@ import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
 
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 历史记录管理命令
  */
 public class HistoryCommand {
+    private static final int SEARCH_LIMIT = 20; // 搜索返回的最大会话数
+    private static final int SEARCH_DISPLAY_LIMIT = 5; // 聊天栏中显示的会话数
     
     public static void register(CommandDispatcher<ServerCommandSource> dispatcher, CommandRegistryAccess registryAccess) {
         dispatcher.register(CommandManager.literal("llmhistory")
                 .requires(CommandManager.requirePermissionLevel(CommandManager.GAMEMASTERS_CHECK)) // 需要管理员权限
                 .then(CommandManager.literal("stats")
                         .executes(context -> showPlayerStats(context, null))
+                        .then(CommandManager.literal("global")
+                                .executes(HistoryCommand::showGlobalStats))
                         .then(CommandManager.argument("player", EntityArgumentType.player())
                                 .executes(context -> showPlayerStats(context, 
                                         EntityArgumentType.getPlayer(context, "player")))))
@@ -41,11 +47,26 @@ public class HistoryCommand {
                                             builder.suggest("html");
                                             return builder.buildFuture();
                                         })
-                                        .executes(HistoryCommand::exportPlayerHistory))))
+                                        .executes(context -> exportPlayerHistory(context, false))
+                                        .then(CommandManager.literal("gzip")
+                                                .executes(context -> exportPlayerHistory(context, true))))))
+                .then(CommandManager.literal("exportall")
+                        .then(CommandManager.argument("format", StringArgumentType.string())
+                                .suggests((context, builder) -> {
+                                    builder.suggest("json");
+                                    builder.suggest("csv");
+                                    builder.suggest("txt");
+                                    builder.suggest("html");
+                                    return builder.buildFuture();
+                                })
+                                .executes(HistoryCommand::exportAllPlayers)))
                 .then(CommandManager.literal("search")
                         .then(CommandManager.argument("player", EntityArgumentType.player())
                                 .then(CommandManager.argument("keyword", StringArgumentType.greedyString())
                                         .executes(HistoryCommand::searchHistory))))
+                .then(CommandManager.literal("searchall")
+                        .then(CommandManager.argument("keyword", StringArgumentType.greedyString())
+                                .executes(HistoryCommand::searchAllHistory)))
                 .then(CommandManager.literal("clear")
                         .then(CommandManager.argument("player", EntityArgumentType.player())
                                 .executes(HistoryCommand::clearPlayerHistory)))
@@ -69,6 +90,10 @@ public class HistoryCommand {
             }
         }
 
+        if (!checkStatisticsLoaded(context)) {
+            return 0;
+        }
+
         UUID playerId = player.getUuid();
         String playerName = player.getName().getString();
         
@@ -91,10 +116,41 @@ public class HistoryCommand {
         return 1;
     }
 
+    /**
+     * 显示全服统计信息
+     */
+    private static int showGlobalStats(CommandContext<ServerCommandSource> context) {
+        if (!checkStatisticsLoaded(context)) {
+            return 0;
+        }
+
+        String report = new HistoryStatistics().generateGlobalStatistics().generateReport();
+
+        LogManager.getInstance().audit("Global statistics viewed",
+                java.util.Map.of("executor", context.getSource().getName()));
+
+        context.getSource().sendFeedback(() ->
+                Text.literal(report).formatted(Formatting.AQUA), false);
+
+        return 1;
+    }
+
+    /**
+     * 统计在后台加载或补齐，未完成时提示稍后再试，不在服务器线程上等待
+     */
+    private static boolean checkStatisticsLoaded(CommandContext<ServerCommandSource> context) {
+        if (ChatHistory.getInstance().isStatisticsLoaded()) {
+            return true;
+        }
+        context.getSource().sendFeedback(() ->
+                Text.literal("统计数据仍在生成中，请稍后再试").formatted(Formatting.YELLOW), false);
+        return false;
+    }
+
     /**
      * 导出玩家历史记录
      */
-    private static int exportPlayerHistory(CommandContext<ServerCommandSource> context) {
+    private static int exportPlayerHistory(CommandContext<ServerCommandSource> context, boolean compress) {
         try {
             ServerPlayerEntity player = EntityArgumentType.getPlayer(context, "player");
             String formatStr = StringArgumentType.getString(context, "format");
@@ -112,7 +168,7 @@ public class HistoryCommand {
         }
         
         HistoryExporter exporter = new HistoryExporter();
-        HistoryExporter.ExportResult result = exporter.exportPlayerHistory(playerId, playerName, format);
+        HistoryExporter.ExportResult result = exporter.exportPlayerHistory(playerId, playerName, format, compress);
         
         // 记录审计日志
         LogManager.getInstance().audit("Player history exported", 
@@ -121,6 +177,7 @@ public class HistoryCommand {
                         "target_player", playerName,
                         "target_player_id", playerId.toString(),
                         "format", formatStr,
+                        "compressed", compress,
                         "success", result.isSuccess()
                 ));
         
@@ -141,6 +198,55 @@ public class HistoryCommand {
         }
     }
 
+    /**
+     * 导出所有玩家的历史记录到一个zip归档
+     *
+     * 导出在后台线程执行，每完成约10%的玩家报告一次进度。
+     */
+    private static int exportAllPlayers(CommandContext<ServerCommandSource> context) {
+        String formatStr = StringArgumentType.getString(context, "format");
+        HistoryExporter.ExportFormat format;
+        try {
+            format = HistoryExporter.ExportFormat.valueOf(formatStr.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            context.getSource().sendFeedback(() ->
+                    Text.literal("不支持的导出格式: " + formatStr).formatted(Formatting.RED), false);
+            return 0;
+        }
+
+        ServerCommandSource source = context.getSource();
+        source.sendFeedback(() -> Text.literal("开始导出所有玩家的历史记录...").formatted(Formatting.GRAY), false);
+
+        CompletableFuture.runAsync(() -> {
+            int[] lastReported = {0};
+            HistoryExporter.ExportResult result = new HistoryExporter().exportAllPlayers(format, (completed, total) -> {
+                int percent = completed * 100 / total;
+                if (percent / 10 > lastReported[0] / 10 && completed < total) {
+                    lastReported[0] = percent;
+                    source.sendFeedback(() -> Text.literal("导出进度: " + completed + "/" + total +
+                            " (" + percent + "%)").formatted(Formatting.GRAY), false);
+                }
+            });
+
+            LogManager.getInstance().audit("All player history exported",
+                    java.util.Map.of(
+                            "executor", source.getName(),
+                            "format", formatStr,
+                            "success", result.isSuccess()
+                    ));
+
+            if (result.isSuccess()) {
+                source.sendFeedback(() -> Text.literal(result.getMessage() + ": " +
+                        result.getExportFile().getFileName()).formatted(Formatting.GREEN), true);
+            } else {
+                source.sendFeedback(() ->
+                        Text.literal("导出失败: " + result.getMessage()).formatted(Formatting.RED), false);
+            }
+        });
+
+        return 1;
+    }
+
     /**
      * 搜索历史记录
      */
@@ -152,7 +258,7 @@ public class HistoryCommand {
         UUID playerId = player.getUuid();
         String playerName = player.getName().getString();
         
-        var sessions = ChatHistory.getInstance().searchHistory(playerId, keyword);
+        List<ChatHistory.SearchResult> results = ChatHistory.getInstance().search(playerId, keyword, SEARCH_LIMIT);
         
         // 记录审计日志
         LogManager.getInstance().audit("Player history searched", 
@@ -161,10 +267,10 @@ public class HistoryCommand {
                         "target_player", playerName,
                         "target_player_id", playerId.toString(),
                         "keyword", keyword,
-                        "results_count", sessions.size()
+                        "results_count", results.size()
                 ));
         
-        if (sessions.isEmpty()) {
+        if (results.isEmpty()) {
             context.getSource().sendFeedback(() -> 
                     Text.literal("没有找到包含关键词 \"" + keyword + "\" 的历史记录")
                             .formatted(Formatting.YELLOW), false);
@@ -174,34 +280,79 @@ public class HistoryCommand {
         StringBuilder result = new StringBuilder();
         result.append("=== 搜索结果 ===\n");
         result.append("玩家: ").append(playerName).append("\n");
-        result.append("关键词: ").append(keyword).append("\n");
-        result.append("找到 ").append(sessions.size()).append(" 个会话\n\n");
+        appendSearchResults(result, keyword, results, false);
         
+            context.getSource().sendFeedback(() ->
+                    Text.literal(result.toString()).formatted(Formatting.AQUA), false);
+
+            return 1;
+        } catch (CommandSyntaxException e) {
+            context.getSource().sendFeedback(() ->
+                    Text.literal("命令语法错误: " + e.getMessage()).formatted(Formatting.RED), false);
+            return 0;
+        }
+    }
+
+    /**
+     * 在所有玩家的历史记录中搜索
+     */
+    private static int searchAllHistory(CommandContext<ServerCommandSource> context) {
+        String keyword = StringArgumentType.getString(context, "keyword");
+        List<ChatHistory.SearchResult> results = ChatHistory.getInstance().searchAll(keyword, SEARCH_LIMIT);
+
+        // 记录审计日志
+        LogManager.getInstance().audit("All player history searched",
+                java.util.Map.of(
+                        "executor", context.getSource().getName(),
+                        "keyword", keyword,
+                        "results_count", results.size()
+                ));
+
+        if (results.isEmpty()) {
+            context.getSource().sendFeedback(() ->
+                    Text.literal("没有找到包含关键词 \"" + keyword + "\" 的历史记录")
+                            .formatted(Formatting.YELLOW), false);
+            return 0;
+        }
+
+        StringBuilder result = new StringBuilder();
+        result.append("=== 全服搜索结果 ===\n");
+        appendSearchResults(result, keyword, results, true);
+
+        context.getSource().sendFeedback(() ->
+                Text.literal(result.toString()).formatted(Formatting.AQUA), false);
+        return 1;
+    }
+
+    /**
+     * 格式化搜索结果，每个会话显示标题、时间和命中片段
+     */
+    private static void appendSearchResults(StringBuilder result, String keyword,
+                                            List<ChatHistory.SearchResult> results, boolean showPlayer) {
+        result.append("关键词: ").append(keyword).append("\n");
+        result.append("找到 ").append(results.size()).append(" 个会话\n\n");
+
         int count = 0;
-        for (var session : sessions) {
-            if (count >= 5) { // 限制显示数量
-                result.append("... 还有 ").append(sessions.size() - count).append(" 个结果\n");
+        for (ChatHistory.SearchResult searchResult : results) {
+            if (count >= SEARCH_DISPLAY_LIMIT) { // 限制显示数量
+                result.append("... 还有 ").append(results.size() - count).append(" 个结果\n");
                 break;
             }
-            
+
+            ChatHistory.SessionInfo session = searchResult.getSession();
             result.append("会话 ").append(count + 1).append(":\n");
+            if (showPlayer) {
+                result.append("  玩家: ").append(searchResult.getPlayerId()).append("\n");
+            }
             result.append("  标题: ").append(session.getDisplayTitle()).append("\n");
             result.append("  时间: ").append(session.getFormattedTimestamp()).append("\n");
             result.append("  模板: ").append(session.getPromptTemplate()).append("\n");
-            result.append("  消息数: ").append(session.getMessages().size()).append("\n");
+            result.append("  命中消息: ").append(searchResult.getMatchedMessages())
+                    .append("/").append(session.getMessageCount()).append("\n");
+            result.append("  片段: ").append(searchResult.getSnippet()).append("\n");
             result.append("\n");
             count++;
         }
-        
-            context.getSource().sendFeedback(() ->
-                    Text.literal(result.toString()).formatted(Formatting.AQUA), false);
-
-            return 1;
-        } catch (CommandSyntaxException e) {
-            context.getSource().sendFeedback(() ->
-                    Text.literal("命令语法错误: " + e.getMessage()).formatted(Formatting.RED), false);
-            return 0;
-        }
     }
 
     /**
@@ -16,6 +16,7 @@ import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.riceawa.llm.history.ChatHistory;
 import com.riceawa.llm.history.ChatHistory.ChatSession;
+import com.riceawa.llm.history.ChatHistory.SessionInfo;
 import com.riceawa.llm.logging.LogManager;
 import com.riceawa.llm.service.LLMServiceManager;
 import com.riceawa.llm.template.PromptTemplate;
@@ -246,16 +247,15 @@ public class LLMChatCommand {
 
         try {
             ChatHistory chatHistory = ChatHistory.getInstance();
-            List<ChatSession> sessions = chatHistory.loadPlayerHistory(player.getUuid());
 
-            if (sessions == null || sessions.isEmpty()) {
+            // 获取最近的会话
+            ChatSession lastSession = chatHistory.getLastSession(player.getUuid());
+
+            if (lastSession == null) {
                 player.sendMessage(Text.literal("没有找到历史对话记录").formatted(Formatting.YELLOW), false);
                 return 1;
             }
 
-            // 获取最近的会话
-            ChatSession lastSession = sessions.get(sessions.size() - 1);
-
             // 获取当前上下文
             ChatContextManager contextManager = ChatContextManager.getInstance();
             ChatContext currentContext = contextManager.getContext(player);
@@ -315,9 +315,10 @@ public class LLMChatCommand {
 
         try {
             ChatHistory chatHistory = ChatHistory.getInstance();
-            List<ChatSession> sessions = chatHistory.loadPlayerHistory(player.getUuid());
+            // 只读取会话索引，不加载消息
+            List<SessionInfo> sessions = chatHistory.listSessions(player.getUuid());
 
-            if (sessions == null || sessions.isEmpty()) {
+            if (sessions.isEmpty()) {
                 player.sendMessage(Text.literal("没有找到历史对话记录").formatted(Formatting.YELLOW), false);
                 return 1;
             }
@@ -329,13 +330,13 @@ public class LLMChatCommand {
 
             // 按时间倒序显示（最新的在前面）
             for (int i = sessions.size() - 1; i >= 0; i--) {
-                ChatSession session = sessions.get(i);
+                SessionInfo session = sessions.get(i);
                 int displayIndex = sessions.size() - i; // 最新的是#1
 
                 message.append("#").append(displayIndex).append(" ");
                 message.append(session.getDisplayTitle()).append("\n");
                 message.append("   时间: ").append(session.getFormattedTimestamp()).append("\n");
-                message.append("   消息数: ").append(session.getMessages().size()).append(" 条");
+                message.append("   消息数: ").append(session.getMessageCount()).append(" 条");
                 if (session.getPromptTemplate() != null && !session.getPromptTemplate().equals("default")) {
                     message.append("   模板: ").append(session.getPromptTemplate());
                 }
@@ -1106,6 +1107,18 @@ public class LLMChatCommand {
             player.sendMessage(Text.literal("  队列大小: " + stats.queueSize).formatted(Formatting.WHITE), false);
             player.sendMessage(Text.literal(""), false);
 
+            // 历史记录写入状态
+            ChatHistory chatHistory = ChatHistory.getInstance();
+            player.sendMessage(Text.literal("💾 历史记录写入:").formatted(Formatting.AQUA), false);
+            player.sendMessage(Text.literal("  待写入玩家: " + chatHistory.getPendingFlushCount()).formatted(Formatting.WHITE), false);
+            player.sendMessage(Text.literal("  积压记录: " + chatHistory.getPendingRecordCount()).formatted(Formatting.WHITE), false);
+            player.sendMessage(Text.literal("  缓存玩家: " + chatHistory.getCachedPlayerCount()).formatted(Formatting.WHITE), false);
+            player.sendMessage(Text.literal("  缓存占用: " + String.format("%.1f / %.1f MB",
+                    chatHistory.getCacheResidentBytes() / 1048576.0, chatHistory.getCacheBudgetBytes() / 1048576.0)).formatted(Formatting.WHITE), false);
+            player.sendMessage(Text.literal("  缓存命中率: " + String.format("%.1f%%", chatHistory.getCacheHitRate() * 100)).formatted(Formatting.YELLOW), false);
+            player.sendMessage(Text.literal("  缓存淘汰: " + chatHistory.getCacheEvictionCount()).formatted(Formatting.GRAY), false);
+            player.sendMessage(Text.literal(""), false);
+
             // 健康状态
             boolean isHealthy = ConcurrencyManager.getInstance().isHealthy();
             String healthStatus = isHealthy ? "健康" : "异常";
@@ -1373,7 +1386,7 @@ public class LLMChatCommand {
                 .metadata("server", EntityHelper.getServer(serverPlayer).getName())
                 .build();
 
-        llmService.chat(chatContext.getMessages(), llmConfig, llmContext)
+        llmService.chat(chatContext.getRequestMessages(), llmConfig, llmContext)
                 .thenAccept(response -> {
                     long endTime = System.currentTimeMillis();
                     if (response.isSuccess()) {
@@ -1600,7 +1613,7 @@ public class LLMChatCommand {
                     .build();
 
             // 发送请求获取响应（可能包含新的函数调用）
-            llmService.chat(chatContext.getMessages(), llmConfig, llmContext)
+            llmService.chat(chatContext.getRequestMessages(), llmConfig, llmContext)
                     .thenAccept(response -> {
                         if (response.isSuccess()) {
                             // 使用递归响应处理逻辑
@@ -1765,7 +1778,7 @@ public class LLMChatCommand {
                     .build();
 
             // 发送请求获取最终响应（仅文本）
-            llmService.chat(chatContext.getMessages(), llmConfig, llmContext)
+            llmService.chat(chatContext.getRequestMessages(), llmConfig, llmContext)
                     .thenAccept(response -> {
                         if (response.isSuccess()) {
                             String content = response.getContent();
@@ -1,22 +1,51 @@
 package com.riceawa.llm.command;
 
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.suggestion.SuggestionProvider;
 import com.riceawa.llm.config.LLMChatConfig;
+import com.riceawa.llm.logging.LLMRequestLogReconstructor;
 import com.riceawa.llm.logging.LogConfig;
 import com.riceawa.llm.logging.LogLevel;
 import com.riceawa.llm.logging.LogManager;
+import com.riceawa.llm.logging.LogQuery;
+import com.riceawa.llm.logging.LogQueryEngine;
 import net.minecraft.command.CommandRegistryAccess;
 import net.minecraft.server.command.CommandManager;
 import net.minecraft.server.command.ServerCommandSource;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * 日志管理命令
  */
 public class LogCommand {
+    private static final int MAX_DISPLAY_LENGTH = 200;
+    private static final DateTimeFormatter DISPLAY_TIME_FORMATTER = DateTimeFormatter.ofPattern("MM-dd HH:mm:ss");
+
+    private static final SuggestionProvider<ServerCommandSource> LOG_FILE_SUGGESTIONS = (context, builder) -> {
+        builder.suggest("system");
+        builder.suggest("chat");
+        builder.suggest("error");
+        builder.suggest("performance");
+        builder.suggest("audit");
+        builder.suggest("llm_request");
+        return builder.buildFuture();
+    };
     
     public static void register(CommandDispatcher<ServerCommandSource> dispatcher, CommandRegistryAccess registryAccess) {
         dispatcher.register(CommandManager.literal("llmlog")
@@ -61,6 +90,23 @@ public class LogCommand {
                                 .executes(LogCommand::disableCategory)))
                 .then(CommandManager.literal("test")
                         .executes(LogCommand::testLogging))
+                .then(CommandManager.literal("query")
+                        .then(CommandManager.argument("category", StringArgumentType.string())
+                                .suggests(LOG_FILE_SUGGESTIONS)
+                                .executes(context -> queryLogs(context, null))
+                                .then(CommandManager.argument("filters", StringArgumentType.greedyString())
+                                        .executes(context -> queryLogs(context,
+                                                StringArgumentType.getString(context, "filters"))))))
+                .then(CommandManager.literal("tail")
+                        .then(CommandManager.argument("category", StringArgumentType.string())
+                                .suggests(LOG_FILE_SUGGESTIONS)
+                                .executes(context -> tailLogs(context, LogQuery.DEFAULT_PAGE_SIZE))
+                                .then(CommandManager.argument("count", IntegerArgumentType.integer(1, 50))
+                                        .executes(context -> tailLogs(context,
+                                                IntegerArgumentType.getInteger(context, "count"))))))
+                .then(CommandManager.literal("reconstruct")
+                        .then(CommandManager.argument("requestId", StringArgumentType.string())
+                                .executes(LogCommand::reconstructRequest)))
         );
     }
 
@@ -102,6 +148,19 @@ public class LogCommand {
         status.append("最大文件大小: ").append(logConfig.getMaxFileSize() / 1024 / 1024).append("MB\n");
         status.append("备份文件数: ").append(logConfig.getMaxBackupFiles()).append("\n");
         status.append("保留天数: ").append(logConfig.getRetentionDays()).append("\n");
+
+        LogManager logManager = LogManager.getInstance();
+        status.append("\n异步队列: ").append(logManager.getQueuedCount()).append("/")
+                .append(logManager.getQueueCapacity()).append("\n");
+        status.append("溢出策略: ").append(logConfig.getOverflowPolicy()).append("\n");
+        status.append("已丢弃日志: ").append(logManager.getDroppedTotal());
+        if (logManager.getDroppedTotal() > 0) {
+            status.append(" (DEBUG ").append(logManager.getDroppedCount(LogLevel.DEBUG))
+                    .append(", INFO ").append(logManager.getDroppedCount(LogLevel.INFO))
+                    .append(", WARN ").append(logManager.getDroppedCount(LogLevel.WARN))
+                    .append(", ERROR ").append(logManager.getDroppedCount(LogLevel.ERROR)).append(")");
+        }
+        status.append("\n");
         status.append("\n日志类别状态:\n");
         status.append("系统日志: ").append(logConfig.isEnableSystemLog() ? "启用" : "禁用").append("\n");
         status.append("聊天日志: ").append(logConfig.isEnableChatLog() ? "启用" : "禁用").append("\n");
@@ -247,4 +306,122 @@ public class LogCommand {
         
         return 1;
     }
+
+    /**
+     * 从增量请求日志还原完整请求，写入logs/reconstructed目录
+     */
+    private static int reconstructRequest(CommandContext<ServerCommandSource> context) {
+        String requestId = StringArgumentType.getString(context, "requestId");
+        ServerCommandSource source = context.getSource();
+        source.sendFeedback(() -> Text.literal("正在还原请求 " + requestId + "...").formatted(Formatting.GRAY), false);
+
+        CompletableFuture.runAsync(() -> {
+            LogManager logManager = LogManager.getInstance();
+            try {
+                JsonObject request = new LLMRequestLogReconstructor(logManager.getLogFiles("llm_request"))
+                        .reconstruct(requestId);
+                Path outputDir = logManager.getLogDirectory().resolve("reconstructed");
+                Files.createDirectories(outputDir);
+                Path outputFile = outputDir.resolve("request_" + requestId.replaceAll("[^a-zA-Z0-9_-]", "_") + ".json");
+                Files.writeString(outputFile, new GsonBuilder().setPrettyPrinting().create().toJson(request),
+                        StandardCharsets.UTF_8);
+
+                int messageCount = request.has("messages") ? request.getAsJsonArray("messages").size() : 0;
+                source.sendFeedback(() -> Text.literal("已还原请求 " + requestId + " (" + messageCount +
+                        " 条消息): " + outputFile.getFileName()).formatted(Formatting.GREEN), false);
+            } catch (Exception e) {
+                source.sendFeedback(() ->
+                        Text.literal("还原失败: " + e.getMessage()).formatted(Formatting.RED), false);
+            }
+        });
+
+        return 1;
+    }
+
+    /**
+     * 按条件查询日志，结果分页显示，第1页是最新的日志
+     */
+    private static int queryLogs(CommandContext<ServerCommandSource> context, String filters) {
+        String category = StringArgumentType.getString(context, "category");
+        ServerCommandSource source = context.getSource();
+
+        LogQuery query;
+        try {
+            query = LogQuery.parse(category, filters);
+        } catch (IllegalArgumentException e) {
+            source.sendFeedback(() -> Text.literal("查询条件错误: " + e.getMessage() +
+                    " (可用条件: level= player= request= from= to= page=)").formatted(Formatting.RED), false);
+            return 0;
+        }
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                LogQueryEngine.QueryResult result = LogManager.getInstance().getQueryEngine().query(query);
+                if (result.getRecords().isEmpty()) {
+                    source.sendFeedback(() -> Text.literal(result.getPage() > 1 ?
+                            "第 " + result.getPage() + " 页没有结果" : "没有找到符合条件的日志")
+                            .formatted(Formatting.YELLOW), false);
+                    return;
+                }
+
+                source.sendFeedback(() -> Text.literal("=== " + category + " 日志 第 " + result.getPage() +
+                        " 页 ===").formatted(Formatting.AQUA), false);
+                sendRecords(source, result.getRecords());
+                if (result.hasMore()) {
+                    String next = (filters == null ? "" : filters.replaceAll("(^|\\s)page=\\S+", "").trim() + " ") +
+                            "page=" + (result.getPage() + 1);
+                    source.sendFeedback(() -> Text.literal("下一页: /llmlog query " + category + " " + next.trim())
+                            .formatted(Formatting.GRAY), false);
+                }
+            } catch (Exception e) {
+                source.sendFeedback(() ->
+                        Text.literal("查询失败: " + e.getMessage()).formatted(Formatting.RED), false);
+            }
+        });
+
+        return 1;
+    }
+
+    /**
+     * 显示当前日志文件最后的若干条日志
+     */
+    private static int tailLogs(CommandContext<ServerCommandSource> context, int count) {
+        String category = StringArgumentType.getString(context, "category");
+        ServerCommandSource source = context.getSource();
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                List<LogQueryEngine.LogRecord> records = LogManager.getInstance().getQueryEngine()
+                        .tail(new LogQuery.Builder().category(category).build(), count);
+                if (records.isEmpty()) {
+                    source.sendFeedback(() -> Text.literal("日志文件为空: " + category).formatted(Formatting.YELLOW), false);
+                    return;
+                }
+                source.sendFeedback(() -> Text.literal("=== " + category + " 最近 " + records.size() + " 条日志 ===")
+                        .formatted(Formatting.AQUA), false);
+                sendRecords(source, records);
+            } catch (Exception e) {
+                source.sendFeedback(() ->
+                        Text.literal("读取日志失败: " + e.getMessage()).formatted(Formatting.RED), false);
+            }
+        });
+
+        return 1;
+    }
+
+    private static void sendRecords(ServerCommandSource source, List<LogQueryEngine.LogRecord> records) {
+        for (LogQueryEngine.LogRecord record : records) {
+            String time = LocalDateTime.ofInstant(Instant.ofEpochMilli(record.getTimestampMillis()),
+                    ZoneId.systemDefault()).format(DISPLAY_TIME_FORMATTER);
+            String message = record.getMessage();
+            if (message.length() > MAX_DISPLAY_LENGTH) {
+                message = message.substring(0, MAX_DISPLAY_LENGTH) + "...";
+            }
+            Formatting color = record.getLevel() == LogLevel.ERROR ? Formatting.RED :
+                    record.getLevel() == LogLevel.WARN ? Formatting.YELLOW : Formatting.WHITE;
+            String level = record.getLevel() != null ? record.getLevel().getName() : "?";
+            String text = "[" + time + "] [" + level + "] " + message;
+            source.sendFeedback(() -> Text.literal(text).formatted(color), false);
+        }
+    }
 }
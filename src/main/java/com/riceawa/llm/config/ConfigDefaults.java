@@ -20,6 +20,8 @@ public class ConfigDefaults {
     public static final boolean DEFAULT_ENABLE_FUNCTION_CALLING = false;
     public static final boolean DEFAULT_ENABLE_BROADCAST = false;
     public static final int DEFAULT_HISTORY_RETENTION_DAYS = 30;
+    public static final boolean DEFAULT_COMPRESS_HISTORY = true;
+    public static final String DEFAULT_HISTORY_STORAGE = "file";
     
     // 上下文压缩配置默认值
     public static final String DEFAULT_COMPRESSION_MODEL = ""; // 空字符串表示使用当前模型
@@ -144,6 +146,8 @@ public class ConfigDefaults {
             case "defaultTemperature": return "默认温度";
             case "defaultMaxTokens": return "默认最大Token数";
             case "enableHistory": return "启用历史记录";
+            case "compressHistory": return "压缩历史记录文件";
+            case "historyStorage": return "历史记录存储方式";
             case "enableFunctionCalling": return "启用函数调用";
             case "enableBroadcast": return "启用广播";
             case "compressionModel": return "压缩模型";
@@ -197,6 +201,8 @@ public class ConfigDefaults {
             case "defaultMaxTokens": return DEFAULT_MAX_TOKENS;
             case "maxContextCharacters": return DEFAULT_MAX_CONTEXT_CHARACTERS;
             case "enableHistory": return DEFAULT_ENABLE_HISTORY;
+            case "compressHistory": return DEFAULT_COMPRESS_HISTORY;
+            case "historyStorage": return DEFAULT_HISTORY_STORAGE;
             case "enableFunctionCalling": return DEFAULT_ENABLE_FUNCTION_CALLING;
             case "enableRecursiveFunctionCalls": return DEFAULT_ENABLE_RECURSIVE_FUNCTION_CALLS;
             case "maxFunctionCallDepth": return DEFAULT_MAX_FUNCTION_CALL_DEPTH;
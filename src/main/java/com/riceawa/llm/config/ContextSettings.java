@@ -0,0 +1,192 @@
+package com.riceawa.llm.config;
+
+/**
+ * 上下文管理设置配置类
+ */
+public class ContextSettings {
+    // 压缩策略
+    public static final String STRATEGY_HYBRID = "hybrid"; // 有富余容量时用LLM摘要，否则用本地抽取式摘要
+    public static final String STRATEGY_LLM = "llm"; // 优先使用LLM摘要，失败时回退到本地抽取式摘要
+    public static final String STRATEGY_EXTRACTIVE = "extractive"; // 只使用本地抽取式摘要
+
+    // 滚动摘要配置
+    private int maxSummaryCharacters = 2000; // 滚动摘要的最大字符数
+    private String compressionStrategy = STRATEGY_HYBRID; // 压缩策略
+
+    // 预压缩配置
+    private boolean enablePreemptiveCompression = true; // 是否在后台预先压缩
+    private double softCompressionThreshold = 0.75; // 软水位（占最大上下文长度的比例）
+    private long idleCompressionDelayMs = 15000; // 玩家空闲多久后才进行预压缩（毫秒）
+
+    // 上下文换出配置
+    private boolean enableContextSpill = true; // 是否把空闲上下文换出到磁盘
+    private int spillIdleMinutes = 10; // 空闲多久后换出（分钟）
+    private long maxResidentCharacters = 2000000; // 常驻内存的上下文总字符数预算
+
+    // 长期记忆配置
+    private boolean enableLongTermMemory = true; // 是否从过往会话中检索相关记忆
+    private int memoryTopK = 3; // 每次请求最多注入的记忆片段数
+    private int memoryBudgetCharacters = 800; // 注入记忆的最大字符数
+
+    // 工具结果压缩配置
+    private boolean enableToolResultCompaction = true; // 是否在请求中压缩过时和重复的工具结果
+    private int toolResultKeepTurns = 2; // 最近多少轮对话的工具结果保留原文
+    private int toolResultDigestCharacters = 200; // 过时工具结果保留的开头字符数
+
+    public ContextSettings() {
+    }
+
+    public static ContextSettings createDefault() {
+        return new ContextSettings();
+    }
+
+    // 滚动摘要配置的getter和setter
+    public int getMaxSummaryCharacters() {
+        return maxSummaryCharacters;
+    }
+
+    public void setMaxSummaryCharacters(int maxSummaryCharacters) {
+        this.maxSummaryCharacters = maxSummaryCharacters;
+    }
+
+    public String getCompressionStrategy() {
+        return compressionStrategy != null ? compressionStrategy : STRATEGY_HYBRID;
+    }
+
+    public void setCompressionStrategy(String compressionStrategy) {
+        this.compressionStrategy = compressionStrategy;
+    }
+
+    // 预压缩配置的getter和setter
+    public boolean isEnablePreemptiveCompression() {
+        return enablePreemptiveCompression;
+    }
+
+    public void setEnablePreemptiveCompression(boolean enablePreemptiveCompression) {
+        this.enablePreemptiveCompression = enablePreemptiveCompression;
+    }
+
+    public double getSoftCompressionThreshold() {
+        return softCompressionThreshold;
+    }
+
+    public void setSoftCompressionThreshold(double softCompressionThreshold) {
+        this.softCompressionThreshold = softCompressionThreshold;
+    }
+
+    public long getIdleCompressionDelayMs() {
+        return idleCompressionDelayMs;
+    }
+
+    public void setIdleCompressionDelayMs(long idleCompressionDelayMs) {
+        this.idleCompressionDelayMs = idleCompressionDelayMs;
+    }
+
+    // 上下文换出配置的getter和setter
+    public boolean isEnableContextSpill() {
+        return enableContextSpill;
+    }
+
+    public void setEnableContextSpill(boolean enableContextSpill) {
+        this.enableContextSpill = enableContextSpill;
+    }
+
+    public int getSpillIdleMinutes() {
+        return spillIdleMinutes;
+    }
+
+    public void setSpillIdleMinutes(int spillIdleMinutes) {
+        this.spillIdleMinutes = spillIdleMinutes;
+    }
+
+    public long getMaxResidentCharacters() {
+        return maxResidentCharacters;
+    }
+
+    public void setMaxResidentCharacters(long maxResidentCharacters) {
+        this.maxResidentCharacters = maxResidentCharacters;
+    }
+
+    // 长期记忆配置的getter和setter
+    public boolean isEnableLongTermMemory() {
+        return enableLongTermMemory;
+    }
+
+    public void setEnableLongTermMemory(boolean enableLongTermMemory) {
+        this.enableLongTermMemory = enableLongTermMemory;
+    }
+
+    public int getMemoryTopK() {
+        return memoryTopK;
+    }
+
+    public void setMemoryTopK(int memoryTopK) {
+        this.memoryTopK = memoryTopK;
+    }
+
+    public int getMemoryBudgetCharacters() {
+        return memoryBudgetCharacters;
+    }
+
+    public void setMemoryBudgetCharacters(int memoryBudgetCharacters) {
+        this.memoryBudgetCharacters = memoryBudgetCharacters;
+    }
+
+    public boolean isEnableToolResultCompaction() {
+        return enableToolResultCompaction;
+    }
+
+    public void setEnableToolResultCompaction(boolean enableToolResultCompaction) {
+        this.enableToolResultCompaction = enableToolResultCompaction;
+    }
+
+    public int getToolResultKeepTurns() {
+        return toolResultKeepTurns;
+    }
+
+    public void setToolResultKeepTurns(int toolResultKeepTurns) {
+        this.toolResultKeepTurns = toolResultKeepTurns;
+    }
+
+    public int getToolResultDigestCharacters() {
+        return toolResultDigestCharacters;
+    }
+
+    public void setToolResultDigestCharacters(int toolResultDigestCharacters) {
+        this.toolResultDigestCharacters = toolResultDigestCharacters;
+    }
+
+    /**
+     * 验证配置的有效性
+     */
+    public boolean isValid() {
+        return maxSummaryCharacters > 0 &&
+               (STRATEGY_HYBRID.equals(compressionStrategy) || STRATEGY_LLM.equals(compressionStrategy) ||
+                STRATEGY_EXTRACTIVE.equals(compressionStrategy)) &&
+               softCompressionThreshold > 0 && softCompressionThreshold < 1 &&
+               idleCompressionDelayMs >= 0 &&
+               spillIdleMinutes > 0 && maxResidentCharacters > 0 &&
+               memoryTopK >= 0 && memoryBudgetCharacters >= 0 &&
+               toolResultKeepTurns >= 1 && toolResultDigestCharacters > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ContextSettings{" +
+                "maxSummaryCharacters=" + maxSummaryCharacters +
+                ", compressionStrategy='" + compressionStrategy + '\'' +
+                ", enablePreemptiveCompression=" + enablePreemptiveCompression +
+                ", softCompressionThreshold=" + softCompressionThreshold +
+                ", idleCompressionDelayMs=" + idleCompressionDelayMs +
+                ", enableContextSpill=" + enableContextSpill +
+                ", spillIdleMinutes=" + spillIdleMinutes +
+                ", maxResidentCharacters=" + maxResidentCharacters +
+                ", enableLongTermMemory=" + enableLongTermMemory +
+                ", memoryTopK=" + memoryTopK +
+                ", memoryBudgetCharacters=" + memoryBudgetCharacters +
+                ", enableToolResultCompaction=" + enableToolResultCompaction +
+                ", toolResultKeepTurns=" + toolResultKeepTurns +
+                ", toolResultDigestCharacters=" + toolResultDigestCharacters +
+                '}';
+    }
+}
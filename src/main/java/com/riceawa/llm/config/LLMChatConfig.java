@@ -40,6 +40,8 @@ public class LLMChatConfig {
     private boolean enableBroadcast = ConfigDefaults.DEFAULT_ENABLE_BROADCAST;
     private Set<String> broadcastPlayers = ConfigDefaults.createDefaultBroadcastPlayers();
     private int historyRetentionDays = ConfigDefaults.DEFAULT_HISTORY_RETENTION_DAYS;
+    private boolean compressHistory = ConfigDefaults.DEFAULT_COMPRESS_HISTORY;
+    private String historyStorage = ConfigDefaults.DEFAULT_HISTORY_STORAGE;
 
     // 上下文压缩配置
     private String compressionModel = ConfigDefaults.DEFAULT_COMPRESSION_MODEL;
@@ -68,6 +70,9 @@ public class LLMChatConfig {
     // 并发配置
     private ConcurrencySettings concurrencySettings = ConcurrencySettings.createDefault();
 
+    // 上下文管理配置
+    private ContextSettings contextSettings = ContextSettings.createDefault();
+
     // 日志配置
     private LogConfig logConfig = LogConfig.createDefault();
 
@@ -80,7 +85,10 @@ public class LLMChatConfig {
         this.isInitializing = true;
         this.gson = new GsonBuilder().setPrettyPrinting().create();
 
-        Path configDir = FabricLoader.getInstance().getConfigDir().resolve("lllmchat");
+        // 检查是否有测试目录设置
+        String testConfigDir = System.getProperty("lllmchat.config.dir");
+        Path configDir = testConfigDir != null ? Path.of(testConfigDir) :
+            FabricLoader.getInstance().getConfigDir().resolve("lllmchat");
         this.configFile = configDir.resolve("config.json");
 
         // 确保配置目录存在
@@ -285,6 +293,8 @@ public class LLMChatConfig {
         this.enableBroadcast = data.enableBroadcast != null ? data.enableBroadcast : (Boolean) ConfigDefaults.getDefaultValue("enableBroadcast");
         this.broadcastPlayers = data.broadcastPlayers != null ? new HashSet<>(data.broadcastPlayers) : ConfigDefaults.createDefaultBroadcastPlayers();
         this.historyRetentionDays = data.historyRetentionDays != null ? data.historyRetentionDays : (Integer) ConfigDefaults.getDefaultValue("historyRetentionDays");
+        this.compressHistory = data.compressHistory != null ? data.compressHistory : (Boolean) ConfigDefaults.getDefaultValue("compressHistory");
+        this.historyStorage = data.historyStorage != null ? data.historyStorage : (String) ConfigDefaults.getDefaultValue("historyStorage");
         this.enableGlobalContext = data.enableGlobalContext != null ? data.enableGlobalContext : (Boolean) ConfigDefaults.getDefaultValue("enableGlobalContext");
         this.globalContextPrompt = data.globalContextPrompt != null ? data.globalContextPrompt : (String) ConfigDefaults.getDefaultValue("globalContextPrompt");
 
@@ -307,6 +317,9 @@ public class LLMChatConfig {
         // 处理并发配置
         this.concurrencySettings = data.concurrencySettings != null ? data.concurrencySettings : ConcurrencySettings.createDefault();
 
+        // 处理上下文管理配置
+        this.contextSettings = data.contextSettings != null ? data.contextSettings : ContextSettings.createDefault();
+
         // 处理日志配置
         this.logConfig = data.logConfig != null ? data.logConfig : LogConfig.createDefault();
 
@@ -393,6 +406,8 @@ public class LLMChatConfig {
         data.enableBroadcast = this.enableBroadcast;
         data.broadcastPlayers = new HashSet<>(this.broadcastPlayers);
         data.historyRetentionDays = this.historyRetentionDays;
+        data.compressHistory = this.compressHistory;
+        data.historyStorage = this.historyStorage;
 
         // 全局上下文配置
         data.enableGlobalContext = this.enableGlobalContext;
@@ -412,6 +427,7 @@ public class LLMChatConfig {
 
         // 系统配置
         data.concurrencySettings = this.concurrencySettings;
+        data.contextSettings = this.contextSettings;
         data.logConfig = this.logConfig;
         data.providers = this.providers;
 
@@ -553,6 +569,24 @@ public class LLMChatConfig {
         saveConfig();
     }
 
+    public boolean isCompressHistory() {
+        return compressHistory;
+    }
+
+    public void setCompressHistory(boolean compressHistory) {
+        this.compressHistory = compressHistory;
+        saveConfig();
+    }
+
+    public String getHistoryStorage() {
+        return historyStorage;
+    }
+
+    public void setHistoryStorage(String historyStorage) {
+        this.historyStorage = historyStorage;
+        saveConfig();
+    }
+
     // 全局上下文配置相关方法
     public boolean isEnableGlobalContext() {
         return enableGlobalContext;
@@ -660,6 +694,16 @@ public class LLMChatConfig {
         saveConfig();
     }
 
+    // 上下文管理配置相关方法
+    public ContextSettings getContextSettings() {
+        return contextSettings;
+    }
+
+    public void setContextSettings(ContextSettings contextSettings) {
+        this.contextSettings = contextSettings != null ? contextSettings : ContextSettings.createDefault();
+        saveConfig();
+    }
+
     // 日志配置相关方法
     public LogConfig getLogConfig() {
         return logConfig;
@@ -905,6 +949,11 @@ public class LLMChatConfig {
             updated = true;
         }
 
+        if (contextSettings == null) {
+            contextSettings = ContextSettings.createDefault();
+            updated = true;
+        }
+
         if (logConfig == null) {
             logConfig = LogConfig.createDefault();
             updated = true;
@@ -1033,6 +1082,8 @@ public class LLMChatConfig {
         Boolean enableBroadcast;
         Set<String> broadcastPlayers;
         Integer historyRetentionDays;
+        Boolean compressHistory;
+        String historyStorage;
 
         // 全局上下文配置
         Boolean enableGlobalContext;
@@ -1052,6 +1103,7 @@ public class LLMChatConfig {
 
         // 系统配置
         ConcurrencySettings concurrencySettings;
+        ContextSettings contextSettings;
         LogConfig logConfig;
         List<Provider> providers;
 
@@ -6,13 +6,19 @@ import com.riceawa.llm.core.LLMService;
 import com.riceawa.llm.core.LLMConfig;
 import com.riceawa.llm.core.LLMResponse;
 import com.riceawa.llm.core.LLMContext;
+import com.riceawa.llm.core.ConcurrencyManager;
+import com.riceawa.llm.core.SharedTextStore;
 import com.riceawa.llm.service.LLMServiceManager;
+import com.riceawa.llm.config.ContextSettings;
 import com.riceawa.llm.config.LLMChatConfig;
+import com.riceawa.llm.history.MemoryIndex;
 import com.riceawa.llm.logging.LogManager;
 import net.minecraft.entity.player.PlayerEntity;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 聊天上下文管理器，管理每个玩家的对话状态
@@ -47,13 +53,20 @@ public class ChatContext {
             onContextCompressionCompleted(playerId, success, originalCount, compressedCount);
         }
     }
+    // 滚动摘要消息的标记
+    public static final String SUMMARY_HEADER = "=== 对话历史摘要 ===";
+    public static final String SUMMARY_FOOTER = "=== 以下是最近的对话 ===";
+
+    // 本地抽取式摘要器（无状态，可共享）
+    private static final ExtractiveSummarizer EXTRACTIVE_SUMMARIZER = new ExtractiveSummarizer();
+
     private final String sessionId;
     private final UUID playerId;
     private final List<LLMMessage> messages;
     private final Map<String, Object> metadata;
     private String currentPromptTemplate;
     private int maxContextCharacters;
-    private long lastActivity;
+    private volatile long lastActivity;
     private ContextEventListener eventListener;
 
     // 缓存字符长度以提高性能
@@ -62,6 +75,10 @@ public class ChatContext {
 
     // 压缩状态标记
     private volatile boolean compressionInProgress = false;
+    private volatile boolean preemptiveCompressionScheduled = false;
+
+    // 是否已被换出到磁盘（换出后若仍被修改，需要重新放回内存）
+    private volatile boolean spilled = false;
 
     // 当前玩家实体（用于发送通知）
     private transient PlayerEntity currentPlayer;
@@ -76,6 +93,69 @@ public class ChatContext {
         this.lastActivity = System.currentTimeMillis();
     }
 
+    /**
+     * 从磁盘快照恢复上下文
+     */
+    private ChatContext(Snapshot snapshot) {
+        this.sessionId = snapshot.sessionId;
+        this.playerId = snapshot.playerId;
+        this.messages = new ArrayList<>();
+        if (snapshot.messages != null) {
+            for (LLMMessage message : snapshot.messages) {
+                this.messages.add(shareSystemContent(message));
+            }
+        }
+        this.metadata = new ConcurrentHashMap<>();
+        if (snapshot.metadata != null) {
+            this.metadata.putAll(snapshot.metadata);
+        }
+        this.currentPromptTemplate = snapshot.currentPromptTemplate != null ?
+            snapshot.currentPromptTemplate : LLMChatConfig.getInstance().getDefaultPromptTemplate();
+        this.maxContextCharacters = LLMChatConfig.getInstance().getMaxContextCharacters();
+        this.lastActivity = snapshot.lastActivity;
+    }
+
+    /**
+     * 让从磁盘加载的系统提示词重新使用共享实例
+     */
+    private static LLMMessage shareSystemContent(LLMMessage message) {
+        if (message.getRole() != MessageRole.SYSTEM || message.getContent() == null) {
+            return message;
+        }
+        String shared = SharedTextStore.getInstance().intern(message.getContent());
+        return shared == message.getContent() ? message : message.withContent(shared, null);
+    }
+
+    /**
+     * 从快照创建上下文
+     */
+    public static ChatContext fromSnapshot(Snapshot snapshot) {
+        return new ChatContext(snapshot);
+    }
+
+    /**
+     * 创建当前上下文的快照（用于换出到磁盘）
+     * 只保留可以安全序列化的简单元数据
+     */
+    public Snapshot toSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.sessionId = sessionId;
+        snapshot.playerId = playerId;
+        snapshot.currentPromptTemplate = currentPromptTemplate;
+        snapshot.metadata = new HashMap<>();
+        for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                snapshot.metadata.put(entry.getKey(), value);
+            }
+        }
+        synchronized (messages) {
+            snapshot.messages = new ArrayList<>(messages);
+            snapshot.lastActivity = lastActivity;
+        }
+        return snapshot;
+    }
+
     /**
      * 添加消息到上下文
      */
@@ -105,7 +185,7 @@ public class ChatContext {
      * 添加系统消息
      */
     public void addSystemMessage(String content) {
-        addMessage(new LLMMessage(MessageRole.SYSTEM, content));
+        addMessage(new LLMMessage(MessageRole.SYSTEM, SharedTextStore.getInstance().intern(content)));
     }
 
     /**
@@ -113,6 +193,8 @@ public class ChatContext {
      * 如果已存在系统消息，则替换第一个系统消息；否则在开头添加
      */
     public void updateSystemMessage(String content) {
+        // 系统提示词在所有上下文之间共享同一个实例
+        content = SharedTextStore.getInstance().intern(content);
         synchronized (messages) {
             // 查找第一个系统消息
             for (int i = 0; i < messages.size(); i++) {
@@ -141,6 +223,48 @@ public class ChatContext {
         }
     }
 
+    /**
+     * 获取发送给LLM的消息
+     * 在上下文消息的基础上压缩过时的工具结果，并注入与最新问题相关的长期记忆，
+     * 这些改动只用于本次请求，不影响上下文和历史记录
+     */
+    public List<LLMMessage> getRequestMessages() {
+        List<LLMMessage> requestMessages = getMessages();
+        ContextSettings settings = LLMChatConfig.getInstance().getContextSettings();
+        if (settings.isEnableToolResultCompaction()) {
+            ToolResultCompactor.compact(requestMessages, settings.getToolResultKeepTurns(),
+                settings.getToolResultDigestCharacters());
+        }
+        if (!settings.isEnableLongTermMemory()) {
+            return requestMessages;
+        }
+
+        // 以最新的用户消息作为检索查询，记忆紧贴在这条消息之前：
+        // 之前的消息在相邻两次请求之间保持不变，请求日志的增量记录和服务端的前缀缓存都能复用
+        int insertIndex = -1;
+        for (int i = requestMessages.size() - 1; i >= 0; i--) {
+            if (requestMessages.get(i).getRole() == MessageRole.USER) {
+                insertIndex = i;
+                break;
+            }
+        }
+        String query = insertIndex >= 0 ? requestMessages.get(insertIndex).getContent() : null;
+        if (query == null || query.isEmpty()) {
+            return requestMessages;
+        }
+
+        try {
+            String memory = MemoryIndex.getInstance().buildMemoryPrompt(playerId, sessionId, query,
+                settings.getMemoryTopK(), settings.getMemoryBudgetCharacters());
+            if (memory != null) {
+                requestMessages.add(insertIndex, new LLMMessage(MessageRole.SYSTEM, memory));
+            }
+        } catch (Exception e) {
+            LogManager.getInstance().error("Failed to retrieve long-term memory for session " + sessionId, e);
+        }
+        return requestMessages;
+    }
+
     /**
      * 获取最近的N条消息
      */
@@ -210,14 +334,37 @@ public class ChatContext {
 
     /**
      * 检查是否需要压缩，如果需要则启动异步压缩任务
+     * 超过硬上限时立即压缩；超过软水位时等玩家空闲后在后台预先压缩
      */
     public void scheduleCompressionIfNeeded() {
-        if (!exceedsContextLimits() || compressionInProgress) {
+        if (compressionInProgress) {
             return;
         }
 
-        // 启动异步压缩
-        compressContextAsync();
+        if (exceedsContextLimits()) {
+            // 启动异步压缩
+            compressContextAsync();
+        } else if (exceedsSoftThreshold()) {
+            schedulePreemptiveCompression(LLMChatConfig.getInstance().getContextSettings().getIdleCompressionDelayMs());
+        }
+    }
+
+    /**
+     * 获取软水位对应的字符数
+     */
+    private int getSoftThresholdCharacters() {
+        double ratio = LLMChatConfig.getInstance().getContextSettings().getSoftCompressionThreshold();
+        return (int) (maxContextCharacters * ratio);
+    }
+
+    /**
+     * 检查是否超过软水位
+     */
+    private boolean exceedsSoftThreshold() {
+        if (!LLMChatConfig.getInstance().getContextSettings().isEnablePreemptiveCompression()) {
+            return false;
+        }
+        return calculateTotalCharacters() > getSoftThresholdCharacters();
     }
 
     /**
@@ -239,100 +386,246 @@ public class ChatContext {
         });
     }
 
+    /**
+     * 安排一次预压缩检查，在玩家空闲后执行
+     */
+    private void schedulePreemptiveCompression(long delayMs) {
+        if (preemptiveCompressionScheduled) {
+            return;
+        }
+        preemptiveCompressionScheduled = true;
+
+        ChatContextManager.getInstance().getScheduler().schedule(() -> {
+            try {
+                runPreemptiveCompression();
+            } catch (Exception e) {
+                preemptiveCompressionScheduled = false;
+                LogManager.getInstance().error("Preemptive context compression failed for session " + sessionId, e);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 执行预压缩：只在玩家空闲且交互请求不繁忙时进行，否则推迟到下一个空闲窗口
+     * 已安排的标记在开始压缩或重新安排时才清除，hasPendingCompression不会在两者之间短暂返回false
+     */
+    private void runPreemptiveCompression() {
+        if (compressionInProgress || !exceedsSoftThreshold()) {
+            preemptiveCompressionScheduled = false;
+            return;
+        }
+
+        long idleDelayMs = LLMChatConfig.getInstance().getContextSettings().getIdleCompressionDelayMs();
+        long idleMs = System.currentTimeMillis() - lastActivity;
+        if (idleMs < idleDelayMs) {
+            // 玩家仍在对话中，等待其空闲
+            preemptiveCompressionScheduled = false;
+            schedulePreemptiveCompression(idleDelayMs - idleMs);
+            return;
+        }
+
+        if (!ConcurrencyManager.getInstance().hasSpareCapacity()) {
+            // 交互请求繁忙，让出容量，稍后重试
+            preemptiveCompressionScheduled = false;
+            schedulePreemptiveCompression(idleDelayMs);
+            return;
+        }
+
+        compressionInProgress = true;
+        preemptiveCompressionScheduled = false;
+        try {
+            CompressionPlan plan = planCompression(getSoftThresholdCharacters());
+            if (plan == null) {
+                return;
+            }
+
+            String summary = summarize(plan.previousSummary, plan.getMessagesToCompress());
+            if (summary != null && !summary.trim().isEmpty() && applySummary(plan, summary)) {
+                LogManager.getInstance().system("Context pre-compressed in background for session " + sessionId +
+                    ", folded " + plan.messagesToCompress + " messages into rolling summary");
+            }
+        } finally {
+            compressionInProgress = false;
+        }
+    }
+
     /**
      * 修剪上下文，保持在最大长度内
-     * 使用智能压缩而不是简单删除
+     * 使用滚动摘要：已有摘要与新淘汰的消息合并为新的摘要，而不是叠加多个摘要
      */
     private void trimContext() {
         if (!exceedsContextLimits()) {
             return;
         }
 
-        // 保留系统消息和最近的消息
-        List<LLMMessage> systemMessages = new ArrayList<>();
-        List<LLMMessage> otherMessages = new ArrayList<>();
+        CompressionPlan plan = planCompression(maxContextCharacters);
+        if (plan == null) {
+            return; // 无需压缩
+        }
+        int messagesToCompress = plan.messagesToCompress;
 
-        for (LLMMessage message : messages) {
-            if (message.getRole() == MessageRole.SYSTEM) {
-                systemMessages.add(message);
+        // 通知监听器压缩即将开始
+        if (eventListener != null) {
+            if (currentPlayer != null) {
+                eventListener.onContextCompressionStarted(playerId, messagesToCompress, currentPlayer);
             } else {
-                otherMessages.add(message);
+                eventListener.onContextCompressionStarted(playerId, messagesToCompress);
             }
         }
 
-        // 智能计算需要压缩的消息
-        int messagesToCompress = calculateMessagesToCompress(systemMessages, otherMessages);
+        // 尝试将旧摘要与新淘汰的消息合并为新的摘要（不持有锁，避免阻塞正在进行的对话）
+        String compressedSummary = summarize(plan.previousSummary, plan.getMessagesToCompress());
 
-        if (messagesToCompress <= 0) {
-            return; // 无需压缩
+        boolean success;
+        if (compressedSummary != null && !compressedSummary.trim().isEmpty()) {
+            // 压缩成功，用摘要替换旧消息
+            success = applySummary(plan, compressedSummary);
+            if (!success) {
+                // 压缩期间上下文已被清空或替换，无需再处理
+                return;
+            }
+
+            LogManager.getInstance().system("Context compressed for session " + sessionId +
+                ", folded " + messagesToCompress + " messages into rolling summary" +
+                (plan.previousSummary != null ? " (updated existing summary)" : ""));
+        } else {
+            // 没有可摘要的内容，回退到简单删除（保留已有摘要）
+            fallbackTrimContext();
+            success = false;
         }
 
-        if (messagesToCompress > 0 && messagesToCompress < otherMessages.size()) {
-                // 通知监听器压缩即将开始
-                if (eventListener != null) {
-                    if (currentPlayer != null) {
-                        eventListener.onContextCompressionStarted(playerId, messagesToCompress, currentPlayer);
-                    } else {
-                        eventListener.onContextCompressionStarted(playerId, messagesToCompress);
-                    }
+        // 通知监听器压缩结果
+        if (eventListener != null) {
+            if (currentPlayer != null) {
+                eventListener.onContextCompressionCompleted(playerId, success,
+                    messagesToCompress, messages.size(), currentPlayer);
+            } else {
+                eventListener.onContextCompressionCompleted(playerId, success,
+                    messagesToCompress, messages.size());
+            }
+        }
+    }
+
+    /**
+     * 制定压缩计划：在锁内对当前消息做快照，确定要被摘要替换的消息
+     */
+    CompressionPlan planCompression(int targetCharacters) {
+        synchronized (messages) {
+            // 保留系统消息和最近的消息，已有的摘要单独取出参与滚动合并
+            List<LLMMessage> systemMessages = new ArrayList<>();
+            List<LLMMessage> otherMessages = new ArrayList<>();
+            List<LLMMessage> summaryMessages = new ArrayList<>();
+            List<String> previousSummaries = new ArrayList<>();
+
+            for (LLMMessage message : messages) {
+                if (isSummaryMessage(message)) {
+                    summaryMessages.add(message);
+                    previousSummaries.add(extractSummaryText(message.getContent()));
+                } else if (message.getRole() == MessageRole.SYSTEM) {
+                    systemMessages.add(message);
+                } else {
+                    otherMessages.add(message);
                 }
+            }
 
-                // 尝试压缩旧消息
-                List<LLMMessage> messagesToCompressSublist = otherMessages.subList(0, messagesToCompress);
-                String compressedSummary = compressMessages(messagesToCompressSublist);
+            // 智能计算需要压缩的消息
+            int messagesToCompress = calculateMessagesToCompress(systemMessages, otherMessages, targetCharacters);
 
-                if (compressedSummary != null && !compressedSummary.trim().isEmpty()) {
-                    // 压缩成功，用摘要替换旧消息
-                    List<LLMMessage> remainingMessages = otherMessages.subList(messagesToCompress, otherMessages.size());
+            // 工具结果必须紧跟其工具调用，不能把两者拆开
+            while (messagesToCompress > 0 && messagesToCompress < otherMessages.size() &&
+                   otherMessages.get(messagesToCompress).getRole() == MessageRole.TOOL) {
+                messagesToCompress++;
+            }
 
-                    // 重新构建消息列表
-                    messages.clear();
-                    messages.addAll(systemMessages);
+            if (messagesToCompress <= 0 || messagesToCompress >= otherMessages.size()) {
+                return null;
+            }
 
-                    // 添加压缩摘要作为系统消息
-                    messages.add(new LLMMessage(MessageRole.SYSTEM,
-                        "=== 对话历史摘要 ===\n" + compressedSummary + "\n=== 以下是最近的对话 ==="));
+            String previousSummary = previousSummaries.isEmpty() ? null : String.join("\n", previousSummaries);
+            return new CompressionPlan(summaryMessages, new ArrayList<>(otherMessages.subList(0, messagesToCompress)),
+                previousSummary);
+        }
+    }
 
-                    messages.addAll(remainingMessages);
+    /**
+     * 原子地应用压缩结果
+     * 只有当被压缩的消息仍全部在上下文中时才替换，因此并发的请求看到的要么是压缩前、要么是压缩后的完整上下文
+     */
+    boolean applySummary(CompressionPlan plan, String summary) {
+        synchronized (messages) {
+            Set<LLMMessage> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+            replaced.addAll(plan.summaryMessages);
+            replaced.addAll(plan.compressedMessages);
 
-                    LogManager.getInstance().system("Context compressed for session " + sessionId +
-                        ", compressed " + messagesToCompress + " messages into summary");
+            int present = 0;
+            for (LLMMessage message : messages) {
+                if (replaced.contains(message)) {
+                    present++;
+                }
+            }
+            if (present != replaced.size()) {
+                return false;
+            }
 
-                    // 通知监听器压缩成功
-                    if (eventListener != null) {
-                        if (currentPlayer != null) {
-                            eventListener.onContextCompressionCompleted(playerId, true,
-                                messagesToCompress, messages.size(), currentPlayer);
-                        } else {
-                            eventListener.onContextCompressionCompleted(playerId, true,
-                                messagesToCompress, messages.size());
-                        }
-                    }
-                } else {
-                    // 压缩失败，回退到简单删除
-                    fallbackTrimContext(systemMessages, otherMessages);
-
-                    // 通知监听器压缩失败
-                    if (eventListener != null) {
-                        if (currentPlayer != null) {
-                            eventListener.onContextCompressionCompleted(playerId, false,
-                                messagesToCompress, messages.size(), currentPlayer);
-                        } else {
-                            eventListener.onContextCompressionCompleted(playerId, false,
-                                messagesToCompress, messages.size());
-                        }
-                    }
+            List<LLMMessage> rebuilt = new ArrayList<>(messages.size() - present + 1);
+            boolean summaryInserted = false;
+            for (LLMMessage message : messages) {
+                if (replaced.contains(message)) {
+                    continue;
+                }
+                // 摘要放在系统提示词之后、最近的对话之前
+                if (!summaryInserted && message.getRole() != MessageRole.SYSTEM) {
+                    rebuilt.add(createSummaryMessage(summary));
+                    summaryInserted = true;
                 }
+                rebuilt.add(message);
+            }
+            if (!summaryInserted) {
+                rebuilt.add(createSummaryMessage(summary));
             }
+
+            messages.clear();
+            messages.addAll(rebuilt);
+            invalidateCharacterCache();
+            return true;
         }
+    }
+
+    /**
+     * 判断消息是否为滚动摘要消息
+     */
+    public static boolean isSummaryMessage(LLMMessage message) {
+        return message.getRole() == MessageRole.SYSTEM && message.getContent() != null &&
+            message.getContent().startsWith(SUMMARY_HEADER);
+    }
+
+    /**
+     * 从摘要消息中提取摘要正文
+     */
+    private static String extractSummaryText(String content) {
+        String text = content.substring(SUMMARY_HEADER.length());
+        int footerIndex = text.lastIndexOf(SUMMARY_FOOTER);
+        if (footerIndex >= 0) {
+            text = text.substring(0, footerIndex);
+        }
+        return text.trim();
+    }
+
+    /**
+     * 创建滚动摘要消息
+     */
+    private static LLMMessage createSummaryMessage(String summary) {
+        return new LLMMessage(MessageRole.SYSTEM, SUMMARY_HEADER + "\n" + summary + "\n" + SUMMARY_FOOTER);
+    }
 
     /**
      * 智能计算需要压缩的消息数量（基于字符长度）
      * 策略：压缩完整的消息（如1/2的消息），保持消息完整性
      */
-    private int calculateMessagesToCompress(List<LLMMessage> systemMessages, List<LLMMessage> otherMessages) {
+    private int calculateMessagesToCompress(List<LLMMessage> systemMessages, List<LLMMessage> otherMessages,
+                                            int targetCharacters) {
         int totalCharacters = calculateTotalCharacters();
-        if (totalCharacters <= maxContextCharacters) {
+        if (totalCharacters <= targetCharacters) {
             return 0; // 无需压缩
         }
 
@@ -344,8 +637,9 @@ public class ChatContext {
             }
         }
 
-        // 预留压缩摘要的空间（估算为500字符）
-        int availableCharacters = maxContextCharacters - systemCharacters - 500;
+        // 预留滚动摘要的空间（摘要大小有上限）
+        int summaryReserve = LLMChatConfig.getInstance().getContextSettings().getMaxSummaryCharacters();
+        int availableCharacters = targetCharacters - systemCharacters - summaryReserve;
         if (availableCharacters <= 0) {
             // 如果空间不足，压缩一半消息（保持完整性）
             return Math.max(1, otherMessages.size() / 2);
@@ -376,49 +670,97 @@ public class ChatContext {
     }
 
     /**
-     * 回退的上下文修剪方法（简单删除）
+     * 回退的上下文修剪方法（简单删除，保留系统消息和已有摘要）
      */
-    private void fallbackTrimContext(List<LLMMessage> systemMessages, List<LLMMessage> otherMessages) {
-        // 按字符长度保留完整消息
-        List<LLMMessage> messagesToKeep = new ArrayList<>();
+    private void fallbackTrimContext() {
+        synchronized (messages) {
+            List<LLMMessage> systemMessages = new ArrayList<>();
+            List<LLMMessage> otherMessages = new ArrayList<>();
+            for (LLMMessage message : messages) {
+                if (message.getRole() == MessageRole.SYSTEM) {
+                    systemMessages.add(message);
+                } else {
+                    otherMessages.add(message);
+                }
+            }
 
-        // 计算系统消息的字符长度
-        int systemCharacters = 0;
-        for (LLMMessage msg : systemMessages) {
-            if (msg.getContent() != null) {
-                systemCharacters += msg.getContent().length();
+            // 按字符长度保留完整消息
+            List<LLMMessage> messagesToKeep = new ArrayList<>();
+
+            // 计算系统消息的字符长度
+            int systemCharacters = 0;
+            for (LLMMessage msg : systemMessages) {
+                if (msg.getContent() != null) {
+                    systemCharacters += msg.getContent().length();
+                }
             }
-        }
 
-        int availableCharacters = maxContextCharacters - systemCharacters;
-        int currentCharacters = 0;
+            int availableCharacters = maxContextCharacters - systemCharacters;
+            int currentCharacters = 0;
 
-        // 从最新消息开始保留完整消息
-        for (int i = otherMessages.size() - 1; i >= 0; i--) {
-            LLMMessage msg = otherMessages.get(i);
-            int msgLength = msg.getContent() != null ? msg.getContent().length() : 0;
-            if (currentCharacters + msgLength <= availableCharacters) {
-                currentCharacters += msgLength;
-                messagesToKeep.add(0, msg); // 添加到开头保持顺序
-            } else {
-                break; // 不能放下完整消息就停止
+            // 从最新消息开始保留完整消息
+            for (int i = otherMessages.size() - 1; i >= 0; i--) {
+                LLMMessage msg = otherMessages.get(i);
+                int msgLength = msg.getContent() != null ? msg.getContent().length() : 0;
+                if (currentCharacters + msgLength <= availableCharacters) {
+                    currentCharacters += msgLength;
+                    messagesToKeep.add(0, msg); // 添加到开头保持顺序
+                } else {
+                    break; // 不能放下完整消息就停止
+                }
+            }
+
+            // 失去对应工具调用的工具结果不能单独保留
+            while (!messagesToKeep.isEmpty() && messagesToKeep.get(0).getRole() == MessageRole.TOOL) {
+                LLMMessage dropped = messagesToKeep.remove(0);
+                currentCharacters -= dropped.getContent() != null ? dropped.getContent().length() : 0;
             }
+
+            // 重新构建消息列表
+            messages.clear();
+            messages.addAll(systemMessages);
+            messages.addAll(messagesToKeep);
+            invalidateCharacterCache();
+
+            LogManager.getInstance().system("Context trimmed using fallback method for session " + sessionId +
+                ", kept " + messagesToKeep.size() + " messages with " + currentCharacters + " characters");
         }
+    }
 
-        // 重新构建消息列表
-        messages.clear();
-        messages.addAll(systemMessages);
-        messages.addAll(messagesToKeep);
-        invalidateCharacterCache();
+    /**
+     * 按配置的压缩策略生成摘要
+     * LLM压缩仅在服务有富余容量时使用；服务繁忙或LLM压缩失败时使用本地抽取式摘要，不丢弃上下文
+     */
+    String summarize(String previousSummary, List<LLMMessage> messagesToCompress) {
+        ContextSettings settings = LLMChatConfig.getInstance().getContextSettings();
+        String strategy = settings.getCompressionStrategy();
+
+        boolean useLlm = ContextSettings.STRATEGY_LLM.equals(strategy) ||
+            (ContextSettings.STRATEGY_HYBRID.equals(strategy) && ConcurrencyManager.getInstance().hasSpareCapacity());
+        if (useLlm) {
+            String summary = compressMessages(previousSummary, messagesToCompress);
+            if (summary != null && !summary.trim().isEmpty()) {
+                return summary;
+            }
+        }
 
-        LogManager.getInstance().system("Context trimmed using fallback method for session " + sessionId +
-            ", kept " + messagesToKeep.size() + " messages with " + currentCharacters + " characters");
+        long startTime = System.currentTimeMillis();
+        String summary = EXTRACTIVE_SUMMARIZER.summarize(previousSummary, messagesToCompress,
+            settings.getMaxSummaryCharacters());
+        if (summary != null) {
+            LogManager.getInstance().system("Extractively summarized " + messagesToCompress.size() +
+                " messages for session " + sessionId + " in " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return summary;
     }
 
     /**
-     * 压缩消息列表为摘要
+     * 将已有摘要与新淘汰的消息合并为新的摘要
+     * 压缩提示词只包含上一版摘要（有上限）和本次淘汰的消息，因此成本不会随会话长度增长
+     *
+     * @return 摘要；服务不可用、请求失败或超过请求超时时间时返回null
      */
-    private String compressMessages(List<LLMMessage> messagesToCompress) {
+    private String compressMessages(String previousSummary, List<LLMMessage> messagesToCompress) {
         try {
             LLMServiceManager serviceManager = LLMServiceManager.getInstance();
             LLMService llmService = serviceManager.getDefaultService();
@@ -428,16 +770,30 @@ public class ChatContext {
                 return null;
             }
 
+            int maxSummaryCharacters = LLMChatConfig.getInstance().getContextSettings().getMaxSummaryCharacters();
+
             // 构建压缩提示词
             StringBuilder conversationText = new StringBuilder();
             for (LLMMessage message : messagesToCompress) {
-                String roleText = message.getRole() == MessageRole.USER ? "用户" : "助手";
-                conversationText.append(roleText).append(": ").append(message.getContent()).append("\n");
+                if (message.getContent() == null || message.getContent().isEmpty()) {
+                    continue; // 跳过仅包含工具调用的消息
+                }
+                conversationText.append(getRoleText(message.getRole())).append(": ")
+                    .append(message.getContent()).append("\n");
             }
 
-            String compressionPrompt = "请将以下对话内容压缩成一个简洁的摘要，保留关键信息和上下文：\n\n" +
-                conversationText.toString() +
-                "\n请用中文回复，摘要应该简洁明了，突出重点内容和讨论的主要话题。";
+            String compressionPrompt;
+            if (previousSummary != null && !previousSummary.isEmpty()) {
+                compressionPrompt = "以下是此前对话的摘要：\n\n" + previousSummary +
+                    "\n\n以下是摘要之后新增的对话内容：\n\n" + conversationText +
+                    "\n请将已有摘要与新增对话合并为一份更新后的摘要，保留关键信息和上下文。" +
+                    "请用中文回复，摘要应该简洁明了，不超过" + maxSummaryCharacters + "字。";
+            } else {
+                compressionPrompt = "请将以下对话内容压缩成一个简洁的摘要，保留关键信息和上下文：\n\n" +
+                    conversationText +
+                    "\n请用中文回复，摘要应该简洁明了，突出重点内容和讨论的主要话题，不超过" +
+                    maxSummaryCharacters + "字。";
+            }
 
             // 构建压缩请求
             List<LLMMessage> compressionMessages = new ArrayList<>();
@@ -447,25 +803,40 @@ public class ChatContext {
             LLMChatConfig config = LLMChatConfig.getInstance();
             compressionConfig.setModel(config.getEffectiveCompressionModel()); // 使用配置的压缩模型
             compressionConfig.setTemperature(0.3); // 使用较低的温度以获得更一致的摘要
-            compressionConfig.setMaxTokens(512); // 限制摘要长度
+            compressionConfig.setMaxTokens(Math.max(512, maxSummaryCharacters)); // 限制摘要长度（中文约每字一个token）
 
             // 创建压缩上下文
             LLMContext compressionContext = LLMContext.builder()
                     .sessionId(this.sessionId)
                     .metadata("operation", "compression")
                     .metadata("original_message_count", messagesToCompress.size())
+                    .metadata("rolling_summary", previousSummary != null)
                     .build();
 
-            // 同步调用LLM进行压缩
+            // 同步调用LLM进行压缩，超时后放弃并改用本地摘要，不让压缩线程无限等待
             CompletableFuture<LLMResponse> future = llmService.chat(compressionMessages, compressionConfig, compressionContext);
-            LLMResponse response = future.get(); // 等待结果
+            long timeoutMs = config.getConcurrencySettings().getRequestTimeoutMs();
+            LLMResponse response;
+            try {
+                response = future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                LogManager.getInstance().error("Context compression for session " + sessionId +
+                    " timed out after " + timeoutMs + "ms");
+                return null;
+            }
 
             if (response.isSuccess()) {
                 String summary = response.getContent();
                 if (summary != null && !summary.trim().isEmpty()) {
+                    summary = summary.trim();
+                    // 强制摘要大小上限，保证下一次压缩的提示词成本有界
+                    if (summary.length() > maxSummaryCharacters) {
+                        summary = summary.substring(0, maxSummaryCharacters);
+                    }
                     LogManager.getInstance().system("Successfully compressed " + messagesToCompress.size() +
                         " messages into summary for session " + sessionId);
-                    return summary.trim();
+                    return summary;
                 }
             } else {
                 LogManager.getInstance().error("Failed to compress context: " + response.getError());
@@ -477,6 +848,44 @@ public class ChatContext {
         return null;
     }
 
+    /**
+     * 压缩计划，记录一次压缩要替换的消息快照
+     */
+    static class CompressionPlan {
+        final List<LLMMessage> summaryMessages;
+        final List<LLMMessage> compressedMessages;
+        final String previousSummary;
+        final int messagesToCompress;
+
+        CompressionPlan(List<LLMMessage> summaryMessages, List<LLMMessage> compressedMessages, String previousSummary) {
+            this.summaryMessages = summaryMessages;
+            this.compressedMessages = compressedMessages;
+            this.previousSummary = previousSummary;
+            this.messagesToCompress = compressedMessages.size();
+        }
+
+        List<LLMMessage> getMessagesToCompress() {
+            return compressedMessages;
+        }
+    }
+
+    /**
+     * 获取角色的显示文本（用于压缩提示词）
+     */
+    private static String getRoleText(MessageRole role) {
+        switch (role) {
+            case USER:
+                return "用户";
+            case TOOL:
+            case FUNCTION:
+                return "工具结果";
+            case SYSTEM:
+                return "系统";
+            default:
+                return "助手";
+        }
+    }
+
     /**
      * 设置元数据
      */
@@ -513,6 +922,10 @@ public class ChatContext {
      */
     private void updateLastActivity() {
         this.lastActivity = System.currentTimeMillis();
+        if (spilled) {
+            // 已换出的上下文仍被持有者修改，放回内存，避免修改丢失
+            ChatContextManager.getInstance().reinstateContext(this);
+        }
     }
 
     /**
@@ -565,10 +978,39 @@ public class ChatContext {
         return lastActivity;
     }
 
+    /**
+     * 是否有正在进行或已安排的压缩任务
+     */
+    public boolean hasPendingCompression() {
+        return compressionInProgress || preemptiveCompressionScheduled;
+    }
+
+    boolean isSpilled() {
+        return spilled;
+    }
+
+    void setSpilled(boolean spilled) {
+        this.spilled = spilled;
+    }
+
     public int getMessageCount() {
         return messages.size();
     }
 
+    /**
+     * 是否包含系统消息以外的对话内容
+     */
+    public boolean hasConversationMessages() {
+        synchronized (messages) {
+            for (LLMMessage message : messages) {
+                if (message.getRole() != MessageRole.SYSTEM) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     /**
      * 设置上下文事件监听器
      */
@@ -582,4 +1024,16 @@ public class ChatContext {
     public ContextEventListener getEventListener() {
         return eventListener;
     }
+
+    /**
+     * 上下文快照，用于换出到磁盘
+     */
+    public static class Snapshot {
+        String sessionId;
+        UUID playerId;
+        List<LLMMessage> messages;
+        Map<String, Object> metadata;
+        String currentPromptTemplate;
+        long lastActivity;
+    }
 }
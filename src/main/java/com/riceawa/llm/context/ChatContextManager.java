@@ -1,18 +1,25 @@
 package com.riceawa.llm.context;
 
+import com.riceawa.llm.config.ContextSettings;
 import com.riceawa.llm.config.LLMChatConfig;
 import com.riceawa.llm.core.LLMMessage;
 import com.riceawa.llm.logging.LogManager;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 聊天上下文管理器，管理所有玩家的聊天上下文
@@ -23,10 +30,59 @@ public class ChatContextManager {
     private final ScheduledExecutorService scheduler;
     private final long contextTimeoutMs;
 
+    // 按预算换出时，最近活动时间在此范围内的上下文不会被换出（可能正在等待回复）
+    private static final long MIN_SPILL_IDLE_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ContextSpillStore spillStore;
+    // 已换出但仍被其他代码持有的上下文，持有期间直接复用，避免加载出过期的副本
+    private final Map<UUID, WeakReference<ChatContext>> spilledReferences;
+    // 按玩家串行恢复上下文，读取换出文件时不持有contexts的锁
+    private final Map<UUID, Object> restoreLocks;
+    private final AtomicBoolean maintenanceScheduled = new AtomicBoolean(false);
+
+    // 空闲换出与过期检查的时间轮（30秒一格，一圈64分钟）
+    private static final long EXPIRY_TICK_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final int EXPIRY_WHEEL_SIZE = 128;
+    private final ContextExpiryWheel expiryWheel;
+    private final List<ContextReleaseHook> releaseHooks;
+
+    /**
+     * 上下文释放原因
+     */
+    public enum ReleaseReason {
+        EXPIRED,     // 超时过期，上下文被丢弃
+        PLAYER_QUIT  // 玩家退出，上下文被换出到磁盘，超时前重新登录仍可恢复
+    }
+
+    /**
+     * 上下文释放钩子（如写入历史记录、释放缓存）
+     */
+    public interface ContextReleaseHook {
+        /**
+         * 上下文即将被释放时调用，在维护线程上执行
+         *
+         * @param context 常驻内存的上下文；已换出到磁盘时为null
+         */
+        void onContextReleased(UUID playerId, ChatContext context, ReleaseReason reason);
+    }
+
     private ChatContextManager() {
         this.contexts = new ConcurrentHashMap<>();
-        this.scheduler = Executors.newScheduledThreadPool(1);
+        // 维护线程使用最低优先级，避免后台压缩与对话请求争抢CPU
+        this.scheduler = Executors.newScheduledThreadPool(1, r -> {
+            Thread t = new Thread(r, "LLMChat-ContextMaintenance");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
         this.contextTimeoutMs = TimeUnit.HOURS.toMillis(2); // 2小时超时
+        this.spillStore = new ContextSpillStore();
+        this.spilledReferences = new ConcurrentHashMap<>();
+        this.restoreLocks = new ConcurrentHashMap<>();
+        this.expiryWheel = new ContextExpiryWheel(EXPIRY_TICK_MS, EXPIRY_WHEEL_SIZE);
+        this.releaseHooks = new CopyOnWriteArrayList<>();
+        // 换出的上下文只在本次运行期间有效，清理上次运行遗留的文件
+        spillStore.clear();
         
         // 启动清理任务
         startCleanupTask();
@@ -59,12 +115,32 @@ public class ChatContextManager {
      * 获取玩家的聊天上下文
      */
     public ChatContext getContext(UUID playerId) {
-        return contexts.computeIfAbsent(playerId, id -> {
-            ChatContext context = new ChatContext(id);
-            // 设置事件监听器
-            context.setEventListener(new CompressionNotificationListener());
-            return context;
-        });
+        ChatContext existing = contexts.get(playerId);
+        if (existing != null) {
+            return existing;
+        }
+
+        ChatContext context;
+        synchronized (restoreLocks.computeIfAbsent(playerId, k -> new Object())) {
+            context = contexts.get(playerId);
+            if (context == null) {
+                // 优先恢复已换出到磁盘的上下文；先读取快照再放入映射，磁盘I/O不阻塞其他玩家
+                context = restoreSpilledContext(playerId);
+                if (context == null) {
+                    context = new ChatContext(playerId);
+                    // 设置事件监听器
+                    context.setEventListener(new CompressionNotificationListener());
+                }
+                ChatContext current = contexts.putIfAbsent(playerId, context);
+                if (current != null) {
+                    context = current; // 换出失败时已被放回内存
+                }
+            }
+        }
+
+        trackContext(context);
+        requestMaintenanceIfOverBudget();
+        return context;
     }
 
     /**
@@ -79,6 +155,7 @@ public class ChatContextManager {
      */
     public void removeContext(UUID playerId) {
         contexts.remove(playerId);
+        discardSpilledContext(playerId);
     }
 
     /**
@@ -96,6 +173,7 @@ public class ChatContextManager {
         if (context != null) {
             context.clear();
         }
+        discardSpilledContext(playerId);
     }
 
     /**
@@ -108,19 +186,23 @@ public class ChatContextManager {
         newContext.setEventListener(new CompressionNotificationListener());
         // 替换旧的context
         contexts.put(playerId, newContext);
+        discardSpilledContext(playerId);
+        trackContext(newContext);
     }
 
     /**
      * 为指定玩家创建新会话并复制历史消息，设置新的提示词模板
      */
     public void createNewSessionWithHistory(UUID playerId, String newTemplate) {
-        ChatContext oldContext = contexts.get(playerId);
+        ChatContext oldContext = contexts.containsKey(playerId) || spillStore.contains(playerId) ?
+            getContext(playerId) : null;
         if (oldContext == null) {
             // 如果没有旧的context，直接创建新的
             ChatContext newContext = new ChatContext(playerId);
             newContext.setCurrentPromptTemplate(newTemplate);
             newContext.setEventListener(new CompressionNotificationListener());
             contexts.put(playerId, newContext);
+            trackContext(newContext);
             return;
         }
 
@@ -142,6 +224,8 @@ public class ChatContextManager {
 
         // 替换旧的context
         contexts.put(playerId, newContext);
+        discardSpilledContext(playerId);
+        trackContext(newContext);
     }
 
     /**
@@ -183,6 +267,24 @@ public class ChatContextManager {
         return contexts.size();
     }
 
+    /**
+     * 获取已换出到磁盘的上下文数量
+     */
+    public int getSpilledContextCount() {
+        return spillStore.getSpilledCount();
+    }
+
+    /**
+     * 获取常驻内存的上下文总字符数
+     */
+    public long getResidentCharacters() {
+        long total = 0;
+        for (ChatContext context : contexts.values()) {
+            total += context.calculateTotalCharacters();
+        }
+        return total;
+    }
+
     /**
      * 获取调度器用于异步任务
      */
@@ -190,21 +292,265 @@ public class ChatContextManager {
         return scheduler;
     }
 
+    /**
+     * 添加上下文释放钩子
+     */
+    public void addReleaseHook(ContextReleaseHook hook) {
+        releaseHooks.add(hook);
+    }
+
+    /**
+     * 玩家退出时调用：执行释放钩子并把上下文换出到磁盘
+     */
+    public void onPlayerDisconnect(UUID playerId) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        try {
+            scheduler.execute(() -> releaseContext(playerId, ReleaseReason.PLAYER_QUIT));
+        } catch (RejectedExecutionException e) {
+            // 服务器正在关闭
+        }
+    }
+
     /**
      * 启动清理任务
      */
     private void startCleanupTask() {
-        scheduler.scheduleAtFixedRate(this::cleanupExpiredContexts, 1, 1, TimeUnit.HOURS);
+        scheduler.scheduleAtFixedRate(this::processExpiryWheel, EXPIRY_TICK_MS, EXPIRY_TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 把上下文登记到时间轮，在下一次需要检查时触发
+     *
+     * 已有条目时保留较早的检查时间：换出后条目被安排在过期时间，恢复到内存的上下文
+     * 需要提前到按最后活动时间计算的换出检查时间。
+     */
+    private void trackContext(ChatContext context) {
+        expiryWheel.schedule(context.getPlayerId(), nextCheckTime(context.getLastActivity()));
+    }
+
+    /**
+     * 根据最后活动时间计算下一次检查时间：换出时间或过期时间中较早的一个
+     */
+    private long nextCheckTime(long lastActivity) {
+        ContextSettings settings = LLMChatConfig.getInstance().getContextSettings();
+        long expiresAt = lastActivity + contextTimeoutMs;
+        if (!settings.isEnableContextSpill()) {
+            return expiresAt;
+        }
+        return Math.min(expiresAt, lastActivity + TimeUnit.MINUTES.toMillis(settings.getSpillIdleMinutes()));
+    }
+
+    /**
+     * 推进时间轮，处理到期的上下文，然后检查堆内存预算
+     */
+    private void processExpiryWheel() {
+        try {
+            long now = System.currentTimeMillis();
+            for (UUID playerId : expiryWheel.advance(now)) {
+                long nextCheck = checkContext(playerId, now);
+                if (nextCheck > 0) {
+                    expiryWheel.schedule(playerId, nextCheck);
+                }
+            }
+            maintainResidentContexts();
+        } catch (Exception e) {
+            LogManager.getInstance().error("Context maintenance failed", e);
+        }
+    }
+
+    /**
+     * 惰性检查到期的条目：重新读取最后活动时间，决定换出、过期或重新安排
+     *
+     * @return 下一次检查时间；不再需要检查时返回-1
+     */
+    long checkContext(UUID playerId, long now) {
+        ChatContext context = contexts.get(playerId);
+        long lastActivity;
+        if (context != null) {
+            lastActivity = context.getLastActivity();
+        } else if (spillStore.contains(playerId)) {
+            lastActivity = spillStore.getLastActivity(playerId);
+        } else {
+            return -1; // 上下文已被移除
+        }
+
+        long expiresAt = lastActivity + contextTimeoutMs;
+        if (now >= expiresAt) {
+            releaseContext(playerId, ReleaseReason.EXPIRED);
+            return -1;
+        }
+
+        if (context != null) {
+            long nextCheck = nextCheckTime(lastActivity);
+            if (nextCheck > now) {
+                return nextCheck; // 期间有活动，推迟检查
+            }
+            // 空闲超过阈值，换出到磁盘；失败时（如正在压缩）下一格再试
+            return spillContext(playerId, context) ? expiresAt : now + EXPIRY_TICK_MS;
+        }
+        return expiresAt;
+    }
+
+    /**
+     * 释放上下文：执行释放钩子，过期时丢弃，玩家退出时换出到磁盘
+     */
+    private void releaseContext(UUID playerId, ReleaseReason reason) {
+        ChatContext context = contexts.get(playerId);
+        if (reason == ReleaseReason.EXPIRED && context != null && !context.isExpired(contextTimeoutMs)) {
+            return; // 检查之后又有了活动
+        }
+        if (context == null && !spillStore.contains(playerId)) {
+            return;
+        }
+
+        for (ContextReleaseHook hook : releaseHooks) {
+            try {
+                hook.onContextReleased(playerId, context, reason);
+            } catch (Exception e) {
+                LogManager.getInstance().error("Context release hook failed for player " + playerId, e);
+            }
+        }
+
+        if (reason == ReleaseReason.EXPIRED) {
+            if (context != null) {
+                contexts.remove(playerId, context);
+            }
+            discardSpilledContext(playerId);
+            expiryWheel.cancel(playerId);
+        } else if (context != null && LLMChatConfig.getInstance().getContextSettings().isEnableContextSpill()) {
+            spillContext(playerId, context);
+        }
+    }
+
+    /**
+     * 超出堆内存预算时，按最近最少活动的顺序换出上下文
+     */
+    private void maintainResidentContexts() {
+        maintenanceScheduled.set(false);
+        ContextSettings settings = LLMChatConfig.getInstance().getContextSettings();
+        if (!settings.isEnableContextSpill()) {
+            return;
+        }
+
+        long residentCharacters = getResidentCharacters();
+        long budget = settings.getMaxResidentCharacters();
+        if (residentCharacters <= budget) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int spilledCount = 0;
+        List<ChatContext> candidates = new ArrayList<>(contexts.values());
+        candidates.sort(Comparator.comparingLong(ChatContext::getLastActivity));
+        for (ChatContext context : candidates) {
+            if (residentCharacters <= budget || now - context.getLastActivity() < MIN_SPILL_IDLE_MS) {
+                break;
+            }
+            int characters = context.calculateTotalCharacters();
+            if (spillContext(context.getPlayerId(), context)) {
+                residentCharacters -= characters;
+                spilledCount++;
+            }
+        }
+
+        if (spilledCount > 0) {
+            LogManager.getInstance().system("Spilled " + spilledCount + " contexts to disk to stay within budget, " +
+                contexts.size() + " resident (" + residentCharacters + " characters), " +
+                spillStore.getSpilledCount() + " on disk");
+        }
     }
 
     /**
-     * 清理过期的上下文
+     * 新上下文载入后，若超出预算则尽快安排一次维护
      */
-    private void cleanupExpiredContexts() {
-        contexts.entrySet().removeIf(entry -> {
-            ChatContext context = entry.getValue();
-            return context.isExpired(contextTimeoutMs);
+    private void requestMaintenanceIfOverBudget() {
+        ContextSettings settings = LLMChatConfig.getInstance().getContextSettings();
+        if (settings.isEnableContextSpill() && !maintenanceScheduled.get() &&
+            getResidentCharacters() > settings.getMaxResidentCharacters() &&
+            maintenanceScheduled.compareAndSet(false, true)) {
+            scheduler.execute(this::maintainResidentContexts);
+        }
+    }
+
+    /**
+     * 将上下文换出到磁盘并从内存中移除
+     */
+    private boolean spillContext(UUID playerId, ChatContext context) {
+        if (context.hasPendingCompression()) {
+            return false;
+        }
+
+        ChatContext.Snapshot snapshot = context.toSnapshot();
+        if (!spillStore.write(snapshot)) {
+            return false;
+        }
+
+        spilledReferences.put(playerId, new WeakReference<>(context));
+        context.setSpilled(true);
+
+        if (!contexts.remove(playerId, context)) {
+            // 上下文已被替换
+            context.setSpilled(false);
+            discardSpilledContext(playerId);
+            return false;
+        }
+
+        if (context.getLastActivity() != snapshot.lastActivity) {
+            // 换出期间上下文被修改，放回内存
+            reinstateContext(context);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 恢复已换出的上下文，没有时返回null
+     */
+    private ChatContext restoreSpilledContext(UUID playerId) {
+        // 仍被持有的上下文直接复用，它比磁盘上的副本更新
+        WeakReference<ChatContext> reference = spilledReferences.remove(playerId);
+        ChatContext context = reference != null ? reference.get() : null;
+        if (context != null) {
+            context.setSpilled(false);
+            spillStore.delete(playerId);
+            return context;
+        }
+
+        ChatContext.Snapshot snapshot = spillStore.take(playerId);
+        if (snapshot == null) {
+            return null;
+        }
+
+        context = ChatContext.fromSnapshot(snapshot);
+        context.setEventListener(new CompressionNotificationListener());
+        return context;
+    }
+
+    /**
+     * 已换出的上下文又被修改时，将其放回内存
+     */
+    void reinstateContext(ChatContext context) {
+        context.setSpilled(false);
+        contexts.compute(context.getPlayerId(), (playerId, current) -> {
+            if (current != null) {
+                return current; // 已有更新的上下文
+            }
+            discardSpilledContext(playerId);
+            return context;
         });
+        trackContext(context);
+    }
+
+    /**
+     * 丢弃已换出的上下文
+     */
+    private void discardSpilledContext(UUID playerId) {
+        spilledReferences.remove(playerId);
+        if (spillStore.contains(playerId)) {
+            spillStore.delete(playerId);
+        }
     }
 
     /**
@@ -221,6 +567,10 @@ public class ChatContextManager {
             Thread.currentThread().interrupt();
         }
         contexts.clear();
+        spilledReferences.clear();
+        restoreLocks.clear();
+        releaseHooks.clear();
+        spillStore.clear();
     }
 
     /**
@@ -0,0 +1,126 @@
+package com.riceawa.llm.context;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 哈希时间轮，用于上下文的空闲换出与过期检查
+ *
+ * 每个玩家最多一个条目，安排和取消都是O(1)。条目到期时只返回玩家ID，
+ * 由调用方重新读取实际的最后活动时间再决定是处理还是重新安排（惰性检查），
+ * 因此玩家每次活动时不需要更新时间轮。
+ */
+public class ContextExpiryWheel {
+    private final long tickMs;
+    private final List<Set<Entry>> buckets;
+    private final Map<UUID, Entry> entries;
+    private final long startTime;
+    private long currentTick;
+
+    /**
+     * 时间轮条目
+     */
+    private static class Entry {
+        final UUID key;
+        final long deadline;
+        long remainingRounds;
+        int bucket;
+
+        Entry(UUID key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+    }
+
+    public ContextExpiryWheel(long tickMs, int wheelSize) {
+        if (tickMs <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMs and wheelSize must be positive");
+        }
+        this.tickMs = tickMs;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new LinkedHashSet<>());
+        }
+        this.entries = new HashMap<>();
+        this.startTime = System.currentTimeMillis();
+        this.currentTick = 0;
+    }
+
+    /**
+     * 安排在指定时间检查
+     * 已有更早的检查时间时保持不变，到时会惰性地重新计算
+     */
+    public synchronized void schedule(UUID key, long deadline) {
+        Entry existing = entries.get(key);
+        if (existing != null) {
+            if (existing.deadline <= deadline) {
+                return;
+            }
+            buckets.get(existing.bucket).remove(existing);
+        }
+
+        Entry entry = new Entry(key, deadline);
+        // 向上取整到tick，保证不会提前触发；已过期的条目放到下一个tick
+        long deadlineTick = Math.max(currentTick + 1, (deadline - startTime + tickMs - 1) / tickMs);
+        long ticksAhead = deadlineTick - currentTick;
+        entry.remainingRounds = (ticksAhead - 1) / buckets.size();
+        entry.bucket = (int) (deadlineTick % buckets.size());
+        buckets.get(entry.bucket).add(entry);
+        entries.put(key, entry);
+    }
+
+    /**
+     * 取消检查
+     */
+    public synchronized void cancel(UUID key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            buckets.get(entry.bucket).remove(entry);
+        }
+    }
+
+    /**
+     * 推进时间轮到指定时间，返回到期的条目（已从时间轮中移除）
+     */
+    public synchronized List<UUID> advance(long now) {
+        List<UUID> due = new ArrayList<>();
+        long targetTick = (now - startTime) / tickMs;
+        while (currentTick < targetTick) {
+            currentTick++;
+            Set<Entry> bucket = buckets.get((int) (currentTick % buckets.size()));
+            bucket.removeIf(entry -> {
+                if (entry.remainingRounds > 0) {
+                    entry.remainingRounds--;
+                    return false;
+                }
+                entries.remove(entry.key);
+                due.add(entry.key);
+                return true;
+            });
+        }
+        return due;
+    }
+
+    /**
+     * 是否已安排检查
+     */
+    public synchronized boolean contains(UUID key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * 获取条目数量
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+}
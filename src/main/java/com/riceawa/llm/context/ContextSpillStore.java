@@ -0,0 +1,162 @@
+package com.riceawa.llm.context;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.riceawa.llm.history.LocalDateTimeAdapter;
+import com.riceawa.llm.logging.LogManager;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 上下文磁盘存储，用于把空闲玩家的上下文从堆内存换出到磁盘
+ *
+ * 每个玩家一个gzip压缩的紧凑JSON文件。换出的上下文只在本次服务器运行期间有效，
+ * 启动和关闭时都会清空目录，不改变上下文不跨重启保留的语义。
+ */
+public class ContextSpillStore {
+    private static final String FILE_SUFFIX = ".json.gz";
+
+    private final Gson gson;
+    private final Path spillDir;
+    // 已换出的上下文及其最后活动时间，用于过期清理
+    private final Map<UUID, Long> spilledContexts;
+
+    public ContextSpillStore() {
+        this.gson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .create();
+
+        // 检查是否有测试目录设置
+        String testContextDir = System.getProperty("lllmchat.context.dir");
+        if (testContextDir != null) {
+            this.spillDir = Path.of(testContextDir);
+        } else {
+            this.spillDir = FabricLoader.getInstance()
+                    .getConfigDir()
+                    .resolve("lllmchat")
+                    .resolve("contexts");
+        }
+
+        this.spilledContexts = new ConcurrentHashMap<>();
+
+        try {
+            Files.createDirectories(spillDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create context spill directory", e);
+        }
+    }
+
+    /**
+     * 将上下文快照写入磁盘（先写临时文件再原子替换）
+     */
+    public boolean write(ChatContext.Snapshot snapshot) {
+        Path file = getSpillFile(snapshot.playerId);
+        Path tempFile = spillDir.resolve(snapshot.playerId + FILE_SUFFIX + ".tmp");
+        try (Writer writer = new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(tempFile)), StandardCharsets.UTF_8)) {
+            gson.toJson(snapshot, writer);
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to spill context for player " + snapshot.playerId, e);
+            return false;
+        }
+
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to spill context for player " + snapshot.playerId, e);
+            return false;
+        }
+
+        spilledContexts.put(snapshot.playerId, snapshot.lastActivity);
+        return true;
+    }
+
+    /**
+     * 读取并删除已换出的上下文快照，没有时返回null
+     */
+    public ChatContext.Snapshot take(UUID playerId) {
+        if (!spilledContexts.containsKey(playerId)) {
+            return null;
+        }
+
+        Path file = getSpillFile(playerId);
+        ChatContext.Snapshot snapshot = null;
+        try (Reader reader = new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8)) {
+            snapshot = gson.fromJson(reader, ChatContext.Snapshot.class);
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to restore spilled context for player " + playerId, e);
+        }
+
+        delete(playerId);
+        return snapshot;
+    }
+
+    /**
+     * 删除已换出的上下文
+     */
+    public void delete(UUID playerId) {
+        spilledContexts.remove(playerId);
+        try {
+            Files.deleteIfExists(getSpillFile(playerId));
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to delete spilled context for player " + playerId, e);
+        }
+    }
+
+    /**
+     * 清空所有已换出的上下文
+     */
+    public void clear() {
+        spilledContexts.clear();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(spillDir, "*" + FILE_SUFFIX + "*")) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to clear context spill directory", e);
+        }
+    }
+
+    /**
+     * 获取已换出上下文的最后活动时间，不存在时返回0
+     */
+    public long getLastActivity(UUID playerId) {
+        Long lastActivity = spilledContexts.get(playerId);
+        return lastActivity != null ? lastActivity : 0;
+    }
+
+    /**
+     * 是否存在已换出的上下文
+     */
+    public boolean contains(UUID playerId) {
+        return spilledContexts.containsKey(playerId);
+    }
+
+    /**
+     * 获取已换出的上下文数量
+     */
+    public int getSpilledCount() {
+        return spilledContexts.size();
+    }
+
+    private Path getSpillFile(UUID playerId) {
+        return spillDir.resolve(playerId.toString() + FILE_SUFFIX);
+    }
+}
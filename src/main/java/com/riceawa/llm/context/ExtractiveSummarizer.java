@@ -0,0 +1,255 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import com.riceawa.llm.util.TextTokenizer;
+
+import java.util.*;
+
+/**
+ * 本地抽取式摘要器
+ *
+ * 在句子图上运行TextRank给句子打分，再用MMR（最大边际相关）挑选信息量高且互不重复的句子，
+ * 按原始顺序拼接为摘要。完全在本地运行，不消耗任何API调用，
+ * 用于服务繁忙时的压缩或LLM压缩失败时的回退。
+ */
+public class ExtractiveSummarizer {
+    private static final int MAX_CANDIDATE_SENTENCES = 400; // 参与排序的最大句子数，限制O(n²)的图构建开销
+    private static final int MAX_SENTENCE_LENGTH = 200; // 单个句子的最大字符数
+    private static final int TEXTRANK_ITERATIONS = 30;
+    private static final double DAMPING_FACTOR = 0.85;
+    private static final double CONVERGENCE_THRESHOLD = 1e-4;
+    private static final double MMR_LAMBDA = 0.7; // 相关性与多样性的权衡
+    private static final double MAX_REDUNDANCY = 0.8; // 与已选句子相似度超过该值的句子直接丢弃
+    private static final double PREVIOUS_SUMMARY_BOOST = 1.5; // 已有摘要中的句子经过一次筛选，优先保留
+
+    /**
+     * 候选句子
+     */
+    private static class Sentence {
+        final int order;
+        final String text;
+        final Set<String> terms;
+        final double boost;
+        double score;
+
+        Sentence(int order, String text, Set<String> terms, double boost) {
+            this.order = order;
+            this.text = text;
+            this.terms = terms;
+            this.boost = boost;
+        }
+    }
+
+    /**
+     * 将已有摘要与待压缩的消息合并为不超过指定长度的抽取式摘要
+     *
+     * @param previousSummary 已有的滚动摘要，可以为null
+     * @param messages 待压缩的消息
+     * @param maxCharacters 摘要的最大字符数
+     * @return 摘要文本；没有可用内容时返回null
+     */
+    public String summarize(String previousSummary, List<LLMMessage> messages, int maxCharacters) {
+        List<Sentence> candidates = collectSentences(previousSummary, messages);
+        if (candidates.isEmpty() || maxCharacters <= 0) {
+            return null;
+        }
+
+        rankSentences(candidates);
+        List<Sentence> selected = selectSentences(candidates, maxCharacters);
+        if (selected.isEmpty()) {
+            return null;
+        }
+
+        // 按原始顺序输出，保持对话的时间线
+        selected.sort(Comparator.comparingInt(s -> s.order));
+        StringBuilder summary = new StringBuilder();
+        for (Sentence sentence : selected) {
+            if (summary.length() > 0) {
+                summary.append("\n");
+            }
+            summary.append(sentence.text);
+        }
+        return summary.toString();
+    }
+
+    /**
+     * 将摘要和消息切分为候选句子
+     */
+    private List<Sentence> collectSentences(String previousSummary, List<LLMMessage> messages) {
+        List<Sentence> sentences = new ArrayList<>();
+        int order = 0;
+
+        if (previousSummary != null) {
+            for (String line : TextTokenizer.splitSentences(previousSummary)) {
+                order = addSentence(sentences, order, line, PREVIOUS_SUMMARY_BOOST);
+            }
+        }
+
+        for (LLMMessage message : messages) {
+            if (message.getContent() == null || message.getContent().isEmpty() ||
+                message.getRole() == MessageRole.SYSTEM) {
+                continue;
+            }
+            String prefix = getRolePrefix(message.getRole());
+            for (String sentence : TextTokenizer.splitSentences(message.getContent())) {
+                order = addSentence(sentences, order, prefix + sentence, 1.0);
+            }
+        }
+
+        // 句子过多时只保留最近的部分
+        if (sentences.size() > MAX_CANDIDATE_SENTENCES) {
+            return new ArrayList<>(sentences.subList(sentences.size() - MAX_CANDIDATE_SENTENCES, sentences.size()));
+        }
+        return sentences;
+    }
+
+    private int addSentence(List<Sentence> sentences, int order, String text, double boost) {
+        if (text.length() > MAX_SENTENCE_LENGTH) {
+            text = text.substring(0, MAX_SENTENCE_LENGTH) + "...";
+        }
+        Set<String> terms = new HashSet<>(TextTokenizer.tokenize(text));
+        if (terms.isEmpty()) {
+            return order;
+        }
+        sentences.add(new Sentence(order, text, terms, boost));
+        return order + 1;
+    }
+
+    /**
+     * TextRank：以词项重叠度为边权的句子图上的PageRank
+     */
+    private void rankSentences(List<Sentence> sentences) {
+        int n = sentences.size();
+        double[][] weights = new double[n][n];
+        double[] outWeight = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double w = similarity(sentences.get(i), sentences.get(j));
+                weights[i][j] = w;
+                weights[j][i] = w;
+                outWeight[i] += w;
+                outWeight[j] += w;
+            }
+        }
+
+        double[] scores = new double[n];
+        Arrays.fill(scores, 1.0);
+        for (int iteration = 0; iteration < TEXTRANK_ITERATIONS; iteration++) {
+            double[] next = new double[n];
+            double maxDelta = 0;
+            for (int i = 0; i < n; i++) {
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    if (weights[j][i] > 0 && outWeight[j] > 0) {
+                        sum += weights[j][i] / outWeight[j] * scores[j];
+                    }
+                }
+                next[i] = (1 - DAMPING_FACTOR) + DAMPING_FACTOR * sum;
+                maxDelta = Math.max(maxDelta, Math.abs(next[i] - scores[i]));
+            }
+            scores = next;
+            if (maxDelta < CONVERGENCE_THRESHOLD) {
+                break;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            sentences.get(i).score = scores[i] * sentences.get(i).boost;
+        }
+    }
+
+    /**
+     * MMR：在字符预算内贪心挑选得分高且与已选句子不重复的句子
+     */
+    private List<Sentence> selectSentences(List<Sentence> candidates, int maxCharacters) {
+        double maxScore = 0;
+        for (Sentence sentence : candidates) {
+            maxScore = Math.max(maxScore, sentence.score);
+        }
+
+        List<Sentence> remaining = new ArrayList<>(candidates);
+        List<Sentence> selected = new ArrayList<>();
+        // 每个候选句子与已选句子的最大相似度，随选择增量更新
+        Map<Sentence, Double> redundancy = new IdentityHashMap<>();
+        int usedCharacters = 0;
+
+        while (!remaining.isEmpty() && usedCharacters < maxCharacters) {
+            Sentence best = null;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (Sentence candidate : remaining) {
+                double relevance = maxScore > 0 ? candidate.score / maxScore : 0;
+                double value = MMR_LAMBDA * relevance - (1 - MMR_LAMBDA) * redundancy.getOrDefault(candidate, 0.0);
+                if (value > bestValue) {
+                    bestValue = value;
+                    best = candidate;
+                }
+            }
+
+            remaining.remove(best);
+            if (redundancy.getOrDefault(best, 0.0) >= MAX_REDUNDANCY) {
+                continue; // 几乎重复的句子
+            }
+            int cost = best.text.length() + (selected.isEmpty() ? 0 : 1);
+            if (usedCharacters + cost > maxCharacters) {
+                continue; // 放不下这一句，尝试更短的句子
+            }
+            selected.add(best);
+            usedCharacters += cost;
+
+            for (Sentence candidate : remaining) {
+                double similarity = overlap(candidate, best);
+                if (similarity > redundancy.getOrDefault(candidate, 0.0)) {
+                    redundancy.put(candidate, similarity);
+                }
+            }
+        }
+
+        return selected;
+    }
+
+    /**
+     * TextRank原论文中的句子相似度：共同词数按句子长度的对数归一化
+     */
+    private static double similarity(Sentence a, Sentence b) {
+        int common = countCommon(a.terms, b.terms);
+        if (common == 0) {
+            return 0;
+        }
+        double norm = Math.log(a.terms.size() + 1) + Math.log(b.terms.size() + 1);
+        return norm > 0 ? common / norm : 0;
+    }
+
+    /**
+     * 用于冗余判断的Jaccard相似度
+     */
+    private static double overlap(Sentence a, Sentence b) {
+        int common = countCommon(a.terms, b.terms);
+        int union = a.terms.size() + b.terms.size() - common;
+        return union > 0 ? (double) common / union : 0;
+    }
+
+    private static int countCommon(Set<String> a, Set<String> b) {
+        Set<String> smaller = a.size() <= b.size() ? a : b;
+        Set<String> larger = smaller == a ? b : a;
+        int common = 0;
+        for (String term : smaller) {
+            if (larger.contains(term)) {
+                common++;
+            }
+        }
+        return common;
+    }
+
+    private static String getRolePrefix(MessageRole role) {
+        switch (role) {
+            case USER:
+                return "用户: ";
+            case ASSISTANT:
+                return "助手: ";
+            default:
+                return "工具结果: ";
+        }
+    }
+}
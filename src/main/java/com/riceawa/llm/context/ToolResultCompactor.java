@@ -0,0 +1,68 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 请求消息中的工具结果压缩
+ *
+ * 工具结果（如wiki页面、背包、附近实体）往往很长，但只在调用后的几轮对话中有用。
+ * 组装请求时把较早轮次的工具结果替换为简短摘录，并省略与之后结果完全相同的重复内容。
+ * 只改写发送给LLM的副本，上下文和历史记录中保留完整原文。
+ */
+public final class ToolResultCompactor {
+    private static final String DUPLICATE_NOTE = "[与之后的一次工具调用结果相同，已省略]";
+
+    private ToolResultCompactor() {
+    }
+
+    /**
+     * 压缩请求消息中过时和重复的工具结果
+     *
+     * @param messages 请求消息副本，原地替换其中的工具消息
+     * @param keepTurns 最近多少轮对话（以用户消息计）的工具结果保留原文
+     * @param digestCharacters 过时工具结果保留的开头字符数，不超过该长度的结果不做处理
+     * @return 被压缩或省略的工具结果数量
+     */
+    public static int compact(List<LLMMessage> messages, int keepTurns, int digestCharacters) {
+        Set<String> laterContents = new HashSet<>();
+        int userTurnsAfter = 0;
+        int compacted = 0;
+
+        // 从后往前遍历，重复内容保留最新的一份
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            LLMMessage message = messages.get(i);
+            if (message.getRole() == MessageRole.USER) {
+                userTurnsAfter++;
+                continue;
+            }
+            String content = message.getContent();
+            if (message.getRole() != MessageRole.TOOL || content == null ||
+                content.length() <= digestCharacters) {
+                continue;
+            }
+
+            if (!laterContents.add(content)) {
+                messages.set(i, message.withContent(DUPLICATE_NOTE, null));
+                compacted++;
+            } else if (userTurnsAfter >= keepTurns) {
+                messages.set(i, message.withContent(createDigest(content, digestCharacters), null));
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * 生成过时工具结果的摘录：说明原文长度，并保留开头部分
+     */
+    static String createDigest(String content, int digestCharacters) {
+        String excerpt = content.substring(0, digestCharacters).replace('\n', ' ').trim();
+        return "[较早的工具结果已压缩，原文共" + content.length() + "字，如需完整内容请重新调用工具] " +
+            excerpt + "...";
+    }
+}
@@ -1,5 +1,6 @@
 package com.riceawa.llm.core;
 
+import com.riceawa.llm.logging.LogLevel;
 import com.riceawa.llm.logging.LogManager;
 
 import java.util.concurrent.*;
@@ -67,7 +68,7 @@ public class ConcurrencyManager {
         // 创建信号量来控制并发请求数
         this.requestSemaphore = new Semaphore(maxConcurrentRequests, true);
         
-        LogManager.getInstance().log(com.riceawa.llm.logging.LogLevel.INFO, "system",
+        LogManager.getInstance().log(LogLevel.INFO, "system",
             "ConcurrencyManager initialized with config: " +
             "maxConcurrent=" + maxConcurrentRequests +
             ", queueCapacity=" + queueCapacity +
@@ -106,8 +107,8 @@ public class ConcurrencyManager {
         if (!requestSemaphore.tryAcquire()) {
             // 如果无法立即获取信号量，说明已达到最大并发数
             queuedRequests.incrementAndGet();
-            LogManager.getInstance().log(com.riceawa.llm.logging.LogLevel.DEBUG, "system",
-                "Request queued due to concurrency limit: " + requestId);
+            LogManager.getInstance().logf(LogLevel.DEBUG, "system",
+                "Request queued due to concurrency limit: {}", requestId);
         }
         
         try {
@@ -124,9 +125,9 @@ public class ConcurrencyManager {
                     activeRequests.incrementAndGet();
                     queuedRequests.decrementAndGet();
                     
-                    LogManager.getInstance().log(com.riceawa.llm.logging.LogLevel.DEBUG, "system",
-                        "Starting LLM request: " + requestId +
-                        " (active: " + activeRequests.get() + "/" + maxConcurrentRequests + ")");
+                    LogManager.getInstance().logf(LogLevel.DEBUG, "system",
+                        "Starting LLM request: {} (active: {}/{})",
+                        requestId, activeRequests.get(), maxConcurrentRequests);
                     
                     // 执行实际任务
                     T result = task.get();
@@ -134,8 +135,9 @@ public class ConcurrencyManager {
                     completedRequests.incrementAndGet();
                     
                     long duration = System.currentTimeMillis() - startTime;
-                    LogManager.getInstance().performance("LLM request completed: " + requestId,
-                        java.util.Map.of(
+                    LogManager.getInstance().log(LogLevel.INFO, "performance",
+                        () -> "LLM request completed: " + requestId,
+                        () -> java.util.Map.of(
                             "duration_ms", duration,
                             "active_requests", activeRequests.get(),
                             "queued_requests", queuedRequests.get()
@@ -203,11 +205,20 @@ public class ConcurrencyManager {
                executorService.getQueue().size() < queueCapacity * 0.9; // 队列使用率不超过90%
     }
     
+    /**
+     * 检查是否有富余容量（供预压缩等低优先级后台任务判断是否应让出资源）
+     */
+    public boolean hasSpareCapacity() {
+        return !executorService.isShutdown() &&
+               activeRequests.get() < Math.max(1, maxConcurrentRequests / 2) &&
+               executorService.getQueue().isEmpty();
+    }
+    
     /**
      * 关闭并发管理器
      */
     public void shutdown() {
-        LogManager.getInstance().log(com.riceawa.llm.logging.LogLevel.INFO, "system",
+        LogManager.getInstance().log(LogLevel.INFO, "system",
             "Shutting down ConcurrencyManager...");
         executorService.shutdown();
         try {
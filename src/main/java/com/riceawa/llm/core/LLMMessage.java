@@ -16,6 +16,10 @@ public class LLMMessage {
     
     @SerializedName("content")
     private final String content;
+
+    // 共享文本的内容哈希，仅出现在历史记录文件中，加载时会被解析回content
+    @SerializedName("content_ref")
+    private final String contentRef;
     
     @SerializedName("timestamp")
     private final LocalDateTime timestamp;
@@ -34,13 +38,30 @@ public class LLMMessage {
     }
 
     public LLMMessage(String id, MessageRole role, String content, LocalDateTime timestamp, MessageMetadata metadata) {
+        this(id, role, content, null, timestamp, metadata);
+    }
+
+    private LLMMessage(String id, MessageRole role, String content, String contentRef,
+                       LocalDateTime timestamp, MessageMetadata metadata) {
         this.id = id;
         this.role = role;
         this.content = content;
+        this.contentRef = contentRef;
         this.timestamp = timestamp;
         this.metadata = metadata;
     }
 
+    /**
+     * 创建内容被替换的副本，其余字段保持不变
+     * content与contentRef二选一：写入历史记录时用contentRef代替共享文本，加载时再换回content
+     */
+    public LLMMessage withContent(String content, String contentRef) {
+        LLMMessage copy = new LLMMessage(id, role, content, contentRef, timestamp, metadata);
+        copy.name = name;
+        copy.toolCallId = toolCallId;
+        return copy;
+    }
+
     public String getId() {
         return id;
     }
@@ -53,6 +74,10 @@ public class LLMMessage {
         return content;
     }
 
+    public String getContentRef() {
+        return contentRef;
+    }
+
     public LocalDateTime getTimestamp() {
         return timestamp;
     }
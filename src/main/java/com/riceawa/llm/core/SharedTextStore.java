@@ -0,0 +1,105 @@
+package com.riceawa.llm.core;
+
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按内容寻址的共享文本存储
+ *
+ * 系统提示词等大段重复文本在所有上下文和会话之间共享同一个不可变实例，
+ * 并以内容哈希作为引用，供历史记录文件只写一次。
+ * 存储只持有弱引用，不再被任何消息使用的文本会被正常回收。
+ */
+public class SharedTextStore {
+    private static SharedTextStore instance;
+
+    // 小于该长度的文本不值得共享
+    public static final int MIN_SHARED_LENGTH = 256;
+
+    private static final int PURGE_INTERVAL = 256; // 每插入多少次清理一次已被回收的条目
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final Map<String, WeakReference<String>> texts;
+    private final AtomicInteger insertsSincePurge = new AtomicInteger(0);
+
+    private SharedTextStore() {
+        this.texts = new ConcurrentHashMap<>();
+    }
+
+    public static SharedTextStore getInstance() {
+        if (instance == null) {
+            synchronized (SharedTextStore.class) {
+                if (instance == null) {
+                    instance = new SharedTextStore();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 返回与给定文本内容相同的共享实例
+     */
+    public String intern(String text) {
+        if (text == null || text.length() < MIN_SHARED_LENGTH) {
+            return text;
+        }
+        return intern(hashOf(text), text);
+    }
+
+    /**
+     * 以已知的哈希登记文本并返回共享实例（用于从历史记录文件加载）
+     */
+    public String intern(String hash, String text) {
+        WeakReference<String> existing = texts.get(hash);
+        String shared = existing != null ? existing.get() : null;
+        if (shared != null && shared.equals(text)) {
+            return shared;
+        }
+
+        texts.put(hash, new WeakReference<>(text));
+        if (insertsSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            insertsSincePurge.set(0);
+            texts.values().removeIf(reference -> reference.get() == null);
+        }
+        return text;
+    }
+
+    /**
+     * 根据哈希查找共享文本，不存在或已被回收时返回null
+     */
+    public String resolve(String hash) {
+        WeakReference<String> reference = texts.get(hash);
+        return reference != null ? reference.get() : null;
+    }
+
+    /**
+     * 获取共享文本数量
+     */
+    public int size() {
+        return texts.size();
+    }
+
+    /**
+     * 计算文本的内容哈希（SHA-256的前16个十六进制字符）
+     */
+    public static String hashOf(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[16];
+            for (int i = 0; i < 8; i++) {
+                hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
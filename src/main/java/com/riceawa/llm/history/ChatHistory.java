@@ -1,79 +1,187 @@
 package com.riceawa.llm.history;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
 import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.SharedTextStore;
 import com.riceawa.llm.context.ChatContext;
 import com.riceawa.llm.logging.LogManager;
 import com.riceawa.llm.service.TitleGenerationService;
 import net.fabricmc.loader.api.FabricLoader;
 
-import java.io.*;
-import java.lang.reflect.Type;
-import java.nio.file.Files;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
 
 /**
  * 聊天历史记录管理器
+ *
+ * 负责从上下文组装会话、生成标题和更新长期记忆索引，读写委托给{@link HistoryStore}：
+ * 默认是{@link FileHistoryStore}（每个玩家一个目录，追加日志加后台写入），
+ * 也可以配置为嵌入式数据库{@link H2HistoryStore}。
  */
 public class ChatHistory {
-    private static ChatHistory instance;
-    private final Gson gson;
-    private final Path historyDir;
-    private final Map<UUID, List<ChatSession>> playerHistories;
-    private final int maxSessionsPerPlayer;
-
-    private ChatHistory() {
-        this.gson = new GsonBuilder()
-                .setPrettyPrinting()
-                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
-                .create();
-
-        // 检查是否有测试目录设置
-        String testHistoryDir = System.getProperty("lllmchat.history.dir");
-        if (testHistoryDir != null) {
-            this.historyDir = Path.of(testHistoryDir);
-        } else {
-            this.historyDir = FabricLoader.getInstance()
-                    .getConfigDir()
-                    .resolve("lllmchat")
-                    .resolve("history");
-        }
+    public static final String STORAGE_FILE = "file";
+    public static final String STORAGE_H2 = "h2";
+    private static final String STATS_FILE = "stats.json";
 
-        this.playerHistories = new ConcurrentHashMap<>();
-        this.maxSessionsPerPlayer = 100; // 每个玩家最多保存100个会话
+    private static ChatHistory instance;
+    private final HistoryStore store;
+    private final HistoryStatsIndex statsIndex;
+    private HistoryMaintenance maintenance;
 
-        // 确保目录存在
-        try {
-            Files.createDirectories(historyDir);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to create history directory", e);
-        }
+    private ChatHistory(HistoryStore store) {
+        this.store = store;
+        this.statsIndex = new HistoryStatsIndex(getHistoryDir().resolve(STATS_FILE));
     }
 
     public static ChatHistory getInstance() {
         if (instance == null) {
             synchronized (ChatHistory.class) {
                 if (instance == null) {
-                    instance = new ChatHistory();
+                    instance = new ChatHistory(new FileHistoryStore(getHistoryDir()));
                 }
             }
         }
         return instance;
     }
 
+    /**
+     * 按配置选择存储后端（模组初始化时调用，在首次访问历史记录之前）
+     *
+     * @param storageType {@link #STORAGE_FILE}或{@link #STORAGE_H2}，无法识别时使用文件存储
+     * @param compressFiles 文件存储是否使用压缩格式
+     */
+    public static synchronized void configure(String storageType, boolean compressFiles) {
+        HistoryStore store;
+        if (STORAGE_H2.equalsIgnoreCase(storageType)) {
+            try {
+                store = new H2HistoryStore(getHistoryDir());
+            } catch (IllegalStateException e) {
+                LogManager.getInstance().error("Failed to open H2 chat history store, falling back to files", e);
+                store = null;
+            }
+        } else {
+            store = null;
+        }
+        if (store == null) {
+            FileHistoryStore fileStore = new FileHistoryStore(getHistoryDir());
+            fileStore.setCompressionEnabled(compressFiles);
+            store = fileStore;
+        }
+        useStore(store);
+    }
+
+    /**
+     * 使用指定的存储后端，替换已有的实例
+     */
+    public static synchronized void useStore(HistoryStore store) {
+        if (instance != null) {
+            instance.shutdown();
+        }
+        instance = new ChatHistory(store);
+    }
+
     /**
      * 重置单例实例（仅用于测试）
      */
     public static synchronized void resetInstance() {
+        if (instance != null) {
+            instance.shutdown();
+        }
         instance = null;
     }
 
+    private static Path getHistoryDir() {
+        // 检查是否有测试目录设置
+        String testHistoryDir = System.getProperty("lllmchat.history.dir");
+        if (testHistoryDir != null) {
+            return Path.of(testHistoryDir);
+        }
+        return FabricLoader.getInstance()
+                .getConfigDir()
+                .resolve("lllmchat")
+                .resolve("history");
+    }
+
+    /**
+     * 获取存储后端
+     */
+    public HistoryStore getStore() {
+        return store;
+    }
+
+    /**
+     * 启动后台维护任务：定期删除超过保留天数的会话并整理存储
+     *
+     * @param retentionDays 保留天数（每次维护时读取，配置修改后无需重启）
+     */
+    public synchronized void startMaintenance(IntSupplier retentionDays) {
+        if (maintenance == null) {
+            maintenance = new HistoryMaintenance(store, retentionDays);
+            maintenance.start();
+            // 统计文件不存在时在后台补齐，首次查看统计无需等待
+            maintenance.execute(() -> statsIndex.load(store));
+        }
+    }
+
+    /**
+     * 写入所有待写入的变更并释放存储资源（服务器关闭时调用）
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (maintenance != null) {
+                maintenance.shutdown();
+                maintenance = null;
+            }
+        }
+        store.shutdown();
+        statsIndex.save();
+    }
+
+    /**
+     * 立即写入所有待写入的变更
+     */
+    public void flush() {
+        store.flush();
+        statsIndex.save();
+    }
+
+    /**
+     * 获取有待写入变更的玩家数量
+     */
+    public int getPendingFlushCount() {
+        return store.getPendingFlushCount();
+    }
+
+    /**
+     * 获取积压的待写入记录数
+     */
+    public int getPendingRecordCount() {
+        return store.getPendingRecordCount();
+    }
+
+    public int getCachedPlayerCount() {
+        return store.getCachedPlayerCount();
+    }
+
+    public long getCacheResidentBytes() {
+        return store.getCacheResidentBytes();
+    }
+
+    public long getCacheBudgetBytes() {
+        return store.getCacheBudgetBytes();
+    }
+
+    public double getCacheHitRate() {
+        return store.getCacheHitRate();
+    }
+
+    public long getCacheEvictionCount() {
+        return store.getCacheEvictionCount();
+    }
+
     /**
      * 保存聊天会话
      */
@@ -81,20 +189,6 @@ public class ChatHistory {
         UUID playerId = context.getPlayerId();
         String sessionId = context.getSessionId();
 
-        // 获取玩家的会话列表
-        List<ChatSession> sessions = playerHistories.computeIfAbsent(playerId, k -> new ArrayList<>());
-
-        // 查找是否已存在相同sessionId的会话
-        ChatSession existingSession = null;
-        int existingIndex = -1;
-        for (int i = 0; i < sessions.size(); i++) {
-            if (sessions.get(i).getSessionId().equals(sessionId)) {
-                existingSession = sessions.get(i);
-                existingIndex = i;
-                break;
-            }
-        }
-
         // 创建新的会话对象
         ChatSession newSession = new ChatSession(
                 sessionId,
@@ -104,191 +198,345 @@ public class ChatHistory {
                 context.getCurrentPromptTemplate()
         );
 
-        if (existingSession != null) {
-            // 更新现有会话，保留原有标题
-            if (existingSession.getTitle() != null) {
-                newSession.setTitle(existingSession.getTitle());
-            }
-            sessions.set(existingIndex, newSession);
-            LogManager.getInstance().chat("Chat session updated for player " + playerId +
-                    ", session: " + sessionId +
-                    ", messages: " + context.getMessages().size());
-        } else {
-            // 添加新会话
-            sessions.add(newSession);
-
-            // 限制会话数量
-            if (sessions.size() > maxSessionsPerPlayer) {
-                sessions.remove(0);
-            }
+        // 先使用本地生成的标题；已有会话由存储后端保留原有标题
+        TitleGenerationService titleService = TitleGenerationService.getInstance();
+        if (titleService.isEnabled()) {
+            newSession.setTitle(titleService.generateLocalTitle(newSession.getMessages()));
+        }
 
+        boolean created = store.saveSession(newSession);
+        if (created) {
             LogManager.getInstance().chat("New chat session saved for player " + playerId +
                     ", session: " + sessionId +
-                    ", messages: " + context.getMessages().size());
+                    ", messages: " + newSession.messages.size());
+        } else {
+            LogManager.getInstance().chat("Chat session updated for player " + playerId +
+                    ", session: " + sessionId +
+                    ", messages: " + newSession.messages.size());
         }
 
-        // 保存到文件
-        saveToFile(playerId, sessions);
-
-        // 异步生成标题（仅对新会话且没有标题的情况）
-        if (existingSession == null || newSession.getTitle() == null) {
-            generateTitleAsync(newSession, playerId, sessions);
+        // 增量更新长期记忆索引和统计
+        MemoryIndex.getInstance().indexSession(newSession);
+        statsIndex.recordSession(newSession);
+
+        // 新会话加入批量标题生成队列；仍在队列中的会话更新摘录
+        if (titleService.isEnabled()) {
+            if (created) {
+                // 回调只持有ID，队列中不保留会话的消息
+                titleService.enqueue(sessionId, newSession.getMessages(), title -> {
+                    store.updateTitle(playerId, sessionId, title);
+                    LogManager.getInstance().system("Generated title for session " + sessionId + ": " + title);
+                });
+            } else {
+                titleService.updatePending(sessionId, newSession.getMessages());
+            }
         }
     }
 
     /**
-     * 异步生成会话标题
+     * 加载玩家的聊天历史（包含所有会话的消息）
      */
-    private void generateTitleAsync(ChatSession session, UUID playerId, List<ChatSession> sessions) {
-        TitleGenerationService titleService = TitleGenerationService.getInstance();
-
-        // 检查是否应该生成标题
-        if (!titleService.shouldGenerateTitle(session.getMessages())) {
-            return;
-        }
-
-        // 异步生成标题
-        titleService.generateTitle(session.getMessages())
-            .thenAccept(title -> {
-                if (title != null && !title.trim().isEmpty()) {
-                    // 更新会话标题
-                    session.setTitle(title);
+    public List<ChatSession> loadPlayerHistory(UUID playerId) {
+        return store.loadPlayerHistory(playerId);
+    }
 
-                    // 重新保存到文件
-                    saveToFile(playerId, sessions);
+    /**
+     * 加载指定时间范围内的会话，只读取范围内会话的消息
+     */
+    public List<ChatSession> loadSessionsBetween(UUID playerId, LocalDateTime from, LocalDateTime to) {
+        return store.loadSessionsBetween(playerId, from, to);
+    }
 
-                    LogManager.getInstance().system("Generated title for session " +
-                        session.getSessionId() + ": " + title);
-                }
-            })
-            .exceptionally(throwable -> {
-                LogManager.getInstance().system("Failed to generate title for session " +
-                    session.getSessionId() + ": " + throwable.getMessage());
-                return null;
-            });
+    /**
+     * 依次读取玩家在时间范围内的会话交给consumer处理（用于导出大量历史记录）
+     *
+     * @param from 起始时间，为null时不限
+     * @param to 结束时间，为null时不限
+     */
+    public void forEachSession(UUID playerId, LocalDateTime from, LocalDateTime to,
+                               HistoryStore.SessionConsumer consumer) throws IOException {
+        store.forEachSession(playerId, from, to, consumer);
     }
 
     /**
-     * 加载玩家的聊天历史
+     * 列出玩家的会话（只读取索引，不加载消息）
      */
-    public List<ChatSession> loadPlayerHistory(UUID playerId) {
-        List<ChatSession> sessions = playerHistories.get(playerId);
-        if (sessions == null) {
-            sessions = loadFromFile(playerId);
-            if (sessions != null) {
-                playerHistories.put(playerId, sessions);
-            } else {
-                sessions = new ArrayList<>();
-                playerHistories.put(playerId, sessions);
-            }
-        }
-        return new ArrayList<>(sessions);
+    public List<SessionInfo> listSessions(UUID playerId) {
+        return store.listSessions(playerId);
     }
 
     /**
      * 获取玩家最近的会话
      */
     public ChatSession getLastSession(UUID playerId) {
-        List<ChatSession> sessions = loadPlayerHistory(playerId);
-        if (sessions.isEmpty()) {
-            return null;
-        }
-        return sessions.get(sessions.size() - 1);
+        return getSessionByIndex(playerId, 1);
     }
 
     /**
      * 通过索引获取玩家的会话（索引从1开始，1表示最新的会话）
      */
     public ChatSession getSessionByIndex(UUID playerId, int index) {
-        List<ChatSession> sessions = loadPlayerHistory(playerId);
-        if (sessions.isEmpty() || index < 1 || index > sessions.size()) {
-            return null;
+        return store.getSessionByIndex(playerId, index);
+    }
+
+    /**
+     * 列出有历史记录的所有玩家
+     */
+    public List<UUID> listPlayers() {
+        return store.listPlayers();
+    }
+
+    /**
+     * 释放玩家的历史缓存（玩家退出或上下文过期时调用），下次访问时重新加载
+     */
+    public void releasePlayerCache(UUID playerId) {
+        store.releasePlayer(playerId);
+        MemoryIndex.getInstance().releasePlayer(playerId);
+        saveStatsInBackground();
+    }
+
+    /**
+     * 在维护线程上写入统计文件，玩家退出时不等待磁盘；没有启动维护时留到下次写入或关闭时保存
+     */
+    private synchronized void saveStatsInBackground() {
+        if (maintenance != null) {
+            maintenance.execute(statsIndex::save);
         }
-        // 索引1对应最新的会话，所以需要从后往前数
-        return sessions.get(sessions.size() - index);
     }
 
     /**
      * 删除玩家的所有历史记录
      */
     public void clearPlayerHistory(UUID playerId) {
-        playerHistories.remove(playerId);
-        Path playerFile = getPlayerHistoryFile(playerId);
-        try {
-            Files.deleteIfExists(playerFile);
-        } catch (IOException e) {
-            // 忽略删除错误
-        }
+        store.clearPlayer(playerId);
+        MemoryIndex.getInstance().releasePlayer(playerId);
+        statsIndex.clearPlayer(playerId);
+    }
+
+    /**
+     * 统计是否已加载完成；统计由后台维护线程加载或补齐，查看统计前应先检查，不在调用线程上等待
+     */
+    public boolean isStatisticsLoaded() {
+        return statsIndex.isLoaded();
+    }
+
+    /**
+     * 获取玩家的累计统计（统计加载完成前不完整）
+     */
+    public HistoryStatsIndex.Counters getPlayerStatistics(UUID playerId) {
+        return statsIndex.getPlayerCounters(playerId);
+    }
+
+    /**
+     * 获取所有玩家汇总的累计统计（统计加载完成前不完整）
+     */
+    public HistoryStatsIndex.Counters getGlobalStatistics() {
+        return statsIndex.getGlobalCounters();
     }
 
     /**
-     * 搜索历史记录
+     * 获取有统计记录的玩家数量（统计加载完成前不完整）
+     */
+    public int getStatisticsPlayerCount() {
+        return statsIndex.getPlayerCount();
+    }
+
+    /**
+     * 搜索历史记录，返回按相关度排序的会话
      */
     public List<ChatSession> searchHistory(UUID playerId, String keyword) {
-        List<ChatSession> sessions = loadPlayerHistory(playerId);
-        List<ChatSession> results = new ArrayList<>();
-        
-        String lowerKeyword = keyword.toLowerCase();
-        for (ChatSession session : sessions) {
-            for (LLMMessage message : session.getMessages()) {
-                if (message.getContent().toLowerCase().contains(lowerKeyword)) {
-                    results.add(session);
-                    break;
-                }
-            }
-        }
-        
-        return results;
+        return store.searchHistory(playerId, keyword);
     }
 
     /**
-     * 保存到文件
+     * 在玩家的历史记录中搜索，返回带有命中片段的结果
+     *
+     * @param limit 最多返回的会话数
      */
-    private void saveToFile(UUID playerId, List<ChatSession> sessions) {
-        Path playerFile = getPlayerHistoryFile(playerId);
-        try (FileWriter writer = new FileWriter(playerFile.toFile())) {
-            gson.toJson(sessions, writer);
-        } catch (IOException e) {
-            // 记录错误但不抛出异常
-            LogManager.getInstance().error("Failed to save chat history for player " + playerId, e);
-        }
+    public List<SearchResult> search(UUID playerId, String query, int limit) {
+        return store.search(playerId, query, limit);
     }
 
     /**
-     * 从文件加载
+     * 在所有玩家的历史记录中搜索（管理员使用），按相关度排序
+     *
+     * @param limit 最多返回的会话数
      */
-    private List<ChatSession> loadFromFile(UUID playerId) {
-        Path playerFile = getPlayerHistoryFile(playerId);
-        if (!Files.exists(playerFile)) {
-            return null;
+    public List<SearchResult> searchAll(String query, int limit) {
+        return store.searchAll(query, limit);
+    }
+
+
+    /**
+     * 搜索结果：命中的会话及片段
+     */
+    public static class SearchResult {
+        private final UUID playerId;
+        private final SessionInfo session;
+        private final String snippet;
+        private final double score;
+        private final int matchedMessages;
+
+        SearchResult(UUID playerId, SessionInfo session, String snippet, double score, int matchedMessages) {
+            this.playerId = playerId;
+            this.session = session;
+            this.snippet = snippet;
+            this.score = score;
+            this.matchedMessages = matchedMessages;
+        }
+
+        public UUID getPlayerId() {
+            return playerId;
+        }
+
+        public SessionInfo getSession() {
+            return session;
+        }
+
+        public String getSnippet() {
+            return snippet;
+        }
+
+        public double getScore() {
+            return score;
         }
 
-        try (FileReader reader = new FileReader(playerFile.toFile())) {
-            Type listType = new TypeToken<List<ChatSession>>(){}.getType();
-            return gson.fromJson(reader, listType);
-        } catch (IOException e) {
-            LogManager.getInstance().error("Failed to load chat history for player " + playerId, e);
-            return null;
+        public int getMatchedMessages() {
+            return matchedMessages;
         }
     }
 
     /**
-     * 获取玩家历史文件路径
+     * 会话索引项：列出会话所需的元数据，不包含消息
      */
-    private Path getPlayerHistoryFile(UUID playerId) {
-        return historyDir.resolve(playerId.toString() + ".json");
+    public static class SessionInfo {
+        String sessionId;
+        String title;
+        LocalDateTime timestamp;
+        String promptTemplate;
+        int messageCount;
+        // 已保存的最后一条消息ID和全部消息ID的滚动哈希，保存时据此判断新消息是否只是追加，不读取消息体；
+        // 旧索引中没有这两项，此时lastMessageId为null
+        String lastMessageId;
+        long messageIdsHash;
+
+        static SessionInfo of(ChatSession session) {
+            SessionInfo info = new SessionInfo();
+            info.sessionId = session.getSessionId();
+            info.title = session.getTitle();
+            info.update(session);
+            return info;
+        }
+
+        void update(ChatSession session) {
+            if (session.getTitle() != null) {
+                title = session.getTitle();
+            }
+            timestamp = session.getTimestamp();
+            promptTemplate = session.getPromptTemplate();
+            messageCount = session.messages.size();
+            lastMessageId = messageCount > 0 ? session.messages.get(messageCount - 1).getId() : null;
+            messageIdsHash = hashMessageIds(0, session.messages, messageCount);
+        }
+
+        /**
+         * 记录追加的消息；已保存消息的ID未知时（旧索引）保持未知
+         */
+        void append(List<LLMMessage> appended, LocalDateTime time) {
+            timestamp = time;
+            if (appended.isEmpty()) {
+                return;
+            }
+            if (lastMessageId != null || messageCount == 0) {
+                lastMessageId = appended.get(appended.size() - 1).getId();
+                messageIdsHash = hashMessageIds(messageIdsHash, appended, appended.size());
+            }
+            messageCount += appended.size();
+        }
+
+        /**
+         * 判断已保存的消息是否为给定消息的前缀
+         */
+        boolean isPrefixOf(List<LLMMessage> messages) {
+            return lastMessageId != null && messages.size() >= messageCount &&
+                   lastMessageId.equals(messages.get(messageCount - 1).getId()) &&
+                   messageIdsHash == hashMessageIds(0, messages, messageCount);
+        }
+
+        /**
+         * 在已有哈希上依次计入前count条消息的ID（FNV-1a）
+         */
+        private static long hashMessageIds(long hash, List<LLMMessage> messages, int count) {
+            long h = hash == 0 ? 0xcbf29ce484222325L : hash;
+            for (int i = 0; i < count; i++) {
+                String id = messages.get(i).getId();
+                if (id != null) {
+                    for (int j = 0; j < id.length(); j++) {
+                        h = (h ^ id.charAt(j)) * 0x100000001b3L;
+                    }
+                }
+                h = (h ^ 0xff) * 0x100000001b3L; // 分隔相邻的ID
+            }
+            return h;
+        }
+
+        SessionInfo copy() {
+            SessionInfo copy = new SessionInfo();
+            copy.sessionId = sessionId;
+            copy.title = title;
+            copy.timestamp = timestamp;
+            copy.promptTemplate = promptTemplate;
+            copy.messageCount = messageCount;
+            copy.lastMessageId = lastMessageId;
+            copy.messageIdsHash = messageIdsHash;
+            return copy;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public LocalDateTime getTimestamp() {
+            return timestamp;
+        }
+
+        public String getPromptTemplate() {
+            return promptTemplate;
+        }
+
+        public int getMessageCount() {
+            return messageCount;
+        }
+
+        /**
+         * 获取显示标题，如果没有标题则返回默认格式
+         */
+        public String getDisplayTitle() {
+            if (title != null && !title.trim().isEmpty()) {
+                return title;
+            }
+            return String.format("对话 %s (%d条消息)", getFormattedTimestamp(), messageCount);
+        }
+
+        public String getFormattedTimestamp() {
+            return timestamp.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        }
     }
 
     /**
      * 聊天会话数据结构
      */
     public static class ChatSession {
-        private final String sessionId;
-        private final UUID playerId;
-        private final List<LLMMessage> messages;
-        private final LocalDateTime timestamp;
-        private final String promptTemplate;
-        private String title; // 对话标题，可能为null（向后兼容）
+        final String sessionId;
+        final UUID playerId;
+        final List<LLMMessage> messages;
+        final LocalDateTime timestamp;
+        final String promptTemplate;
+        String title; // 对话标题，可能为null（向后兼容）
 
         public ChatSession(String sessionId, UUID playerId, List<LLMMessage> messages,
                           LocalDateTime timestamp, String promptTemplate) {
@@ -305,6 +553,46 @@ public class ChatHistory {
             this.title = title;
         }
 
+        /**
+         * 创建用于写入文件的副本：系统提示词替换为内容哈希引用，并登记到共享提示词表中
+         */
+        ChatSession withSharedPrompts(Map<String, String> prompts) {
+            List<LLMMessage> storedMessages = new ArrayList<>(messages.size());
+            for (LLMMessage message : messages) {
+                String content = message.getContent();
+                if (message.getRole() == LLMMessage.MessageRole.SYSTEM && content != null &&
+                    content.length() >= SharedTextStore.MIN_SHARED_LENGTH && !ChatContext.isSummaryMessage(message)) {
+                    String hash = SharedTextStore.hashOf(content);
+                    prompts.putIfAbsent(hash, content);
+                    storedMessages.add(message.withContent(null, hash));
+                } else {
+                    storedMessages.add(message);
+                }
+            }
+            return new ChatSession(sessionId, playerId, storedMessages, timestamp, promptTemplate, title);
+        }
+
+        /**
+         * 把内容哈希引用解析回消息内容，并让系统提示词使用共享实例（从文件加载后调用）
+         */
+        void resolveSharedPrompts(Map<String, String> sharedPrompts) {
+            if (messages == null) {
+                return;
+            }
+            SharedTextStore store = SharedTextStore.getInstance();
+            for (int i = 0; i < messages.size(); i++) {
+                LLMMessage message = messages.get(i);
+                if (message.getContentRef() != null) {
+                    messages.set(i, message.withContent(sharedPrompts.get(message.getContentRef()), null));
+                } else if (message.getRole() == LLMMessage.MessageRole.SYSTEM && message.getContent() != null) {
+                    String shared = store.intern(message.getContent());
+                    if (shared != message.getContent()) {
+                        messages.set(i, message.withContent(shared, null));
+                    }
+                }
+            }
+        }
+
         public String getSessionId() {
             return sessionId;
         }
@@ -0,0 +1,1424 @@
+package com.riceawa.llm.history;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.SharedTextStore;
+import com.riceawa.llm.history.ChatHistory.ChatSession;
+import com.riceawa.llm.history.ChatHistory.SearchResult;
+import com.riceawa.llm.history.ChatHistory.SessionInfo;
+import com.riceawa.llm.logging.LogManager;
+
+import java.io.*;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 基于文件的历史记录存储
+ *
+ * 每个玩家一个目录：会话索引（标题、时间、消息数）、每个会话一个消息文件，以及追加写入的变更日志。
+ * 列出会话只需要索引，消息文件只在恢复或导出会话时才读取。
+ * 保存会话时只向日志追加新消息或标题变更，日志积累到一定条数后合并进索引和消息文件。
+ * 保存只更新内存并登记待写入的日志记录，由{@link HistoryFlusher}的后台线程统一写入磁盘。
+ */
+public class FileHistoryStore implements HistoryStore {
+    // 历史记录格式版本：1为单文件会话数组，3为每个玩家一个目录
+    private static final int FILE_FORMAT_VERSION = 3;
+    // 日志记录条数达到该值后合并进索引和消息文件
+    private static final int JOURNAL_COMPACTION_THRESHOLD = 100;
+    private static final int MAINTENANCE_BATCH_SIZE = 16; // 维护时每批重写的消息文件数，批次之间释放玩家锁
+    private static final long FLUSH_INTERVAL_MS = 1000; // 后台写入间隔
+    private static final int FLUSH_BATCH_THRESHOLD = 64; // 积压的记录数达到该值时立即写入
+    private static final long CACHE_BUDGET_BYTES = 32L * 1024 * 1024; // 内存中历史缓存的预算
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String JOURNAL_FILE = "journal.jsonl";
+    private static final String SESSIONS_DIR = "sessions";
+    private static final String SEARCH_INDEX_FILE = "search.json.gz";
+
+    private final Gson gson;
+    private final Gson journalGson;
+    private final Path historyDir;
+    private final HistoryCache<UUID, PlayerHistory> playerHistories;
+    private final Map<UUID, Object> playerLocks;
+    private final HistoryFlusher flusher;
+    private final int maxSessionsPerPlayer;
+    private volatile boolean compressionEnabled = true;
+
+    public FileHistoryStore(Path historyDir) {
+        this.gson = new GsonBuilder()
+                .setPrettyPrinting()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .create();
+        // 日志每条记录占一行，不能使用格式化输出
+        this.journalGson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .create();
+        this.historyDir = historyDir;
+
+        this.playerHistories = new HistoryCache<>(CACHE_BUDGET_BYTES);
+        this.playerLocks = new ConcurrentHashMap<>();
+        this.flusher = new HistoryFlusher(this::flushPlayer, FLUSH_INTERVAL_MS, FLUSH_BATCH_THRESHOLD);
+        this.maxSessionsPerPlayer = 100; // 每个玩家最多保存100个会话
+
+        // 确保目录存在
+        try {
+            Files.createDirectories(historyDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to create history directory", e);
+        }
+    }
+
+    /**
+     * 写入所有待写入的变更并停止后台写入线程（服务器关闭时调用）
+     */
+    @Override
+    public void shutdown() {
+        flusher.shutdown();
+    }
+
+    /**
+     * 立即写入所有待写入的变更
+     */
+    @Override
+    public void flush() {
+        flusher.flush();
+    }
+
+    /**
+     * 获取有待写入变更的玩家数量
+     */
+    @Override
+    public int getPendingFlushCount() {
+        return flusher.getQueueDepth();
+    }
+
+    /**
+     * 获取积压的待写入记录数
+     */
+    @Override
+    public int getPendingRecordCount() {
+        return flusher.getPendingRecords();
+    }
+
+    /**
+     * 设置是否以压缩格式保存索引和消息文件；已有的文件在下次加载该玩家时于后台转换
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * 获取缓存中的玩家数量
+     */
+    @Override
+    public int getCachedPlayerCount() {
+        return playerHistories.size();
+    }
+
+    /**
+     * 获取缓存估算占用的内存（字节）
+     */
+    @Override
+    public long getCacheResidentBytes() {
+        return playerHistories.getResidentBytes();
+    }
+
+    /**
+     * 获取缓存的内存预算（字节）
+     */
+    @Override
+    public long getCacheBudgetBytes() {
+        return playerHistories.getBudgetBytes();
+    }
+
+    /**
+     * 设置缓存的内存预算（字节），超出部分在下次访问时淘汰
+     */
+    public void setCacheBudgetBytes(long budgetBytes) {
+        playerHistories.setBudgetBytes(budgetBytes);
+        evictIfOverBudget();
+    }
+
+    /**
+     * 获取缓存命中率（0到1）
+     */
+    @Override
+    public double getCacheHitRate() {
+        return playerHistories.getHitRate();
+    }
+
+    /**
+     * 获取因超出预算而被淘汰的缓存条目数
+     */
+    @Override
+    public long getCacheEvictionCount() {
+        return playerHistories.getEvictionCount();
+    }
+
+    /**
+     * 把会话放入玩家的会话列表并登记待写入的日志记录
+     * 已存在的会话如果只是新增了消息，日志中只记录新增的部分
+     *
+     * @return 是否为新会话
+     */
+    @Override
+    public boolean saveSession(ChatSession newSession) {
+        boolean created = storeSession(newSession);
+        evictIfOverBudget();
+        return created;
+    }
+
+    private boolean storeSession(ChatSession newSession) {
+        UUID playerId = newSession.getPlayerId();
+        String sessionId = newSession.getSessionId();
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = getPlayerHistory(playerId);
+
+            // 查找是否已存在相同sessionId的会话
+            SessionInfo info = history.findSession(sessionId);
+
+            List<JournalRecord> records = new ArrayList<>();
+            if (info != null) {
+                // 本次运行中保存过的消息体在内存中，否则按索引中记录的消息ID判断，不读取会话文件和日志
+                ChatSession existingSession = history.loadedBodies.get(sessionId);
+                int appendFrom = existingSession != null ? existingSession.messages.size() : info.messageCount;
+                boolean appendOnly = existingSession != null ?
+                    commonPrefixLength(existingSession.messages, newSession.messages) == appendFrom :
+                    info.isPrefixOf(newSession.messages);
+
+                // 更新现有会话，保留原有标题
+                if (info.title != null) {
+                    newSession.setTitle(info.title);
+                }
+                info.update(newSession);
+
+                if (appendOnly) {
+                    ChatSession appended = new ChatSession(sessionId, playerId,
+                            newSession.messages.subList(appendFrom, newSession.messages.size()),
+                            newSession.getTimestamp(), newSession.getPromptTemplate());
+                    addSessionRecord(records, JournalRecord.APPEND, appended, history);
+                    if (history.searchIndex != null) {
+                        history.searchIndex.addMessages(sessionId, appended.messages);
+                    }
+                } else {
+                    // 上下文被压缩或清空，旧消息不再是新消息的前缀，记录完整会话
+                    addSessionRecord(records, JournalRecord.SESSION, newSession, history);
+                    if (history.searchIndex != null) {
+                        history.searchIndex.removeSession(sessionId);
+                        history.searchIndex.addMessages(sessionId, newSession.messages);
+                    }
+                }
+            } else {
+                // 添加新会话
+                history.addSession(SessionInfo.of(newSession), maxSessionsPerPlayer);
+                addSessionRecord(records, JournalRecord.SESSION, newSession, history);
+                if (history.searchIndex != null) {
+                    history.searchIndex.addMessages(sessionId, newSession.messages);
+                }
+            }
+
+            history.loadedBodies.put(sessionId, newSession);
+            history.dirtyBodies.add(sessionId);
+            history.compactedBodies.remove(sessionId);
+            history.releaseRequested = false;
+            enqueueRecords(playerId, history, records);
+            return info == null;
+        }
+    }
+
+    /**
+     * 更新会话标题并登记待写入的日志记录
+     */
+    @Override
+    public void updateTitle(UUID playerId, String sessionId, String title) {
+        synchronized (lockFor(playerId)) {
+            boolean wasLoaded = playerHistories.containsKey(playerId);
+            PlayerHistory history = getPlayerHistory(playerId);
+            SessionInfo info = history.findSession(sessionId);
+            if (info == null) {
+                return;
+            }
+            // 标题以索引为准；已加载的消息体可能已被更新的版本替换
+            info.title = title;
+            ChatSession loaded = history.loadedBodies.get(sessionId);
+            if (loaded != null) {
+                loaded.setTitle(title);
+            }
+
+            if (!wasLoaded) {
+                // 缓存已释放：写入并合并后再次释放
+                history.releaseRequested = true;
+            }
+            enqueueRecords(playerId, history, Collections.singletonList(
+                JournalRecord.title(sessionId, title)));
+        }
+    }
+
+    /**
+     * 加载玩家的聊天历史（包含所有会话的消息）
+     */
+    @Override
+    public List<ChatSession> loadPlayerHistory(UUID playerId) {
+        List<ChatSession> sessions;
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = getPlayerHistory(playerId);
+            List<JournalRecord> journal = readJournal(playerId);
+            sessions = new ArrayList<>(history.sessions.size());
+            for (SessionInfo info : history.sessions) {
+                ChatSession session = loadSessionBody(playerId, history, info, journal);
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+        }
+        evictIfOverBudget();
+        return sessions;
+    }
+
+    /**
+     * 列出玩家的会话（只读取索引，不加载消息）
+     */
+    @Override
+    public List<SessionInfo> listSessions(UUID playerId) {
+        List<SessionInfo> sessions = new ArrayList<>();
+        synchronized (lockFor(playerId)) {
+            for (SessionInfo info : getPlayerHistory(playerId).sessions) {
+                sessions.add(info.copy());
+            }
+        }
+        evictIfOverBudget();
+        return sessions;
+    }
+
+    /**
+     * 加载指定时间范围内的会话：先按索引中的时间过滤，只读取范围内会话的消息文件
+     */
+    @Override
+    public List<ChatSession> loadSessionsBetween(UUID playerId, LocalDateTime from, LocalDateTime to) {
+        List<ChatSession> sessions = new ArrayList<>();
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = getPlayerHistory(playerId);
+            List<JournalRecord> journal = null;
+            for (SessionInfo info : history.sessions) {
+                // 先按索引中的时间过滤，只加载范围内会话的消息
+                if (info.timestamp == null || info.timestamp.isBefore(from) || info.timestamp.isAfter(to)) {
+                    continue;
+                }
+                if (journal == null && !history.loadedBodies.containsKey(info.sessionId)) {
+                    journal = readJournal(playerId);
+                }
+                ChatSession session = loadSessionBody(playerId, history, info, journal);
+                if (session != null) {
+                    sessions.add(session);
+                }
+            }
+        }
+        evictIfOverBudget();
+        return sessions;
+    }
+
+    /**
+     * 逐个加载会话交给consumer处理：会话列表和日志在开始时读取一次，
+     * 每个会话只在加载时持有玩家锁，处理期间不阻塞该玩家的保存
+     */
+    @Override
+    public void forEachSession(UUID playerId, LocalDateTime from, LocalDateTime to, SessionConsumer consumer)
+            throws IOException {
+        List<SessionInfo> infos = new ArrayList<>();
+        List<JournalRecord> journal;
+        synchronized (lockFor(playerId)) {
+            for (SessionInfo info : getPlayerHistory(playerId).sessions) {
+                if (info.timestamp == null ||
+                    ((from == null || !info.timestamp.isBefore(from)) && (to == null || !info.timestamp.isAfter(to)))) {
+                    infos.add(info.copy());
+                }
+            }
+            journal = readJournal(playerId);
+        }
+        evictIfOverBudget();
+
+        for (SessionInfo info : infos) {
+            ChatSession session;
+            synchronized (lockFor(playerId)) {
+                session = loadSessionBody(playerId, getPlayerHistory(playerId), info, journal);
+            }
+            if (session != null) {
+                consumer.accept(session);
+            }
+        }
+    }
+
+    /**
+     * 通过索引获取玩家的会话（索引从1开始，1表示最新的会话）
+     */
+    @Override
+    public ChatSession getSessionByIndex(UUID playerId, int index) {
+        ChatSession session = null;
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = getPlayerHistory(playerId);
+            List<SessionInfo> sessions = history.sessions;
+            if (!sessions.isEmpty() && index >= 1 && index <= sessions.size()) {
+                // 索引1对应最新的会话，所以需要从后往前数
+                session = loadSessionBody(playerId, history, sessions.get(sessions.size() - index), null);
+            }
+        }
+        evictIfOverBudget();
+        return session;
+    }
+
+    @Override
+    public void releasePlayer(UUID playerId) {
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = playerHistories.peek(playerId);
+            if (history != null && (history.journalRecords > 0 || !history.pending.isEmpty())) {
+                // 缓存保留到后台写入完成，并把日志合并进索引，下次加载时无需重放
+                history.releaseRequested = true;
+                flusher.markDirty(playerId, 0);
+            } else {
+                playerHistories.remove(playerId);
+            }
+        }
+    }
+
+    @Override
+    public void clearPlayer(UUID playerId) {
+        synchronized (lockFor(playerId)) {
+            playerHistories.remove(playerId);
+            try {
+                deleteRecursively(getPlayerDir(playerId));
+                Files.deleteIfExists(getLegacyHistoryFile(playerId));
+            } catch (IOException e) {
+                // 忽略删除错误
+            }
+        }
+    }
+
+    /**
+     * 删除过期会话后立即合并日志：索引和消息文件按当前格式重写，已删除会话的消息文件一并删除，
+     * 全文索引同时更新。没有变更的玩家不重写文件；维护前不在缓存中的玩家，维护后释放缓存。
+     * 消息文件分批重写，批次之间释放玩家锁，保存会话不必等待整个玩家合并完成
+     */
+    @Override
+    public MaintenanceResult maintainPlayer(UUID playerId, LocalDateTime cutoff) {
+        long bytesBefore;
+        long ioBytes = 0;
+        int removed = 0;
+        boolean wasCached;
+        boolean compact;
+        synchronized (lockFor(playerId)) {
+            bytesBefore = directorySize(getPlayerDir(playerId));
+            wasCached = playerHistories.containsKey(playerId);
+            if (!wasCached) {
+                ioBytes += fileSize(findStoredFile(getIndexFile(playerId))) + fileSize(getJournalFile(playerId));
+            }
+            PlayerHistory history = getPlayerHistory(playerId);
+            if (!writePendingRecords(playerId, history)) {
+                return new MaintenanceResult(0, bytesBefore, bytesBefore, ioBytes);
+            }
+
+            if (cutoff != null) {
+                Iterator<SessionInfo> iterator = history.sessions.iterator();
+                while (iterator.hasNext()) {
+                    SessionInfo info = iterator.next();
+                    if (info.timestamp != null && info.timestamp.isBefore(cutoff)) {
+                        iterator.remove();
+                        history.removeSession(info.sessionId);
+                        removed++;
+                    }
+                }
+            }
+
+            compact = removed > 0 || history.journalRecords > 0 || history.formatMigrationPending;
+            // 合并时会删除未加载的全文索引，使用过搜索的玩家先加载（或重建）索引再随合并保存
+            Path searchIndexFile = getPlayerDir(playerId).resolve(SEARCH_INDEX_FILE);
+            if (compact && history.searchIndex == null && Files.exists(searchIndexFile)) {
+                ioBytes += fileSize(searchIndexFile);
+                getSearchIndex(playerId, history);
+            }
+        }
+
+        while (compact) {
+            synchronized (lockFor(playerId)) {
+                PlayerHistory history = getPlayerHistory(playerId);
+                if (!writePendingRecords(playerId, history)) {
+                    break;
+                }
+                if (history.compactedBodies.containsAll(history.dirtyBodies)) {
+                    ioBytes += Math.max(0, compactJournal(playerId, history));
+                    break;
+                }
+                long written = writeDirtyBodies(playerId, history, MAINTENANCE_BATCH_SIZE);
+                if (written < 0) {
+                    break;
+                }
+                ioBytes += written;
+            }
+        }
+
+        MaintenanceResult result;
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = playerHistories.peek(playerId);
+            if (history != null) {
+                if (!wasCached && history.pending.isEmpty() && !history.releaseRequested) {
+                    playerHistories.remove(playerId);
+                } else {
+                    playerHistories.updateWeight(playerId, history, history.estimateBytes());
+                }
+            }
+            result = new MaintenanceResult(removed, bytesBefore, directorySize(getPlayerDir(playerId)), ioBytes);
+        }
+        evictIfOverBudget();
+        return result;
+    }
+
+    /**
+     * 搜索历史记录，返回按相关度排序的会话
+     */
+    @Override
+    public List<ChatSession> searchHistory(UUID playerId, String keyword) {
+        List<ChatSession> results = new ArrayList<>();
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = getPlayerHistory(playerId);
+            List<JournalRecord> journal = null;
+            for (HistorySearchIndex.Match match : getSearchIndex(playerId, history).search(keyword, Integer.MAX_VALUE)) {
+                SessionInfo info = history.findSession(match.sessionId);
+                if (info == null) {
+                    continue;
+                }
+                if (journal == null && !history.loadedBodies.containsKey(match.sessionId)) {
+                    journal = readJournal(playerId);
+                }
+                ChatSession session = loadSessionBody(playerId, history, info, journal);
+                if (session != null) {
+                    results.add(session);
+                }
+            }
+        }
+        evictIfOverBudget();
+        return results;
+    }
+
+    /**
+     * 在玩家的历史记录中搜索，返回带有命中片段的结果
+     *
+     * @param limit 最多返回的会话数
+     */
+    @Override
+    public List<SearchResult> search(UUID playerId, String query, int limit) {
+        List<SearchResult> results = new ArrayList<>();
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = getPlayerHistory(playerId);
+            List<HistorySearchIndex.Match> matches = getSearchIndex(playerId, history).search(query, limit);
+            List<JournalRecord> journal = null;
+            for (HistorySearchIndex.Match match : matches) {
+                SessionInfo info = history.findSession(match.sessionId);
+                if (info == null) {
+                    continue;
+                }
+                if (journal == null && !history.loadedBodies.containsKey(match.sessionId)) {
+                    journal = readJournal(playerId);
+                }
+                ChatSession session = loadSessionBody(playerId, history, info, journal);
+                String snippet = session != null ? createSnippet(session, match.messageId, query) : "";
+                results.add(new SearchResult(playerId, info.copy(), snippet, match.score, match.matchedMessages));
+            }
+        }
+        evictIfOverBudget();
+        return results;
+    }
+
+    /**
+     * 在所有玩家的历史记录中搜索（管理员使用），按相关度排序
+     *
+     * @param limit 最多返回的会话数
+     */
+    @Override
+    public List<SearchResult> searchAll(String query, int limit) {
+        List<SearchResult> results = new ArrayList<>();
+        for (UUID playerId : listPlayers()) {
+            boolean wasLoaded = playerHistories.containsKey(playerId);
+            results.addAll(search(playerId, query, limit));
+            if (!wasLoaded) {
+                // 只为搜索而加载的玩家不常驻内存
+                releasePlayer(playerId);
+            }
+        }
+        results.sort(Comparator.comparingDouble(SearchResult::getScore).reversed());
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * 获取玩家的全文索引：优先从磁盘加载上次合并时保存的索引，再补上之后变更的会话（调用方需持有玩家锁）
+     */
+    private HistorySearchIndex getSearchIndex(UUID playerId, PlayerHistory history) {
+        if (history.searchIndex != null) {
+            return history.searchIndex;
+        }
+
+        List<JournalRecord> journal = readJournal(playerId);
+        HistorySearchIndex index = loadSearchIndexFile(playerId, history.compactedSeq);
+        Collection<String> sessionsToIndex;
+        if (index != null) {
+            // 日志中变更过的会话重新索引
+            sessionsToIndex = history.dirtyBodies;
+            for (String sessionId : sessionsToIndex) {
+                index.removeSession(sessionId);
+            }
+        } else {
+            index = new HistorySearchIndex();
+            sessionsToIndex = new ArrayList<>();
+            for (SessionInfo info : history.sessions) {
+                sessionsToIndex.add(info.sessionId);
+            }
+        }
+
+        Set<String> liveSessions = new HashSet<>();
+        for (SessionInfo info : history.sessions) {
+            liveSessions.add(info.sessionId);
+        }
+        index.retainSessions(liveSessions);
+
+        for (String sessionId : sessionsToIndex) {
+            SessionInfo info = history.findSession(sessionId);
+            ChatSession session = info != null ? loadSessionBody(playerId, history, info, journal) : null;
+            if (session != null) {
+                index.addMessages(sessionId, session.messages);
+            }
+        }
+        history.searchIndex = index;
+        playerHistories.updateWeight(playerId, history, history.estimateBytes());
+        return index;
+    }
+
+    /**
+     * 读取磁盘上的全文索引，与最近一次合并不一致时返回null
+     */
+    private HistorySearchIndex loadSearchIndexFile(UUID playerId, long compactedSeq) {
+        Path file = getPlayerDir(playerId).resolve(SEARCH_INDEX_FILE);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (Reader reader = new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8)) {
+            SearchIndexFile indexFile = journalGson.fromJson(reader, SearchIndexFile.class);
+            if (indexFile == null || indexFile.format != FILE_FORMAT_VERSION ||
+                indexFile.journalSeq != compactedSeq || indexFile.index == null) {
+                return null;
+            }
+            return indexFile.index;
+        } catch (IOException | JsonParseException e) {
+            LogManager.getInstance().error("Failed to load chat history search index for player " + playerId, e);
+            return null;
+        }
+    }
+
+    /**
+     * 保存全文索引；没有构建索引时删除过期的索引文件
+     */
+    private void saveSearchIndexFile(UUID playerId, PlayerHistory history) {
+        Path file = getPlayerDir(playerId).resolve(SEARCH_INDEX_FILE);
+        try {
+            if (history.searchIndex == null) {
+                Files.deleteIfExists(file);
+                return;
+            }
+
+            history.searchIndex.compact();
+            SearchIndexFile indexFile = new SearchIndexFile();
+            indexFile.format = FILE_FORMAT_VERSION;
+            indexFile.journalSeq = history.journalSeq;
+            indexFile.index = history.searchIndex;
+
+            Path tempFile = file.resolveSibling(SEARCH_INDEX_FILE + ".tmp");
+            try (Writer writer = new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(tempFile)), StandardCharsets.UTF_8)) {
+                journalGson.toJson(indexFile, writer);
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // 索引可以从历史记录重建，失败时只记录错误
+            LogManager.getInstance().error("Failed to save chat history search index for player " + playerId, e);
+        }
+    }
+
+    /**
+     * 截取命中消息中查询附近的片段
+     */
+    private static String createSnippet(ChatSession session, String messageId, String query) {
+        String content = null;
+        for (LLMMessage message : session.messages) {
+            if (Objects.equals(message.getId(), messageId)) {
+                content = message.getContent();
+                break;
+            }
+        }
+        return content != null ? HistorySearchIndex.createSnippet(content, query) : "";
+    }
+
+    @Override
+    public List<UUID> listPlayers() {
+        Set<UUID> playerIds = new LinkedHashSet<>(playerHistories.keys());
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(historyDir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                int dot = name.indexOf('.');
+                try {
+                    playerIds.add(UUID.fromString(dot >= 0 ? name.substring(0, dot) : name));
+                } catch (IllegalArgumentException e) {
+                    // 不是玩家历史记录
+                }
+            }
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to list chat history directory", e);
+        }
+        return new ArrayList<>(playerIds);
+    }
+
+    /**
+     * 获取玩家的历史记录（未加载时读取索引并重放日志），调用方需持有玩家锁
+     */
+    private PlayerHistory getPlayerHistory(UUID playerId) {
+        PlayerHistory history = playerHistories.get(playerId);
+        if (history == null) {
+            migrateLegacyHistory(playerId);
+            history = loadPlayerIndex(playerId);
+            playerHistories.put(playerId, history, history.estimateBytes());
+            if (history.formatMigrationPending) {
+                // 由后台写入线程把文件转换为当前的存储格式
+                flusher.markDirty(playerId, 0);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * 把会话记录（及其引用的、尚未写入日志的共享提示词）加入待写入的日志记录
+     */
+    private void addSessionRecord(List<JournalRecord> records, String type, ChatSession session, PlayerHistory history) {
+        Map<String, String> prompts = new LinkedHashMap<>();
+        ChatSession stored = session.withSharedPrompts(prompts);
+        for (Map.Entry<String, String> entry : prompts.entrySet()) {
+            if (history.writtenPrompts.add(entry.getKey())) {
+                records.add(JournalRecord.prompt(entry.getKey(), entry.getValue()));
+            }
+        }
+        records.add(JournalRecord.session(type, stored));
+    }
+
+    /**
+     * 登记待写入的日志记录并分配序号（调用方需持有玩家锁）
+     */
+    private void enqueueRecords(UUID playerId, PlayerHistory history, List<JournalRecord> records) {
+        for (JournalRecord record : records) {
+            record.seq = ++history.journalSeq;
+        }
+        history.pending.addAll(records);
+        playerHistories.updateWeight(playerId, history, history.estimateBytes());
+        flusher.markDirty(playerId, records.size());
+    }
+
+    /**
+     * 缓存超出预算时从最久未访问的玩家开始淘汰，有待写入记录的玩家跳过
+     * 需要逐个获取玩家锁，因此调用方不能持有任何玩家锁
+     */
+    private void evictIfOverBudget() {
+        for (UUID playerId : playerHistories.getEvictionCandidates()) {
+            synchronized (lockFor(playerId)) {
+                playerHistories.evict(playerId, history ->
+                    history.pending.isEmpty() && !history.releaseRequested);
+            }
+        }
+    }
+
+    /**
+     * 把玩家待写入的日志记录写到磁盘，必要时合并（由后台写入线程调用）
+     */
+    void flushPlayer(UUID playerId) {
+        flushPlayerLocked(playerId);
+        evictIfOverBudget();
+    }
+
+    private void flushPlayerLocked(UUID playerId) {
+        synchronized (lockFor(playerId)) {
+            PlayerHistory history = playerHistories.peek(playerId);
+            if (history == null) {
+                return;
+            }
+            if (!writePendingRecords(playerId, history)) {
+                // 下个写入周期重试
+                flusher.markDirty(playerId, 0);
+                return;
+            }
+
+            if (history.releaseRequested || history.formatMigrationPending ||
+                history.journalRecords >= JOURNAL_COMPACTION_THRESHOLD) {
+                compactJournal(playerId, history);
+            }
+            if (history.releaseRequested) {
+                playerHistories.remove(playerId);
+            }
+        }
+    }
+
+    /**
+     * 向玩家的日志文件追加待写入的记录（调用方需持有玩家锁）
+     *
+     * @return 是否已全部写入；失败时记录保留，等待下次重试
+     */
+    private boolean writePendingRecords(UUID playerId, PlayerHistory history) {
+        if (history.pending.isEmpty()) {
+            return true;
+        }
+
+        StringBuilder lines = new StringBuilder();
+        for (JournalRecord record : history.pending) {
+            lines.append(journalGson.toJson(record)).append('\n');
+        }
+
+        try {
+            Files.createDirectories(getPlayerDir(playerId));
+            Files.writeString(getJournalFile(playerId), lines, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // 记录错误但不抛出异常
+            LogManager.getInstance().error("Failed to save chat history for player " + playerId, e);
+            return false;
+        }
+
+        history.journalRecords += history.pending.size();
+        history.pending.clear();
+        return true;
+    }
+
+    /**
+     * 把日志合并进索引和消息文件，然后删除日志（调用方需持有玩家锁）
+     * 先写消息文件再写索引，两者都记录已包含的日志序号，中途中断时重放会跳过已合并的记录
+     *
+     * @return 读写的字节数；写入失败时返回-1
+     */
+    private long compactJournal(UUID playerId, PlayerHistory history) {
+        long ioBytes = writeDirtyBodies(playerId, history, Integer.MAX_VALUE);
+        if (ioBytes < 0 || !saveIndexFile(playerId, history)) {
+            return -1;
+        }
+        history.compactedSeq = history.journalSeq;
+        saveSearchIndexFile(playerId, history);
+        ioBytes += fileSize(storagePath(getIndexFile(playerId))) +
+            fileSize(getPlayerDir(playerId).resolve(SEARCH_INDEX_FILE));
+
+        try {
+            for (String sessionId : history.removedSessions) {
+                Path sessionFile = getSessionFile(playerId, sessionId);
+                Files.deleteIfExists(sessionFile);
+                Files.deleteIfExists(HistoryCodec.compressedPath(sessionFile));
+            }
+            Files.deleteIfExists(getJournalFile(playerId));
+        } catch (IOException e) {
+            // 日志重放会跳过已合并的记录，保留日志不影响正确性
+            LogManager.getInstance().error("Failed to delete chat history journal for player " + playerId, e);
+        }
+        history.journalRecords = 0;
+        history.writtenPrompts.clear();
+        history.dirtyBodies.clear();
+        history.compactedBodies.clear();
+        history.removedSessions.clear();
+        history.formatMigrationPending = false;
+        return ioBytes;
+    }
+
+    /**
+     * 重写最多limit个本次合并中尚未写入的消息文件（调用方需持有玩家锁）
+     * 写入的文件记录当前的日志序号，之后再变更的会话会重新登记，合并完成前再次重写
+     *
+     * @return 读写的字节数；写入失败时返回-1
+     */
+    private long writeDirtyBodies(UUID playerId, PlayerHistory history, int limit) {
+        long ioBytes = 0;
+        int written = 0;
+        List<JournalRecord> journal = null;
+        for (String sessionId : history.dirtyBodies) {
+            if (written >= limit) {
+                break;
+            }
+            if (history.compactedBodies.contains(sessionId)) {
+                continue;
+            }
+            SessionInfo info = history.findSession(sessionId);
+            if (info != null) {
+                // 上次运行留在日志中的会话没有加载到内存，需要从消息文件和日志重建
+                ChatSession body = history.loadedBodies.get(sessionId);
+                if (body == null) {
+                    if (journal == null) {
+                        journal = readJournal(playerId);
+                        ioBytes += fileSize(getJournalFile(playerId));
+                    }
+                    ioBytes += fileSize(findStoredFile(getSessionFile(playerId, sessionId)));
+                    body = loadSessionBody(playerId, history, info, journal);
+                }
+                if (body != null) {
+                    if (!saveSessionFile(playerId, body, history.journalSeq)) {
+                        return -1;
+                    }
+                    ioBytes += fileSize(storagePath(getSessionFile(playerId, sessionId)));
+                }
+            }
+            history.compactedBodies.add(sessionId);
+            written++;
+        }
+        return ioBytes;
+    }
+
+    /**
+     * 读取索引并重放日志中的元数据变更
+     */
+    private PlayerHistory loadPlayerIndex(UUID playerId) {
+        PlayerHistory history = new PlayerHistory();
+        Path indexFile = findStoredFile(getIndexFile(playerId));
+        if (Files.exists(indexFile)) {
+            try (Reader reader = HistoryCodec.newReader(indexFile)) {
+                IndexFile index = gson.fromJson(reader, IndexFile.class);
+                if (index != null && index.format > FILE_FORMAT_VERSION) {
+                    LogManager.getInstance().error("Chat history for player " + playerId +
+                        " uses unsupported format " + index.format);
+                } else if (index != null) {
+                    if (index.sessions != null) {
+                        history.sessions.addAll(index.sessions);
+                    }
+                    history.journalSeq = index.journalSeq;
+                    history.compactedSeq = index.journalSeq;
+                    if (HistoryCodec.isCompressed(indexFile) != compressionEnabled) {
+                        markFormatMigration(playerId, history);
+                    }
+                }
+            } catch (IOException | JsonParseException e) {
+                LogManager.getInstance().error("Failed to load chat history index for player " + playerId, e);
+            }
+        }
+
+        long indexSeq = history.journalSeq;
+        for (JournalRecord record : readJournal(playerId)) {
+            history.journalRecords++;
+            history.journalSeq = Math.max(history.journalSeq, record.seq);
+            if (JournalRecord.PROMPT.equals(record.type)) {
+                history.writtenPrompts.add(record.hash);
+            } else if (record.session != null) {
+                history.dirtyBodies.add(record.session.getSessionId());
+            }
+            if (record.seq > indexSeq) {
+                applyToIndex(record, history);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * 存储格式已切换：下次合并时重写索引和仍是旧格式的消息文件
+     */
+    private void markFormatMigration(UUID playerId, PlayerHistory history) {
+        history.formatMigrationPending = true;
+        for (SessionInfo info : history.sessions) {
+            if (!Files.exists(storagePath(getSessionFile(playerId, info.sessionId)))) {
+                history.dirtyBodies.add(info.sessionId);
+            }
+        }
+    }
+
+    /**
+     * 把日志记录应用到会话索引
+     */
+    private void applyToIndex(JournalRecord record, PlayerHistory history) {
+        switch (record.type) {
+            case JournalRecord.SESSION: {
+                SessionInfo info = history.findSession(record.session.getSessionId());
+                if (info != null) {
+                    info.update(record.session);
+                } else {
+                    history.addSession(SessionInfo.of(record.session), maxSessionsPerPlayer);
+                }
+                break;
+            }
+            case JournalRecord.APPEND: {
+                SessionInfo info = history.findSession(record.session.getSessionId());
+                if (info != null) {
+                    info.append(record.session.messages, record.session.getTimestamp());
+                }
+                break;
+            }
+            case JournalRecord.TITLE: {
+                SessionInfo info = history.findSession(record.sessionId);
+                if (info != null) {
+                    info.title = record.title;
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 加载会话的消息：读取消息文件并重放日志中该会话的后续记录
+     *
+     * @param journal 已读取的日志记录，为null时从文件读取
+     * @return 会话；消息文件和日志中都没有时返回null
+     */
+    private ChatSession loadSessionBody(UUID playerId, PlayerHistory history, SessionInfo info,
+                                        List<JournalRecord> journal) {
+        ChatSession loaded = history.loadedBodies.get(info.sessionId);
+        if (loaded != null) {
+            return loaded;
+        }
+
+        ChatSession session = null;
+        Map<String, String> prompts = new HashMap<>();
+        long fileSeq = 0;
+        Path sessionFile = findStoredFile(getSessionFile(playerId, info.sessionId));
+        if (Files.exists(sessionFile)) {
+            try (Reader reader = HistoryCodec.newReader(sessionFile)) {
+                SessionFile file = gson.fromJson(reader, SessionFile.class);
+                if (file != null) {
+                    session = file.session;
+                    fileSeq = file.journalSeq;
+                    if (file.prompts != null) {
+                        prompts.putAll(file.prompts);
+                    }
+                }
+            } catch (IOException | JsonParseException e) {
+                LogManager.getInstance().error("Failed to load chat session " + info.sessionId +
+                    " for player " + playerId, e);
+            }
+        }
+
+        for (JournalRecord record : journal != null ? journal : readJournal(playerId)) {
+            if (JournalRecord.PROMPT.equals(record.type)) {
+                prompts.put(record.hash, record.text);
+            } else if (record.seq > fileSeq && record.session != null &&
+                       info.sessionId.equals(record.session.getSessionId())) {
+                session = JournalRecord.SESSION.equals(record.type) ? record.session :
+                    appendMessages(session, record.session);
+            }
+        }
+        if (session == null) {
+            return null;
+        }
+
+        session.resolveSharedPrompts(resolvePromptMap(prompts));
+        session.setTitle(info.title);
+        return session;
+    }
+
+    private static ChatSession appendMessages(ChatSession session, ChatSession appended) {
+        if (session == null) {
+            return null;
+        }
+        List<LLMMessage> merged = new ArrayList<>(session.messages);
+        merged.addAll(appended.messages);
+        return new ChatSession(session.getSessionId(), session.getPlayerId(), merged,
+            appended.getTimestamp(), session.getPromptTemplate(), session.getTitle());
+    }
+
+    /**
+     * 读取玩家日志中的全部记录，跳过写入中断留下的不完整记录
+     */
+    private List<JournalRecord> readJournal(UUID playerId) {
+        Path journalFile = getJournalFile(playerId);
+        if (!Files.exists(journalFile)) {
+            return Collections.emptyList();
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    JournalRecord record = journalGson.fromJson(line, JournalRecord.class);
+                    if (record != null && record.type != null) {
+                        records.add(record);
+                    }
+                } catch (JsonParseException e) {
+                    LogManager.getInstance().error("Skipped corrupt chat history journal record for player " + playerId, e);
+                }
+            }
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to read chat history journal for player " + playerId, e);
+        }
+        return records;
+    }
+
+    /**
+     * 保存会话的消息文件，系统提示词在文件中只写一次
+     */
+    private boolean saveSessionFile(UUID playerId, ChatSession session, long journalSeq) {
+        SessionFile file = new SessionFile();
+        file.format = FILE_FORMAT_VERSION;
+        file.journalSeq = journalSeq;
+        file.prompts = new LinkedHashMap<>();
+        file.session = session.withSharedPrompts(file.prompts);
+        return writeAtomically(playerId, getSessionFile(playerId, session.getSessionId()), file);
+    }
+
+    /**
+     * 保存会话索引
+     */
+    private boolean saveIndexFile(UUID playerId, PlayerHistory history) {
+        IndexFile index = new IndexFile();
+        index.format = FILE_FORMAT_VERSION;
+        index.journalSeq = history.journalSeq;
+        index.sessions = history.sessions;
+        return writeAtomically(playerId, getIndexFile(playerId), index);
+    }
+
+    /**
+     * 按当前的存储格式先写临时文件再原子替换，然后删除另一种格式的旧文件
+     *
+     * @param plainFile 未压缩格式的文件路径
+     */
+    private boolean writeAtomically(UUID playerId, Path plainFile, Object content) {
+        boolean compressed = compressionEnabled;
+        Path target = compressed ? HistoryCodec.compressedPath(plainFile) : plainFile;
+        Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(target.getParent());
+            try (Writer writer = HistoryCodec.newWriter(tempFile, compressed)) {
+                // 压缩文件不需要格式化输出
+                (compressed ? journalGson : gson).toJson(content, writer);
+            }
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(compressed ? plainFile : HistoryCodec.compressedPath(plainFile));
+            return true;
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to save chat history for player " + playerId, e);
+            return false;
+        }
+    }
+
+    /**
+     * 把单文件格式（格式1）的历史迁移为目录格式
+     */
+    private void migrateLegacyHistory(UUID playerId) {
+        Path legacyFile = getLegacyHistoryFile(playerId);
+        if (!Files.exists(legacyFile)) {
+            return;
+        }
+
+        // 索引已存在说明上次迁移只差删除旧文件
+        if (!Files.exists(findStoredFile(getIndexFile(playerId)))) {
+            List<ChatSession> sessions = loadLegacyHistory(playerId, legacyFile);
+            if (sessions == null) {
+                return;
+            }
+            PlayerHistory history = new PlayerHistory();
+            for (ChatSession session : sessions) {
+                history.addSession(SessionInfo.of(session), maxSessionsPerPlayer);
+                if (!saveSessionFile(playerId, session, 0)) {
+                    return;
+                }
+            }
+            if (!saveIndexFile(playerId, history)) {
+                return;
+            }
+        }
+
+        try {
+            Files.deleteIfExists(legacyFile);
+        } catch (IOException e) {
+            LogManager.getInstance().error("Failed to remove migrated chat history for player " + playerId, e);
+        }
+    }
+
+    /**
+     * 读取格式1的历史：会话数组，系统提示词直接内联
+     */
+    private List<ChatSession> loadLegacyHistory(UUID playerId, Path legacyFile) {
+        List<ChatSession> sessions = new ArrayList<>();
+        try (Reader reader = Files.newBufferedReader(legacyFile, StandardCharsets.UTF_8)) {
+            Type listType = new TypeToken<List<ChatSession>>(){}.getType();
+            List<ChatSession> loaded = gson.fromJson(reader, listType);
+            if (loaded != null) {
+                sessions.addAll(loaded);
+            }
+        } catch (IOException | JsonParseException e) {
+            LogManager.getInstance().error("Failed to load chat history for player " + playerId, e);
+            return null;
+        }
+
+        Map<String, String> noPrompts = new HashMap<>();
+        for (ChatSession session : sessions) {
+            session.resolveSharedPrompts(noPrompts);
+        }
+        return sessions;
+    }
+
+    /**
+     * 让内容相同的共享提示词在内存中使用同一个实例
+     */
+    private static Map<String, String> resolvePromptMap(Map<String, String> prompts) {
+        SharedTextStore store = SharedTextStore.getInstance();
+        Map<String, String> sharedPrompts = new HashMap<>();
+        for (Map.Entry<String, String> entry : prompts.entrySet()) {
+            sharedPrompts.put(entry.getKey(), store.intern(entry.getKey(), entry.getValue()));
+        }
+        return sharedPrompts;
+    }
+
+    /**
+     * 计算两个消息列表相同前缀的长度（按消息ID比较）
+     */
+    private static int commonPrefixLength(List<LLMMessage> previous, List<LLMMessage> current) {
+        int length = Math.min(previous.size(), current.size());
+        for (int i = 0; i < length; i++) {
+            LLMMessage a = previous.get(i);
+            LLMMessage b = current.get(i);
+            if (a != b && (a.getId() == null || !a.getId().equals(b.getId()))) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 计算目录占用的磁盘空间，目录不存在时返回0
+     */
+    private static long directorySize(Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        long size = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                size += Files.isDirectory(path) ? directorySize(path) : Files.size(path);
+            }
+        } catch (IOException e) {
+            // 统计失败不影响维护，按已统计的部分计算
+        }
+        return size;
+    }
+
+    /**
+     * 获取文件大小，文件不存在或读取失败时返回0
+     */
+    private static long fileSize(Path file) {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path child : stream) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private Object lockFor(UUID playerId) {
+        return playerLocks.computeIfAbsent(playerId, k -> new Object());
+    }
+
+    /**
+     * 会话索引文件结构
+     */
+    private static class IndexFile {
+        int format;
+        long journalSeq; // 已合并的日志序号
+        List<SessionInfo> sessions;
+    }
+
+    /**
+     * 会话消息文件结构
+     */
+    private static class SessionFile {
+        int format;
+        long journalSeq; // 已合并的日志序号
+        Map<String, String> prompts;
+        ChatSession session;
+    }
+
+    /**
+     * 全文索引文件结构
+     */
+    private static class SearchIndexFile {
+        int format;
+        long journalSeq; // 索引对应的日志序号，与最近一次合并一致时才有效
+        HistorySearchIndex index;
+    }
+
+    /**
+     * 日志记录：共享提示词、完整会话、会话新增消息或标题变更
+     */
+    private static class JournalRecord {
+        static final String PROMPT = "prompt";
+        static final String SESSION = "session";
+        static final String APPEND = "append";
+        static final String TITLE = "title";
+
+        long seq;
+        String type;
+        String hash;
+        String text;
+        ChatSession session;
+        String sessionId;
+        String title;
+
+        static JournalRecord prompt(String hash, String text) {
+            JournalRecord record = new JournalRecord();
+            record.type = PROMPT;
+            record.hash = hash;
+            record.text = text;
+            return record;
+        }
+
+        static JournalRecord session(String type, ChatSession session) {
+            JournalRecord record = new JournalRecord();
+            record.type = type;
+            record.session = session;
+            return record;
+        }
+
+        static JournalRecord title(String sessionId, String title) {
+            JournalRecord record = new JournalRecord();
+            record.type = TITLE;
+            record.sessionId = sessionId;
+            record.title = title;
+            return record;
+        }
+    }
+
+    /**
+     * 内存中的玩家历史：会话索引、已加载的会话消息和日志写入状态
+     */
+    private static class PlayerHistory {
+        final List<SessionInfo> sessions = new ArrayList<>(); // 按时间顺序，最新的在最后
+        final Map<String, ChatSession> loadedBodies = new HashMap<>(); // 本次运行中保存过的会话
+        final Set<String> dirtyBodies = new HashSet<>(); // 消息文件需要在合并时重写的会话
+        final Set<String> compactedBodies = new HashSet<>(); // 本次合并中已重写消息文件、之后没有再变更的会话
+        final Set<String> removedSessions = new HashSet<>(); // 超出数量限制或已过期、消息文件待删除的会话
+        long journalSeq; // 最新的日志序号
+        long compactedSeq; // 最近一次合并时的日志序号
+        HistorySearchIndex searchIndex; // 全文索引，首次搜索时加载
+        int journalRecords; // 自上次合并以来已写入日志的记录数
+        final Set<String> writtenPrompts = new HashSet<>(); // 已登记到日志的共享提示词哈希
+        final List<JournalRecord> pending = new ArrayList<>(); // 尚未写入磁盘的记录
+        boolean releaseRequested; // 写入完成后释放缓存
+        boolean formatMigrationPending; // 文件需要转换为当前的存储格式
+
+        /**
+         * 估算占用的内存：已加载的会话消息按字符数计，加上会话索引和全文索引
+         */
+        long estimateBytes() {
+            long bytes = 256 + sessions.size() * 160L;
+            for (ChatSession session : loadedBodies.values()) {
+                bytes += 96;
+                for (LLMMessage message : session.messages) {
+                    String content = message.getContent();
+                    bytes += 96 + (content != null ? content.length() * 2L : 0);
+                }
+            }
+            if (searchIndex != null) {
+                bytes += searchIndex.estimateBytes();
+            }
+            return bytes;
+        }
+
+        SessionInfo findSession(String sessionId) {
+            for (SessionInfo info : sessions) {
+                if (info.sessionId.equals(sessionId)) {
+                    return info;
+                }
+            }
+            return null;
+        }
+
+        void addSession(SessionInfo info, int maxSessions) {
+            sessions.add(info);
+            // 限制会话数量
+            while (sessions.size() > maxSessions) {
+                removeSession(sessions.remove(0).sessionId);
+            }
+        }
+
+        /**
+         * 清理已从会话列表移除的会话，消息文件在下次合并时删除
+         */
+        void removeSession(String sessionId) {
+            if (searchIndex != null) {
+                searchIndex.removeSession(sessionId);
+            }
+            loadedBodies.remove(sessionId);
+            dirtyBodies.remove(sessionId);
+            compactedBodies.remove(sessionId);
+            removedSessions.add(sessionId);
+        }
+    }
+
+    /**
+     * 获取玩家历史目录
+     */
+    private Path getPlayerDir(UUID playerId) {
+        return historyDir.resolve(playerId.toString());
+    }
+
+    private Path getIndexFile(UUID playerId) {
+        return getPlayerDir(playerId).resolve(INDEX_FILE);
+    }
+
+    private Path getJournalFile(UUID playerId) {
+        return getPlayerDir(playerId).resolve(JOURNAL_FILE);
+    }
+
+    /**
+     * 获取会话消息文件路径（会话ID中的非法字符替换为下划线）
+     */
+    private Path getSessionFile(UUID playerId, String sessionId) {
+        return getPlayerDir(playerId).resolve(SESSIONS_DIR)
+            .resolve(sessionId.replaceAll("[^A-Za-z0-9_-]", "_") + ".json");
+    }
+
+    /**
+     * 获取当前存储格式下的文件路径
+     */
+    private Path storagePath(Path plainFile) {
+        return compressionEnabled ? HistoryCodec.compressedPath(plainFile) : plainFile;
+    }
+
+    /**
+     * 查找已保存的文件：优先使用当前存储格式，不存在时读取另一种格式
+     */
+    private Path findStoredFile(Path plainFile) {
+        Path preferred = storagePath(plainFile);
+        Path other = compressionEnabled ? plainFile : HistoryCodec.compressedPath(plainFile);
+        return Files.exists(preferred) || !Files.exists(other) ? preferred : other;
+    }
+
+    /**
+     * 获取单文件格式的玩家历史文件路径
+     */
+    private Path getLegacyHistoryFile(UUID playerId) {
+        return historyDir.resolve(playerId.toString() + ".json");
+    }
+}
@@ -0,0 +1,822 @@
+package com.riceawa.llm.history;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.history.ChatHistory.ChatSession;
+import com.riceawa.llm.history.ChatHistory.SearchResult;
+import com.riceawa.llm.history.ChatHistory.SessionInfo;
+import com.riceawa.llm.logging.LogManager;
+import com.riceawa.llm.util.TextTokenizer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * 基于嵌入式H2数据库的历史记录存储
+ *
+ * 会话元数据和消息分表保存，按（玩家, 时间）建立索引，列出会话、按时间范围导出和关键词搜索
+ * 都由数据库完成过滤，不需要把玩家的全部历史读入内存。系统提示词按内容哈希存放在共享表中。
+ * 消息的词项（按{@link TextTokenizer}切分，与{@link HistorySearchIndex}相同）保存在倒排表中，
+ * 搜索先按词项找出候选消息，再只对候选消息做子串匹配。
+ * 保存只登记待写入的会话，由{@link HistoryFlusher}在后台按玩家批量写入，每个玩家一个事务；
+ * 读取前先写入该玩家待写入的变更，保证能读到刚保存的内容。
+ * 已保存的会话ID在启动时读入内存，保存时据此判断是否为新会话，不访问数据库，
+ * 聊天线程的保存不会等待其他玩家正在进行的写入事务。
+ */
+public class H2HistoryStore implements HistoryStore {
+    private static final String DATABASE_NAME = "history";
+    private static final long FLUSH_INTERVAL_MS = 1000; // 后台写入间隔
+    private static final int FLUSH_BATCH_THRESHOLD = 64; // 积压的记录数达到该值时立即写入
+    private static final int MAX_TERM_LENGTH = 64; // 更长的词项不写入倒排表
+    private static final int MAX_QUERY_TERMS = 8; // 每次搜索最多用于筛选候选消息的词项数
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS chat_sessions (" +
+            "player_id VARCHAR(36) NOT NULL, session_id VARCHAR(64) NOT NULL, title VARCHAR(255), " +
+            "created_at TIMESTAMP NOT NULL, prompt_template VARCHAR(64), message_count INT NOT NULL, " +
+            "PRIMARY KEY (player_id, session_id))",
+        "CREATE INDEX IF NOT EXISTS idx_sessions_player_time ON chat_sessions (player_id, created_at)",
+        "CREATE TABLE IF NOT EXISTS chat_messages (" +
+            "player_id VARCHAR(36) NOT NULL, session_id VARCHAR(64) NOT NULL, seq INT NOT NULL, " +
+            "message_id VARCHAR(64), content_lower CLOB, message_json CLOB NOT NULL, " +
+            "PRIMARY KEY (player_id, session_id, seq))",
+        "CREATE TABLE IF NOT EXISTS chat_terms (" +
+            "term VARCHAR(64) NOT NULL, player_id VARCHAR(36) NOT NULL, session_id VARCHAR(64) NOT NULL, " +
+            "seq INT NOT NULL, PRIMARY KEY (term, player_id, session_id, seq))",
+        "CREATE INDEX IF NOT EXISTS idx_terms_message ON chat_terms (player_id, session_id, seq)",
+        "CREATE TABLE IF NOT EXISTS chat_prompts (hash VARCHAR(64) PRIMARY KEY, text CLOB NOT NULL)"
+    };
+    private static final String[] MESSAGE_TABLES = {"chat_terms", "chat_messages"};
+
+    private final Gson gson;
+    private final Connection connection;
+    private final HistoryFlusher flusher;
+    private final int maxSessionsPerPlayer;
+    // 待写入的会话（每个会话只保留最新版本）和标题变更，按玩家分组
+    private final Map<UUID, Map<String, ChatSession>> pendingSessions = new HashMap<>();
+    private final Map<UUID, Map<String, String>> pendingTitles = new HashMap<>();
+    // 数据库中和待写入的会话ID，与待写入表一起由pendingSessions的锁保护
+    private final Map<UUID, Set<String>> knownSessions = new HashMap<>();
+
+    /**
+     * @param historyDir 数据库文件所在目录
+     * @throws IllegalStateException 没有H2驱动或数据库无法打开时
+     */
+    public H2HistoryStore(Path historyDir) {
+        this.gson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .create();
+        this.maxSessionsPerPlayer = 100; // 每个玩家最多保存100个会话
+        try {
+            this.connection = DriverManager.getConnection(
+                    "jdbc:h2:file:" + historyDir.resolve(DATABASE_NAME).toAbsolutePath());
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : SCHEMA) {
+                    statement.execute(sql);
+                }
+            }
+            connection.setAutoCommit(false);
+            connection.commit();
+            indexExistingMessages();
+            loadKnownSessions();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Failed to open chat history database in " + historyDir, e);
+        }
+        this.flusher = new HistoryFlusher(this::flushPlayer, FLUSH_INTERVAL_MS, FLUSH_BATCH_THRESHOLD);
+        LogManager.getInstance().system("Chat history database opened in " + historyDir);
+    }
+
+    /**
+     * 只登记待写入的会话，不访问数据库；已写入的会话在写入时保留数据库中的标题
+     */
+    @Override
+    public boolean saveSession(ChatSession session) {
+        UUID playerId = session.getPlayerId();
+        String sessionId = session.getSessionId();
+        boolean created;
+        synchronized (pendingSessions) {
+            created = knownSessions.computeIfAbsent(playerId, k -> new HashSet<>()).add(sessionId);
+            Map<String, ChatSession> sessions = pendingSessions.computeIfAbsent(playerId, k -> new LinkedHashMap<>());
+            ChatSession pending = sessions.get(sessionId);
+            // 尚未写入的版本可能已有生成的标题
+            if (pending != null && pending.getTitle() != null) {
+                session.setTitle(pending.getTitle());
+            }
+            sessions.put(sessionId, session);
+        }
+        flusher.markDirty(playerId, 1);
+        return created;
+    }
+
+    @Override
+    public void updateTitle(UUID playerId, String sessionId, String title) {
+        synchronized (pendingSessions) {
+            Map<String, ChatSession> sessions = pendingSessions.get(playerId);
+            ChatSession pending = sessions != null ? sessions.get(sessionId) : null;
+            if (pending != null) {
+                pending.setTitle(title);
+            }
+            pendingTitles.computeIfAbsent(playerId, k -> new HashMap<>()).put(sessionId, title);
+        }
+        flusher.markDirty(playerId, 1);
+    }
+
+    @Override
+    public List<SessionInfo> listSessions(UUID playerId) {
+        flushPlayer(playerId);
+        synchronized (connection) {
+            try {
+                return listSessionInfos(playerId);
+            } catch (SQLException e) {
+                LogManager.getInstance().error("Failed to list chat sessions for player " + playerId, e);
+                return new ArrayList<>();
+            }
+        }
+    }
+
+    @Override
+    public ChatSession getSessionByIndex(UUID playerId, int index) {
+        if (index < 1) {
+            return null;
+        }
+        flushPlayer(playerId);
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT session_id, title, created_at, prompt_template, message_count FROM chat_sessions " +
+                    "WHERE player_id = ? ORDER BY created_at DESC LIMIT 1 OFFSET ?")) {
+                statement.setString(1, playerId.toString());
+                statement.setInt(2, index - 1);
+                List<SessionInfo> infos = readSessionInfos(statement);
+                return infos.isEmpty() ? null : loadSessions(playerId, infos).get(0);
+            } catch (SQLException e) {
+                LogManager.getInstance().error("Failed to load chat session for player " + playerId, e);
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public List<ChatSession> loadPlayerHistory(UUID playerId) {
+        flushPlayer(playerId);
+        synchronized (connection) {
+            try {
+                return loadSessions(playerId, listSessionInfos(playerId));
+            } catch (SQLException e) {
+                LogManager.getInstance().error("Failed to load chat history for player " + playerId, e);
+                return new ArrayList<>();
+            }
+        }
+    }
+
+    @Override
+    public List<ChatSession> loadSessionsBetween(UUID playerId, LocalDateTime from, LocalDateTime to) {
+        flushPlayer(playerId);
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT session_id, title, created_at, prompt_template, message_count FROM chat_sessions " +
+                    "WHERE player_id = ? AND created_at BETWEEN ? AND ? ORDER BY created_at")) {
+                statement.setString(1, playerId.toString());
+                statement.setTimestamp(2, Timestamp.valueOf(from));
+                statement.setTimestamp(3, Timestamp.valueOf(to));
+                return loadSessions(playerId, readSessionInfos(statement));
+            } catch (SQLException e) {
+                LogManager.getInstance().error("Failed to load chat sessions for player " + playerId, e);
+                return new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * 先按时间范围查询会话列表，再逐个加载消息，处理会话时不持有数据库锁
+     */
+    @Override
+    public void forEachSession(UUID playerId, LocalDateTime from, LocalDateTime to, SessionConsumer consumer)
+            throws IOException {
+        flushPlayer(playerId);
+        List<SessionInfo> infos;
+        synchronized (connection) {
+            // 时间范围由(player_id, created_at)索引过滤，未指定的一端不加条件
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT session_id, title, created_at, prompt_template, message_count FROM chat_sessions " +
+                    "WHERE player_id = ?" + (from != null ? " AND created_at >= ?" : "") +
+                    (to != null ? " AND created_at <= ?" : "") + " ORDER BY created_at")) {
+                int param = 1;
+                statement.setString(param++, playerId.toString());
+                if (from != null) {
+                    statement.setTimestamp(param++, Timestamp.valueOf(from));
+                }
+                if (to != null) {
+                    statement.setTimestamp(param, Timestamp.valueOf(to));
+                }
+                infos = readSessionInfos(statement);
+            } catch (SQLException e) {
+                throw new IOException("Failed to list chat sessions for player " + playerId, e);
+            }
+        }
+        for (SessionInfo info : infos) {
+            List<ChatSession> loaded;
+            synchronized (connection) {
+                try {
+                    loaded = loadSessions(playerId, List.of(info));
+                } catch (SQLException e) {
+                    throw new IOException("Failed to load chat session " + info.sessionId, e);
+                }
+            }
+            for (ChatSession session : loaded) {
+                consumer.accept(session);
+            }
+        }
+    }
+
+    @Override
+    public List<ChatSession> searchHistory(UUID playerId, String keyword) {
+        List<ChatSession> results = new ArrayList<>();
+        for (SearchResult result : search(playerId, keyword, Integer.MAX_VALUE)) {
+            synchronized (connection) {
+                try {
+                    results.addAll(loadSessions(playerId, List.of(result.getSession())));
+                } catch (SQLException e) {
+                    LogManager.getInstance().error("Failed to load chat session for player " + playerId, e);
+                }
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public List<SearchResult> search(UUID playerId, String query, int limit) {
+        flushPlayer(playerId);
+        return searchMessages(playerId, query, limit);
+    }
+
+    @Override
+    public List<SearchResult> searchAll(String query, int limit) {
+        flusher.flush();
+        return searchMessages(null, query, limit);
+    }
+
+    @Override
+    public List<UUID> listPlayers() {
+        flusher.flush();
+        List<UUID> players = new ArrayList<>();
+        synchronized (connection) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT DISTINCT player_id FROM chat_sessions")) {
+                while (rs.next()) {
+                    players.add(UUID.fromString(rs.getString(1)));
+                }
+            } catch (SQLException e) {
+                LogManager.getInstance().error("Failed to list chat history players", e);
+            }
+        }
+        return players;
+    }
+
+    /**
+     * 数据库存储不在内存中缓存玩家的历史，只写入待写入的变更
+     */
+    @Override
+    public void releasePlayer(UUID playerId) {
+        flushPlayer(playerId);
+    }
+
+    @Override
+    public void clearPlayer(UUID playerId) {
+        synchronized (connection) {
+            synchronized (pendingSessions) {
+                pendingSessions.remove(playerId);
+                pendingTitles.remove(playerId);
+                knownSessions.remove(playerId);
+            }
+            try {
+                for (String table : new String[]{"chat_terms", "chat_messages", "chat_sessions"}) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "DELETE FROM " + table + " WHERE player_id = ?")) {
+                        statement.setString(1, playerId.toString());
+                        statement.executeUpdate();
+                    }
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                rollback();
+                LogManager.getInstance().error("Failed to clear chat history for player " + playerId, e);
+            }
+        }
+    }
+
+    /**
+     * 删除过期会话及其消息；数据库文件的空间由H2在后台回收，不单独统计
+     */
+    @Override
+    public MaintenanceResult maintainPlayer(UUID playerId, LocalDateTime cutoff) {
+        flushPlayer(playerId);
+        if (cutoff == null) {
+            return new MaintenanceResult(0, 0, 0, 0);
+        }
+        synchronized (connection) {
+            try {
+                List<String> expired = new ArrayList<>();
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT session_id FROM chat_sessions WHERE player_id = ? AND created_at < ?")) {
+                    statement.setString(1, playerId.toString());
+                    statement.setTimestamp(2, Timestamp.valueOf(cutoff));
+                    try (ResultSet rs = statement.executeQuery()) {
+                        while (rs.next()) {
+                            expired.add(rs.getString(1));
+                        }
+                    }
+                }
+                deleteSessions(playerId, expired);
+                connection.commit();
+                return new MaintenanceResult(expired.size(), 0, 0, 0);
+            } catch (SQLException e) {
+                rollback();
+                LogManager.getInstance().error("Failed to prune chat history for player " + playerId, e);
+                return new MaintenanceResult(0, 0, 0, 0);
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        flusher.flush();
+    }
+
+    @Override
+    public void shutdown() {
+        flusher.shutdown();
+        synchronized (connection) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LogManager.getInstance().error("Failed to close chat history database", e);
+            }
+        }
+    }
+
+    @Override
+    public int getPendingFlushCount() {
+        return flusher.getQueueDepth();
+    }
+
+    @Override
+    public int getPendingRecordCount() {
+        return flusher.getPendingRecords();
+    }
+
+    /**
+     * 在一个事务中写入玩家待写入的会话和标题，并删除超出数量上限的旧会话
+     */
+    private void flushPlayer(UUID playerId) {
+        synchronized (connection) {
+            Map<String, ChatSession> sessions;
+            Map<String, String> titles;
+            synchronized (pendingSessions) {
+                sessions = pendingSessions.remove(playerId);
+                titles = pendingTitles.remove(playerId);
+            }
+            if (sessions == null && titles == null) {
+                return;
+            }
+
+            try {
+                if (sessions != null) {
+                    for (ChatSession session : sessions.values()) {
+                        writeSession(session);
+                    }
+                }
+                if (titles != null) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "UPDATE chat_sessions SET title = ? WHERE player_id = ? AND session_id = ?")) {
+                        for (Map.Entry<String, String> entry : titles.entrySet()) {
+                            statement.setString(1, entry.getValue());
+                            statement.setString(2, playerId.toString());
+                            statement.setString(3, entry.getKey());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                }
+                trimSessions(playerId);
+                connection.commit();
+            } catch (SQLException e) {
+                rollback();
+                LogManager.getInstance().error("Failed to write chat history for player " + playerId, e);
+                requeue(playerId, sessions, titles);
+                // 下个写入周期重试
+                flusher.markDirty(playerId, 0);
+            }
+        }
+    }
+
+    /**
+     * 把写入失败的变更放回待写入表，写入期间又保存的新版本优先
+     */
+    private void requeue(UUID playerId, Map<String, ChatSession> sessions, Map<String, String> titles) {
+        synchronized (pendingSessions) {
+            if (sessions != null) {
+                Map<String, ChatSession> pending = pendingSessions.computeIfAbsent(playerId, k -> new LinkedHashMap<>());
+                sessions.forEach(pending::putIfAbsent);
+            }
+            if (titles != null) {
+                Map<String, String> pending = pendingTitles.computeIfAbsent(playerId, k -> new HashMap<>());
+                titles.forEach(pending::putIfAbsent);
+            }
+        }
+    }
+
+    /**
+     * 写入会话：已保存的消息是新消息的前缀时只插入新增的消息，否则从不一致的位置开始重写
+     */
+    private void writeSession(ChatSession session) throws SQLException {
+        String playerId = session.getPlayerId().toString();
+        String sessionId = session.getSessionId();
+
+        // 已有会话保留原有标题，标题变更由updateTitle单独写入
+        int updated;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE chat_sessions SET created_at = ?, prompt_template = ?, message_count = ? " +
+                "WHERE player_id = ? AND session_id = ?")) {
+            statement.setTimestamp(1, Timestamp.valueOf(session.getTimestamp()));
+            statement.setString(2, session.getPromptTemplate());
+            statement.setInt(3, session.messages.size());
+            statement.setString(4, playerId);
+            statement.setString(5, sessionId);
+            updated = statement.executeUpdate();
+        }
+        if (updated == 0) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO chat_sessions (player_id, session_id, title, created_at, prompt_template, message_count) " +
+                    "VALUES (?, ?, ?, ?, ?, ?)")) {
+                statement.setString(1, playerId);
+                statement.setString(2, sessionId);
+                statement.setString(3, session.getTitle());
+                statement.setTimestamp(4, Timestamp.valueOf(session.getTimestamp()));
+                statement.setString(5, session.getPromptTemplate());
+                statement.setInt(6, session.messages.size());
+                statement.executeUpdate();
+            }
+        }
+
+        List<String> storedIds = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT message_id FROM chat_messages WHERE player_id = ? AND session_id = ? ORDER BY seq")) {
+            statement.setString(1, playerId);
+            statement.setString(2, sessionId);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    storedIds.add(rs.getString(1));
+                }
+            }
+        }
+        int prefix = 0;
+        int limit = Math.min(storedIds.size(), session.messages.size());
+        while (prefix < limit && storedIds.get(prefix) != null &&
+               storedIds.get(prefix).equals(session.messages.get(prefix).getId())) {
+            prefix++;
+        }
+
+        if (prefix < storedIds.size()) {
+            for (String table : MESSAGE_TABLES) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM " + table + " WHERE player_id = ? AND session_id = ? AND seq >= ?")) {
+                    statement.setString(1, playerId);
+                    statement.setString(2, sessionId);
+                    statement.setInt(3, prefix);
+                    statement.executeUpdate();
+                }
+            }
+        }
+        if (prefix == session.messages.size()) {
+            return;
+        }
+
+        Map<String, String> prompts = new HashMap<>();
+        List<LLMMessage> stored = session.withSharedPrompts(prompts).messages;
+        try (PreparedStatement statement = connection.prepareStatement(
+                "MERGE INTO chat_prompts (hash, text) KEY (hash) VALUES (?, ?)")) {
+            for (Map.Entry<String, String> entry : prompts.entrySet()) {
+                statement.setString(1, entry.getKey());
+                statement.setString(2, entry.getValue());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO chat_messages (player_id, session_id, seq, message_id, content_lower, message_json) " +
+                "VALUES (?, ?, ?, ?, ?, ?)")) {
+            for (int i = prefix; i < stored.size(); i++) {
+                LLMMessage message = stored.get(i);
+                statement.setString(1, playerId);
+                statement.setString(2, sessionId);
+                statement.setInt(3, i);
+                statement.setString(4, message.getId());
+                statement.setString(5, message.getContent() != null ? message.getContent().toLowerCase(Locale.ROOT) : null);
+                statement.setString(6, gson.toJson(message));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO chat_terms (term, player_id, session_id, seq) VALUES (?, ?, ?, ?)")) {
+            for (int i = prefix; i < stored.size(); i++) {
+                addTerms(statement, stored.get(i).getContent(), playerId, sessionId, i);
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * 把消息中不重复的词项加入批量插入
+     */
+    private static void addTerms(PreparedStatement statement, String content, String playerId,
+                                 String sessionId, int seq) throws SQLException {
+        for (String term : new HashSet<>(TextTokenizer.tokenize(content))) {
+            if (term.length() <= MAX_TERM_LENGTH) {
+                statement.setString(1, term);
+                statement.setString(2, playerId);
+                statement.setString(3, sessionId);
+                statement.setInt(4, seq);
+                statement.addBatch();
+            }
+        }
+    }
+
+    /**
+     * 为没有词项的数据库（倒排表加入之前创建的）建立倒排表
+     */
+    private void indexExistingMessages() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                 "SELECT (SELECT COUNT(*) FROM chat_terms), (SELECT COUNT(*) FROM chat_messages)")) {
+            if (!rs.next() || rs.getLong(1) > 0 || rs.getLong(2) == 0) {
+                return;
+            }
+        }
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(
+                 "SELECT player_id, session_id, seq, content_lower FROM chat_messages");
+             PreparedStatement insert = connection.prepareStatement(
+                 "INSERT INTO chat_terms (term, player_id, session_id, seq) VALUES (?, ?, ?, ?)")) {
+            while (rs.next()) {
+                addTerms(insert, rs.getString(4), rs.getString(1), rs.getString(2), rs.getInt(3));
+            }
+            insert.executeBatch();
+        }
+        connection.commit();
+    }
+
+    private void trimSessions(UUID playerId) throws SQLException {
+        List<String> expired = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT session_id FROM chat_sessions WHERE player_id = ? ORDER BY created_at DESC OFFSET ?")) {
+            statement.setString(1, playerId.toString());
+            statement.setInt(2, maxSessionsPerPlayer);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    expired.add(rs.getString(1));
+                }
+            }
+        }
+        deleteSessions(playerId, expired);
+    }
+
+    /**
+     * 删除会话及其消息，并从已知会话中移除；调用方负责提交事务
+     */
+    private void deleteSessions(UUID playerId, List<String> sessionIds) throws SQLException {
+        if (sessionIds.isEmpty()) {
+            return;
+        }
+        for (String table : new String[]{"chat_terms", "chat_messages", "chat_sessions"}) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM " + table + " WHERE player_id = ? AND session_id = ?")) {
+                for (String sessionId : sessionIds) {
+                    statement.setString(1, playerId.toString());
+                    statement.setString(2, sessionId);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+        synchronized (pendingSessions) {
+            Set<String> known = knownSessions.get(playerId);
+            Map<String, ChatSession> pending = pendingSessions.get(playerId);
+            if (known != null) {
+                for (String sessionId : sessionIds) {
+                    // 删除期间又保存的会话会重新写入
+                    if (pending == null || !pending.containsKey(sessionId)) {
+                        known.remove(sessionId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 启动时读取所有已保存的会话ID
+     */
+    private void loadKnownSessions() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT player_id, session_id FROM chat_sessions")) {
+            while (rs.next()) {
+                knownSessions.computeIfAbsent(UUID.fromString(rs.getString(1)), k -> new HashSet<>())
+                        .add(rs.getString(2));
+            }
+        }
+    }
+
+    /**
+     * 按命中的消息数排序搜索会话，查询中以空白分隔的每一段都必须出现在同一条消息中（不区分大小写）
+     *
+     * 候选消息由倒排表按查询的词项找出，子串匹配只检查候选消息；
+     * 查询只有单个中日韩文字等无法用词项筛选的情况才扫描消息内容
+     *
+     * @param playerId 为null时搜索所有玩家
+     */
+    private List<SearchResult> searchMessages(UUID playerId, String query, int limit) {
+        List<SearchResult> results = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        Set<String> terms = new LinkedHashSet<>();
+        for (String segment : query.toLowerCase(Locale.ROOT).trim().split("\\s+")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            patterns.add("%" + escapeLike(segment) + "%");
+            for (String term : TextTokenizer.tokenize(segment)) {
+                // 单个中日韩文字在消息中以二元组保存，不能直接查找
+                boolean singleCjk = term.length() == 1 && TextTokenizer.isCjk(term.charAt(0));
+                if (!singleCjk && term.length() <= MAX_TERM_LENGTH && terms.size() < MAX_QUERY_TERMS) {
+                    terms.add(term);
+                }
+            }
+        }
+        if (patterns.isEmpty() || limit <= 0) {
+            return results;
+        }
+
+        // 从第一个词项的倒排表出发，其余词项和消息都按主键连接
+        List<String> termList = new ArrayList<>(terms);
+        StringBuilder sql = new StringBuilder(
+                "SELECT m.player_id, m.session_id, COUNT(*) AS matched, MIN(m.seq) AS first_seq FROM ");
+        if (termList.isEmpty()) {
+            sql.append("chat_messages m WHERE TRUE");
+        } else {
+            sql.append("chat_terms t0");
+            for (int i = 1; i < termList.size(); i++) {
+                String t = "t" + i;
+                sql.append(" JOIN chat_terms ").append(t).append(" ON ").append(t).append(".term = ? AND ")
+                   .append(t).append(".player_id = t0.player_id AND ").append(t).append(".session_id = t0.session_id AND ")
+                   .append(t).append(".seq = t0.seq");
+            }
+            sql.append(" JOIN chat_messages m ON m.player_id = t0.player_id AND m.session_id = t0.session_id " +
+                       "AND m.seq = t0.seq WHERE t0.term = ?");
+        }
+        for (int i = 0; i < patterns.size(); i++) {
+            sql.append(" AND m.content_lower LIKE ? ESCAPE '\\'");
+        }
+        if (playerId != null) {
+            sql.append(termList.isEmpty() ? " AND m.player_id = ?" : " AND t0.player_id = ?");
+        }
+        sql.append(" GROUP BY m.player_id, m.session_id ORDER BY matched DESC LIMIT ?");
+
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                int param = 1;
+                for (int i = 1; i < termList.size(); i++) {
+                    statement.setString(param++, termList.get(i));
+                }
+                if (!termList.isEmpty()) {
+                    statement.setString(param++, termList.get(0));
+                }
+                for (String pattern : patterns) {
+                    statement.setString(param++, pattern);
+                }
+                if (playerId != null) {
+                    statement.setString(param++, playerId.toString());
+                }
+                statement.setInt(param, limit);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        UUID player = UUID.fromString(rs.getString(1));
+                        String sessionId = rs.getString(2);
+                        int matched = rs.getInt(3);
+                        SessionInfo info = querySessionInfo(player, sessionId);
+                        if (info != null) {
+                            String snippet = HistorySearchIndex.createSnippet(
+                                    queryMessage(player, sessionId, rs.getInt(4)), query);
+                            results.add(new SearchResult(player, info, snippet, matched, matched));
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                LogManager.getInstance().error("Failed to search chat history", e);
+            }
+        }
+        return results;
+    }
+
+    private SessionInfo querySessionInfo(UUID playerId, String sessionId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT session_id, title, created_at, prompt_template, message_count FROM chat_sessions " +
+                "WHERE player_id = ? AND session_id = ?")) {
+            statement.setString(1, playerId.toString());
+            statement.setString(2, sessionId);
+            List<SessionInfo> infos = readSessionInfos(statement);
+            return infos.isEmpty() ? null : infos.get(0);
+        }
+    }
+
+    private String queryMessage(UUID playerId, String sessionId, int seq) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT message_json FROM chat_messages WHERE player_id = ? AND session_id = ? AND seq = ?")) {
+            statement.setString(1, playerId.toString());
+            statement.setString(2, sessionId);
+            statement.setInt(3, seq);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return "";
+                }
+                String content = gson.fromJson(rs.getString(1), LLMMessage.class).getContent();
+                return content != null ? content : "";
+            }
+        }
+    }
+
+    private List<SessionInfo> listSessionInfos(UUID playerId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT session_id, title, created_at, prompt_template, message_count FROM chat_sessions " +
+                "WHERE player_id = ? ORDER BY created_at")) {
+            statement.setString(1, playerId.toString());
+            return readSessionInfos(statement);
+        }
+    }
+
+    private static List<SessionInfo> readSessionInfos(PreparedStatement statement) throws SQLException {
+        List<SessionInfo> infos = new ArrayList<>();
+        try (ResultSet rs = statement.executeQuery()) {
+            while (rs.next()) {
+                SessionInfo info = new SessionInfo();
+                info.sessionId = rs.getString(1);
+                info.title = rs.getString(2);
+                info.timestamp = rs.getTimestamp(3).toLocalDateTime();
+                info.promptTemplate = rs.getString(4);
+                info.messageCount = rs.getInt(5);
+                infos.add(info);
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * 加载会话的消息，并解析共享的系统提示词
+     */
+    private List<ChatSession> loadSessions(UUID playerId, List<SessionInfo> infos) throws SQLException {
+        List<ChatSession> sessions = new ArrayList<>(infos.size());
+        Map<String, String> prompts = new HashMap<>();
+        try (PreparedStatement messages = connection.prepareStatement(
+                "SELECT message_json FROM chat_messages WHERE player_id = ? AND session_id = ? ORDER BY seq");
+             PreparedStatement promptQuery = connection.prepareStatement(
+                "SELECT text FROM chat_prompts WHERE hash = ?")) {
+            for (SessionInfo info : infos) {
+                List<LLMMessage> loaded = new ArrayList<>(info.messageCount);
+                messages.setString(1, playerId.toString());
+                messages.setString(2, info.sessionId);
+                try (ResultSet rs = messages.executeQuery()) {
+                    while (rs.next()) {
+                        LLMMessage message = gson.fromJson(rs.getString(1), LLMMessage.class);
+                        String ref = message.getContentRef();
+                        if (ref != null && !prompts.containsKey(ref)) {
+                            promptQuery.setString(1, ref);
+                            try (ResultSet prompt = promptQuery.executeQuery()) {
+                                prompts.put(ref, prompt.next() ? prompt.getString(1) : null);
+                            }
+                        }
+                        loaded.add(message);
+                    }
+                }
+                ChatSession session = new ChatSession(info.sessionId, playerId, loaded,
+                        info.timestamp, info.promptTemplate, info.title);
+                session.resolveSharedPrompts(prompts);
+                sessions.add(session);
+            }
+        }
+        return sessions;
+    }
+
+    private static String escapeLike(String term) {
+        return term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LogManager.getInstance().error("Failed to roll back chat history transaction", e);
+        }
+    }
+}
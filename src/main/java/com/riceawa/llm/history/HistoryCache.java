@@ -0,0 +1,168 @@
+package com.riceawa.llm.history;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 按内存占用限制大小的LRU缓存
+ *
+ * 每个条目带有估算的字节数，总量超过预算时从最久未访问的条目开始淘汰。
+ * 缓存中的数据都可以从磁盘重新加载，因此淘汰只影响下次访问的速度；
+ * 调用方通过谓词决定条目当前能否淘汰（例如还有未写入磁盘的变更时不能淘汰）。
+ */
+public class HistoryCache<K, V> {
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long budgetBytes;
+    private long residentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static class Entry<V> {
+        final V value;
+        long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param budgetBytes 缓存的内存预算（字节）
+     */
+    public HistoryCache(long budgetBytes) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true); // 按访问顺序排列
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * 获取缓存的值并记录命中或未命中
+     */
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * 获取缓存的值，不计入命中率
+     */
+    public synchronized V peek(K key) {
+        Entry<V> entry = entries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public synchronized boolean containsKey(K key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * 放入缓存（不会立即淘汰，由调用方在合适的时机调用{@link #evict}）
+     */
+    public synchronized void put(K key, V value, long weight) {
+        Entry<V> previous = entries.put(key, new Entry<>(value, weight));
+        if (previous != null) {
+            residentBytes -= previous.weight;
+        }
+        residentBytes += weight;
+    }
+
+    /**
+     * 更新条目的估算大小
+     */
+    public synchronized void updateWeight(K key, V value, long weight) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && entry.value == value) {
+            residentBytes += weight - entry.weight;
+            entry.weight = weight;
+        }
+    }
+
+    public synchronized V remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        residentBytes -= entry.weight;
+        return entry.value;
+    }
+
+    /**
+     * 总量超过预算时，返回按最久未访问排序的淘汰候选
+     */
+    public synchronized List<K> getEvictionCandidates() {
+        List<K> candidates = new ArrayList<>();
+        if (residentBytes <= budgetBytes) {
+            return candidates;
+        }
+        long excess = residentBytes - budgetBytes;
+        for (Map.Entry<K, Entry<V>> entry : entries.entrySet()) {
+            if (excess <= 0) {
+                break;
+            }
+            candidates.add(entry.getKey());
+            excess -= entry.getValue().weight;
+        }
+        return candidates;
+    }
+
+    /**
+     * 在仍然超过预算时淘汰指定条目
+     *
+     * @param evictable 条目当前能否淘汰
+     * @return 是否已淘汰
+     */
+    public synchronized boolean evict(K key, Predicate<V> evictable) {
+        if (residentBytes <= budgetBytes) {
+            return false;
+        }
+        Entry<V> entry = entries.get(key);
+        if (entry == null || !evictable.test(entry.value)) {
+            return false;
+        }
+        entries.remove(key);
+        residentBytes -= entry.weight;
+        evictions++;
+        return true;
+    }
+
+    public synchronized List<K> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getResidentBytes() {
+        return residentBytes;
+    }
+
+    public synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * 获取命中率（0到1），尚无访问时返回0
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total > 0 ? (double) hits / total : 0;
+    }
+}
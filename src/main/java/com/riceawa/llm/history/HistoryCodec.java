@@ -0,0 +1,153 @@
+package com.riceawa.llm.history;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 历史记录文件的压缩编码
+ *
+ * 压缩文件是带预置字典的zlib流（扩展名为{@link #COMPRESSED_SUFFIX}）。字典由会话文件中反复出现的内容组成：
+ * JSON字段名、消息角色、时间戳前缀以及内置提示词模板的系统提示词，单个会话文件很小，
+ * 没有字典时这些内容在每个文件里都要重新编码一次。zlib流头部记录了字典的校验和，
+ * 读取时据此选择字典，以后调整字典也能读取旧文件。读写都是流式的，不需要把整个文件放入内存。
+ */
+public final class HistoryCodec {
+    public static final String COMPRESSED_SUFFIX = "z"; // index.json -> index.jsonz
+    private static final int BUFFER_SIZE = 8192;
+
+    // 按出现频率从低到高排列：zlib优先匹配距离近的内容，常用的片段放在末尾
+    private static final byte[] DICTIONARY_V1 = String.join("",
+        "你是一个有用的AI助手，在Minecraft游戏中为玩家提供帮助。请用中文回答问题，保持友好和有帮助的态度。话题不用仅仅局限于Minecraft",
+        "你是一个专业的Minecraft建筑师助手。你擅长建筑设计、红石电路、装饰技巧等。请为玩家提供创造性的建议和详细的建造指导。",
+        "你是一个经验丰富的Minecraft生存专家。你了解游戏机制、怪物特性、资源获取、农业种植等生存技巧。请帮助玩家在生存模式中更好地游戏。",
+        "你是一个红石电路专家。你精通各种红石元件、逻辑门、时序电路、自动化装置的设计和优化。请为玩家提供专业的红石技术指导。",
+        "你是一个Minecraft模组专家。你了解各种流行模组的功能、用法、配置和兼容性。请帮助玩家更好地使用和配置模组。",
+        "[较早的工具结果已压缩，原文共字，如需完整内容请重新调用工具] [与之后的一次工具调用结果相同，已省略]",
+        "钻石、铁锭、金锭、红石、附魔台、下界、末地、村民、苦力怕、僵尸、骷髅、末影人、合成、熔炉、工作台、",
+        "\"function_call\":{\"name\":\"\",\"arguments\":\"{\\\"\",\"tool_call_id\":\"call_\"},",
+        "{\"format\":3,\"journalSeq\":,\"sessions\":[{\"sessionId\":\"\",\"title\":\"\",\"messageCount\":",
+        "{\"format\":3,\"journalSeq\":,\"prompts\":{\"\":\"\"},\"session\":{\"sessionId\":\"\",\"playerId\":\"",
+        "\"},\"tool_call_id\":\"call_\",\"name\":\"\",\"tokens\":,\"model\":\"gpt-4o-mini\",\"title\":\"\"",
+        "\",\"timestamp\":\"2025-\",\"promptTemplate\":\"default\"}",
+        "\"role\":\"system\",\"content_ref\":\"\",\"timestamp\":\"2025-\",\"metadata\":{}},{\"id\":\"",
+        "\"role\":\"tool\",\"content\":\"\",\"timestamp\":\"2025-\",\"metadata\":{}},{\"id\":\"",
+        "\"role\":\"assistant\",\"content\":\"\",\"timestamp\":\"2025-\",\"metadata\":{}},{\"id\":\"",
+        "\"role\":\"user\",\"content\":\"\",\"timestamp\":\"2025-\",\"metadata\":{}},{\"id\":\"",
+        "\"messages\":[{\"id\":\"",
+        "\",\"timestamp\":\"2026-\",\"promptTemplate\":\"default\",\"messageCount\":},{\"sessionId\":\""
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[][] DICTIONARIES = {DICTIONARY_V1};
+    private static final byte[] CURRENT_DICTIONARY = DICTIONARY_V1;
+
+    private HistoryCodec() {
+    }
+
+    /**
+     * 判断文件是否为压缩格式
+     */
+    public static boolean isCompressed(Path file) {
+        return file.getFileName().toString().endsWith(".json" + COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * 获取与未压缩文件对应的压缩文件路径
+     */
+    public static Path compressedPath(Path plainFile) {
+        return plainFile.resolveSibling(plainFile.getFileName() + COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * 打开文件读取，压缩文件自动解压
+     */
+    public static Reader newReader(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        if (isCompressed(file)) {
+            in = new DictionaryInflaterInputStream(in);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * 打开文件写入
+     *
+     * @param compressed 是否边写边压缩（写临时文件时扩展名不能说明格式）
+     */
+    public static Writer newWriter(Path file, boolean compressed) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        if (compressed) {
+            out = new DictionaryDeflaterOutputStream(out);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static byte[] findDictionary(int adler) throws IOException {
+        for (byte[] dictionary : DICTIONARIES) {
+            Adler32 checksum = new Adler32();
+            checksum.update(dictionary);
+            if ((int) checksum.getValue() == adler) {
+                return dictionary;
+            }
+        }
+        throw new IOException("Unknown chat history compression dictionary: " + Integer.toHexString(adler));
+    }
+
+    /**
+     * 使用预置字典压缩，关闭时释放本地压缩器
+     */
+    private static class DictionaryDeflaterOutputStream extends DeflaterOutputStream {
+        DictionaryDeflaterOutputStream(OutputStream out) {
+            super(out, createDeflater(), BUFFER_SIZE);
+        }
+
+        private static Deflater createDeflater() {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            deflater.setDictionary(CURRENT_DICTIONARY);
+            return deflater;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * 解压时在流头部要求字典的位置提供对应的字典
+     */
+    private static class DictionaryInflaterInputStream extends InflaterInputStream {
+        DictionaryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(), BUFFER_SIZE);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1 && inf.needsDictionary()) {
+                inf.setDictionary(findDictionary(inf.getAdler()));
+                n = super.read(b, off, len);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
@@ -2,38 +2,58 @@ package com.riceawa.llm.history;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.logging.LogManager;
 import net.fabricmc.loader.api.FabricLoader;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * 历史记录导出功能
+ *
+ * 导出是流式的：会话逐个从存储后端读取并立即写出，不会把玩家的全部历史或整个导出文档放入内存。
+ * 输出通过带缓冲的文件通道写入，可选gzip压缩。全服导出在有界线程池中并行生成每个玩家的导出，
+ * 再依次写入同一个zip归档。
  */
 public class HistoryExporter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final int BULK_EXPORT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
     private final Gson gson;
     private final Path exportDir;
     private final DateTimeFormatter fileNameFormatter = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
     private final DateTimeFormatter displayFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     public HistoryExporter() {
+        this(FabricLoader.getInstance()
+                .getConfigDir()
+                .resolve("lllmchat")
+                .resolve("exports"));
+    }
+
+    HistoryExporter(Path exportDir) {
         this.gson = new GsonBuilder()
                 .setPrettyPrinting()
                 .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
                 .create();
-        
-        this.exportDir = FabricLoader.getInstance()
-                .getConfigDir()
-                .resolve("lllmchat")
-                .resolve("exports");
-        
+        this.exportDir = exportDir;
+
         try {
             Files.createDirectories(exportDir);
         } catch (IOException e) {
@@ -61,151 +81,384 @@ public class HistoryExporter {
         }
     }
 
+    /**
+     * 全服导出的进度回调
+     */
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(int completedPlayers, int totalPlayers);
+    }
+
     /**
      * 导出玩家的所有历史记录
      */
     public ExportResult exportPlayerHistory(UUID playerId, String playerName, ExportFormat format) {
-        List<ChatHistory.ChatSession> sessions = ChatHistory.getInstance().loadPlayerHistory(playerId);
-        return exportSessions(sessions, playerName, format, "player_" + playerName);
+        return exportPlayerHistory(playerId, playerName, format, false);
+    }
+
+    /**
+     * 导出玩家的所有历史记录
+     *
+     * @param compress 是否以gzip压缩输出
+     */
+    public ExportResult exportPlayerHistory(UUID playerId, String playerName, ExportFormat format, boolean compress) {
+        return exportRange(playerId, playerName, format, "player_" + playerName, null, null, compress);
     }
 
     /**
      * 导出指定时间范围的历史记录
      */
-    public ExportResult exportByDateRange(UUID playerId, String playerName, 
-                                        LocalDateTime startDate, LocalDateTime endDate, 
+    public ExportResult exportByDateRange(UUID playerId, String playerName,
+                                        LocalDateTime startDate, LocalDateTime endDate,
                                         ExportFormat format) {
-        List<ChatHistory.ChatSession> allSessions = ChatHistory.getInstance().loadPlayerHistory(playerId);
-        List<ChatHistory.ChatSession> filteredSessions = allSessions.stream()
-                .filter(session -> {
-                    LocalDateTime sessionTime = session.getTimestamp();
-                    return !sessionTime.isBefore(startDate) && !sessionTime.isAfter(endDate);
-                })
-                .collect(Collectors.toList());
-        
-        String fileName = String.format("player_%s_%s_to_%s", 
-                playerName, 
-                startDate.format(fileNameFormatter), 
+        String fileName = String.format("player_%s_%s_to_%s",
+                playerName,
+                startDate.format(fileNameFormatter),
                 endDate.format(fileNameFormatter));
-        
-        return exportSessions(filteredSessions, playerName, format, fileName);
+
+        // 时间过滤由存储后端完成，只读取范围内会话的消息
+        return exportRange(playerId, playerName, format, fileName, startDate, endDate, false);
     }
 
     /**
      * 导出包含特定关键词的历史记录
      */
-    public ExportResult exportByKeyword(UUID playerId, String playerName, 
+    public ExportResult exportByKeyword(UUID playerId, String playerName,
                                       String keyword, ExportFormat format) {
         List<ChatHistory.ChatSession> sessions = ChatHistory.getInstance().searchHistory(playerId, keyword);
         String fileName = String.format("player_%s_keyword_%s", playerName, keyword.replaceAll("[^a-zA-Z0-9]", "_"));
-        return exportSessions(sessions, playerName, format, fileName);
+        if (sessions.isEmpty()) {
+            return new ExportResult(false, "No sessions to export", null);
+        }
+        return exportSessions(playerName, format, fileName, false, sessions.size(), consumer -> {
+            for (ChatHistory.ChatSession session : sessions) {
+                consumer.accept(session);
+            }
+        });
     }
 
     /**
-     * 导出会话列表
+     * 导出所有玩家的历史记录到一个zip归档，每个玩家一个文件
+     *
+     * 每个玩家的导出在线程池中并行写入临时文件，完成后由调用线程依次写入归档并删除临时文件。
+     *
+     * @param progress 每完成一个玩家回调一次（在调用线程上）
      */
-    private ExportResult exportSessions(List<ChatHistory.ChatSession> sessions, String playerName, 
-                                      ExportFormat format, String baseFileName) {
-        if (sessions.isEmpty()) {
+    public ExportResult exportAllPlayers(ExportFormat format, ProgressListener progress) {
+        ChatHistory history = ChatHistory.getInstance();
+        List<UUID> players = history.listPlayers();
+        if (players.isEmpty()) {
             return new ExportResult(false, "No sessions to export", null);
         }
 
-        try {
-            String fileName = baseFileName + "_" + LocalDateTime.now().format(fileNameFormatter) + "." + format.getExtension();
-            Path exportFile = exportDir.resolve(fileName);
-
-            switch (format) {
-                case JSON:
-                    exportToJson(sessions, exportFile);
-                    break;
-                case CSV:
-                    exportToCsv(sessions, exportFile);
-                    break;
-                case TXT:
-                    exportToTxt(sessions, exportFile);
-                    break;
-                case HTML:
-                    exportToHtml(sessions, playerName, exportFile);
-                    break;
-                default:
-                    return new ExportResult(false, "Unsupported export format: " + format, null);
+        Path archive = exportDir.resolve("all_players_" + LocalDateTime.now().format(fileNameFormatter) + ".zip");
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(BULK_EXPORT_THREADS, r -> {
+            Thread t = new Thread(r, "LLMChat-Export-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        CompletionService<Path> completion = new ExecutorCompletionService<>(pool);
+        List<Path> tempFiles = Collections.synchronizedList(new ArrayList<>());
+
+        for (UUID playerId : players) {
+            completion.submit(() -> {
+                Path tempFile = exportDir.resolve(".export-" + playerId + "." + format.getExtension());
+                tempFiles.add(tempFile);
+                int[] count = {0};
+                try (Writer writer = openWriter(tempFile, false)) {
+                    SessionFormatter formatter = createFormatter(format, writer, playerId.toString());
+                    formatter.begin(countSessions(playerId, null, null));
+                    history.forEachSession(playerId, null, null, session -> formatter.write(session, ++count[0]));
+                    formatter.end();
+                }
+                return count[0] > 0 ? tempFile : null;
+            });
+        }
+
+        int exportedPlayers = 0;
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(FileChannel.open(archive, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)), BUFFER_SIZE))) {
+            for (int completed = 1; completed <= players.size(); completed++) {
+                Path tempFile = completion.take().get();
+                if (tempFile != null) {
+                    String name = tempFile.getFileName().toString().substring(".export-".length());
+                    zip.putNextEntry(new ZipEntry("player_" + name));
+                    Files.copy(tempFile, zip);
+                    zip.closeEntry();
+                    Files.deleteIfExists(tempFile);
+                    exportedPlayers++;
+                }
+                if (progress != null) {
+                    progress.onProgress(completed, players.size());
+                }
+            }
+        } catch (IOException | ExecutionException e) {
+            deleteQuietly(archive);
+            Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+            LogManager.getInstance().error("Bulk history export failed", cause);
+            return new ExportResult(false, "Export failed: " + cause.getMessage(), null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteQuietly(archive);
+            return new ExportResult(false, "Export interrupted", null);
+        } finally {
+            pool.shutdownNow();
+            synchronized (tempFiles) {
+                for (Path tempFile : tempFiles) {
+                    deleteQuietly(tempFile);
+                }
             }
+        }
+
+        return new ExportResult(true, "Exported " + exportedPlayers + " players", archive);
+    }
+
+    /**
+     * 流式导出玩家在时间范围内的会话
+     */
+    private ExportResult exportRange(UUID playerId, String playerName, ExportFormat format, String baseFileName,
+                                     LocalDateTime from, LocalDateTime to, boolean compress) {
+        int total = countSessions(playerId, from, to);
+        if (total == 0) {
+            return new ExportResult(false, "No sessions to export", null);
+        }
+        return exportSessions(playerName, format, baseFileName, compress, total,
+                consumer -> ChatHistory.getInstance().forEachSession(playerId, from, to, consumer));
+    }
+
+    /**
+     * 逐个写出会话；失败时删除不完整的文件
+     */
+    private ExportResult exportSessions(String playerName, ExportFormat format, String baseFileName,
+                                        boolean compress, int total, SessionSource source) {
+        String fileName = baseFileName + "_" + LocalDateTime.now().format(fileNameFormatter) + "." +
+                format.getExtension() + (compress ? GZIP_SUFFIX : "");
+        Path exportFile = exportDir.resolve(fileName);
 
-            return new ExportResult(true, "Export completed successfully", exportFile);
-            
+        try (Writer writer = openWriter(exportFile, compress)) {
+            SessionFormatter formatter = createFormatter(format, writer, playerName);
+            formatter.begin(total);
+            int[] index = {0};
+            source.forEach(session -> formatter.write(session, ++index[0]));
+            formatter.end();
         } catch (IOException e) {
+            deleteQuietly(exportFile);
             return new ExportResult(false, "Export failed: " + e.getMessage(), null);
         }
+        return new ExportResult(true, "Export completed successfully", exportFile);
+    }
+
+    private int countSessions(UUID playerId, LocalDateTime from, LocalDateTime to) {
+        int count = 0;
+        for (ChatHistory.SessionInfo info : ChatHistory.getInstance().listSessions(playerId)) {
+            LocalDateTime time = info.getTimestamp();
+            if (time == null || ((from == null || !time.isBefore(from)) && (to == null || !time.isAfter(to)))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 打开带缓冲的文件通道写入
+     */
+    private static Writer openWriter(Path file, boolean compress) throws IOException {
+        OutputStream out = Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+        if (compress) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // 忽略删除错误
+        }
+    }
+
+    private SessionFormatter createFormatter(ExportFormat format, Writer writer, String playerName) {
+        switch (format) {
+            case JSON:
+                return new JsonFormatter(writer);
+            case CSV:
+                return new CsvFormatter(writer);
+            case TXT:
+                return new TxtFormatter(writer);
+            case HTML:
+            default:
+                return new HtmlFormatter(writer, playerName);
+        }
     }
 
     /**
-     * 导出为JSON格式
+     * 会话来源：把会话逐个交给回调
      */
-    private void exportToJson(List<ChatHistory.ChatSession> sessions, Path exportFile) throws IOException {
-        try (FileWriter writer = new FileWriter(exportFile.toFile(), StandardCharsets.UTF_8)) {
-            gson.toJson(sessions, writer);
+    @FunctionalInterface
+    private interface SessionSource {
+        void forEach(HistoryStore.SessionConsumer consumer) throws IOException;
+    }
+
+    /**
+     * 按导出格式逐个写出会话
+     */
+    private abstract static class SessionFormatter {
+        protected final PrintWriter writer;
+
+        SessionFormatter(Writer writer) {
+            this.writer = new PrintWriter(writer);
+        }
+
+        /**
+         * @param total 要导出的会话数
+         */
+        abstract void begin(int total) throws IOException;
+
+        /**
+         * @param index 会话序号（从1开始）
+         */
+        abstract void write(ChatHistory.ChatSession session, int index) throws IOException;
+
+        abstract void end() throws IOException;
+
+        /**
+         * PrintWriter不抛出异常，在每个会话后检查写入错误
+         */
+        protected void checkError() throws IOException {
+            if (writer.checkError()) {
+                throw new IOException("Failed to write export file");
+            }
+        }
+    }
+
+    /**
+     * JSON格式：会话数组，逐个序列化
+     */
+    private class JsonFormatter extends SessionFormatter {
+        private final JsonWriter json;
+
+        JsonFormatter(Writer writer) {
+            super(writer);
+            this.json = new JsonWriter(this.writer);
+            this.json.setIndent("  ");
+        }
+
+        @Override
+        void begin(int total) throws IOException {
+            json.beginArray();
+        }
+
+        @Override
+        void write(ChatHistory.ChatSession session, int index) throws IOException {
+            gson.toJson(session, ChatHistory.ChatSession.class, json);
+            checkError();
+        }
+
+        @Override
+        void end() throws IOException {
+            json.endArray();
+            json.flush();
+            checkError();
         }
     }
 
     /**
-     * 导出为CSV格式
+     * CSV格式：每个会话一行摘要
      */
-    private void exportToCsv(List<ChatHistory.ChatSession> sessions, Path exportFile) throws IOException {
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(exportFile, StandardCharsets.UTF_8))) {
+    private class CsvFormatter extends SessionFormatter {
+        CsvFormatter(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        void begin(int total) {
             // CSV头部
             writer.println("SessionId,PlayerId,Timestamp,PromptTemplate,MessageCount,UserMessages,AssistantMessages");
-            
-            for (ChatHistory.ChatSession session : sessions) {
-                List<LLMMessage> messages = session.getMessages();
-                long userMessages = messages.stream().filter(m -> m.getRole() == LLMMessage.MessageRole.USER).count();
-                long assistantMessages = messages.stream().filter(m -> m.getRole() == LLMMessage.MessageRole.ASSISTANT).count();
-                
-                writer.printf("%s,%s,%s,%s,%d,%d,%d%n",
-                        escapeCsv(session.getSessionId()),
-                        session.getPlayerId().toString(),
-                        session.getTimestamp().format(displayFormatter),
-                        escapeCsv(session.getPromptTemplate()),
-                        messages.size(),
-                        userMessages,
-                        assistantMessages);
-            }
+        }
+
+        @Override
+        void write(ChatHistory.ChatSession session, int index) throws IOException {
+            List<LLMMessage> messages = session.getMessages();
+            long userMessages = messages.stream().filter(m -> m.getRole() == LLMMessage.MessageRole.USER).count();
+            long assistantMessages = messages.stream().filter(m -> m.getRole() == LLMMessage.MessageRole.ASSISTANT).count();
+
+            writer.printf("%s,%s,%s,%s,%d,%d,%d%n",
+                    escapeCsv(session.getSessionId()),
+                    session.getPlayerId().toString(),
+                    session.getTimestamp().format(displayFormatter),
+                    escapeCsv(session.getPromptTemplate()),
+                    messages.size(),
+                    userMessages,
+                    assistantMessages);
+            checkError();
+        }
+
+        @Override
+        void end() throws IOException {
+            writer.flush();
+            checkError();
         }
     }
 
     /**
-     * 导出为TXT格式
+     * TXT格式
      */
-    private void exportToTxt(List<ChatHistory.ChatSession> sessions, Path exportFile) throws IOException {
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(exportFile, StandardCharsets.UTF_8))) {
+    private class TxtFormatter extends SessionFormatter {
+        TxtFormatter(Writer writer) {
+            super(writer);
+        }
+
+        @Override
+        void begin(int total) {
             writer.println("=== LLM Chat History Export ===");
             writer.println("Export Time: " + LocalDateTime.now().format(displayFormatter));
-            writer.println("Total Sessions: " + sessions.size());
+            writer.println("Total Sessions: " + total);
             writer.println();
+        }
 
-            for (int i = 0; i < sessions.size(); i++) {
-                ChatHistory.ChatSession session = sessions.get(i);
-                writer.println("--- Session " + (i + 1) + " ---");
-                writer.println("Session ID: " + session.getSessionId());
-                writer.println("Player ID: " + session.getPlayerId());
-                writer.println("Timestamp: " + session.getTimestamp().format(displayFormatter));
-                writer.println("Prompt Template: " + session.getPromptTemplate());
-                writer.println("Message Count: " + session.getMessages().size());
-                writer.println();
-                
-                writer.println("Messages:");
-                for (LLMMessage message : session.getMessages()) {
-                    writer.println("  [" + message.getRole() + "] " + message.getContent());
-                }
-                writer.println();
+        @Override
+        void write(ChatHistory.ChatSession session, int index) throws IOException {
+            writer.println("--- Session " + index + " ---");
+            writer.println("Session ID: " + session.getSessionId());
+            writer.println("Player ID: " + session.getPlayerId());
+            writer.println("Timestamp: " + session.getTimestamp().format(displayFormatter));
+            writer.println("Prompt Template: " + session.getPromptTemplate());
+            writer.println("Message Count: " + session.messages.size());
+            writer.println();
+
+            writer.println("Messages:");
+            for (LLMMessage message : session.messages) {
+                writer.println("  [" + message.getRole() + "] " + message.getContent());
             }
+            writer.println();
+            checkError();
+        }
+
+        @Override
+        void end() throws IOException {
+            writer.flush();
+            checkError();
         }
     }
 
     /**
-     * 导出为HTML格式
+     * HTML格式
      */
-    private void exportToHtml(List<ChatHistory.ChatSession> sessions, String playerName, Path exportFile) throws IOException {
-        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(exportFile, StandardCharsets.UTF_8))) {
+    private class HtmlFormatter extends SessionFormatter {
+        private final String playerName;
+
+        HtmlFormatter(Writer writer, String playerName) {
+            super(writer);
+            this.playerName = playerName;
+        }
+
+        @Override
+        void begin(int total) {
             writer.println("<!DOCTYPE html>");
             writer.println("<html><head>");
             writer.println("<meta charset='UTF-8'>");
@@ -220,35 +473,41 @@ public class HistoryExporter {
             writer.println(".system { background: #fff3e0; }");
             writer.println("</style>");
             writer.println("</head><body>");
-            
+
             writer.println("<h1>LLM Chat History - " + escapeHtml(playerName) + "</h1>");
             writer.println("<p>Export Time: " + LocalDateTime.now().format(displayFormatter) + "</p>");
-            writer.println("<p>Total Sessions: " + sessions.size() + "</p>");
-
-            for (int i = 0; i < sessions.size(); i++) {
-                ChatHistory.ChatSession session = sessions.get(i);
-                writer.println("<div class='session'>");
-                writer.println("<div class='session-header'>");
-                writer.println("<h3>Session " + (i + 1) + "</h3>");
-                writer.println("<p><strong>ID:</strong> " + escapeHtml(session.getSessionId()) + "</p>");
-                writer.println("<p><strong>Time:</strong> " + session.getTimestamp().format(displayFormatter) + "</p>");
-                writer.println("<p><strong>Template:</strong> " + escapeHtml(session.getPromptTemplate()) + "</p>");
-                writer.println("</div>");
-                
-                for (LLMMessage message : session.getMessages()) {
-                    String cssClass = message.getRole().toString().toLowerCase();
-                    writer.println("<div class='message " + cssClass + "'>");
-                    writer.println("<strong>" + message.getRole() + ":</strong> " + escapeHtml(message.getContent()));
-                    writer.println("</div>");
-                }
+            writer.println("<p>Total Sessions: " + total + "</p>");
+        }
+
+        @Override
+        void write(ChatHistory.ChatSession session, int index) throws IOException {
+            writer.println("<div class='session'>");
+            writer.println("<div class='session-header'>");
+            writer.println("<h3>Session " + index + "</h3>");
+            writer.println("<p><strong>ID:</strong> " + escapeHtml(session.getSessionId()) + "</p>");
+            writer.println("<p><strong>Time:</strong> " + session.getTimestamp().format(displayFormatter) + "</p>");
+            writer.println("<p><strong>Template:</strong> " + escapeHtml(session.getPromptTemplate()) + "</p>");
+            writer.println("</div>");
+
+            for (LLMMessage message : session.messages) {
+                String cssClass = message.getRole().toString().toLowerCase();
+                writer.println("<div class='message " + cssClass + "'>");
+                writer.println("<strong>" + message.getRole() + ":</strong> " + escapeHtml(message.getContent()));
                 writer.println("</div>");
             }
-            
+            writer.println("</div>");
+            checkError();
+        }
+
+        @Override
+        void end() throws IOException {
             writer.println("</body></html>");
+            writer.flush();
+            checkError();
         }
     }
 
-    private String escapeCsv(String value) {
+    private static String escapeCsv(String value) {
         if (value == null) return "";
         if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
             return "\"" + value.replace("\"", "\"\"") + "\"";
@@ -256,7 +515,7 @@ public class HistoryExporter {
         return value;
     }
 
-    private String escapeHtml(String value) {
+    private static String escapeHtml(String value) {
         if (value == null) return "";
         return value.replace("&", "&amp;")
                    .replace("<", "&lt;")
@@ -0,0 +1,132 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.logging.LogManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 历史记录的后台写入器
+ *
+ * 保存会话时只把玩家标记为待写入，由单个后台线程按固定间隔、或在积压的记录数达到阈值时，
+ * 批量把待写入玩家的变更写到磁盘。同一玩家在一个间隔内的多次保存会合并为一次写入，
+ * 磁盘延迟不再出现在对话响应路径上。
+ */
+public class HistoryFlusher {
+    private final Consumer<UUID> flushAction;
+    private final long flushIntervalMs;
+    private final int batchThreshold;
+
+    private final Set<UUID> dirtyPlayers;
+    private final AtomicInteger pendingRecords;
+    private final Object signal = new Object();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param flushAction 把单个玩家的待写入变更写到磁盘
+     * @param flushIntervalMs 定时写入的间隔（毫秒）
+     * @param batchThreshold 积压的记录数达到该值时立即写入
+     */
+    public HistoryFlusher(Consumer<UUID> flushAction, long flushIntervalMs, int batchThreshold) {
+        this.flushAction = flushAction;
+        this.flushIntervalMs = flushIntervalMs;
+        this.batchThreshold = batchThreshold;
+        this.dirtyPlayers = ConcurrentHashMap.newKeySet();
+        this.pendingRecords = new AtomicInteger(0);
+
+        this.writerThread = new Thread(this::runWriter, "LLMChat-HistoryWriter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * 标记玩家有待写入的变更
+     *
+     * @param records 本次新增的待写入记录数
+     */
+    public void markDirty(UUID playerId, int records) {
+        dirtyPlayers.add(playerId);
+        if (pendingRecords.addAndGet(records) >= batchThreshold) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 在调用线程上立即写入所有待写入的变更
+     */
+    public void flush() {
+        flushDirtyPlayers();
+    }
+
+    /**
+     * 停止后台线程并写入剩余的变更（服务器关闭时调用）
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushDirtyPlayers();
+    }
+
+    /**
+     * 获取待写入的玩家数量
+     */
+    public int getQueueDepth() {
+        return dirtyPlayers.size();
+    }
+
+    /**
+     * 获取自上次写入以来积压的记录数
+     */
+    public int getPendingRecords() {
+        return pendingRecords.get();
+    }
+
+    private void runWriter() {
+        while (running) {
+            synchronized (signal) {
+                if (running && pendingRecords.get() < batchThreshold) {
+                    try {
+                        signal.wait(flushIntervalMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            flushDirtyPlayers();
+        }
+    }
+
+    private void flushDirtyPlayers() {
+        if (dirtyPlayers.isEmpty()) {
+            return;
+        }
+        pendingRecords.set(0);
+
+        List<UUID> players = new ArrayList<>(dirtyPlayers);
+        for (UUID playerId : players) {
+            dirtyPlayers.remove(playerId);
+            try {
+                flushAction.accept(playerId);
+            } catch (Exception e) {
+                LogManager.getInstance().error("Failed to flush chat history for player " + playerId, e);
+            }
+        }
+    }
+}
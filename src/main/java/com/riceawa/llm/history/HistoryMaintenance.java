@@ -0,0 +1,131 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.logging.LogManager;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * 历史记录的后台维护任务
+ *
+ * 定期遍历所有玩家的历史记录，删除超过保留天数的会话并整理存储（合并日志、重写索引）。
+ * 维护线程使用最低优先级，并按字节数限制磁盘读写速度：每处理完一个玩家，
+ * 按该玩家实际读写的数据量休眠（没有变更的玩家不重写文件，几乎不休眠），避免与游戏的存档读写争抢磁盘。
+ */
+public class HistoryMaintenance {
+    private static final long INITIAL_DELAY_MINUTES = 10; // 服务器启动后首次维护的延迟
+    private static final long INTERVAL_HOURS = 6; // 维护间隔
+    private static final long IO_BYTES_PER_SECOND = 1024 * 1024; // 维护任务的磁盘读写速度上限
+
+    private final HistoryStore store;
+    private final IntSupplier retentionDays;
+    private final long ioBytesPerSecond;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean running = true;
+
+    /**
+     * @param retentionDays 历史记录保留天数（每次维护时读取，小于等于0表示永久保留）
+     */
+    public HistoryMaintenance(HistoryStore store, IntSupplier retentionDays) {
+        this(store, retentionDays, IO_BYTES_PER_SECOND);
+    }
+
+    HistoryMaintenance(HistoryStore store, IntSupplier retentionDays, long ioBytesPerSecond) {
+        this.store = store;
+        this.retentionDays = retentionDays;
+        this.ioBytesPerSecond = ioBytesPerSecond;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LLMChat-HistoryMaintenance");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * 开始定期维护
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::runOnce, INITIAL_DELAY_MINUTES,
+                TimeUnit.HOURS.toMinutes(INTERVAL_HOURS), TimeUnit.MINUTES);
+    }
+
+    /**
+     * 在维护线程上执行一次性的后台任务（例如补齐统计）
+     */
+    public void execute(Runnable task) {
+        scheduler.execute(task);
+    }
+
+    /**
+     * 停止维护，正在处理的玩家完成后退出
+     */
+    public void shutdown() {
+        running = false;
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 维护所有玩家的历史记录一次
+     */
+    void runOnce() {
+        int days = retentionDays.getAsInt();
+        LocalDateTime cutoff = days > 0 ? LocalDateTime.now().minusDays(days) : null;
+        List<UUID> players = store.listPlayers();
+        LogManager.getInstance().system("Chat history maintenance started: " + players.size() +
+                " players, retention " + (days > 0 ? days + " days" : "unlimited"));
+
+        long startTime = System.currentTimeMillis();
+        int processed = 0;
+        int removedSessions = 0;
+        long reclaimedBytes = 0;
+        for (UUID playerId : players) {
+            if (!running) {
+                break;
+            }
+            long playerStart = System.nanoTime();
+            try {
+                HistoryStore.MaintenanceResult result = store.maintainPlayer(playerId, cutoff);
+                processed++;
+                removedSessions += result.getRemovedSessions();
+                reclaimedBytes += result.getReclaimedBytes();
+                if (result.getRemovedSessions() > 0) {
+                    LogManager.getInstance().system("Chat history maintenance: player " + playerId +
+                            " removed " + result.getRemovedSessions() + " expired sessions, reclaimed " +
+                            result.getReclaimedBytes() + " bytes (" + processed + "/" + players.size() + ")");
+                }
+                throttle(result.getIoBytes(), playerStart);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                LogManager.getInstance().error("Chat history maintenance failed for player " + playerId, e);
+            }
+        }
+
+        LogManager.getInstance().system("Chat history maintenance finished: " + processed + "/" +
+                players.size() + " players, removed " + removedSessions + " sessions, reclaimed " +
+                reclaimedBytes + " bytes in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * 按读写的字节数休眠，使平均速度不超过上限
+     */
+    private void throttle(long ioBytes, long startNanos) throws InterruptedException {
+        long budgetMs = ioBytes * 1000 / ioBytesPerSecond;
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        if (budgetMs > elapsedMs) {
+            Thread.sleep(budgetMs - elapsedMs);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.context.ChatContext;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import com.riceawa.llm.util.TextTokenizer;
+
+import java.util.*;
+
+/**
+ * 单个玩家的历史记录全文倒排索引
+ *
+ * 文档是单条消息（系统提示词除外，压缩摘要保留），词项来自{@link TextTokenizer}：
+ * 中日韩文字按二元组、拉丁文字按单词。倒排表记录词项在消息中的位置，查询中以空白分隔的每一段
+ * 都必须在同一条消息中连续出现（短语匹配），命中的消息按BM25打分后按会话汇总。
+ * 会话保存时增量更新，删除的消息先标记，积累过多时再整体重建倒排表。
+ */
+public class HistorySearchIndex {
+    // BM25参数
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final long DOC_BYTES = 64; // 每个文档的估算内存
+    private static final int SNIPPET_CONTEXT = 30; // 搜索片段中命中位置前保留的字符数
+    private static final int SNIPPET_LENGTH = 100; // 搜索片段的最大字符数
+
+    private List<Doc> docs = new ArrayList<>();
+    // 词项 -> 倒排表，每项为 [文档ID, 位置1, 位置2, ...]
+    private Map<String, List<int[]>> postings = new HashMap<>();
+    private transient Map<String, List<Integer>> sessionDocs;
+    private transient int deletedDocs;
+    private transient long estimatedBytes = -1; // 小于0表示需要重新计算
+
+    /**
+     * 索引中的文档（一条消息）
+     */
+    private static class Doc {
+        String sessionId;
+        String messageId;
+        int length;
+        transient boolean deleted;
+    }
+
+    /**
+     * 会话级的命中结果
+     */
+    public static class Match {
+        final String sessionId;
+        final String messageId; // 得分最高的消息
+        final double score;
+        final int matchedMessages;
+
+        Match(String sessionId, String messageId, double score, int matchedMessages) {
+            this.sessionId = sessionId;
+            this.messageId = messageId;
+            this.score = score;
+            this.matchedMessages = matchedMessages;
+        }
+    }
+
+    /**
+     * 索引会话中的消息
+     */
+    public synchronized void addMessages(String sessionId, List<LLMMessage> messages) {
+        for (LLMMessage message : messages) {
+            String content = message.getContent();
+            if (content == null || content.isEmpty() ||
+                (message.getRole() == MessageRole.SYSTEM && !ChatContext.isSummaryMessage(message))) {
+                continue;
+            }
+
+            List<String> tokens = TextTokenizer.tokenize(content);
+            if (tokens.isEmpty()) {
+                continue;
+            }
+
+            Map<String, List<Integer>> positions = new HashMap<>();
+            for (int i = 0; i < tokens.size(); i++) {
+                positions.computeIfAbsent(tokens.get(i), k -> new ArrayList<>()).add(i);
+            }
+
+            int docId = docs.size();
+            Doc doc = new Doc();
+            doc.sessionId = sessionId;
+            doc.messageId = message.getId();
+            doc.length = tokens.size();
+            docs.add(doc);
+            getSessionDocs().computeIfAbsent(sessionId, k -> new ArrayList<>()).add(docId);
+
+            if (estimatedBytes >= 0) {
+                estimatedBytes += DOC_BYTES;
+            }
+            for (Map.Entry<String, List<Integer>> entry : positions.entrySet()) {
+                List<Integer> termPositions = entry.getValue();
+                int[] posting = new int[termPositions.size() + 1];
+                posting[0] = docId;
+                for (int i = 0; i < termPositions.size(); i++) {
+                    posting[i + 1] = termPositions.get(i);
+                }
+                List<int[]> list = postings.get(entry.getKey());
+                if (list == null) {
+                    list = new ArrayList<>();
+                    postings.put(entry.getKey(), list);
+                    if (estimatedBytes >= 0) {
+                        estimatedBytes += termBytes(entry.getKey());
+                    }
+                }
+                list.add(posting);
+                if (estimatedBytes >= 0) {
+                    estimatedBytes += postingBytes(posting);
+                }
+            }
+        }
+    }
+
+    /**
+     * 从索引中移除会话的所有消息
+     */
+    public synchronized void removeSession(String sessionId) {
+        List<Integer> removed = getSessionDocs().remove(sessionId);
+        if (removed == null) {
+            return;
+        }
+        for (int docId : removed) {
+            docs.get(docId).deleted = true;
+        }
+        deletedDocs += removed.size();
+        if (deletedDocs > docs.size() / 2) {
+            rebuild();
+        }
+    }
+
+    /**
+     * 只保留指定的会话（其余会话已被删除或超出数量限制）
+     */
+    public synchronized void retainSessions(Set<String> sessionIds) {
+        for (String sessionId : new ArrayList<>(getSessionDocs().keySet())) {
+            if (!sessionIds.contains(sessionId)) {
+                removeSession(sessionId);
+            }
+        }
+    }
+
+    /**
+     * 搜索并按会话汇总命中结果
+     *
+     * @return 按得分从高到低排序的会话命中结果
+     */
+    public synchronized List<Match> search(String query, int limit) {
+        List<List<String>> phrases = parseQuery(query);
+        if (phrases.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        // 每个短语都必须在同一条消息中出现
+        Map<Integer, Double> docScores = null;
+        for (List<String> phrase : phrases) {
+            docScores = matchPhrase(phrase, docScores);
+            if (docScores.isEmpty()) {
+                return Collections.emptyList();
+            }
+        }
+
+        Map<String, Match> sessions = new HashMap<>();
+        for (Map.Entry<Integer, Double> entry : docScores.entrySet()) {
+            Doc doc = docs.get(entry.getKey());
+            Match current = sessions.get(doc.sessionId);
+            if (current == null) {
+                sessions.put(doc.sessionId, new Match(doc.sessionId, doc.messageId, entry.getValue(), 1));
+            } else {
+                boolean better = entry.getValue() > current.score;
+                sessions.put(doc.sessionId, new Match(doc.sessionId,
+                    better ? doc.messageId : current.messageId,
+                    Math.max(entry.getValue(), current.score), current.matchedMessages + 1));
+            }
+        }
+
+        List<Match> results = new ArrayList<>(sessions.values());
+        // 多条消息命中的会话略微加分
+        results.sort(Comparator.comparingDouble((Match m) -> m.score * (1 + Math.log(m.matchedMessages) * 0.2)).reversed());
+        return results.size() > limit ? new ArrayList<>(results.subList(0, limit)) : results;
+    }
+
+    /**
+     * 获取已索引的会话数量
+     */
+    public synchronized int getSessionCount() {
+        return getSessionDocs().size();
+    }
+
+    /**
+     * 获取未删除的文档数量
+     */
+    public synchronized int getDocumentCount() {
+        return docs.size() - deletedDocs;
+    }
+
+    /**
+     * 估算索引占用的内存（字节）
+     */
+    public synchronized long estimateBytes() {
+        if (estimatedBytes < 0) {
+            long bytes = docs.size() * DOC_BYTES;
+            for (Map.Entry<String, List<int[]>> entry : postings.entrySet()) {
+                bytes += termBytes(entry.getKey());
+                for (int[] posting : entry.getValue()) {
+                    bytes += postingBytes(posting);
+                }
+            }
+            estimatedBytes = bytes;
+        }
+        return estimatedBytes;
+    }
+
+    private static long termBytes(String term) {
+        return 64 + term.length() * 2L;
+    }
+
+    private static long postingBytes(int[] posting) {
+        return 16 + posting.length * 4L;
+    }
+
+    /**
+     * 截取消息中查询附近的片段：从第一个命中的查询段之前一点开始，没有命中时从开头截取
+     */
+    static String createSnippet(String content, String query) {
+        String singleLine = content.replace('\n', ' ');
+        String lowerContent = singleLine.toLowerCase(Locale.ROOT);
+        int hit = -1;
+        for (String segment : query.trim().split("\\s+")) {
+            hit = lowerContent.indexOf(segment.toLowerCase(Locale.ROOT));
+            if (hit >= 0) {
+                break;
+            }
+        }
+
+        int start = Math.max(0, hit - SNIPPET_CONTEXT);
+        int end = Math.min(singleLine.length(), start + SNIPPET_LENGTH);
+        return (start > 0 ? "..." : "") + singleLine.substring(start, end).trim() +
+            (end < singleLine.length() ? "..." : "");
+    }
+
+    /**
+     * 把查询切分为短语，每个短语是连续的词项序列
+     */
+    static List<List<String>> parseQuery(String query) {
+        List<List<String>> phrases = new ArrayList<>();
+        if (query == null) {
+            return phrases;
+        }
+        for (String segment : query.trim().split("\\s+")) {
+            List<String> tokens = TextTokenizer.tokenize(segment);
+            if (!tokens.isEmpty()) {
+                phrases.add(tokens);
+            }
+        }
+        return phrases;
+    }
+
+    /**
+     * 找出包含短语的文档并累加BM25得分
+     *
+     * @param candidates 上一个短语命中的文档及得分，为null时不限制
+     */
+    private Map<Integer, Double> matchPhrase(List<String> phrase, Map<Integer, Double> candidates) {
+        List<Map<Integer, int[]>> termPositions = new ArrayList<>(phrase.size());
+        for (String term : phrase) {
+            Map<Integer, int[]> positions = positionsOf(term, candidates, phrase.size() == 1);
+            if (positions.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            termPositions.add(positions);
+        }
+
+        double averageLength = averageLength();
+        int liveDocs = Math.max(1, docs.size() - deletedDocs);
+        Map<Integer, Double> scores = new HashMap<>();
+        for (Map.Entry<Integer, int[]> entry : termPositions.get(0).entrySet()) {
+            int docId = entry.getKey();
+            if (!containsPhrase(docId, entry.getValue(), termPositions)) {
+                continue;
+            }
+
+            Doc doc = docs.get(docId);
+            double score = candidates != null ? candidates.get(docId) : 0;
+            for (Map<Integer, int[]> positions : termPositions) {
+                int frequency = positions.get(docId).length;
+                int documentFrequency = positions.size();
+                double idf = Math.log(1 + (liveDocs - documentFrequency + 0.5) / (documentFrequency + 0.5));
+                double norm = frequency + K1 * (1 - B + B * doc.length / averageLength);
+                score += idf * frequency * (K1 + 1) / norm;
+            }
+            scores.put(docId, score);
+        }
+        return scores;
+    }
+
+    private static boolean containsPhrase(int docId, int[] firstPositions, List<Map<Integer, int[]>> termPositions) {
+        for (int start : firstPositions) {
+            boolean matched = true;
+            for (int i = 1; i < termPositions.size(); i++) {
+                int[] positions = termPositions.get(i).get(docId);
+                if (positions == null || Arrays.binarySearch(positions, start + i) < 0) {
+                    matched = false;
+                    break;
+                }
+            }
+            if (matched) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取词项在各文档中的位置（已排序）
+     * 单个中日韩文字在文档中通常以二元组出现，因此展开为以该字开头的二元组；
+     * 不需要位置时（查询只有这一个字）也包括以该字结尾的二元组
+     */
+    private Map<Integer, int[]> positionsOf(String term, Map<Integer, Double> candidates, boolean anyPosition) {
+        List<List<int[]>> lists = new ArrayList<>();
+        if (term.length() == 1 && TextTokenizer.isCjk(term.charAt(0))) {
+            char c = term.charAt(0);
+            for (Map.Entry<String, List<int[]>> entry : postings.entrySet()) {
+                String key = entry.getKey();
+                if (key.charAt(0) == c || (anyPosition && key.length() == 2 && key.charAt(1) == c)) {
+                    lists.add(entry.getValue());
+                }
+            }
+        } else {
+            List<int[]> list = postings.get(term);
+            if (list != null) {
+                lists.add(list);
+            }
+        }
+
+        Map<Integer, int[]> positions = new HashMap<>();
+        for (List<int[]> list : lists) {
+            for (int[] posting : list) {
+                int docId = posting[0];
+                if (docs.get(docId).deleted || (candidates != null && !candidates.containsKey(docId))) {
+                    continue;
+                }
+                int[] termPositions = Arrays.copyOfRange(posting, 1, posting.length);
+                positions.merge(docId, termPositions, HistorySearchIndex::mergeSorted);
+            }
+        }
+        return positions;
+    }
+
+    private static int[] mergeSorted(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        System.arraycopy(a, 0, merged, 0, a.length);
+        System.arraycopy(b, 0, merged, a.length, b.length);
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    private double averageLength() {
+        long total = 0;
+        int count = 0;
+        for (Doc doc : docs) {
+            if (!doc.deleted) {
+                total += doc.length;
+                count++;
+            }
+        }
+        return count > 0 ? (double) total / count : 1;
+    }
+
+    /**
+     * 去掉已删除的文档，重新编号并重建倒排表
+     */
+    private void rebuild() {
+        int[] remap = new int[docs.size()];
+        List<Doc> liveDocs = new ArrayList<>(docs.size() - deletedDocs);
+        for (int i = 0; i < docs.size(); i++) {
+            Doc doc = docs.get(i);
+            remap[i] = doc.deleted ? -1 : liveDocs.size();
+            if (!doc.deleted) {
+                liveDocs.add(doc);
+            }
+        }
+
+        Map<String, List<int[]>> livePostings = new HashMap<>();
+        for (Map.Entry<String, List<int[]>> entry : postings.entrySet()) {
+            List<int[]> list = new ArrayList<>();
+            for (int[] posting : entry.getValue()) {
+                int docId = remap[posting[0]];
+                if (docId >= 0) {
+                    posting[0] = docId;
+                    list.add(posting);
+                }
+            }
+            if (!list.isEmpty()) {
+                livePostings.put(entry.getKey(), list);
+            }
+        }
+
+        docs = liveDocs;
+        postings = livePostings;
+        deletedDocs = 0;
+        sessionDocs = null;
+        estimatedBytes = -1;
+    }
+
+    /**
+     * 写入磁盘前去掉已删除的文档
+     */
+    synchronized void compact() {
+        if (deletedDocs > 0) {
+            rebuild();
+        }
+    }
+
+    private Map<String, List<Integer>> getSessionDocs() {
+        if (sessionDocs == null) {
+            // 从磁盘加载后根据文档列表重建
+            sessionDocs = new HashMap<>();
+            for (int i = 0; i < docs.size(); i++) {
+                Doc doc = docs.get(i);
+                if (!doc.deleted) {
+                    sessionDocs.computeIfAbsent(doc.sessionId, k -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        return sessionDocs;
+    }
+}
@@ -4,7 +4,6 @@ import com.riceawa.llm.core.LLMMessage;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * 历史记录统计功能
@@ -13,20 +12,18 @@ public class HistoryStatistics {
     private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
     /**
-     * 生成玩家统计报告
+     * 生成玩家统计报告（读取增量维护的计数，不加载历史记录）
      */
     public PlayerStatistics generatePlayerStatistics(UUID playerId) {
-        List<ChatHistory.ChatSession> sessions = ChatHistory.getInstance().loadPlayerHistory(playerId);
-        return new PlayerStatistics(playerId, sessions);
+        return new PlayerStatistics(playerId, ChatHistory.getInstance().getPlayerStatistics(playerId));
     }
 
     /**
      * 生成全局统计报告
      */
     public GlobalStatistics generateGlobalStatistics() {
-        // 这里需要扩展ChatHistory来支持获取所有玩家的统计
-        // 暂时返回空统计
-        return new GlobalStatistics();
+        ChatHistory history = ChatHistory.getInstance();
+        return new GlobalStatistics(history.getStatisticsPlayerCount(), history.getGlobalStatistics());
     }
 
     /**
@@ -39,9 +36,12 @@ public class HistoryStatistics {
         private final int userMessages;
         private final int assistantMessages;
         private final int systemMessages;
+        private final int toolMessages;
+        private final long totalTokens;
         private final LocalDateTime firstSessionTime;
         private final LocalDateTime lastSessionTime;
         private final Map<String, Integer> templateUsage;
+        private final Map<String, Integer> functionUsage;
         private final Map<String, Integer> dailyActivity;
         private final Map<String, Integer> hourlyActivity;
         private final double averageMessagesPerSession;
@@ -51,86 +51,25 @@ public class HistoryStatistics {
         private final String mostActiveHour;
 
         public PlayerStatistics(UUID playerId, List<ChatHistory.ChatSession> sessions) {
-            this.playerId = playerId;
-            this.totalSessions = sessions.size();
-            
-            if (sessions.isEmpty()) {
-                this.totalMessages = 0;
-                this.userMessages = 0;
-                this.assistantMessages = 0;
-                this.systemMessages = 0;
-                this.firstSessionTime = null;
-                this.lastSessionTime = null;
-                this.templateUsage = new HashMap<>();
-                this.dailyActivity = new HashMap<>();
-                this.hourlyActivity = new HashMap<>();
-                this.averageMessagesPerSession = 0;
-                this.totalChatTimeMs = 0;
-                this.mostUsedTemplate = null;
-                this.mostActiveDay = null;
-                this.mostActiveHour = null;
-                return;
-            }
-
-            // 计算消息统计
-            int totalMsgs = 0;
-            int userMsgs = 0;
-            int assistantMsgs = 0;
-            int systemMsgs = 0;
-
-            for (ChatHistory.ChatSession session : sessions) {
-                for (LLMMessage message : session.getMessages()) {
-                    totalMsgs++;
-                    switch (message.getRole()) {
-                        case USER:
-                            userMsgs++;
-                            break;
-                        case ASSISTANT:
-                            assistantMsgs++;
-                            break;
-                        case SYSTEM:
-                            systemMsgs++;
-                            break;
-                    }
-                }
-            }
-
-            this.totalMessages = totalMsgs;
-            this.userMessages = userMsgs;
-            this.assistantMessages = assistantMsgs;
-            this.systemMessages = systemMsgs;
-
-            // 时间统计
-            this.firstSessionTime = sessions.stream()
-                    .map(ChatHistory.ChatSession::getTimestamp)
-                    .min(LocalDateTime::compareTo)
-                    .orElse(null);
-            
-            this.lastSessionTime = sessions.stream()
-                    .map(ChatHistory.ChatSession::getTimestamp)
-                    .max(LocalDateTime::compareTo)
-                    .orElse(null);
-
-            // 模板使用统计
-            this.templateUsage = sessions.stream()
-                    .collect(Collectors.groupingBy(
-                            session -> session.getPromptTemplate() != null ? session.getPromptTemplate() : "unknown",
-                            Collectors.collectingAndThen(Collectors.counting(), Math::toIntExact)
-                    ));
-
-            // 日活跃度统计
-            this.dailyActivity = sessions.stream()
-                    .collect(Collectors.groupingBy(
-                            session -> session.getTimestamp().toLocalDate().toString(),
-                            Collectors.collectingAndThen(Collectors.counting(), Math::toIntExact)
-                    ));
+            this(playerId, countSessions(sessions));
+        }
 
-            // 小时活跃度统计
-            this.hourlyActivity = sessions.stream()
-                    .collect(Collectors.groupingBy(
-                            session -> String.format("%02d:00", session.getTimestamp().getHour()),
-                            Collectors.collectingAndThen(Collectors.counting(), Math::toIntExact)
-                    ));
+        public PlayerStatistics(UUID playerId, HistoryStatsIndex.Counters counters) {
+            this.playerId = playerId;
+            this.totalSessions = counters.getSessions();
+            this.totalMessages = counters.getMessages();
+            this.userMessages = counters.getRoleCount(LLMMessage.MessageRole.USER);
+            this.assistantMessages = counters.getRoleCount(LLMMessage.MessageRole.ASSISTANT);
+            this.systemMessages = counters.getRoleCount(LLMMessage.MessageRole.SYSTEM);
+            this.toolMessages = counters.getRoleCount(LLMMessage.MessageRole.TOOL) +
+                    counters.getRoleCount(LLMMessage.MessageRole.FUNCTION);
+            this.totalTokens = counters.getTokens();
+            this.firstSessionTime = counters.getFirstSession();
+            this.lastSessionTime = counters.getLastSession();
+            this.templateUsage = counters.getTemplateUsage();
+            this.functionUsage = counters.getFunctionUsage();
+            this.dailyActivity = counters.getDailyActivity();
+            this.hourlyActivity = counters.getHourlyActivity();
 
             // 计算平均值
             this.averageMessagesPerSession = totalSessions > 0 ? (double) totalMessages / totalSessions : 0;
@@ -138,23 +77,17 @@ public class HistoryStatistics {
             // 计算总聊天时间（简化计算，基于会话数量）
             this.totalChatTimeMs = totalSessions * 60000L; // 假设每个会话平均1分钟
 
-            // 找出最常用的模板
-            this.mostUsedTemplate = templateUsage.entrySet().stream()
-                    .max(Map.Entry.comparingByValue())
-                    .map(Map.Entry::getKey)
-                    .orElse(null);
-
-            // 找出最活跃的日期
-            this.mostActiveDay = dailyActivity.entrySet().stream()
-                    .max(Map.Entry.comparingByValue())
-                    .map(Map.Entry::getKey)
-                    .orElse(null);
+            this.mostUsedTemplate = maxKey(templateUsage);
+            this.mostActiveDay = maxKey(dailyActivity);
+            this.mostActiveHour = maxKey(hourlyActivity);
+        }
 
-            // 找出最活跃的小时
-            this.mostActiveHour = hourlyActivity.entrySet().stream()
-                    .max(Map.Entry.comparingByValue())
-                    .map(Map.Entry::getKey)
-                    .orElse(null);
+        private static HistoryStatsIndex.Counters countSessions(List<ChatHistory.ChatSession> sessions) {
+            HistoryStatsIndex.Counters counters = new HistoryStatsIndex.Counters();
+            for (ChatHistory.ChatSession session : sessions) {
+                counters.add(HistoryStatsIndex.Counters.of(session), 1);
+            }
+            return counters;
         }
 
         // Getters
@@ -164,6 +97,9 @@ public class HistoryStatistics {
         public int getUserMessages() { return userMessages; }
         public int getAssistantMessages() { return assistantMessages; }
         public int getSystemMessages() { return systemMessages; }
+        public int getToolMessages() { return toolMessages; }
+        public long getTotalTokens() { return totalTokens; }
+        public Map<String, Integer> getFunctionUsage() { return new HashMap<>(functionUsage); }
         public LocalDateTime getFirstSessionTime() { return firstSessionTime; }
         public LocalDateTime getLastSessionTime() { return lastSessionTime; }
         public Map<String, Integer> getTemplateUsage() { return new HashMap<>(templateUsage); }
@@ -187,6 +123,10 @@ public class HistoryStatistics {
             report.append("  - 用户消息: ").append(userMessages).append("\n");
             report.append("  - AI回复: ").append(assistantMessages).append("\n");
             report.append("  - 系统消息: ").append(systemMessages).append("\n");
+            report.append("  - 工具消息: ").append(toolMessages).append("\n");
+            if (totalTokens > 0) {
+                report.append("Token总数: ").append(totalTokens).append("\n");
+            }
             report.append("平均每会话消息数: ").append(String.format("%.1f", averageMessagesPerSession)).append("\n");
             
             if (firstSessionTime != null) {
@@ -216,6 +156,8 @@ public class HistoryStatistics {
                         .forEach(entry -> report.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append("次\n"));
             }
 
+            appendFunctionUsage(report, functionUsage);
+
             // 每日活跃度（最近7天）
             if (!dailyActivity.isEmpty()) {
                 report.append("\n最近活跃度:\n");
@@ -236,27 +178,32 @@ public class HistoryStatistics {
         private final int totalPlayers;
         private final int totalSessions;
         private final int totalMessages;
+        private final long totalTokens;
         private final LocalDateTime oldestSession;
         private final LocalDateTime newestSession;
         private final Map<String, Integer> templatePopularity;
-
-        public GlobalStatistics() {
-            // 暂时使用默认值，后续可以扩展
-            this.totalPlayers = 0;
-            this.totalSessions = 0;
-            this.totalMessages = 0;
-            this.oldestSession = null;
-            this.newestSession = null;
-            this.templatePopularity = new HashMap<>();
+        private final Map<String, Integer> functionUsage;
+
+        public GlobalStatistics(int totalPlayers, HistoryStatsIndex.Counters counters) {
+            this.totalPlayers = totalPlayers;
+            this.totalSessions = counters.getSessions();
+            this.totalMessages = counters.getMessages();
+            this.totalTokens = counters.getTokens();
+            this.oldestSession = counters.getFirstSession();
+            this.newestSession = counters.getLastSession();
+            this.templatePopularity = counters.getTemplateUsage();
+            this.functionUsage = counters.getFunctionUsage();
         }
 
         // Getters
         public int getTotalPlayers() { return totalPlayers; }
         public int getTotalSessions() { return totalSessions; }
         public int getTotalMessages() { return totalMessages; }
+        public long getTotalTokens() { return totalTokens; }
         public LocalDateTime getOldestSession() { return oldestSession; }
         public LocalDateTime getNewestSession() { return newestSession; }
         public Map<String, Integer> getTemplatePopularity() { return new HashMap<>(templatePopularity); }
+        public Map<String, Integer> getFunctionUsage() { return new HashMap<>(functionUsage); }
 
         public String generateReport() {
             StringBuilder report = new StringBuilder();
@@ -264,8 +211,42 @@ public class HistoryStatistics {
             report.append("总玩家数: ").append(totalPlayers).append("\n");
             report.append("总会话数: ").append(totalSessions).append("\n");
             report.append("总消息数: ").append(totalMessages).append("\n");
-            // 可以添加更多全局统计信息
+            if (totalTokens > 0) {
+                report.append("Token总数: ").append(totalTokens).append("\n");
+            }
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            if (oldestSession != null) {
+                report.append("最早会话时间: ").append(oldestSession.format(formatter)).append("\n");
+            }
+            if (newestSession != null) {
+                report.append("最近会话时间: ").append(newestSession.format(formatter)).append("\n");
+            }
+
+            if (!templatePopularity.isEmpty()) {
+                report.append("\n模板使用统计:\n");
+                templatePopularity.entrySet().stream()
+                        .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                        .forEach(entry -> report.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append("次\n"));
+            }
+            appendFunctionUsage(report, functionUsage);
             return report.toString();
         }
     }
+
+    private static String maxKey(Map<String, Integer> counts) {
+        return counts.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(null);
+    }
+
+    private static void appendFunctionUsage(StringBuilder report, Map<String, Integer> functionUsage) {
+        if (!functionUsage.isEmpty()) {
+            report.append("\n函数调用统计:\n");
+            functionUsage.entrySet().stream()
+                    .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                    .limit(10)
+                    .forEach(entry -> report.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append("次\n"));
+        }
+    }
 }
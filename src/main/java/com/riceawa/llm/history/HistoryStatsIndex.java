@@ -0,0 +1,408 @@
+package com.riceawa.llm.history;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.logging.LogManager;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 增量维护的聊天统计
+ *
+ * 每个玩家一组累计计数（会话数、各角色消息数、Token、函数调用、模板使用、按日期和小时的活跃度），
+ * 保存会话时只根据这个会话的变化更新计数，查看统计时不再读取历史记录。
+ * 同一会话会被多次保存，因此保留最近会话各自的贡献，再次保存时先减去旧的贡献；
+ * 更早的会话已不会再变化，只计入累计值。超出保留期限或数量上限被删除的会话仍计入累计值。
+ *
+ * 计数保存在一个小文件中。文件不存在时用ForkJoin并行扫描所有玩家的历史记录补齐，
+ * 加载或补齐完成前保存的会话在完成后重新应用（按会话计入，重复应用不会重复计数）。
+ */
+public class HistoryStatsIndex {
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final int MAX_TRACKED_SESSIONS = 100; // 每个玩家保留贡献的最近会话数，与会话数量上限一致
+    private static final int BACKFILL_BATCH_SIZE = 8; // 并行扫描时每个任务处理的玩家数
+
+    private final Path statsFile;
+    private final Gson gson;
+    private final Map<UUID, PlayerEntry> players = new ConcurrentHashMap<>();
+    private final Object stateLock = new Object();
+    private final Object saveLock = new Object(); // 串行写入统计文件，写入期间不阻塞计数更新
+    private final List<ChatHistory.ChatSession> deferredSessions = new ArrayList<>(); // 加载完成前保存的会话
+    private volatile boolean loaded;
+    private boolean loading;
+    private volatile boolean dirty;
+
+    public HistoryStatsIndex(Path statsFile) {
+        this.statsFile = statsFile;
+        this.gson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .create();
+    }
+
+    /**
+     * 加载统计文件；文件不存在或无法读取时从存储后端并行补齐。
+     * 在调用线程上执行，其他线程正在加载时等待其完成
+     */
+    public void load(HistoryStore store) {
+        synchronized (stateLock) {
+            while (loading) {
+                try {
+                    stateLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (loaded) {
+                return;
+            }
+            loading = true;
+        }
+
+        Map<UUID, PlayerEntry> loadedPlayers = null;
+        try {
+            loadedPlayers = readFile();
+            if (loadedPlayers == null) {
+                long startTime = System.currentTimeMillis();
+                List<UUID> playerIds = store.listPlayers();
+                loadedPlayers = ForkJoinPool.commonPool().invoke(new BackfillTask(store, playerIds));
+                dirty = true;
+                LogManager.getInstance().system("Chat statistics backfilled from " + playerIds.size() +
+                        " players in " + (System.currentTimeMillis() - startTime) + "ms");
+            }
+        } finally {
+            synchronized (stateLock) {
+                if (loadedPlayers != null) {
+                    players.putAll(loadedPlayers);
+                    // 按保存顺序重新应用；补齐时已经扫描到的会话按会话计入，不会重复计数
+                    for (ChatHistory.ChatSession session : deferredSessions) {
+                        players.computeIfAbsent(session.getPlayerId(), id -> new PlayerEntry()).apply(session);
+                        dirty = true;
+                    }
+                    deferredSessions.clear();
+                    loaded = true;
+                }
+                loading = false;
+                stateLock.notifyAll();
+            }
+        }
+        save();
+    }
+
+    /**
+     * 根据保存的会话更新计数
+     */
+    public void recordSession(ChatHistory.ChatSession session) {
+        if (!loaded) {
+            synchronized (stateLock) {
+                if (!loaded) {
+                    deferredSessions.add(session);
+                    return;
+                }
+            }
+        }
+        players.computeIfAbsent(session.getPlayerId(), id -> new PlayerEntry()).apply(session);
+        dirty = true;
+    }
+
+    /**
+     * 删除玩家的统计（清除历史记录时调用）
+     */
+    public void clearPlayer(UUID playerId) {
+        if (players.remove(playerId) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * 获取玩家的统计，没有记录时返回空统计
+     */
+    public Counters getPlayerCounters(UUID playerId) {
+        PlayerEntry entry = players.get(playerId);
+        return entry != null ? entry.snapshot() : new Counters();
+    }
+
+    /**
+     * 汇总所有玩家的统计
+     */
+    public Counters getGlobalCounters() {
+        Counters total = new Counters();
+        for (PlayerEntry entry : players.values()) {
+            total.add(entry.snapshot(), 1);
+        }
+        return total;
+    }
+
+    /**
+     * 获取有统计记录的玩家数量
+     */
+    public int getPlayerCount() {
+        return players.size();
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * 有变更时写入统计文件（后台线程或关闭时调用）
+     * 只在复制计数时持有状态锁，写文件期间保存会话不需要等待
+     */
+    public void save() {
+        if (!dirty) {
+            return;
+        }
+        synchronized (saveLock) {
+            StatsFile file = new StatsFile();
+            synchronized (stateLock) {
+                if (!loaded || !dirty) {
+                    return;
+                }
+                dirty = false;
+                file.format = FILE_FORMAT_VERSION;
+                file.players = new HashMap<>();
+                for (Map.Entry<UUID, PlayerEntry> entry : players.entrySet()) {
+                    file.players.put(entry.getKey().toString(), entry.getValue().copy());
+                }
+            }
+
+            Path tempFile = statsFile.resolveSibling(statsFile.getFileName() + ".tmp");
+            try {
+                Files.createDirectories(statsFile.getParent());
+                try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    gson.toJson(file, writer);
+                }
+                Files.move(tempFile, statsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                dirty = true;
+                LogManager.getInstance().error("Failed to save chat statistics", e);
+            }
+        }
+    }
+
+    /**
+     * 读取统计文件
+     *
+     * @return 文件不存在、格式不符或无法读取时返回null
+     */
+    private Map<UUID, PlayerEntry> readFile() {
+        if (!Files.exists(statsFile)) {
+            return null;
+        }
+        try (Reader reader = Files.newBufferedReader(statsFile, StandardCharsets.UTF_8)) {
+            StatsFile file = gson.fromJson(reader, StatsFile.class);
+            if (file == null || file.format != FILE_FORMAT_VERSION || file.players == null) {
+                return null;
+            }
+            Map<UUID, PlayerEntry> result = new HashMap<>();
+            for (Map.Entry<String, PlayerEntry> entry : file.players.entrySet()) {
+                result.put(UUID.fromString(entry.getKey()), entry.getValue());
+            }
+            return result;
+        } catch (IOException | JsonParseException | IllegalArgumentException e) {
+            LogManager.getInstance().error("Failed to load chat statistics, rebuilding", e);
+            return null;
+        }
+    }
+
+    /**
+     * 累计计数；单个会话的贡献也用同样的结构表示
+     */
+    public static class Counters {
+        int sessions;
+        int messages;
+        long tokens;
+        Map<String, Integer> roles = new HashMap<>(); // 角色 -> 消息数
+        Map<String, Integer> functions = new HashMap<>(); // 函数名 -> 调用次数
+        Map<String, Integer> templates = new HashMap<>(); // 模板 -> 会话数
+        Map<String, Integer> daily = new HashMap<>(); // 日期 -> 会话数
+        Map<String, Integer> hourly = new HashMap<>(); // 小时 -> 会话数
+        LocalDateTime firstSession;
+        LocalDateTime lastSession;
+
+        /**
+         * 计算单个会话的贡献
+         */
+        static Counters of(ChatHistory.ChatSession session) {
+            Counters counters = new Counters();
+            counters.sessions = 1;
+            for (LLMMessage message : session.messages) {
+                counters.messages++;
+                increment(counters.roles, message.getRole() != null ? message.getRole().getValue() : "unknown", 1);
+                LLMMessage.MessageMetadata metadata = message.getMetadata();
+                if (metadata != null) {
+                    if (metadata.getTokens() != null) {
+                        counters.tokens += metadata.getTokens();
+                    }
+                    if (metadata.getFunctionCall() != null && metadata.getFunctionCall().getName() != null) {
+                        increment(counters.functions, metadata.getFunctionCall().getName(), 1);
+                    }
+                }
+            }
+            increment(counters.templates, session.getPromptTemplate() != null ? session.getPromptTemplate() : "unknown", 1);
+            LocalDateTime timestamp = session.getTimestamp();
+            if (timestamp != null) {
+                increment(counters.daily, timestamp.toLocalDate().toString(), 1);
+                increment(counters.hourly, String.format("%02d:00", timestamp.getHour()), 1);
+                counters.firstSession = timestamp;
+                counters.lastSession = timestamp;
+            }
+            return counters;
+        }
+
+        /**
+         * 加上（sign为1）或减去（sign为-1）另一组计数；首次和最近时间只会扩展
+         */
+        void add(Counters other, int sign) {
+            sessions += sign * other.sessions;
+            messages += sign * other.messages;
+            tokens += sign * other.tokens;
+            merge(roles, other.roles, sign);
+            merge(functions, other.functions, sign);
+            merge(templates, other.templates, sign);
+            merge(daily, other.daily, sign);
+            merge(hourly, other.hourly, sign);
+            if (sign > 0) {
+                if (other.firstSession != null && (firstSession == null || other.firstSession.isBefore(firstSession))) {
+                    firstSession = other.firstSession;
+                }
+                if (other.lastSession != null && (lastSession == null || other.lastSession.isAfter(lastSession))) {
+                    lastSession = other.lastSession;
+                }
+            }
+        }
+
+        Counters copy() {
+            Counters copy = new Counters();
+            copy.add(this, 1);
+            return copy;
+        }
+
+        private static void merge(Map<String, Integer> target, Map<String, Integer> source, int sign) {
+            if (source == null) {
+                return;
+            }
+            for (Map.Entry<String, Integer> entry : source.entrySet()) {
+                increment(target, entry.getKey(), sign * entry.getValue());
+            }
+        }
+
+        private static void increment(Map<String, Integer> map, String key, int delta) {
+            int value = map.getOrDefault(key, 0) + delta;
+            if (value > 0) {
+                map.put(key, value);
+            } else {
+                map.remove(key);
+            }
+        }
+
+        public int getSessions() { return sessions; }
+        public int getMessages() { return messages; }
+        public long getTokens() { return tokens; }
+        public int getRoleCount(LLMMessage.MessageRole role) { return roles.getOrDefault(role.getValue(), 0); }
+        public Map<String, Integer> getFunctionUsage() { return new HashMap<>(functions); }
+        public Map<String, Integer> getTemplateUsage() { return new HashMap<>(templates); }
+        public Map<String, Integer> getDailyActivity() { return new HashMap<>(daily); }
+        public Map<String, Integer> getHourlyActivity() { return new HashMap<>(hourly); }
+        public LocalDateTime getFirstSession() { return firstSession; }
+        public LocalDateTime getLastSession() { return lastSession; }
+    }
+
+    /**
+     * 玩家的累计计数，以及最近会话各自的贡献
+     */
+    private static class PlayerEntry {
+        Counters totals = new Counters();
+        LinkedHashMap<String, Counters> recentSessions = new LinkedHashMap<>();
+
+        synchronized void apply(ChatHistory.ChatSession session) {
+            Counters contribution = Counters.of(session);
+            Counters previous = recentSessions.remove(session.getSessionId());
+            if (previous != null) {
+                totals.add(previous, -1);
+            }
+            totals.add(contribution, 1);
+            recentSessions.put(session.getSessionId(), contribution);
+            Iterator<String> iterator = recentSessions.keySet().iterator();
+            while (recentSessions.size() > MAX_TRACKED_SESSIONS && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+
+        synchronized Counters snapshot() {
+            return totals.copy();
+        }
+
+        synchronized PlayerEntry copy() {
+            PlayerEntry copy = new PlayerEntry();
+            copy.totals = totals.copy();
+            for (Map.Entry<String, Counters> entry : recentSessions.entrySet()) {
+                copy.recentSessions.put(entry.getKey(), entry.getValue().copy());
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * 并行扫描玩家的历史记录：玩家列表按批次二分，每批在一个任务中依次加载
+     */
+    private static class BackfillTask extends RecursiveTask<Map<UUID, PlayerEntry>> {
+        private final HistoryStore store;
+        private final List<UUID> playerIds;
+
+        BackfillTask(HistoryStore store, List<UUID> playerIds) {
+            this.store = store;
+            this.playerIds = playerIds;
+        }
+
+        @Override
+        protected Map<UUID, PlayerEntry> compute() {
+            if (playerIds.size() > BACKFILL_BATCH_SIZE) {
+                int middle = playerIds.size() / 2;
+                BackfillTask left = new BackfillTask(store, playerIds.subList(0, middle));
+                BackfillTask right = new BackfillTask(store, playerIds.subList(middle, playerIds.size()));
+                left.fork();
+                Map<UUID, PlayerEntry> result = new HashMap<>(right.compute());
+                result.putAll(left.join());
+                return result;
+            }
+
+            Map<UUID, PlayerEntry> result = new HashMap<>();
+            for (UUID playerId : playerIds) {
+                try {
+                    List<ChatHistory.ChatSession> sessions = store.loadPlayerHistory(playerId);
+                    if (sessions.isEmpty()) {
+                        continue;
+                    }
+                    PlayerEntry entry = new PlayerEntry();
+                    for (ChatHistory.ChatSession session : sessions) {
+                        entry.apply(session);
+                    }
+                    result.put(playerId, entry);
+                } catch (Exception e) {
+                    LogManager.getInstance().error("Failed to scan chat history statistics for player " + playerId, e);
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class StatsFile {
+        int format;
+        Map<String, PlayerEntry> players;
+    }
+}
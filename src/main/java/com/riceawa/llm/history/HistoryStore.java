@@ -0,0 +1,185 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.history.ChatHistory.ChatSession;
+import com.riceawa.llm.history.ChatHistory.SearchResult;
+import com.riceawa.llm.history.ChatHistory.SessionInfo;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 历史记录的存储后端
+ *
+ * {@link ChatHistory}负责会话的组装、标题生成和长期记忆索引，读写都委托给存储后端。
+ * 会话列表按时间顺序排列，最新的在最后。写入可以延迟批量进行，但之后的读取必须能看到已保存的内容。
+ */
+public interface HistoryStore {
+
+    /**
+     * 保存会话（新会话或已有会话的新版本）
+     *
+     * @return 是否为新会话
+     */
+    boolean saveSession(ChatSession session);
+
+    /**
+     * 更新会话标题
+     */
+    void updateTitle(UUID playerId, String sessionId, String title);
+
+    /**
+     * 列出玩家的会话（不加载消息）
+     */
+    List<SessionInfo> listSessions(UUID playerId);
+
+    /**
+     * 通过索引获取玩家的会话（索引从1开始，1表示最新的会话）
+     */
+    ChatSession getSessionByIndex(UUID playerId, int index);
+
+    /**
+     * 加载玩家的所有会话（包含消息）
+     */
+    List<ChatSession> loadPlayerHistory(UUID playerId);
+
+    /**
+     * 加载指定时间范围内的会话（包含两端）
+     */
+    List<ChatSession> loadSessionsBetween(UUID playerId, LocalDateTime from, LocalDateTime to);
+
+    /**
+     * 依次读取玩家在时间范围内的会话交给consumer处理，不把所有会话同时保留在内存中（用于导出）
+     *
+     * @param from 起始时间（包含），为null时不限
+     * @param to 结束时间（包含），为null时不限
+     */
+    void forEachSession(UUID playerId, LocalDateTime from, LocalDateTime to, SessionConsumer consumer)
+            throws IOException;
+
+    /**
+     * 搜索玩家的历史记录，返回按相关度排序的会话
+     */
+    List<ChatSession> searchHistory(UUID playerId, String keyword);
+
+    /**
+     * 搜索玩家的历史记录，返回带有命中片段的结果
+     */
+    List<SearchResult> search(UUID playerId, String query, int limit);
+
+    /**
+     * 在所有玩家的历史记录中搜索
+     */
+    List<SearchResult> searchAll(String query, int limit);
+
+    /**
+     * 列出有历史记录的所有玩家
+     */
+    List<UUID> listPlayers();
+
+    /**
+     * 释放玩家的缓存（玩家退出或上下文过期时调用）
+     */
+    void releasePlayer(UUID playerId);
+
+    /**
+     * 删除玩家的所有历史记录
+     */
+    void clearPlayer(UUID playerId);
+
+    /**
+     * 删除早于截止时间的会话并整理玩家的存储（由后台维护任务调用）
+     *
+     * @param cutoff 最后更新时间早于该时间的会话被删除，为null时只整理不删除
+     */
+    MaintenanceResult maintainPlayer(UUID playerId, LocalDateTime cutoff);
+
+    /**
+     * 立即写入所有待写入的变更
+     */
+    void flush();
+
+    /**
+     * 写入剩余的变更并释放资源（服务器关闭时调用）
+     */
+    void shutdown();
+
+    /**
+     * 获取有待写入变更的玩家数量
+     */
+    int getPendingFlushCount();
+
+    /**
+     * 获取积压的待写入记录数
+     */
+    int getPendingRecordCount();
+
+    /**
+     * 获取缓存中的玩家数量，没有缓存的后端返回0
+     */
+    default int getCachedPlayerCount() {
+        return 0;
+    }
+
+    default long getCacheResidentBytes() {
+        return 0;
+    }
+
+    default long getCacheBudgetBytes() {
+        return 0;
+    }
+
+    default double getCacheHitRate() {
+        return 0;
+    }
+
+    default long getCacheEvictionCount() {
+        return 0;
+    }
+
+    /**
+     * 逐个处理会话的回调
+     */
+    @FunctionalInterface
+    interface SessionConsumer {
+        void accept(ChatSession session) throws IOException;
+    }
+
+    /**
+     * 单个玩家的维护结果
+     */
+    class MaintenanceResult {
+        final int removedSessions;
+        final long bytesBefore; // 维护前占用的磁盘空间
+        final long bytesAfter; // 维护后占用的磁盘空间
+        final long ioBytes; // 维护时实际读写的字节数，没有变更时只包含读取的部分
+
+        public MaintenanceResult(int removedSessions, long bytesBefore, long bytesAfter, long ioBytes) {
+            this.removedSessions = removedSessions;
+            this.bytesBefore = bytesBefore;
+            this.bytesAfter = bytesAfter;
+            this.ioBytes = ioBytes;
+        }
+
+        public int getRemovedSessions() {
+            return removedSessions;
+        }
+
+        public long getBytesBefore() {
+            return bytesBefore;
+        }
+
+        public long getBytesAfter() {
+            return bytesAfter;
+        }
+
+        public long getIoBytes() {
+            return ioBytes;
+        }
+
+        public long getReclaimedBytes() {
+            return Math.max(0, bytesBefore - bytesAfter);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.context.ChatContext;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import com.riceawa.llm.logging.LogManager;
+import com.riceawa.llm.util.TextTokenizer;
+
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 长期记忆索引，基于BM25检索玩家过往会话中的相关片段
+ *
+ * 每个玩家一个倒排索引，首次检索时在后台线程从历史记录构建，构建完成前检索不返回记忆，
+ * 不在聊天请求路径上读取历史记录；之后在保存会话时增量更新。
+ * 文档是一问一答的对话片段，以及压缩后的摘要片段；片段数超过上限时淘汰最早的片段。
+ */
+public class MemoryIndex {
+    private static MemoryIndex instance;
+
+    // BM25参数
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final int MAX_SNIPPET_PART_LENGTH = 150; // 片段中问或答的最大字符数
+    private static final int MAX_SUMMARY_CHUNK_LENGTH = 300; // 摘要切块的最大字符数
+    private static final int MAX_DOCUMENTS_PER_PLAYER = 5000; // 超过后淘汰最早的片段
+    private static final int EVICTION_BATCH = MAX_DOCUMENTS_PER_PLAYER / 10; // 每次多淘汰一批，避免每次保存都整理倒排表
+    private static final double MIN_MATCHED_TERM_RATIO = 0.2; // 片段至少命中查询词项的比例，过滤偶然命中
+    private static final double RELATIVE_SCORE_CUTOFF = 0.3; // 其余片段得分不低于最佳片段的该比例
+
+    public static final String MEMORY_HEADER = "=== 相关的历史对话记忆 ===";
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("MM-dd HH:mm");
+
+    private final Map<UUID, PlayerIndex> indexes;
+    private final ExecutorService buildExecutor;
+
+    private MemoryIndex() {
+        this.indexes = new ConcurrentHashMap<>();
+        this.buildExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "LLMChat-MemoryIndex");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    public static MemoryIndex getInstance() {
+        if (instance == null) {
+            synchronized (MemoryIndex.class) {
+                if (instance == null) {
+                    instance = new MemoryIndex();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * 增量索引保存的会话（仅当该玩家的索引已构建完成时；构建中保存的会话在下次保存时补上）
+     */
+    public void indexSession(ChatHistory.ChatSession session) {
+        PlayerIndex index = indexes.get(session.getPlayerId());
+        if (index != null && index.isReady()) {
+            index.addSession(session);
+        }
+    }
+
+    /**
+     * 检索与查询相关的记忆片段，并格式化为系统提示词
+     *
+     * @param excludeSessionId 当前会话ID，其内容已在上下文中，不参与检索
+     * @return 记忆提示词；没有相关记忆或索引尚在构建时返回null
+     */
+    public String buildMemoryPrompt(UUID playerId, String excludeSessionId, String query,
+                                    int topK, int budgetCharacters) {
+        List<String> queryTerms = TextTokenizer.tokenize(query);
+        if (queryTerms.isEmpty() || topK <= 0 || budgetCharacters <= 0) {
+            return null;
+        }
+
+        PlayerIndex index = getIndex(playerId);
+        if (!index.isReady()) {
+            return null;
+        }
+        List<Document> results = index.search(new LinkedHashSet<>(queryTerms), excludeSessionId, topK);
+        if (results.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder prompt = new StringBuilder(MEMORY_HEADER)
+            .append("\n以下是与当前问题可能相关的过往对话片段，仅供参考：\n");
+        int used = 0;
+        int added = 0;
+        for (Document document : results) {
+            String line = "- " + document.label + " " + document.text + "\n";
+            if (used + line.length() > budgetCharacters) {
+                continue;
+            }
+            prompt.append(line);
+            used += line.length();
+            added++;
+        }
+        return added > 0 ? prompt.toString() : null;
+    }
+
+    /**
+     * 释放玩家的索引（下次检索时重建）
+     */
+    public void releasePlayer(UUID playerId) {
+        indexes.remove(playerId);
+    }
+
+    /**
+     * 获取已构建索引的玩家数量（不包含正在构建的）
+     */
+    public int getIndexedPlayerCount() {
+        int count = 0;
+        for (PlayerIndex index : indexes.values()) {
+            if (index.isReady()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 获取玩家的索引，尚未构建时提交后台构建并返回未就绪的索引
+     */
+    private PlayerIndex getIndex(UUID playerId) {
+        PlayerIndex index = indexes.get(playerId);
+        if (index != null) {
+            return index;
+        }
+        PlayerIndex created = new PlayerIndex();
+        index = indexes.putIfAbsent(playerId, created);
+        if (index != null) {
+            return index;
+        }
+        try {
+            buildExecutor.execute(() -> build(playerId, created));
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            indexes.remove(playerId, created);
+        }
+        return created;
+    }
+
+    private void build(UUID playerId, PlayerIndex index) {
+        try {
+            // 历史记录按时间从旧到新排列，淘汰时先淘汰最早的片段
+            for (ChatHistory.ChatSession session : ChatHistory.getInstance().loadPlayerHistory(playerId)) {
+                index.addSession(session);
+            }
+            index.markReady();
+        } catch (Exception e) {
+            // 构建失败时移除，下次检索时重试
+            indexes.remove(playerId, index);
+            LogManager.getInstance().error("Failed to build memory index for player " + playerId, e);
+        }
+    }
+
+    /**
+     * 索引中的文档（一段对话片段）
+     */
+    private static class Document {
+        final String key;
+        final String sessionId;
+        final String label;
+        final String text;
+        final int length;
+
+        Document(String key, String sessionId, String label, String text, int length) {
+            this.key = key;
+            this.sessionId = sessionId;
+            this.label = label;
+            this.text = text;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 倒排表项（document为文档编号，淘汰后不复用）
+     */
+    private static class Posting {
+        final int document;
+        final int frequency;
+
+        Posting(int document, int frequency) {
+            this.document = document;
+            this.frequency = frequency;
+        }
+    }
+
+    /**
+     * 单个玩家的BM25倒排索引
+     *
+     * 文档按加入顺序编号，documents中第i个文档的编号为firstDocumentId + i；
+     * 倒排表按编号递增排列，淘汰最早的文档时只需截掉各倒排表的开头。
+     */
+    private static class PlayerIndex {
+        private final Set<String> indexedKeys = new HashSet<>();
+        private final List<Document> documents = new ArrayList<>();
+        private final Map<String, List<Posting>> postings = new HashMap<>();
+        private int firstDocumentId = 0;
+        private long totalLength = 0;
+        private volatile boolean ready;
+
+        boolean isReady() {
+            return ready;
+        }
+
+        void markReady() {
+            ready = true;
+        }
+
+        /**
+         * 索引会话中尚未索引的消息
+         */
+        synchronized void addSession(ChatHistory.ChatSession session) {
+            List<LLMMessage> messages = session.getMessages();
+            if (messages == null) {
+                return;
+            }
+            String label = session.getTimestamp() != null ?
+                "[" + session.getTimestamp().format(DATE_FORMATTER) + "]" : "";
+
+            for (int i = 0; i < messages.size(); i++) {
+                LLMMessage message = messages.get(i);
+                if (message.getContent() == null || message.getContent().isEmpty()) {
+                    continue;
+                }
+
+                if (ChatContext.isSummaryMessage(message)) {
+                    addSummary(session.getSessionId(), label, message);
+                } else if (message.getRole() == MessageRole.USER) {
+                    // 一问一答作为一个片段；回答还未生成时等下次保存再索引
+                    LLMMessage reply = findReply(messages, i);
+                    if (reply != null) {
+                        String text = "用户: " + truncate(message.getContent()) +
+                            " / 助手: " + truncate(reply.getContent());
+                        addDocument(message.getId(), session.getSessionId(), label,
+                            text, message.getContent() + "\n" + reply.getContent());
+                    }
+                }
+            }
+            if (documents.size() > MAX_DOCUMENTS_PER_PLAYER) {
+                evictOldest(documents.size() - MAX_DOCUMENTS_PER_PLAYER + EVICTION_BATCH);
+            }
+        }
+
+        /**
+         * 淘汰最早加入的count个文档
+         */
+        private void evictOldest(int count) {
+            List<Document> evicted = documents.subList(0, count);
+            for (Document document : evicted) {
+                indexedKeys.remove(document.key);
+                totalLength -= document.length;
+            }
+            evicted.clear();
+            firstDocumentId += count;
+
+            Iterator<List<Posting>> iterator = postings.values().iterator();
+            while (iterator.hasNext()) {
+                List<Posting> list = iterator.next();
+                int removed = 0;
+                while (removed < list.size() && list.get(removed).document < firstDocumentId) {
+                    removed++;
+                }
+                if (removed == list.size()) {
+                    iterator.remove();
+                } else if (removed > 0) {
+                    list.subList(0, removed).clear();
+                }
+            }
+        }
+
+        private void addSummary(String sessionId, String label, LLMMessage message) {
+            StringBuilder chunk = new StringBuilder();
+            int chunkIndex = 0;
+            for (String sentence : TextTokenizer.splitSentences(message.getContent())) {
+                if (sentence.startsWith(ChatContext.SUMMARY_HEADER) || sentence.startsWith(ChatContext.SUMMARY_FOOTER)) {
+                    continue;
+                }
+                if (chunk.length() > 0 && chunk.length() + sentence.length() > MAX_SUMMARY_CHUNK_LENGTH) {
+                    addDocument(message.getId() + "#" + chunkIndex++, sessionId, label, "此前摘要: " + chunk, chunk.toString());
+                    chunk.setLength(0);
+                }
+                chunk.append(sentence);
+            }
+            if (chunk.length() > 0) {
+                addDocument(message.getId() + "#" + chunkIndex, sessionId, label, "此前摘要: " + chunk, chunk.toString());
+            }
+        }
+
+        private void addDocument(String key, String sessionId, String label, String text, String indexedText) {
+            if (indexedKeys.contains(key)) {
+                return;
+            }
+
+            Map<String, Integer> frequencies = new HashMap<>();
+            for (String term : TextTokenizer.tokenize(indexedText)) {
+                frequencies.merge(term, 1, Integer::sum);
+            }
+            if (frequencies.isEmpty()) {
+                return;
+            }
+            indexedKeys.add(key);
+
+            int length = 0;
+            for (int frequency : frequencies.values()) {
+                length += frequency;
+            }
+
+            int documentId = firstDocumentId + documents.size();
+            documents.add(new Document(key, sessionId, label, text, length));
+            totalLength += length;
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), k -> new ArrayList<>())
+                    .add(new Posting(documentId, entry.getValue()));
+            }
+        }
+
+        synchronized List<Document> search(Set<String> queryTerms, String excludeSessionId, int topK) {
+            int documentCount = documents.size();
+            if (documentCount == 0) {
+                return Collections.emptyList();
+            }
+            double averageLength = (double) totalLength / documentCount;
+
+            Map<Integer, Double> scores = new HashMap<>();
+            Map<Integer, Integer> matchedTerms = new HashMap<>();
+            for (String term : queryTerms) {
+                List<Posting> list = postings.get(term);
+                if (list == null) {
+                    continue;
+                }
+                double idf = Math.log(1 + (documentCount - list.size() + 0.5) / (list.size() + 0.5));
+                for (Posting posting : list) {
+                    Document document = documents.get(posting.document - firstDocumentId);
+                    if (document.sessionId.equals(excludeSessionId)) {
+                        continue;
+                    }
+                    double norm = posting.frequency + K1 * (1 - B + B * document.length / averageLength);
+                    double score = idf * posting.frequency * (K1 + 1) / norm;
+                    scores.merge(posting.document, score, Double::sum);
+                    matchedTerms.merge(posting.document, 1, Integer::sum);
+                }
+            }
+
+            int minMatchedTerms = Math.max(1, (int) Math.ceil(queryTerms.size() * MIN_MATCHED_TERM_RATIO));
+            List<Map.Entry<Integer, Double>> ranked = new ArrayList<>();
+            for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+                if (matchedTerms.get(entry.getKey()) >= minMatchedTerms) {
+                    ranked.add(entry);
+                }
+            }
+            if (ranked.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            ranked.sort(Map.Entry.<Integer, Double>comparingByValue().reversed());
+            double bestScore = ranked.get(0).getValue();
+
+            List<Document> results = new ArrayList<>();
+            for (Map.Entry<Integer, Double> entry : ranked) {
+                if (results.size() >= topK || entry.getValue() < bestScore * RELATIVE_SCORE_CUTOFF) {
+                    break;
+                }
+                results.add(documents.get(entry.getKey() - firstDocumentId));
+            }
+            return results;
+        }
+
+        private static LLMMessage findReply(List<LLMMessage> messages, int userIndex) {
+            for (int i = userIndex + 1; i < messages.size(); i++) {
+                LLMMessage message = messages.get(i);
+                if (message.getRole() == MessageRole.USER) {
+                    return null;
+                }
+                if (message.getRole() == MessageRole.ASSISTANT &&
+                    message.getContent() != null && !message.getContent().isEmpty()) {
+                    return message;
+                }
+            }
+            return null;
+        }
+
+        private static String truncate(String text) {
+            String singleLine = text.replace('\n', ' ').trim();
+            return singleLine.length() > MAX_SNIPPET_PART_LENGTH ?
+                singleLine.substring(0, MAX_SNIPPET_PART_LENGTH) + "..." : singleLine;
+        }
+    }
+}
@@ -1,176 +1,278 @@
 package com.riceawa.llm.logging;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.*;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Stream;
 import java.util.zip.GZIPOutputStream;
-import java.io.FileOutputStream;
-import java.io.FileInputStream;
 
 /**
  * 文件轮转管理器
+ *
+ * 轮转时只把当前文件改名，写入方随即打开新文件继续写；压缩和清理旧文件交给后台线程。
+ * 已轮转的文件保存在内存索引中（启动时扫描一次目录），清理时不需要重新列出目录。
  */
 public class FileRotationManager {
+    private static final int COMPRESS_BUFFER_SIZE = 64 * 1024;
+    private static final String ROTATED_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".log.gz";
+
     private final Path logDirectory;
     private final LogConfig config;
     private final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private final ExecutorService backgroundExecutor;
+
+    // 各日志的已轮转文件，按轮转时间从旧到新排列，由自身锁保护
+    private final Map<String, List<RotatedFile>> rotatedFiles = new HashMap<>();
 
     public FileRotationManager(Path logDirectory, LogConfig config) {
         this.logDirectory = logDirectory;
         this.config = config;
-        
+        this.backgroundExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "LLMChat-LogRotation");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+
         try {
             Files.createDirectories(logDirectory);
         } catch (IOException e) {
             throw new RuntimeException("Failed to create log directory: " + logDirectory, e);
         }
+
+        loadIndex();
     }
 
     /**
-     * 检查文件是否需要轮转
+     * 执行文件轮转：把当前文件改名后立即返回，压缩和清理在后台进行
+     *
+     * @return 轮转后的文件；文件不存在时返回null
      */
-    public boolean shouldRotate(Path logFile) {
+    public Path rotateFile(Path logFile) throws IOException {
         if (!Files.exists(logFile)) {
-            return false;
+            return null;
+        }
+
+        String baseName = getBaseName(logFile);
+        LocalDateTime now = LocalDateTime.now();
+        String timestamp = now.format(dateFormatter);
+        Path rotatedFile = logDirectory.resolve(baseName + "." + timestamp + ROTATED_SUFFIX);
+        // 同一秒内多次轮转时追加序号
+        for (int i = 1; Files.exists(rotatedFile) || Files.exists(compressedPath(rotatedFile)); i++) {
+            rotatedFile = logDirectory.resolve(baseName + "." + timestamp + "-" + i + ROTATED_SUFFIX);
+        }
+
+        Files.move(logFile, rotatedFile);
+
+        RotatedFile rotated = new RotatedFile(rotatedFile, now);
+        synchronized (rotatedFiles) {
+            rotatedFiles.computeIfAbsent(baseName, k -> new ArrayList<>()).add(rotated);
         }
-        
+
+        submit(() -> {
+            compressFile(rotated);
+            cleanupOldFiles(baseName);
+        });
+        return rotatedFile;
+    }
+
+    /**
+     * 获取已轮转的文件，按轮转时间从旧到新排列（不包含当前正在写入的文件）
+     */
+    public List<Path> getRotatedFiles(String baseName) {
+        synchronized (rotatedFiles) {
+            List<RotatedFile> files = rotatedFiles.get(baseName);
+            if (files == null) {
+                return Collections.emptyList();
+            }
+            List<Path> paths = new ArrayList<>(files.size());
+            for (RotatedFile file : files) {
+                paths.add(file.path);
+            }
+            return paths;
+        }
+    }
+
+    /**
+     * 等待后台的压缩和清理任务完成后停止
+     */
+    public void shutdown() {
+        backgroundExecutor.shutdown();
         try {
-            long fileSize = Files.size(logFile);
-            return fileSize >= config.getMaxFileSize();
-        } catch (IOException e) {
-            return false;
+            if (!backgroundExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                backgroundExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            backgroundExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * 执行文件轮转
+     * 启动时扫描一次目录建立索引，并在后台补做上次未完成的压缩
      */
-    public void rotateFile(Path logFile) throws IOException {
-        if (!Files.exists(logFile)) {
-            return;
+    private void loadIndex() {
+        List<RotatedFile> uncompressed = new ArrayList<>();
+        try (Stream<Path> files = Files.list(logDirectory)) {
+            files.forEach(file -> {
+                String fileName = file.getFileName().toString();
+                String suffix = fileName.endsWith(COMPRESSED_SUFFIX) ? COMPRESSED_SUFFIX :
+                        fileName.endsWith(ROTATED_SUFFIX) ? ROTATED_SUFFIX : null;
+                if (suffix == null) {
+                    return;
+                }
+                String stem = fileName.substring(0, fileName.length() - suffix.length());
+                int dot = stem.indexOf('.');
+                if (dot <= 0) {
+                    return; // 当前正在写入的文件
+                }
+                if (suffix.equals(ROTATED_SUFFIX) && Files.exists(compressedPath(file))) {
+                    // 压缩文件先写临时文件再改名，存在即已完整；原文件在删除前中断，在后台删除
+                    submit(() -> deleteStaleFile(file));
+                    return;
+                }
+
+                RotatedFile rotated = new RotatedFile(file, parseRotationTime(file, stem.substring(dot + 1)));
+                rotatedFiles.computeIfAbsent(stem.substring(0, dot), k -> new ArrayList<>()).add(rotated);
+                if (suffix.equals(ROTATED_SUFFIX)) {
+                    uncompressed.add(rotated);
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to index rotated log files: " + e.getMessage());
         }
 
-        String baseName = getBaseName(logFile);
-        String timestamp = LocalDateTime.now().format(dateFormatter);
-        Path rotatedFile = logDirectory.resolve(baseName + "." + timestamp + ".log");
-        
-        // 移动当前文件到轮转文件
-        Files.move(logFile, rotatedFile);
-        
-        // 压缩轮转的文件
-        compressFile(rotatedFile);
-        
-        // 清理旧文件
-        cleanupOldFiles(baseName);
+        for (List<RotatedFile> files : rotatedFiles.values()) {
+            files.sort((a, b) -> a.rotatedAt.compareTo(b.rotatedAt));
+        }
+        for (RotatedFile rotated : uncompressed) {
+            submit(() -> compressFile(rotated));
+        }
+        for (String baseName : new ArrayList<>(rotatedFiles.keySet())) {
+            submit(() -> cleanupOldFiles(baseName));
+        }
+    }
+
+    private LocalDateTime parseRotationTime(Path file, String timestamp) {
+        int dash = timestamp.indexOf('-', 9); // 去掉同一秒内轮转的序号
+        String value = dash > 0 ? timestamp.substring(0, dash) : timestamp;
+        try {
+            return LocalDateTime.parse(value, dateFormatter);
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDateTime.ofInstant(Files.getLastModifiedTime(file).toInstant(), ZoneId.systemDefault());
+            } catch (IOException ex) {
+                return LocalDateTime.MIN;
+            }
+        }
+    }
+
+    private void submit(Runnable task) {
+        try {
+            backgroundExecutor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    System.err.println("Log rotation task failed: " + e.getMessage());
+                }
+            });
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // 已关闭，剩余的文件在下次启动时处理
+        }
     }
 
     /**
-     * 压缩文件
+     * 压缩文件：先写入临时文件再改名，压缩失败时保留原始文件
      */
-    private void compressFile(Path file) {
-        Path compressedFile = Paths.get(file.toString() + ".gz");
-        
-        try (FileInputStream fis = new FileInputStream(file.toFile());
-             FileOutputStream fos = new FileOutputStream(compressedFile.toFile());
-             GZIPOutputStream gzos = new GZIPOutputStream(fos)) {
-            
-            byte[] buffer = new byte[8192];
-            int len;
-            while ((len = fis.read(buffer)) != -1) {
-                gzos.write(buffer, 0, len);
+    private void compressFile(RotatedFile rotated) {
+        Path file = rotated.path;
+        Path compressedFile = compressedPath(file);
+        Path tempFile = Paths.get(compressedFile.toString() + ".tmp");
+        if (!Files.exists(file)) {
+            return; // 排队期间已被清理
+        }
+
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile);
+                 GZIPOutputStream gzos = new GZIPOutputStream(out, COMPRESS_BUFFER_SIZE)) {
+                Files.copy(file, gzos);
+            }
+            Files.move(tempFile, compressedFile, StandardCopyOption.REPLACE_EXISTING);
+
+            synchronized (rotatedFiles) {
+                rotated.path = compressedFile;
             }
-            
             // 删除原始文件
             Files.deleteIfExists(file);
-            
+
         } catch (IOException e) {
             // 如果压缩失败，保留原始文件
             System.err.println("Failed to compress log file: " + file + ", error: " + e.getMessage());
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException ignored) {
+                // 忽略删除错误
+            }
         }
     }
 
     /**
-     * 清理旧的日志文件
+     * 删除已压缩完成但未删除的原日志文件
      */
-    private void cleanupOldFiles(String baseName) {
+    private void deleteStaleFile(Path file) {
         try {
-            List<Path> oldFiles = getOldLogFiles(baseName);
-            
-            // 按修改时间排序，保留最新的文件
-            oldFiles.sort((a, b) -> {
-                try {
-                    return Files.getLastModifiedTime(b).compareTo(Files.getLastModifiedTime(a));
-                } catch (IOException e) {
-                    return 0;
-                }
-            });
-            
-            // 删除超过保留数量的文件
-            if (oldFiles.size() > config.getMaxBackupFiles()) {
-                for (int i = config.getMaxBackupFiles(); i < oldFiles.size(); i++) {
-                    try {
-                        Files.deleteIfExists(oldFiles.get(i));
-                    } catch (IOException e) {
-                        System.err.println("Failed to delete old log file: " + oldFiles.get(i));
-                    }
-                }
-            }
-            
-            // 删除超过保留天数的文件
-            cleanupByRetentionDays(baseName);
-            
+            Files.deleteIfExists(file);
         } catch (IOException e) {
-            System.err.println("Failed to cleanup old log files: " + e.getMessage());
+            System.err.println("Failed to delete compressed log file: " + file + ", error: " + e.getMessage());
         }
     }
 
     /**
-     * 根据保留天数清理文件
+     * 按内存索引清理旧的日志文件：超过保留数量或保留天数的文件被删除
      */
-    private void cleanupByRetentionDays(String baseName) throws IOException {
+    private void cleanupOldFiles(String baseName) {
         LocalDateTime cutoffDate = LocalDateTime.now().minusDays(config.getRetentionDays());
-        
-        try (Stream<Path> files = Files.list(logDirectory)) {
-            files.filter(file -> {
-                String fileName = file.getFileName().toString();
-                return fileName.startsWith(baseName + ".") && 
-                       (fileName.endsWith(".log") || fileName.endsWith(".log.gz"));
-            }).forEach(file -> {
-                try {
-                    LocalDateTime fileTime = Files.getLastModifiedTime(file)
-                            .toInstant()
-                            .atZone(java.time.ZoneId.systemDefault())
-                            .toLocalDateTime();
-                    
-                    if (fileTime.isBefore(cutoffDate)) {
-                        Files.deleteIfExists(file);
-                    }
-                } catch (IOException e) {
-                    System.err.println("Failed to check/delete old log file: " + file);
+        List<RotatedFile> expired = new ArrayList<>();
+
+        synchronized (rotatedFiles) {
+            List<RotatedFile> files = rotatedFiles.get(baseName);
+            if (files == null) {
+                return;
+            }
+            int excess = files.size() - config.getMaxBackupFiles();
+            for (int i = 0; i < files.size(); i++) {
+                RotatedFile file = files.get(i);
+                if (i < excess || file.rotatedAt.isBefore(cutoffDate)) {
+                    expired.add(file);
                 }
-            });
+            }
+            files.removeAll(expired);
         }
-    }
 
-    /**
-     * 获取旧的日志文件列表
-     */
-    private List<Path> getOldLogFiles(String baseName) throws IOException {
-        List<Path> oldFiles = new ArrayList<>();
-        
-        try (Stream<Path> files = Files.list(logDirectory)) {
-            files.filter(file -> {
-                String fileName = file.getFileName().toString();
-                return fileName.startsWith(baseName + ".") && 
-                       (fileName.endsWith(".log") || fileName.endsWith(".log.gz"));
-            }).forEach(oldFiles::add);
+        for (RotatedFile file : expired) {
+            try {
+                Files.deleteIfExists(file.path);
+            } catch (IOException e) {
+                System.err.println("Failed to delete old log file: " + file.path);
+            }
         }
-        
-        return oldFiles;
+    }
+
+    private static Path compressedPath(Path rotatedFile) {
+        return Paths.get(rotatedFile.toString() + ".gz");
     }
 
     /**
@@ -192,4 +294,17 @@ public class FileRotationManager {
         }
         return logFile;
     }
+
+    /**
+     * 索引中的已轮转文件
+     */
+    private static class RotatedFile {
+        Path path; // 压缩完成后指向.gz文件
+        final LocalDateTime rotatedAt;
+
+        RotatedFile(Path path, LocalDateTime rotatedAt) {
+            this.path = path;
+            this.rotatedAt = rotatedAt;
+        }
+    }
 }
@@ -26,6 +26,13 @@ public class LLMLogUtils {
             .setPrettyPrinting()
             .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
             .create();
+
+    // 写入日志文件的条目不使用缩进，每条占一行
+    private static final Gson COMPACT_GSON = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+            .create();
+
+    private static final LLMRequestDeltaTracker DELTA_TRACKER = new LLMRequestDeltaTracker();
     
     private static final Pattern API_KEY_PATTERN = Pattern.compile("Bearer\\s+([a-zA-Z0-9\\-_]+)", Pattern.CASE_INSENSITIVE);
     private static final String MASKED_API_KEY = "Bearer ***MASKED***";
@@ -58,16 +65,38 @@ public class LLMLogUtils {
     
     /**
      * 记录LLM请求日志
+     * 开启增量记录时，同一会话的请求只记录相对上一个请求新增的消息
      */
     public static void logRequest(LLMRequestLogEntry requestLog) {
-        LogManager.getInstance().llmRequest("LLM Request", requestLog.toJsonString());
+        LogManager logManager = LogManager.getInstance();
+        if (!logManager.getConfig().isLlmRequestDeltaLogging()) {
+            logManager.llmRequest("LLM Request", toCompactJsonString(requestLog));
+            return;
+        }
+        LLMRequestDeltaTracker.Pending pending =
+                DELTA_TRACKER.prepare(requestLog, logManager.getRotationCount("llm_request"));
+        // 被过滤或因队列满被丢弃的请求不作为后续增量的基准
+        if (logManager.llmRequest("LLM Request", toCompactJsonString(pending.getEntry()))) {
+            DELTA_TRACKER.commit(pending);
+        }
     }
     
     /**
      * 记录LLM响应日志
      */
     public static void logResponse(LLMResponseLogEntry responseLog) {
-        LogManager.getInstance().llmRequest("LLM Response", responseLog.toJsonString());
+        LogManager.getInstance().llmRequest("LLM Response", toCompactJsonString(responseLog));
+    }
+
+    /**
+     * 转换为不带缩进的单行JSON字符串
+     */
+    static String toCompactJsonString(Object obj) {
+        try {
+            return COMPACT_GSON.toJson(obj);
+        } catch (Exception e) {
+            return "{\"error\":\"Failed to serialize to JSON: " + e.getMessage() + "\"}";
+        }
     }
     
     /**
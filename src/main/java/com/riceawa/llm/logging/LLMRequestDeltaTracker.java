@@ -0,0 +1,254 @@
+package com.riceawa.llm.logging;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.riceawa.llm.core.LLMMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 请求日志的增量记录
+ *
+ * 按会话记住上一个请求中每条消息的前缀哈希。新请求与上一个请求共享的前缀消息不再写入日志，
+ * 只记录上一个请求的ID、共享消息数和共享前缀的哈希，日志量随对话长度线性增长。
+ * 前缀哈希是链式的：第i个哈希覆盖前i条消息，比较一个哈希即可确定整段前缀是否相同。
+ * 与上一个请求ID和内容都相同的前缀消息沿用上一个请求的哈希，每个请求只对新增的消息计算哈希。
+ *
+ * 增量链中任何一环丢失，之后的请求都无法还原，因此：
+ * - 日志被日志管理器接受后才调用commit推进会话状态，被过滤或丢弃的请求不会成为后续增量的基准；
+ * - 每个会话每隔FULL_ENTRY_INTERVAL个增量记录一次完整请求，日志文件轮转后的第一个请求也完整记录，
+ *   删除旧日志文件不会影响新文件中请求的还原。
+ */
+class LLMRequestDeltaTracker {
+    private static final int MAX_SESSIONS = 256;
+    static final int FULL_ENTRY_INTERVAL = 16;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final HexFormat HEX = HexFormat.of();
+
+    // 最近使用的会话，超出上限时淘汰最久未用的（被淘汰会话的下一个请求记录完整内容）
+    private final Map<String, SessionState> sessions = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SessionState> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+
+    /**
+     * 转换为增量条目，不改变会话状态；没有会话、首个请求、前缀完全不同或需要定期完整记录时返回原条目
+     *
+     * @param fileGeneration 请求日志文件的轮转次数，与基准请求写入时不同说明已换了新文件
+     */
+    Pending prepare(LLMRequestLogEntry entry, long fileGeneration) {
+        String sessionId = entry.getSessionId();
+        if (sessionId == null || entry.getRawRequestJson() == null || entry.getMessages() == null) {
+            return new Pending(entry, null, null);
+        }
+
+        JsonObject rawRequest;
+        try {
+            JsonElement element = JsonParser.parseString(entry.getRawRequestJson());
+            if (!element.isJsonObject()) {
+                return new Pending(entry, null, null);
+            }
+            rawRequest = element.getAsJsonObject();
+        } catch (Exception e) {
+            return new Pending(entry, null, null);
+        }
+        JsonElement messagesElement = rawRequest.get("messages");
+        if (messagesElement == null || !messagesElement.isJsonArray() ||
+                messagesElement.getAsJsonArray().size() != entry.getMessages().size()) {
+            return new Pending(entry, null, null);
+        }
+        JsonArray messages = messagesElement.getAsJsonArray();
+
+        SessionState previous;
+        synchronized (sessions) {
+            previous = sessions.get(sessionId);
+        }
+        List<LLMMessage> entryMessages = entry.getMessages();
+        String[] messageIds = new String[entryMessages.size()];
+        int[] fingerprints = new int[entryMessages.size()];
+        for (int i = 0; i < messageIds.length; i++) {
+            messageIds[i] = entryMessages.get(i).getId();
+            fingerprints[i] = fingerprint(entryMessages.get(i));
+        }
+        int unchanged = previous != null ? unchangedPrefixLength(previous, messageIds, fingerprints) : 0;
+        String[] hashes = prefixHashes(messages, previous != null ? previous.hashes : null, unchanged);
+        SessionState full = new SessionState(entry.getRequestId(), messageIds, fingerprints, hashes, fileGeneration, 0);
+
+        if (previous == null || previous.fileGeneration != fileGeneration) {
+            return new Pending(entry, sessionId, full);
+        }
+
+        String previousRequestId;
+        int shared;
+        SessionState next;
+        if (previous.requestId.equals(entry.getRequestId())) {
+            // 重试同一个请求：只记录一条引用自身的空增量，还原时以首次记录为准
+            previousRequestId = entry.getRequestId();
+            shared = hashes.length;
+            next = null;
+        } else {
+            if (previous.deltasSinceFull >= FULL_ENTRY_INTERVAL) {
+                return new Pending(entry, sessionId, full);
+            }
+            previousRequestId = previous.requestId;
+            shared = sharedPrefixLength(previous.hashes, hashes);
+            next = new SessionState(entry.getRequestId(), messageIds, fingerprints, hashes, fileGeneration,
+                    previous.deltasSinceFull + 1);
+        }
+        if (shared == 0) {
+            return new Pending(entry, sessionId, full);
+        }
+
+        JsonArray newMessages = new JsonArray();
+        for (int i = shared; i < messages.size(); i++) {
+            newMessages.add(messages.get(i));
+        }
+        rawRequest.add("messages", newMessages);
+        return new Pending(entry.toDelta(previousRequestId, shared, hashes[shared - 1], rawRequest.toString()),
+                sessionId, next);
+    }
+
+    /**
+     * 日志已被接受写入，把该请求作为会话后续增量的基准
+     */
+    void commit(Pending pending) {
+        if (pending.sessionId == null || pending.nextState == null) {
+            return;
+        }
+        synchronized (sessions) {
+            sessions.put(pending.sessionId, pending.nextState);
+        }
+    }
+
+    /**
+     * 清除所有会话状态
+     */
+    void reset() {
+        synchronized (sessions) {
+            sessions.clear();
+        }
+    }
+
+    /**
+     * 计算链式前缀哈希，结果的第i项覆盖前i+1条消息
+     */
+    static String[] prefixHashes(JsonArray messages) {
+        return prefixHashes(messages, null, 0);
+    }
+
+    /**
+     * 计算链式前缀哈希，前reused项沿用已有的哈希，只对之后的消息计算
+     */
+    private static String[] prefixHashes(JsonArray messages, String[] reusedHashes, int reused) {
+        String[] hashes = new String[messages.size()];
+        if (reused > 0) {
+            System.arraycopy(reusedHashes, 0, hashes, 0, reused);
+        }
+        if (reused == hashes.length) {
+            return hashes;
+        }
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] previous = reused > 0 ? HEX.parseHex(hashes[reused - 1]) : new byte[0];
+        for (int i = reused; i < hashes.length; i++) {
+            digest.update(previous);
+            digest.update(messages.get(i).toString().getBytes(StandardCharsets.UTF_8));
+            previous = digest.digest();
+            hashes[i] = HEX.formatHex(previous);
+        }
+        return hashes;
+    }
+
+    /**
+     * 与上一个请求ID和内容都相同的前缀消息数，这些消息序列化后的请求内容也相同
+     * 同一条消息的副本可能被替换了内容（如过时的工具结果被压缩），因此除ID外还要比较内容
+     */
+    private static int unchangedPrefixLength(SessionState previous, String[] messageIds, int[] fingerprints) {
+        int limit = Math.min(previous.messageIds.length, messageIds.length);
+        int length = 0;
+        while (length < limit && messageIds[length] != null &&
+               messageIds[length].equals(previous.messageIds[length]) &&
+               fingerprints[length] == previous.fingerprints[length]) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 消息中会写入请求的可变部分的指纹；字符串缓存了哈希值，同一条消息重复计算的开销很小
+     */
+    private static int fingerprint(LLMMessage message) {
+        return Objects.hash(message.getContent(), message.getName(), message.getToolCallId());
+    }
+
+    /**
+     * 两个请求相同的前缀消息数；链式哈希在某一位相同意味着之前的全部相同，因此可以二分查找
+     */
+    static int sharedPrefixLength(String[] previous, String[] current) {
+        int low = 0;
+        int high = Math.min(previous.length, current.length);
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (previous[mid - 1].equals(current[mid - 1])) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * 待写入的请求日志，写入成功后交给commit
+     */
+    static class Pending {
+        private final LLMRequestLogEntry entry;
+        private final String sessionId;
+        private final SessionState nextState; // 为null时不改变会话状态
+
+        private Pending(LLMRequestLogEntry entry, String sessionId, SessionState nextState) {
+            this.entry = entry;
+            this.sessionId = sessionId;
+            this.nextState = nextState;
+        }
+
+        LLMRequestLogEntry getEntry() {
+            return entry;
+        }
+    }
+
+    private static class SessionState {
+        final String requestId;
+        final String[] messageIds;
+        final int[] fingerprints;
+        final String[] hashes;
+        final long fileGeneration; // 上一次完整记录时日志文件的轮转次数
+        final int deltasSinceFull;
+
+        SessionState(String requestId, String[] messageIds, int[] fingerprints, String[] hashes,
+                     long fileGeneration, int deltasSinceFull) {
+            this.requestId = requestId;
+            this.messageIds = messageIds;
+            this.fingerprints = fingerprints;
+            this.hashes = hashes;
+            this.fileGeneration = fileGeneration;
+            this.deltasSinceFull = deltasSinceFull;
+        }
+    }
+}
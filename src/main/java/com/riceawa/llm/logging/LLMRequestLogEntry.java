@@ -6,13 +6,15 @@ import com.riceawa.llm.core.LLMMessage;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
 /**
  * LLM请求日志条目
- * 记录完整的LLM API请求信息
+ * 记录LLM API请求信息。增量条目只包含相对同一会话上一个请求新增的消息，
+ * 完整请求由{@link LLMRequestLogReconstructor}沿previous_request_id还原。
  */
 public class LLMRequestLogEntry {
     @SerializedName("request_id")
@@ -21,6 +23,18 @@ public class LLMRequestLogEntry {
     @SerializedName("timestamp")
     private final LocalDateTime timestamp;
     
+    @SerializedName("session_id")
+    private final String sessionId;
+
+    @SerializedName("previous_request_id")
+    private final String previousRequestId; // 增量条目引用的上一个请求，完整条目为null
+
+    @SerializedName("shared_prefix_count")
+    private final Integer sharedPrefixCount; // 与上一个请求相同、未重复记录的前缀消息数
+
+    @SerializedName("shared_prefix_hash")
+    private final String sharedPrefixHash; // 共享前缀的内容哈希，还原时用于校验
+
     @SerializedName("player_name")
     private final String playerName;
     
@@ -60,6 +74,10 @@ public class LLMRequestLogEntry {
     private LLMRequestLogEntry(Builder builder) {
         this.requestId = builder.requestId;
         this.timestamp = builder.timestamp != null ? builder.timestamp : LocalDateTime.now();
+        this.sessionId = builder.sessionId;
+        this.previousRequestId = null;
+        this.sharedPrefixCount = null;
+        this.sharedPrefixHash = null;
         this.playerName = builder.playerName;
         this.playerUuid = builder.playerUuid;
         this.serviceName = builder.serviceName;
@@ -74,9 +92,50 @@ public class LLMRequestLogEntry {
         this.metadata = new HashMap<>(builder.metadata);
     }
 
+    /**
+     * 创建增量条目，共享前缀中的消息不再记录
+     */
+    private LLMRequestLogEntry(LLMRequestLogEntry full, String previousRequestId, int sharedPrefixCount,
+                               String sharedPrefixHash, String rawRequestJson) {
+        this.requestId = full.requestId;
+        this.timestamp = full.timestamp;
+        this.sessionId = full.sessionId;
+        this.previousRequestId = previousRequestId;
+        this.sharedPrefixCount = sharedPrefixCount;
+        this.sharedPrefixHash = sharedPrefixHash;
+        this.playerName = full.playerName;
+        this.playerUuid = full.playerUuid;
+        this.serviceName = full.serviceName;
+        this.model = full.model;
+        this.messages = full.messages != null ?
+                new ArrayList<>(full.messages.subList(Math.min(sharedPrefixCount, full.messages.size()), full.messages.size())) : null;
+        this.config = full.config;
+        this.rawRequestJson = rawRequestJson;
+        this.requestUrl = full.requestUrl;
+        this.requestHeaders = full.requestHeaders;
+        this.contextMessageCount = full.contextMessageCount;
+        this.estimatedTokens = full.estimatedTokens;
+        this.metadata = full.metadata;
+    }
+
+    /**
+     * 转换为引用上一个请求的增量条目
+     *
+     * @param rawRequestJson 只包含新增消息的原始请求JSON
+     */
+    LLMRequestLogEntry toDelta(String previousRequestId, int sharedPrefixCount, String sharedPrefixHash,
+                               String rawRequestJson) {
+        return new LLMRequestLogEntry(this, previousRequestId, sharedPrefixCount, sharedPrefixHash, rawRequestJson);
+    }
+
     // Getters
     public String getRequestId() { return requestId; }
     public LocalDateTime getTimestamp() { return timestamp; }
+    public String getSessionId() { return sessionId; }
+    public String getPreviousRequestId() { return previousRequestId; }
+    public Integer getSharedPrefixCount() { return sharedPrefixCount; }
+    public String getSharedPrefixHash() { return sharedPrefixHash; }
+    public boolean isDelta() { return previousRequestId != null; }
     public String getPlayerName() { return playerName; }
     public String getPlayerUuid() { return playerUuid; }
     public String getServiceName() { return serviceName; }
@@ -108,6 +167,10 @@ public class LLMRequestLogEntry {
         sb.append("Service: ").append(serviceName).append(" ");
         sb.append("Model: ").append(model).append(" ");
         sb.append("Messages: ").append(contextMessageCount).append(" ");
+        if (previousRequestId != null) {
+            sb.append("Delta: +").append(contextMessageCount - sharedPrefixCount)
+              .append(" after ").append(previousRequestId).append(" ");
+        }
         if (estimatedTokens != null) {
             sb.append("Est.Tokens: ").append(estimatedTokens).append(" ");
         }
@@ -117,6 +180,7 @@ public class LLMRequestLogEntry {
     public static class Builder {
         private String requestId;
         private LocalDateTime timestamp;
+        private String sessionId;
         private String playerName;
         private String playerUuid;
         private String serviceName;
@@ -140,6 +204,11 @@ public class LLMRequestLogEntry {
             return this;
         }
 
+        public Builder sessionId(String sessionId) {
+            this.sessionId = sessionId;
+            return this;
+        }
+
         public Builder playerName(String playerName) {
             this.playerName = playerName;
             return this;
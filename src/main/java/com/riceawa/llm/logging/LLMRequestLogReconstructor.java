@@ -0,0 +1,216 @@
+package com.riceawa.llm.logging;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 从增量请求日志还原完整请求
+ *
+ * 沿previous_request_id找到同一会话中最近的完整条目，再依次应用各个增量，
+ * 每一步都用shared_prefix_hash校验共享前缀。支持JSON和文本两种日志格式，以及已压缩的轮转文件。
+ */
+public class LLMRequestLogReconstructor {
+    private static final String REQUEST_MESSAGE = "LLM Request";
+    private static final String TEXT_MARKER = "[llm_request] ";
+    private static final String TEXT_DATA_PREFIX = REQUEST_MESSAGE + " | Metadata: {json_data=";
+
+    private final List<Path> logFiles;
+
+    /**
+     * @param logFiles 请求日志文件，按时间从旧到新排列
+     */
+    public LLMRequestLogReconstructor(List<Path> logFiles) {
+        this.logFiles = new ArrayList<>(logFiles);
+    }
+
+    /**
+     * 还原请求的完整日志条目
+     *
+     * @return 包含全部消息和完整原始请求JSON的条目
+     * @throws IllegalStateException 请求不存在、引用链断开或前缀校验失败
+     */
+    public JsonObject reconstruct(String requestId) throws IOException {
+        JsonObject[] target = new JsonObject[1];
+        forEachRequest(entry -> {
+            if (target[0] == null && requestId.equals(getString(entry, "request_id"))) {
+                target[0] = entry;
+            }
+        });
+        if (target[0] == null) {
+            throw new IllegalStateException("Request log not found: " + requestId);
+        }
+        if (getString(target[0], "previous_request_id") == null) {
+            return target[0];
+        }
+
+        // 收集同一会话的请求，重复记录的请求（重试）以首次为准
+        String sessionId = getString(target[0], "session_id");
+        Map<String, JsonObject> sessionEntries = new HashMap<>();
+        forEachRequest(entry -> {
+            if (sessionId != null && sessionId.equals(getString(entry, "session_id"))) {
+                sessionEntries.putIfAbsent(getString(entry, "request_id"), entry);
+            }
+        });
+
+        List<JsonObject> chain = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        JsonObject current = target[0];
+        while (true) {
+            String currentId = getString(current, "request_id");
+            if (!visited.add(currentId)) {
+                throw new IllegalStateException("Request log chain contains a cycle at " + currentId);
+            }
+            chain.add(0, current);
+            String previousId = getString(current, "previous_request_id");
+            if (previousId == null) {
+                break;
+            }
+            current = sessionEntries.get(previousId);
+            if (current == null) {
+                throw new IllegalStateException("Previous request log " + previousId +
+                        " is missing (it may have been cleaned up)");
+            }
+        }
+
+        JsonArray messages = getArray(chain.get(0), "messages");
+        JsonArray rawMessages = getArray(parseRawRequest(chain.get(0)), "messages");
+        for (int i = 1; i < chain.size(); i++) {
+            JsonObject delta = chain.get(i);
+            int shared = delta.get("shared_prefix_count").getAsInt();
+            if (shared > rawMessages.size() || shared > messages.size()) {
+                throw new IllegalStateException("Request " + getString(delta, "request_id") +
+                        " shares more messages than its previous request has");
+            }
+            String expectedHash = getString(delta, "shared_prefix_hash");
+            if (shared > 0 && !LLMRequestDeltaTracker.prefixHashes(rawMessages)[shared - 1].equals(expectedHash)) {
+                throw new IllegalStateException("Shared prefix hash mismatch for request " +
+                        getString(delta, "request_id"));
+            }
+            messages = concat(messages, shared, getArray(delta, "messages"));
+            rawMessages = concat(rawMessages, shared, getArray(parseRawRequest(delta), "messages"));
+        }
+
+        JsonObject result = target[0].deepCopy();
+        result.remove("previous_request_id");
+        result.remove("shared_prefix_count");
+        result.remove("shared_prefix_hash");
+        result.add("messages", messages);
+        JsonObject rawRequest = parseRawRequest(target[0]);
+        if (rawRequest != null) {
+            rawRequest.add("messages", rawMessages);
+            result.addProperty("raw_request_json", rawRequest.toString());
+        }
+        return result;
+    }
+
+    /**
+     * 依次读取所有文件中的请求日志条目
+     */
+    private void forEachRequest(Consumer<JsonObject> consumer) throws IOException {
+        for (Path file : logFiles) {
+            if (!Files.exists(file)) {
+                continue;
+            }
+            try (BufferedReader reader = openReader(file)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    JsonObject entry = parseRequestLine(line);
+                    if (entry != null) {
+                        consumer.accept(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    static BufferedReader openReader(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        try {
+            if (file.getFileName().toString().endsWith(".gz")) {
+                in = new GZIPInputStream(in, 64 * 1024);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    /**
+     * 从一行日志中取出请求日志条目，不是请求日志时返回null
+     */
+    static JsonObject parseRequestLine(String line) {
+        try {
+            String data = null;
+            if (line.startsWith("{")) {
+                JsonObject logEntry = JsonParser.parseString(line).getAsJsonObject();
+                if (!REQUEST_MESSAGE.equals(getString(logEntry, "message")) || !logEntry.has("metadata")) {
+                    return null;
+                }
+                data = getString(logEntry.getAsJsonObject("metadata"), "json_data");
+            } else if (line.contains(TEXT_MARKER)) {
+                int start = line.indexOf(TEXT_DATA_PREFIX);
+                if (start >= 0 && line.endsWith("}")) {
+                    data = line.substring(start + TEXT_DATA_PREFIX.length(), line.length() - 1);
+                }
+            }
+            if (data == null) {
+                return null;
+            }
+            JsonElement element = JsonParser.parseString(data);
+            return element.isJsonObject() && element.getAsJsonObject().has("request_id") ?
+                    element.getAsJsonObject() : null;
+        } catch (Exception e) {
+            return null; // 其他格式或不完整的行
+        }
+    }
+
+    private static JsonObject parseRawRequest(JsonObject entry) {
+        String raw = getString(entry, "raw_request_json");
+        if (raw == null) {
+            return null;
+        }
+        JsonElement element = JsonParser.parseString(raw);
+        return element.isJsonObject() ? element.getAsJsonObject() : null;
+    }
+
+    private static JsonArray concat(JsonArray base, int count, JsonArray tail) {
+        JsonArray result = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            result.add(base.get(i));
+        }
+        result.addAll(tail);
+        return result;
+    }
+
+    private static JsonArray getArray(JsonObject object, String key) {
+        if (object == null) {
+            return new JsonArray();
+        }
+        JsonElement element = object.get(key);
+        return element != null && element.isJsonArray() ? element.getAsJsonArray() : new JsonArray();
+    }
+
+    private static String getString(JsonObject object, String key) {
+        JsonElement element = object.get(key);
+        return element != null && !element.isJsonNull() ? element.getAsString() : null;
+    }
+}
@@ -12,8 +12,12 @@ public class LogConfig {
     private int maxFileSize = 10 * 1024 * 1024; // 10MB
     private int maxBackupFiles = 5;
     private int retentionDays = 30;
+    private boolean rotateDaily = true; // 跨天后写入第一条日志时轮转，不论文件大小
     private boolean enableAsyncLogging = true;
-    private int asyncQueueSize = 1000;
+    private int asyncQueueSize = 8192; // 异步队列容量，向上取整为2的幂
+    private int flushIntervalMs = 1000; // 持续写入时缓冲区最长多久写出一次
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.NONE; // 何时强制写入磁盘
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_LOW_PRIORITY; // 异步队列满时丢弃哪些日志
     
     // 日志类别配置
     private boolean enableSystemLog = true;
@@ -28,6 +32,7 @@ public class LogConfig {
     private boolean logFullResponseBody = true;
     private int maxLogContentLength = 10000; // 最大日志内容长度
     private boolean sanitizeSensitiveData = true; // 是否脱敏敏感数据
+    private boolean llmRequestDeltaLogging = true; // 同一会话的请求只记录新增消息
 
     public LogLevel getLogLevel() {
         return logLevel;
@@ -85,6 +90,14 @@ public class LogConfig {
         this.retentionDays = retentionDays;
     }
 
+    public boolean isRotateDaily() {
+        return rotateDaily;
+    }
+
+    public void setRotateDaily(boolean rotateDaily) {
+        this.rotateDaily = rotateDaily;
+    }
+
     public boolean isEnableAsyncLogging() {
         return enableAsyncLogging;
     }
@@ -101,6 +114,30 @@ public class LogConfig {
         this.asyncQueueSize = asyncQueueSize;
     }
 
+    public int getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public void setFlushIntervalMs(int flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy != null ? fsyncPolicy : FsyncPolicy.NONE;
+    }
+
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP_LOW_PRIORITY;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
     public boolean isEnableSystemLog() {
         return enableSystemLog;
     }
@@ -149,6 +186,14 @@ public class LogConfig {
         this.enableLLMRequestLog = enableLLMRequestLog;
     }
 
+    public boolean isLlmRequestDeltaLogging() {
+        return llmRequestDeltaLogging;
+    }
+
+    public void setLlmRequestDeltaLogging(boolean llmRequestDeltaLogging) {
+        this.llmRequestDeltaLogging = llmRequestDeltaLogging;
+    }
+
     public boolean isLogFullRequestBody() {
         return logFullRequestBody;
     }
@@ -220,6 +265,24 @@ public class LogConfig {
                maxFileSize > 0 && 
                maxBackupFiles >= 0 && 
                retentionDays > 0 && 
-               asyncQueueSize > 0;
+               asyncQueueSize > 0 &&
+               flushIntervalMs > 0;
+    }
+
+    /**
+     * 日志文件的fsync策略
+     */
+    public enum FsyncPolicy {
+        NONE,     // 只写入操作系统缓存，由操作系统决定何时落盘
+        INTERVAL, // 每个刷新间隔最多fsync一次
+        ALWAYS    // 每批日志写出后都fsync
+    }
+
+    /**
+     * 异步日志队列的溢出策略，ERROR日志在任何策略下都不会因队列满而丢弃
+     */
+    public enum OverflowPolicy {
+        DROP_LOW_PRIORITY, // 队列占用超过3/4后丢弃DEBUG/INFO，为WARN/ERROR预留空间
+        DROP_NEWEST        // 队列满后丢弃新的DEBUG/INFO/WARN
     }
 }
@@ -1,34 +1,89 @@
 package com.riceawa.llm.logging;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
 
 /**
  * 日志条目数据类
+ *
+ * 异步日志的条目对象预先分配在环形缓冲区中并被反复使用：调用线程只填入级别、类别、
+ * 消息模板和参数，消息的拼接和时间戳的格式化推迟到写入线程进行。
+ * 条目对外只读，填充和清空由日志系统内部完成。
  */
 public class LogEntry {
-    private final LocalDateTime timestamp;
-    private final LogLevel level;
-    private final String category;
-    private final String message;
-    private final String thread;
-    private final Map<String, Object> metadata;
-    private final Throwable throwable;
+    private static final DateTimeFormatter DISPLAY_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final int MAX_ARGS = 3;
+
+    // 最近一次格式化的时间戳，同一毫秒内的日志共用
+    private static volatile TimestampCache timestampCache = new TimestampCache(Long.MIN_VALUE, null, null);
+
+    private long timestampMillis;
+    private LogLevel level;
+    private String category;
+    private String message; // 消息或消息模板
+    private final Object[] args = new Object[MAX_ARGS]; // 模板参数，替换模板中的{}
+    private int argCount;
+    private String thread;
+    private Map<String, Object> metadata;
+    private Throwable throwable;
+
+    LogEntry() {
+    }
 
     private LogEntry(Builder builder) {
-        this.timestamp = builder.timestamp != null ? builder.timestamp : LocalDateTime.now();
-        this.level = builder.level;
-        this.category = builder.category;
-        this.message = builder.message;
-        this.thread = builder.thread != null ? builder.thread : Thread.currentThread().getName();
-        this.metadata = new HashMap<>(builder.metadata);
-        this.throwable = builder.throwable;
+        set(builder.level, builder.category, builder.message, 0, null, null, null, builder.metadata, builder.throwable);
+        if (builder.timestamp != null) {
+            this.timestampMillis = builder.timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+        if (builder.thread != null) {
+            this.thread = builder.thread;
+        }
+    }
+
+    /**
+     * 在调用线程上填充条目，不拼接消息也不复制元数据
+     *
+     * @param metadata 元数据，由条目直接引用，调用方之后不应再修改
+     */
+    void set(LogLevel level, String category, String message, int argCount, Object arg1, Object arg2, Object arg3,
+             Map<String, Object> metadata, Throwable throwable) {
+        this.timestampMillis = System.currentTimeMillis();
+        this.level = level;
+        this.category = category;
+        this.message = message;
+        this.argCount = argCount;
+        this.args[0] = arg1;
+        this.args[1] = arg2;
+        this.args[2] = arg3;
+        this.thread = Thread.currentThread().getName();
+        this.metadata = metadata;
+        this.throwable = throwable;
+    }
+
+    /**
+     * 清除引用，使条目可被重用且不再持有调用方的对象
+     */
+    void clear() {
+        message = null;
+        args[0] = null;
+        args[1] = null;
+        args[2] = null;
+        argCount = 0;
+        metadata = null;
+        throwable = null;
     }
 
     public LocalDateTime getTimestamp() {
-        return timestamp;
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.systemDefault());
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
     }
 
     public LogLevel getLevel() {
@@ -39,8 +94,26 @@ public class LogEntry {
         return category;
     }
 
+    /**
+     * 获取消息，有模板参数时在此时拼接
+     */
     public String getMessage() {
-        return message;
+        if (argCount == 0 || message == null) {
+            return message;
+        }
+        StringBuilder sb = new StringBuilder(message.length() + 32);
+        int start = 0;
+        int used = 0;
+        while (used < argCount) {
+            int placeholder = message.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            sb.append(message, start, placeholder).append(args[used++]);
+            start = placeholder + 2;
+        }
+        sb.append(message, start, message.length());
+        return sb.toString();
     }
 
     public String getThread() {
@@ -48,7 +121,7 @@ public class LogEntry {
     }
 
     public Map<String, Object> getMetadata() {
-        return new HashMap<>(metadata);
+        return metadata != null ? Collections.unmodifiableMap(metadata) : Collections.emptyMap();
     }
 
     public Throwable getThrowable() {
@@ -60,20 +133,20 @@ public class LogEntry {
      */
     public String toFormattedString() {
         StringBuilder sb = new StringBuilder();
-        sb.append("[").append(timestamp.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS"))).append("] ");
+        sb.append("[").append(timestamps().display).append("] ");
         sb.append("[").append(level.getName()).append("] ");
         sb.append("[").append(category).append("] ");
         sb.append("[").append(thread).append("] ");
-        sb.append(message);
-        
-        if (!metadata.isEmpty()) {
+        sb.append(getMessage());
+
+        if (metadata != null && !metadata.isEmpty()) {
             sb.append(" | Metadata: ").append(metadata);
         }
-        
+
         if (throwable != null) {
             sb.append("\n").append(getStackTrace(throwable));
         }
-        
+
         return sb.toString();
     }
 
@@ -83,13 +156,13 @@ public class LogEntry {
     public String toJsonString() {
         StringBuilder sb = new StringBuilder();
         sb.append("{");
-        sb.append("\"timestamp\":\"").append(timestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)).append("\",");
+        sb.append("\"timestamp\":\"").append(timestamps().iso).append("\",");
         sb.append("\"level\":\"").append(level.getName()).append("\",");
         sb.append("\"category\":\"").append(escapeJson(category)).append("\",");
-        sb.append("\"message\":\"").append(escapeJson(message)).append("\",");
+        sb.append("\"message\":\"").append(escapeJson(getMessage())).append("\",");
         sb.append("\"thread\":\"").append(escapeJson(thread)).append("\"");
-        
-        if (!metadata.isEmpty()) {
+
+        if (metadata != null && !metadata.isEmpty()) {
             sb.append(",\"metadata\":{");
             boolean first = true;
             for (Map.Entry<String, Object> entry : metadata.entrySet()) {
@@ -100,15 +173,29 @@ public class LogEntry {
             }
             sb.append("}");
         }
-        
+
         if (throwable != null) {
             sb.append(",\"exception\":\"").append(escapeJson(getStackTrace(throwable))).append("\"");
         }
-        
+
         sb.append("}");
         return sb.toString();
     }
 
+    /**
+     * 获取本条日志时间戳的格式化结果，同一毫秒内只格式化一次
+     */
+    private TimestampCache timestamps() {
+        TimestampCache cache = timestampCache;
+        if (cache.millis != timestampMillis) {
+            LocalDateTime time = getTimestamp();
+            cache = new TimestampCache(timestampMillis, time.format(DISPLAY_FORMATTER),
+                    time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+            timestampCache = cache;
+        }
+        return cache;
+    }
+
     private String escapeJson(String str) {
         if (str == null) return "";
         return str.replace("\\", "\\\\")
@@ -130,6 +217,21 @@ public class LogEntry {
         return sb.toString();
     }
 
+    /**
+     * 某一毫秒的时间戳格式化结果
+     */
+    private static final class TimestampCache {
+        final long millis;
+        final String display;
+        final String iso;
+
+        TimestampCache(long millis, String display, String iso) {
+            this.millis = millis;
+            this.display = display;
+            this.iso = iso;
+        }
+    }
+
     public static class Builder {
         private LocalDateTime timestamp;
         private LogLevel level;
@@ -0,0 +1,133 @@
+package com.riceawa.llm.logging;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 单个日志文件的稀疏时间索引
+ *
+ * 未压缩的文件每隔约64KB记录一个检查点（该处日志的起始偏移和时间），按时间查询时从检查点开始读取；
+ * 当前文件只会追加，再次查询时只索引新增的部分。压缩文件无法随机访问，只记录首尾时间，
+ * 在第一次被完整读取后填入，之后时间范围不相交的查询直接跳过该文件。
+ * 由LogQueryEngine加锁访问。
+ */
+class LogFileIndex {
+    static final int CHECKPOINT_INTERVAL = 64 * 1024;
+
+    private final Path path;
+    private final boolean compressed;
+    private long[] offsets = new long[16];
+    private long[] times = new long[16];
+    private int checkpointCount;
+    private long indexedBytes; // 已索引到的位置，总在一行日志的开头
+    private long firstMillis = Long.MAX_VALUE;
+    private long lastMillis = Long.MIN_VALUE;
+    private boolean rangeKnown; // 首尾时间是否覆盖整个文件
+    private String firstLine; // 用于发现文件已被轮转并重新创建
+
+    LogFileIndex(Path path) {
+        this.path = path;
+        this.compressed = path.getFileName().toString().endsWith(".gz");
+    }
+
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * 文件时间范围已知且与查询不相交时可以跳过
+     */
+    boolean canSkip(LogQuery query) {
+        return rangeKnown && firstMillis <= lastMillis && !query.overlaps(firstMillis, lastMillis);
+    }
+
+    /**
+     * 索引未压缩文件新增的部分；文件变小或首行不同说明已被替换，重建索引
+     */
+    void update() throws IOException {
+        if (compressed) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            String currentFirstLine = new LogLineReader(channel, 0).readLine();
+            if (size < indexedBytes || (firstLine != null && !firstLine.equals(currentFirstLine))) {
+                reset();
+            }
+            firstLine = currentFirstLine;
+            long lastCheckpoint = checkpointCount > 0 ? offsets[checkpointCount - 1] : -CHECKPOINT_INTERVAL;
+            LogLineReader reader = new LogLineReader(channel, indexedBytes);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                long time = LogQueryEngine.parseTimestamp(line);
+                if (time == Long.MIN_VALUE) {
+                    continue; // 异常堆栈等续行
+                }
+                long offset = reader.getLineStart();
+                if (offset - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                    addCheckpoint(offset, time);
+                    lastCheckpoint = offset;
+                }
+                record(time);
+            }
+            indexedBytes = reader.getPosition();
+            rangeKnown = true;
+        }
+    }
+
+    /**
+     * 查询开始时间之前最近的检查点偏移，没有开始时间或早于首个检查点时返回0
+     *
+     * @param slackMillis 日志时间可能轻微乱序，检查点时间须早于开始时间至少这么多
+     */
+    long seekOffset(Long fromMillis, long slackMillis) {
+        if (fromMillis == null || checkpointCount == 0) {
+            return 0;
+        }
+        int index = Arrays.binarySearch(times, 0, checkpointCount, fromMillis - slackMillis);
+        if (index < 0) {
+            index = -index - 2; // 最后一个小于目标时间的检查点
+        }
+        return index >= 0 ? offsets[index] : 0;
+    }
+
+    /**
+     * 记录一条日志的时间，用于压缩文件在完整读取时建立首尾时间
+     */
+    void record(long time) {
+        if (time < firstMillis) firstMillis = time;
+        if (time > lastMillis) lastMillis = time;
+    }
+
+    /**
+     * 压缩文件已被完整读取，首尾时间可用
+     */
+    void markScanned() {
+        rangeKnown = true;
+    }
+
+    private void addCheckpoint(long offset, long time) {
+        if (checkpointCount > 0 && time < times[checkpointCount - 1]) {
+            time = times[checkpointCount - 1]; // 保持时间单调，便于二分查找
+        }
+        if (checkpointCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, checkpointCount * 2);
+            times = Arrays.copyOf(times, checkpointCount * 2);
+        }
+        offsets[checkpointCount] = offset;
+        times[checkpointCount] = time;
+        checkpointCount++;
+    }
+
+    private void reset() {
+        checkpointCount = 0;
+        indexedBytes = 0;
+        firstMillis = Long.MAX_VALUE;
+        lastMillis = Long.MIN_VALUE;
+        rangeKnown = false;
+        firstLine = null;
+    }
+}
@@ -0,0 +1,108 @@
+package com.riceawa.llm.logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+
+/**
+ * 单个日志文件的长期写入通道
+ *
+ * 文件在轮转前一直保持打开，写入先进入缓冲区，由调用方在一批日志写完后统一刷新，
+ * 避免每条日志都打开、写入、关闭一次文件。文件大小和所属日期在打开时确定，判断轮转时不需要查询文件系统。
+ * 非线程安全，由LogManager的写入锁保护。
+ */
+class LogFileWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final long dayEndMillis; // 文件所属日期结束的时间，之后的日志应写入新文件
+    private long size; // 文件大小（含未刷新的缓冲区）
+    private boolean dirty; // 自上次fsync后是否有写入
+
+    LogFileWriter(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.size = channel.size();
+
+        // 已有内容的文件按最后修改时间确定所属日期，服务器跨天重启后第一条日志即触发轮转
+        ZoneId zone = ZoneId.systemDefault();
+        Instant opened = size > 0 ? Files.getLastModifiedTime(path).toInstant() : Instant.now();
+        this.dayEndMillis = LocalDate.ofInstant(opened, zone).plusDays(1)
+                .atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    long getDayEndMillis() {
+        return dayEndMillis;
+    }
+
+    /**
+     * 写入一段数据，缓冲区满时先写出缓冲区
+     */
+    void write(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            flush();
+            if (bytes.length > buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes));
+                size += bytes.length;
+                return;
+            }
+        }
+        buffer.put(bytes);
+        size += bytes.length;
+    }
+
+    /**
+     * 将缓冲区写入文件（交给操作系统，不保证落盘）
+     */
+    void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * 刷新缓冲区并把文件内容强制写入磁盘
+     */
+    void force() throws IOException {
+        flush();
+        if (dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            force();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+        dirty = true;
+    }
+}
@@ -0,0 +1,83 @@
+package com.riceawa.llm.logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 从文件的指定偏移开始按行读取，并记录每行的字节偏移
+ *
+ * 使用定位读取，不改变通道的位置；只返回以换行结尾的完整行，
+ * 文件末尾正在写入的半行被忽略。
+ */
+class LogLineReader {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int start; // 缓冲区中下一行的开头
+    private int end;   // 缓冲区中有效数据的结尾
+    private long bufferOffset; // 缓冲区第0个字节在文件中的偏移
+    private long lineStart;
+    private boolean eof;
+
+    LogLineReader(FileChannel channel, long offset) {
+        this.channel = channel;
+        this.bufferOffset = offset;
+    }
+
+    /**
+     * 读取下一行完整的日志，没有时返回null
+     */
+    String readLine() throws IOException {
+        while (true) {
+            for (int i = start; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    int lineEnd = i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+                    String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+                    lineStart = bufferOffset + start;
+                    start = i + 1;
+                    return line;
+                }
+            }
+            if (eof || !fill()) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 上一次返回的行在文件中的起始偏移
+     */
+    long getLineStart() {
+        return lineStart;
+    }
+
+    /**
+     * 已读取的完整行之后的偏移
+     */
+    long getPosition() {
+        return bufferOffset + start;
+    }
+
+    private boolean fill() throws IOException {
+        // 把未读完的半行移到缓冲区开头，一行超过缓冲区时扩容
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            bufferOffset += start;
+            end -= start;
+            start = 0;
+        } else if (end == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end), bufferOffset + end);
+        if (read <= 0) {
+            eof = true;
+            return false;
+        }
+        end += read;
+        return true;
+    }
+}
@@ -8,12 +8,25 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Queue;
+import java.util.function.Supplier;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 日志管理器 - 核心日志系统
+ *
+ * 每个日志类别持有一个长期打开的文件通道。异步模式下写入线程每次从队列中批量取出日志，
+ * 全部写入缓冲区后统一刷新，持续写入时每条日志只是一次内存拷贝。
+ *
+ * 异步队列是无锁的环形缓冲区，调用线程只做一次入队，不做任何I/O也不会阻塞；
+ * 队列满时按溢出策略丢弃低级别日志并计数，ERROR日志写入单独的预留队列。
  */
 public class LogManager {
     private static LogManager instance;
@@ -22,24 +35,50 @@ public class LogManager {
     private final Path logDirectory;
     private final LogConfig config;
     private final FileRotationManager rotationManager;
+    private final LogQueryEngine queryEngine;
     private final ExecutorService asyncExecutor;
-    private final BlockingQueue<LogEntry> logQueue;
+    private final LogRingBuffer logQueue;
     private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+
+    private static final int DRAIN_BATCH_SIZE = 512; // 写入线程每批最多取出的日志数
+    private static final int ERROR_RESERVE_SIZE = 256; // 队列满时为ERROR日志预留的容量
+
+    // 队列满时ERROR日志的预留队列
+    private final Queue<LogEntry> errorReserve = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger errorReserveSize = new AtomicInteger();
+
+    // 各级别因队列满而丢弃的日志数
+    private final LongAdder[] droppedByLevel = new LongAdder[LogLevel.values().length];
+    private long reportedDrops; // 已写入日志文件报告的丢弃数，只由写入线程访问
     
-    // 日志文件映射
-    private final Map<String, Path> logFiles = new ConcurrentHashMap<>();
+    // 各类别的日志文件写入通道，由writeLock保护
+    private final Map<String, LogFileWriter> writers = new HashMap<>();
+    private final Object writeLock = new Object();
+    private long lastFlushTime = System.currentTimeMillis();
+    private long lastForceTime = System.currentTimeMillis();
+
+    // 各类别日志文件的轮转次数
+    private final Map<String, AtomicLong> rotationCounts = new ConcurrentHashMap<>();
 
     private LogManager(LogConfig config) {
-        this.config = config;
-        this.logDirectory = FabricLoader.getInstance()
+        this(config, FabricLoader.getInstance()
                 .getConfigDir()
                 .resolve("lllmchat")
-                .resolve("logs");
+                .resolve("logs"));
+    }
+
+    LogManager(LogConfig config, Path logDirectory) {
+        this.config = config;
+        this.logDirectory = logDirectory;
         
         this.rotationManager = new FileRotationManager(logDirectory, config);
+        this.queryEngine = new LogQueryEngine(this::getLogFiles);
         
         // 初始化异步日志队列和执行器
-        this.logQueue = new ArrayBlockingQueue<>(config.getAsyncQueueSize());
+        this.logQueue = new LogRingBuffer(config.getAsyncQueueSize());
+        for (int i = 0; i < droppedByLevel.length; i++) {
+            droppedByLevel[i] = new LongAdder();
+        }
         this.asyncExecutor = Executors.newSingleThreadExecutor(r -> {
             Thread t = new Thread(r, "LLMChat-Logger");
             t.setDaemon(true);
@@ -77,7 +116,9 @@ public class LogManager {
     }
 
     public void system(String message, Object... args) {
-        log(LogLevel.INFO, "system", String.format(message, args));
+        if (isEnabled(LogLevel.INFO, "system")) {
+            log(LogLevel.INFO, "system", String.format(message, args));
+        }
     }
 
     /**
@@ -123,10 +164,16 @@ public class LogManager {
         log(LogLevel.INFO, "llm_request", message);
     }
 
-    public void llmRequest(String message, String jsonData) {
+    /**
+     * @return 日志是否被接受写入（被级别或类别过滤、或因队列满被丢弃时返回false）
+     */
+    public boolean llmRequest(String message, String jsonData) {
+        if (!isEnabled(LogLevel.INFO, "llm_request")) {
+            return false;
+        }
         Map<String, Object> metadata = new HashMap<>();
         metadata.put("json_data", jsonData);
-        log(LogLevel.INFO, "llm_request", message, metadata);
+        return publish(LogLevel.INFO, "llm_request", message, 0, null, null, null, metadata, null);
     }
 
     public void llmRequest(String message, Map<String, Object> metadata) {
@@ -149,48 +196,184 @@ public class LogManager {
     }
 
     public void log(LogLevel level, String category, String message, Map<String, Object> metadata, Throwable throwable) {
-        if (isShutdown.get()) {
-            return;
+        if (isEnabled(level, category)) {
+            publish(level, category, message, 0, null, null, null, metadata, throwable);
         }
+    }
 
-        // 检查日志级别和类别是否启用
-        if (!config.getLogLevel().shouldLog(level) || !config.isCategoryEnabled(category)) {
-            return;
+    /**
+     * 检查指定级别和类别的日志是否会被记录
+     *
+     * 构造开销较大的日志内容前先调用此方法，被过滤的日志不产生任何分配。
+     */
+    public boolean isEnabled(LogLevel level, String category) {
+        return !isShutdown.get() &&
+               config.getLogLevel().shouldLog(level) &&
+               config.isCategoryEnabled(category) &&
+               (config.isEnableFileLogging() || config.isEnableConsoleLogging());
+    }
+
+    /**
+     * 延迟构造消息：日志被过滤时不调用supplier
+     */
+    public void log(LogLevel level, String category, Supplier<String> message) {
+        if (isEnabled(level, category)) {
+            publish(level, category, message.get(), 0, null, null, null, null, null);
         }
+    }
 
-        LogEntry.Builder builder = new LogEntry.Builder()
-                .level(level)
-                .category(category)
-                .message(message);
+    /**
+     * 延迟构造消息和元数据：日志被过滤时两个supplier都不调用
+     */
+    public void log(LogLevel level, String category, Supplier<String> message,
+                    Supplier<Map<String, Object>> metadata) {
+        if (isEnabled(level, category)) {
+            publish(level, category, message.get(), 0, null, null, null, metadata.get(), null);
+        }
+    }
 
-        if (metadata != null) {
-            builder.metadata(metadata);
+    /**
+     * 参数化日志：模板中的{}依次替换为参数，拼接推迟到写入线程进行
+     *
+     * 参数应为不可变对象（字符串、数字等），写入线程读取时可能已晚于调用时刻。
+     */
+    public void logf(LogLevel level, String category, String pattern, Object arg) {
+        if (isEnabled(level, category)) {
+            publish(level, category, pattern, 1, arg, null, null, null, null);
         }
+    }
 
-        if (throwable != null) {
-            builder.throwable(throwable);
+    public void logf(LogLevel level, String category, String pattern, Object arg1, Object arg2) {
+        if (isEnabled(level, category)) {
+            publish(level, category, pattern, 2, arg1, arg2, null, null, null);
         }
+    }
 
-        LogEntry entry = builder.build();
+    public void logf(LogLevel level, String category, String pattern, Object arg1, Object arg2, Object arg3) {
+        if (isEnabled(level, category)) {
+            publish(level, category, pattern, 3, arg1, arg2, arg3, null, null);
+        }
+    }
 
-        // 控制台日志
-        if (config.isEnableConsoleLogging()) {
-            logToConsole(entry);
+    /**
+     * 把已通过过滤的日志交给异步队列或同步写入
+     *
+     * @return 是否被接受；队列满而被丢弃时返回false
+     */
+    private boolean publish(LogLevel level, String category, String message, int argCount,
+                         Object arg1, Object arg2, Object arg3,
+                         Map<String, Object> metadata, Throwable throwable) {
+        if (!config.isEnableAsyncLogging()) {
+            LogEntry entry = new LogEntry();
+            entry.set(level, category, message, argCount, arg1, arg2, arg3, metadata, throwable);
+
+            // 控制台日志
+            if (config.isEnableConsoleLogging()) {
+                logToConsole(entry);
+            }
+
+            // 同步文件日志
+            if (config.isEnableFileLogging()) {
+                writeSync(entry);
+            }
+            return true;
         }
 
-        // 文件日志
-        if (config.isEnableFileLogging()) {
-            if (config.isEnableAsyncLogging()) {
-                // 异步日志
-                if (!logQueue.offer(entry)) {
-                    // 队列满了，直接写入
-                    writeToFile(entry);
-                }
-            } else {
-                // 同步日志
-                writeToFile(entry);
+        // 异步日志：在预分配的槽位中就地填充，控制台和文件输出都由写入线程完成
+        int limit = logQueue.capacity();
+        if (config.getOverflowPolicy() == LogConfig.OverflowPolicy.DROP_LOW_PRIORITY &&
+                (level == LogLevel.DEBUG || level == LogLevel.INFO)) {
+            limit = limit - limit / 4; // 为WARN/ERROR预留1/4的容量
+        }
+        long pos = logQueue.claim(limit);
+        if (pos >= 0) {
+            logQueue.slot(pos).set(level, category, message, argCount, arg1, arg2, arg3, metadata, throwable);
+            logQueue.publish(pos);
+            return true;
+        }
+
+        // 队列已满，ERROR日志进入预留队列
+        if (level == LogLevel.ERROR) {
+            if (errorReserveSize.incrementAndGet() <= ERROR_RESERVE_SIZE) {
+                LogEntry entry = new LogEntry();
+                entry.set(level, category, message, argCount, arg1, arg2, arg3, metadata, throwable);
+                errorReserve.add(entry);
+                logQueue.signal();
+                return true;
             }
+            errorReserveSize.decrementAndGet();
+        }
+        droppedByLevel[level.ordinal()].increment();
+        return false;
+    }
+
+    /**
+     * 因异步队列满而丢弃的指定级别日志数
+     */
+    public long getDroppedCount(LogLevel level) {
+        return droppedByLevel[level.ordinal()].sum();
+    }
+
+    /**
+     * 因异步队列满而丢弃的日志总数
+     */
+    public long getDroppedTotal() {
+        long total = 0;
+        for (LongAdder counter : droppedByLevel) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    /**
+     * 异步队列中等待写入的日志数
+     */
+    public int getQueuedCount() {
+        return logQueue.size() + errorReserveSize.get();
+    }
+
+    public int getQueueCapacity() {
+        return logQueue.capacity();
+    }
+
+    public LogConfig getConfig() {
+        return config;
+    }
+
+    public Path getLogDirectory() {
+        return logDirectory;
+    }
+
+    /**
+     * 某类日志文件已轮转的次数
+     */
+    public long getRotationCount(String category) {
+        AtomicLong count = rotationCounts.get(category);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * 获取日志查询引擎，文件的时间索引在多次查询间复用
+     */
+    public LogQueryEngine getQueryEngine() {
+        return queryEngine;
+    }
+
+    /**
+     * 获取某类日志的全部文件，按时间从旧到新排列（已轮转的文件在前，当前文件在最后）
+     *
+     * 返回前先把缓冲区写入文件，读取方能看到已记录的日志。
+     */
+    public List<Path> getLogFiles(String category) {
+        synchronized (writeLock) {
+            flushWriters(System.currentTimeMillis());
+        }
+        List<Path> files = new ArrayList<>(rotationManager.getRotatedFiles(category));
+        Path current = logDirectory.resolve(category + ".log");
+        if (Files.exists(current)) {
+            files.add(current);
         }
+        return files;
     }
 
     /**
@@ -200,24 +383,26 @@ public class LogManager {
         try {
             Files.createDirectories(logDirectory);
             
-            // 创建各类日志文件
-            if (config.isEnableSystemLog()) {
-                logFiles.put("system", rotationManager.createNewLogFile("system"));
-            }
-            if (config.isEnableChatLog()) {
-                logFiles.put("chat", rotationManager.createNewLogFile("chat"));
-            }
-            if (config.isEnableErrorLog()) {
-                logFiles.put("error", rotationManager.createNewLogFile("error"));
-            }
-            if (config.isEnablePerformanceLog()) {
-                logFiles.put("performance", rotationManager.createNewLogFile("performance"));
-            }
-            if (config.isEnableAuditLog()) {
-                logFiles.put("audit", rotationManager.createNewLogFile("audit"));
-            }
-            if (config.isEnableLLMRequestLog()) {
-                logFiles.put("llm_request", rotationManager.createNewLogFile("llm_request"));
+            // 为各类日志打开写入通道
+            synchronized (writeLock) {
+                if (config.isEnableSystemLog()) {
+                    openWriter("system");
+                }
+                if (config.isEnableChatLog()) {
+                    openWriter("chat");
+                }
+                if (config.isEnableErrorLog()) {
+                    openWriter("error");
+                }
+                if (config.isEnablePerformanceLog()) {
+                    openWriter("performance");
+                }
+                if (config.isEnableAuditLog()) {
+                    openWriter("audit");
+                }
+                if (config.isEnableLLMRequestLog()) {
+                    openWriter("llm_request");
+                }
             }
             
         } catch (IOException e) {
@@ -225,20 +410,52 @@ public class LogManager {
         }
     }
 
+    private LogFileWriter openWriter(String category) throws IOException {
+        LogFileWriter writer = new LogFileWriter(rotationManager.createNewLogFile(category));
+        writers.put(category, writer);
+        return writer;
+    }
+
     /**
      * 启动异步日志处理
      */
     private void startAsyncLogging() {
         asyncExecutor.submit(() -> {
-            while (!isShutdown.get() || !logQueue.isEmpty()) {
+            long waitNanos = TimeUnit.MILLISECONDS.toNanos(config.getFlushIntervalMs());
+            while (!isShutdown.get() || !logQueue.isEmpty() || errorReserveSize.get() > 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
                 try {
-                    LogEntry entry = logQueue.poll(1, TimeUnit.SECONDS);
-                    if (entry != null) {
-                        writeToFile(entry);
+                    logQueue.awaitEntries(waitNanos);
+
+                    boolean console = config.isEnableConsoleLogging();
+                    boolean file = config.isEnableFileLogging();
+                    synchronized (writeLock) {
+                        // 预留队列中的ERROR日志优先写入
+                        LogEntry reserved;
+                        while ((reserved = errorReserve.poll()) != null) {
+                            errorReserveSize.decrementAndGet();
+                            writeEntry(reserved, console, file);
+                        }
+
+                        // 就地处理槽位中的日志，处理完后释放槽位
+                        LogEntry entry;
+                        for (int i = 0; i < DRAIN_BATCH_SIZE && (entry = logQueue.peek()) != null; i++) {
+                            try {
+                                writeEntry(entry, console, file);
+                            } finally {
+                                logQueue.release();
+                            }
+                        }
+
+                        // 队列已清空或距上次刷新超过间隔时，把缓冲区写入文件
+                        long now = System.currentTimeMillis();
+                        if (file && (logQueue.isEmpty() || now - lastFlushTime >= config.getFlushIntervalMs())) {
+                            reportDrops();
+                            flushWriters(now);
+                        }
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
                 } catch (Exception e) {
                     FALLBACK_LOGGER.error("Error in async logging", e);
                 }
@@ -277,41 +494,112 @@ public class LogManager {
         }
     }
 
+    private void writeEntry(LogEntry entry, boolean console, boolean file) {
+        if (console) {
+            logToConsole(entry);
+        }
+        if (file) {
+            writeToFile(entry);
+        }
+    }
+
     /**
-     * 写入文件
+     * 有新的丢弃时在系统日志中记录一条警告，调用方持有writeLock
      */
-    private void writeToFile(LogEntry entry) {
-        try {
-            Path logFile = logFiles.get(entry.getCategory());
-            if (logFile == null) {
-                logFile = logFiles.get("system"); // 默认使用系统日志文件
-            }
-            
-            if (logFile == null) {
-                return;
-            }
+    private void reportDrops() {
+        long total = getDroppedTotal();
+        if (total == reportedDrops) {
+            return;
+        }
+        LogEntry warning = new LogEntry.Builder()
+                .level(LogLevel.WARN)
+                .category("system")
+                .message("Async log queue overflowed, dropped " + (total - reportedDrops) + " entries (total " + total +
+                        ", DEBUG " + getDroppedCount(LogLevel.DEBUG) + ", INFO " + getDroppedCount(LogLevel.INFO) +
+                        ", WARN " + getDroppedCount(LogLevel.WARN) + ", ERROR " + getDroppedCount(LogLevel.ERROR) + ")")
+                .build();
+        reportedDrops = total;
+        writeToFile(warning);
+    }
 
-            // 检查是否需要轮转
-            if (rotationManager.shouldRotate(logFile)) {
-                rotationManager.rotateFile(logFile);
-                // 重新创建日志文件
-                logFile = rotationManager.createNewLogFile(getBaseName(logFile));
-                logFiles.put(entry.getCategory(), logFile);
-            }
+    /**
+     * 在调用线程上写入并立即刷新（同步模式）
+     */
+    private void writeSync(LogEntry entry) {
+        synchronized (writeLock) {
+            writeToFile(entry);
+            flushWriters(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 写入文件缓冲区，调用方持有writeLock
+     */
+    private void writeToFile(LogEntry entry) {
+        String category = writers.containsKey(entry.getCategory()) ? entry.getCategory() : "system"; // 默认使用系统日志文件
+        LogFileWriter writer = writers.get(category);
+        if (writer == null) {
+            return;
+        }
 
-            // 写入日志
+        try {
             String logContent = config.isEnableJsonFormat() ? 
                     entry.toJsonString() + "\n" : 
                     entry.toFormattedString() + "\n";
-            
-            Files.write(logFile, logContent.getBytes(StandardCharsets.UTF_8), 
-                       StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                       
+            byte[] bytes = logContent.getBytes(StandardCharsets.UTF_8);
+
+            // 按内存中累计的大小和文件所属日期检查是否需要轮转
+            if (writer.getSize() > 0 && (writer.getSize() + bytes.length > config.getMaxFileSize() ||
+                    (config.isRotateDaily() && entry.getTimestampMillis() >= writer.getDayEndMillis()))) {
+                writer = rotate(category, writer);
+            }
+
+            writer.write(bytes);
         } catch (IOException e) {
             FALLBACK_LOGGER.error("Failed to write log to file", e);
         }
     }
 
+    /**
+     * 关闭当前文件，改名后立即重新打开同名文件，压缩和清理由轮转管理器在后台完成
+     */
+    private LogFileWriter rotate(String category, LogFileWriter writer) throws IOException {
+        writers.remove(category);
+        writer.close();
+        try {
+            rotationManager.rotateFile(writer.getPath());
+        } catch (IOException e) {
+            // 轮转失败时继续追加到原文件
+            FALLBACK_LOGGER.error("Failed to rotate log file " + writer.getPath(), e);
+        }
+        rotationCounts.computeIfAbsent(category, k -> new AtomicLong()).incrementAndGet();
+        return openWriter(getBaseName(writer.getPath()));
+    }
+
+    /**
+     * 把所有缓冲区写入文件，并按fsync策略强制落盘，调用方持有writeLock
+     */
+    private void flushWriters(long now) {
+        LogConfig.FsyncPolicy policy = config.getFsyncPolicy();
+        boolean force = policy == LogConfig.FsyncPolicy.ALWAYS ||
+                (policy == LogConfig.FsyncPolicy.INTERVAL && now - lastForceTime >= config.getFlushIntervalMs());
+        for (LogFileWriter writer : writers.values()) {
+            try {
+                if (force) {
+                    writer.force();
+                } else {
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                FALLBACK_LOGGER.error("Failed to flush log file " + writer.getPath(), e);
+            }
+        }
+        lastFlushTime = now;
+        if (force) {
+            lastForceTime = now;
+        }
+    }
+
     private String getBaseName(Path file) {
         String fileName = file.getFileName().toString();
         int dotIndex = fileName.lastIndexOf('.');
@@ -331,6 +619,7 @@ public class LogManager {
      */
     public void shutdown() {
         isShutdown.set(true);
+        logQueue.signal();
         
         if (asyncExecutor != null && !asyncExecutor.isShutdown()) {
             asyncExecutor.shutdown();
@@ -343,6 +632,21 @@ public class LogManager {
                 Thread.currentThread().interrupt();
             }
         }
+
+        // 写出剩余的缓冲区并关闭文件
+        synchronized (writeLock) {
+            for (LogFileWriter writer : writers.values()) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    FALLBACK_LOGGER.error("Failed to close log file " + writer.getPath(), e);
+                }
+            }
+            writers.clear();
+        }
+
+        // 等待后台的压缩和清理完成
+        rotationManager.shutdown();
         
         FALLBACK_LOGGER.info("Log manager shutdown completed");
     }
@@ -0,0 +1,201 @@
+package com.riceawa.llm.logging;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+/**
+ * 日志查询条件
+ *
+ * 类别决定读取哪组日志文件；级别为最低级别；玩家和请求ID按日志内容包含匹配，
+ * 可以是玩家名、UUID或请求ID的任意片段；时间范围两端均包含。
+ */
+public class LogQuery {
+    public static final int DEFAULT_PAGE_SIZE = 10;
+
+    private final String category;
+    private final LogLevel minLevel;
+    private final String player;
+    private final String requestId;
+    private final Long fromMillis;
+    private final Long toMillis;
+    private final int page;
+    private final int pageSize;
+
+    private LogQuery(Builder builder) {
+        this.category = builder.category;
+        this.minLevel = builder.minLevel;
+        this.player = builder.player;
+        this.requestId = builder.requestId;
+        this.fromMillis = builder.fromMillis;
+        this.toMillis = builder.toMillis;
+        this.page = builder.page;
+        this.pageSize = builder.pageSize;
+    }
+
+    public String getCategory() { return category; }
+    public LogLevel getMinLevel() { return minLevel; }
+    public String getPlayer() { return player; }
+    public String getRequestId() { return requestId; }
+    public Long getFromMillis() { return fromMillis; }
+    public Long getToMillis() { return toMillis; }
+    public int getPage() { return page; }
+    public int getPageSize() { return pageSize; }
+
+    /**
+     * 时间是否在查询范围内
+     */
+    boolean isInRange(long timestampMillis) {
+        return (fromMillis == null || timestampMillis >= fromMillis) &&
+               (toMillis == null || timestampMillis <= toMillis);
+    }
+
+    /**
+     * 时间范围是否与[firstMillis, lastMillis]相交
+     */
+    boolean overlaps(long firstMillis, long lastMillis) {
+        return (fromMillis == null || lastMillis >= fromMillis) &&
+               (toMillis == null || firstMillis <= toMillis);
+    }
+
+    boolean matches(LogLevel level, long timestampMillis, String text) {
+        if (minLevel != null && (level == null || !minLevel.shouldLog(level))) {
+            return false;
+        }
+        if (!isInRange(timestampMillis)) {
+            return false;
+        }
+        if (player != null && !text.contains(player)) {
+            return false;
+        }
+        return requestId == null || text.contains(requestId);
+    }
+
+    /**
+     * 解析命令中的查询条件，格式为空格分隔的key=value：
+     * level=WARN player=Steve request=abc123 from=2h to=2025-06-01T12:00 page=2
+     *
+     * 时间可以是本地时间（yyyy-MM-ddTHH:mm[:ss]）或相对现在的时长（如30m、2h、1d）。
+     */
+    public static LogQuery parse(String category, String filters) {
+        Builder builder = new Builder().category(category);
+        if (filters == null || filters.isBlank()) {
+            return builder.build();
+        }
+        for (String token : filters.trim().split("\\s+")) {
+            int eq = token.indexOf('=');
+            if (eq <= 0 || eq == token.length() - 1) {
+                throw new IllegalArgumentException("Invalid filter: " + token);
+            }
+            String key = token.substring(0, eq).toLowerCase();
+            String value = token.substring(eq + 1);
+            switch (key) {
+                case "level":
+                    try {
+                        builder.minLevel(LogLevel.valueOf(value.toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("Unknown log level: " + value);
+                    }
+                    break;
+                case "player":
+                    builder.player(value);
+                    break;
+                case "request":
+                    builder.requestId(value);
+                    break;
+                case "from":
+                    builder.fromMillis(parseTime(value));
+                    break;
+                case "to":
+                    builder.toMillis(parseTime(value));
+                    break;
+                case "page":
+                    try {
+                        builder.page(Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid page: " + value);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter: " + key);
+            }
+        }
+        return builder.build();
+    }
+
+    static long parseTime(String value) {
+        char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+        if ((unit == 's' || unit == 'm' || unit == 'h' || unit == 'd') && value.length() > 1 &&
+                value.substring(0, value.length() - 1).chars().allMatch(Character::isDigit)) {
+            long amount = Long.parseLong(value.substring(0, value.length() - 1));
+            Duration duration = unit == 's' ? Duration.ofSeconds(amount) :
+                    unit == 'm' ? Duration.ofMinutes(amount) :
+                    unit == 'h' ? Duration.ofHours(amount) : Duration.ofDays(amount);
+            return System.currentTimeMillis() - duration.toMillis();
+        }
+        try {
+            return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + value);
+        }
+    }
+
+    public static class Builder {
+        private String category = "system";
+        private LogLevel minLevel;
+        private String player;
+        private String requestId;
+        private Long fromMillis;
+        private Long toMillis;
+        private int page = 1;
+        private int pageSize = DEFAULT_PAGE_SIZE;
+
+        public Builder category(String category) {
+            this.category = category;
+            return this;
+        }
+
+        public Builder minLevel(LogLevel minLevel) {
+            this.minLevel = minLevel;
+            return this;
+        }
+
+        public Builder player(String player) {
+            this.player = player;
+            return this;
+        }
+
+        public Builder requestId(String requestId) {
+            this.requestId = requestId;
+            return this;
+        }
+
+        public Builder fromMillis(Long fromMillis) {
+            this.fromMillis = fromMillis;
+            return this;
+        }
+
+        public Builder toMillis(Long toMillis) {
+            this.toMillis = toMillis;
+            return this;
+        }
+
+        public Builder page(int page) {
+            this.page = page;
+            return this;
+        }
+
+        public Builder pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public LogQuery build() {
+            if (category == null || category.isEmpty()) throw new IllegalArgumentException("Category is required");
+            if (page < 1) throw new IllegalArgumentException("Page must be at least 1");
+            if (pageSize < 1) throw new IllegalArgumentException("Page size must be at least 1");
+            return new LogQuery(this);
+        }
+    }
+}
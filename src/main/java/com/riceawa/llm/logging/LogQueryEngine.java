@@ -0,0 +1,408 @@
+package com.riceawa.llm.logging;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 日志查询引擎
+ *
+ * 查询从最新的文件向旧文件依次读取，凑够所需页数的结果后停止。未压缩的文件借助稀疏时间索引
+ * 直接定位到开始时间附近，读到超过结束时间的日志即停止；已轮转的gzip文件流式解压读取，
+ * 完整读过一次后记住首尾时间，之后与查询时间范围不相交时整个跳过。
+ * tail从当前文件末尾按块向前读取，不需要从头扫描文件。
+ */
+public class LogQueryEngine {
+    // 异步写入时日志时间可能轻微乱序，按时间定位和提前结束时留出余量
+    private static final long ORDER_SLACK_MILLIS = 2000;
+    private static final int TAIL_CHUNK_SIZE = 64 * 1024;
+    private static final String JSON_PREFIX = "{\"timestamp\":\"";
+    private static final String JSON_LEVEL = "\"level\":\"";
+    private static final DateTimeFormatter TEXT_SECOND_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // 最近一次解析的秒级时间，同一秒内的日志只需解析毫秒部分
+    private static volatile SecondCache secondCache = new SecondCache("", 0);
+
+    private final Function<String, List<Path>> fileSupplier;
+    private final Map<Path, LogFileIndex> indexes = new HashMap<>();
+
+    /**
+     * @param fileSupplier 按类别返回日志文件，按时间从旧到新排列
+     */
+    public LogQueryEngine(Function<String, List<Path>> fileSupplier) {
+        this.fileSupplier = fileSupplier;
+    }
+
+    /**
+     * 查询日志，第1页是最新的结果，页内按时间从旧到新排列
+     */
+    public synchronized QueryResult query(LogQuery query) throws IOException {
+        List<Path> files = fileSupplier.apply(query.getCategory());
+        indexes.keySet().removeIf(path -> !Files.exists(path));
+
+        // 多取一条用于判断是否还有下一页
+        int needed = query.getPage() * query.getPageSize() + 1;
+        List<LogRecord> newestFirst = new ArrayList<>();
+        for (int i = files.size() - 1; i >= 0 && newestFirst.size() < needed; i--) {
+            ArrayDeque<LogRecord> fileMatches = new ArrayDeque<>();
+            scanFile(files.get(i), query, fileMatches, needed - newestFirst.size());
+            while (!fileMatches.isEmpty()) {
+                newestFirst.add(fileMatches.pollLast());
+            }
+        }
+
+        int from = (query.getPage() - 1) * query.getPageSize();
+        int to = Math.min(from + query.getPageSize(), newestFirst.size());
+        List<LogRecord> page = from < to ? new ArrayList<>(newestFirst.subList(from, to)) : new ArrayList<>();
+        Collections.reverse(page);
+        return new QueryResult(page, query.getPage(), newestFirst.size() > query.getPage() * query.getPageSize());
+    }
+
+    /**
+     * 从当前文件末尾向前读取最近的count条符合条件的日志，按时间从旧到新排列
+     */
+    public synchronized List<LogRecord> tail(LogQuery query, int count) throws IOException {
+        List<Path> files = fileSupplier.apply(query.getCategory());
+        List<LogRecord> newestFirst = new ArrayList<>();
+        if (files.isEmpty() || count <= 0) {
+            return newestFirst;
+        }
+        Path activeFile = files.get(files.size() - 1);
+        if (activeFile.getFileName().toString().endsWith(".gz")) {
+            return newestFirst;
+        }
+
+        try (FileChannel channel = FileChannel.open(activeFile, StandardOpenOption.READ)) {
+            long position = channel.size();
+            ByteBuffer chunk = ByteBuffer.allocate(TAIL_CHUNK_SIZE);
+            byte[] pending = new byte[0]; // 上一块开头不完整的行
+            boolean skipPartial = true;   // 文件末尾正在写入的半行
+            List<String> continuation = new ArrayList<>(); // 倒序读到的续行
+
+            while (position > 0 && newestFirst.size() < count) {
+                int length = (int) Math.min(TAIL_CHUNK_SIZE, position);
+                position -= length;
+                chunk.clear().limit(length);
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, position + chunk.position()) < 0) {
+                        break;
+                    }
+                }
+                byte[] data = new byte[chunk.position() + pending.length];
+                System.arraycopy(chunk.array(), 0, data, 0, chunk.position());
+                System.arraycopy(pending, 0, data, chunk.position(), pending.length);
+
+                int lineEnd = data.length;
+                for (int i = data.length - 1; i >= 0 && newestFirst.size() < count; i--) {
+                    if (data[i] != '\n') {
+                        continue;
+                    }
+                    if (skipPartial) {
+                        skipPartial = false;
+                    } else {
+                        tailLine(decode(data, i + 1, lineEnd), query, continuation, newestFirst);
+                    }
+                    lineEnd = i;
+                }
+                pending = Arrays.copyOf(data, lineEnd);
+                if (position == 0 && !skipPartial && newestFirst.size() < count) {
+                    tailLine(decode(pending, 0, pending.length), query, continuation, newestFirst);
+                }
+            }
+        }
+        Collections.reverse(newestFirst);
+        return newestFirst;
+    }
+
+    private void tailLine(String line, LogQuery query, List<String> continuation, List<LogRecord> newestFirst) {
+        long time = parseTimestamp(line);
+        if (time == Long.MIN_VALUE) {
+            continuation.add(line);
+            return;
+        }
+        LogRecord record = new LogRecord(time, parseLevel(line), line);
+        for (int i = continuation.size() - 1; i >= 0; i--) {
+            record.appendLine(continuation.get(i));
+        }
+        continuation.clear();
+        if (query.matches(record.level, record.timestampMillis, record.getText())) {
+            newestFirst.add(record);
+        }
+    }
+
+    /**
+     * 读取一个文件，只保留最新的limit条匹配结果
+     */
+    private void scanFile(Path file, LogQuery query, ArrayDeque<LogRecord> matches, int limit) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        LogFileIndex index = indexes.computeIfAbsent(file, LogFileIndex::new);
+        index.update();
+        if (index.canSkip(query)) {
+            return;
+        }
+
+        if (index.isCompressed()) {
+            try (BufferedReader reader = LLMRequestLogReconstructor.openReader(file)) {
+                if (scanLines(reader::readLine, query, matches, limit, index)) {
+                    index.markScanned();
+                }
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                LogLineReader reader = new LogLineReader(channel,
+                        index.seekOffset(query.getFromMillis(), ORDER_SLACK_MILLIS));
+                scanLines(reader::readLine, query, matches, limit, null);
+            }
+        }
+    }
+
+    /**
+     * 逐行组装日志（异常堆栈等续行归入上一条）并筛选
+     *
+     * @param compressedIndex 压缩文件的索引，读取时记录首尾时间；未压缩文件为null
+     * @return 是否读到了文件末尾
+     */
+    private boolean scanLines(LineSource source, LogQuery query, ArrayDeque<LogRecord> matches, int limit,
+                              LogFileIndex compressedIndex) throws IOException {
+        Long toMillis = query.getToMillis();
+        LogRecord current = null;
+        boolean reachedEnd = true;
+        String line;
+        while ((line = source.readLine()) != null) {
+            long time = parseTimestamp(line);
+            if (time == Long.MIN_VALUE) {
+                if (current != null) {
+                    current.appendLine(line);
+                }
+                continue;
+            }
+            if (current != null) {
+                collect(current, query, matches, limit);
+            }
+            if (compressedIndex != null) {
+                compressedIndex.record(time);
+            }
+            if (toMillis != null && time > toMillis + ORDER_SLACK_MILLIS) {
+                current = null;
+                reachedEnd = false;
+                break;
+            }
+            current = new LogRecord(time, parseLevel(line), line);
+        }
+        if (current != null) {
+            collect(current, query, matches, limit);
+        }
+        return reachedEnd;
+    }
+
+    private static void collect(LogRecord record, LogQuery query, ArrayDeque<LogRecord> matches, int limit) {
+        if (query.matches(record.level, record.timestampMillis, record.getText())) {
+            matches.addLast(record);
+            if (matches.size() > limit) {
+                matches.pollFirst();
+            }
+        }
+    }
+
+    /**
+     * 解析一行日志开头的时间（JSON或文本格式），不是日志开头时返回Long.MIN_VALUE
+     */
+    static long parseTimestamp(String line) {
+        String second;
+        int fractionStart;
+        if (line.startsWith(JSON_PREFIX)) {
+            int end = line.indexOf('"', JSON_PREFIX.length());
+            if (end < JSON_PREFIX.length() + 19) {
+                return Long.MIN_VALUE;
+            }
+            second = line.substring(JSON_PREFIX.length(), JSON_PREFIX.length() + 19).replace('T', ' ');
+            fractionStart = line.charAt(JSON_PREFIX.length() + 19) == '.' ? JSON_PREFIX.length() + 20 : -1;
+        } else if (line.length() > 25 && line.charAt(0) == '[' && line.charAt(24) == ']') {
+            second = line.substring(1, 20);
+            fractionStart = 21;
+        } else {
+            return Long.MIN_VALUE;
+        }
+
+        SecondCache cache = secondCache;
+        long secondMillis;
+        if (cache.second.equals(second)) {
+            secondMillis = cache.millis;
+        } else {
+            try {
+                secondMillis = LocalDateTime.parse(second, TEXT_SECOND_FORMATTER)
+                        .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return Long.MIN_VALUE;
+            }
+            secondCache = new SecondCache(second, secondMillis);
+        }
+
+        int millis = 0;
+        if (fractionStart > 0) {
+            for (int i = 0; i < 3; i++) {
+                int pos = fractionStart + i;
+                char c = pos < line.length() ? line.charAt(pos) : '0';
+                millis = millis * 10 + (Character.isDigit(c) ? c - '0' : 0);
+            }
+        }
+        return secondMillis + millis;
+    }
+
+    /**
+     * 解析一行日志的级别，无法识别时返回null
+     */
+    static LogLevel parseLevel(String line) {
+        try {
+            if (line.startsWith(JSON_PREFIX)) {
+                int start = line.indexOf(JSON_LEVEL);
+                if (start < 0) {
+                    return null;
+                }
+                start += JSON_LEVEL.length();
+                return LogLevel.valueOf(line.substring(start, line.indexOf('"', start)));
+            }
+            if (line.startsWith("[", 26)) {
+                return LogLevel.valueOf(line.substring(27, line.indexOf(']', 27)));
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // 无法识别的级别
+        }
+        return null;
+    }
+
+    private static String decode(byte[] data, int start, int end) {
+        if (end > start && data[end - 1] == '\r') {
+            end--;
+        }
+        return new String(data, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface LineSource {
+        String readLine() throws IOException;
+    }
+
+    private static final class SecondCache {
+        final String second;
+        final long millis;
+
+        SecondCache(String second, long millis) {
+            this.second = second;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * 一条日志（包含异常堆栈等续行）
+     */
+    public static class LogRecord {
+        private final long timestampMillis;
+        private final LogLevel level;
+        private final String firstLine;
+        private StringBuilder continuation;
+
+        LogRecord(long timestampMillis, LogLevel level, String firstLine) {
+            this.timestampMillis = timestampMillis;
+            this.level = level;
+            this.firstLine = firstLine;
+        }
+
+        void appendLine(String line) {
+            if (continuation == null) {
+                continuation = new StringBuilder();
+            }
+            continuation.append('\n').append(line);
+        }
+
+        public long getTimestampMillis() {
+            return timestampMillis;
+        }
+
+        public LogLevel getLevel() {
+            return level;
+        }
+
+        public String getFirstLine() {
+            return firstLine;
+        }
+
+        public String getText() {
+            return continuation == null ? firstLine : firstLine + continuation;
+        }
+
+        /**
+         * 日志的消息部分（不含时间、级别等前缀），带元数据时附在消息之后
+         */
+        public String getMessage() {
+            if (firstLine.startsWith(JSON_PREFIX)) {
+                try {
+                    JsonObject json = JsonParser.parseString(firstLine).getAsJsonObject();
+                    String message = json.has("message") ? json.get("message").getAsString() : "";
+                    return json.has("metadata") ? message + " | " + json.get("metadata") : message;
+                } catch (Exception e) {
+                    return firstLine;
+                }
+            }
+            // 文本格式: [时间] [级别] [类别] [线程] 消息
+            int start = 0;
+            for (int i = 0; i < 4; i++) {
+                int end = firstLine.indexOf("] ", start);
+                if (end < 0) {
+                    return firstLine;
+                }
+                start = end + 2;
+            }
+            return firstLine.substring(start);
+        }
+    }
+
+    /**
+     * 一页查询结果
+     */
+    public static class QueryResult {
+        private final List<LogRecord> records;
+        private final int page;
+        private final boolean hasMore;
+
+        QueryResult(List<LogRecord> records, int page, boolean hasMore) {
+            this.records = records;
+            this.page = page;
+            this.hasMore = hasMore;
+        }
+
+        public List<LogRecord> getRecords() {
+            return records;
+        }
+
+        public int getPage() {
+            return page;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+}
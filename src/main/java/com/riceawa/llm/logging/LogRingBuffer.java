@@ -0,0 +1,148 @@
+package com.riceawa.llm.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无锁的多生产者单消费者环形缓冲区
+ *
+ * 槽位中的日志条目在创建时分配并被反复使用，每个槽位带一个序号：生产者用CAS抢占写入位置，
+ * 就地填充条目后发布序号；唯一的消费者（日志写入线程）按序号读取，处理完后清空并释放槽位。
+ * 缓冲区满时claim立即失败，从不阻塞调用方。
+ */
+class LogRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final LogEntry[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); // 下一个写入位置，生产者共享
+    private volatile long head; // 下一个读取位置，只由消费者修改
+    private volatile Thread waiter; // 等待新日志的消费者线程
+
+    /**
+     * @param requestedCapacity 容量，向上取整为2的幂
+     */
+    LogRingBuffer(int requestedCapacity) {
+        int size = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new LogEntry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new LogEntry();
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 当前缓冲的日志数（近似值）
+     */
+    int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * 抢占一个写入位置，之后通过{@link #slot}填充条目并调用{@link #publish}发布
+     *
+     * @param limit 允许的最大占用数，占用达到该值时拒绝写入（用于给高级别日志预留空间）
+     * @return 写入位置；缓冲区已满或达到limit时返回-1
+     */
+    long claim(int limit) {
+        long pos = tail.get();
+        while (true) {
+            if (pos - head >= limit) {
+                return -1;
+            }
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    return pos;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return -1; // 槽位尚未被消费者释放，缓冲区已满
+            } else {
+                pos = tail.get(); // 其他生产者已抢占该位置
+            }
+        }
+    }
+
+    /**
+     * 已抢占位置上的条目，只能由抢占该位置的生产者在发布前填充
+     */
+    LogEntry slot(long pos) {
+        return slots[(int) (pos & mask)];
+    }
+
+    /**
+     * 发布已填充的条目，消费者读取到新序号后可见条目内容
+     */
+    void publish(long pos) {
+        sequences.lazySet((int) (pos & mask), pos + 1);
+        signal();
+    }
+
+    /**
+     * 查看下一条已发布的日志，没有时返回null（仅消费者调用）
+     *
+     * 返回的条目在调用{@link #release}之前有效。
+     */
+    LogEntry peek() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        return slots[index];
+    }
+
+    /**
+     * 清空并释放{@link #peek}返回的条目所在的槽位（仅消费者调用）
+     */
+    void release() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        slots[index].clear();
+        sequences.lazySet(index, pos + capacity); // 释放槽位给下一轮的生产者
+        head = pos + 1;
+    }
+
+    /**
+     * 没有可读的日志时等待，直到有新日志写入或超时（仅消费者调用）
+     */
+    void awaitEntries(long timeoutNanos) {
+        if (!isEmpty()) {
+            return;
+        }
+        waiter = Thread.currentThread();
+        try {
+            // 设置waiter后再次检查，避免错过在此之前写入的日志的唤醒
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * 唤醒等待中的消费者
+     */
+    void signal() {
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
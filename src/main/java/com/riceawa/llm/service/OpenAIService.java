@@ -10,6 +10,8 @@ import com.riceawa.llm.config.LLMChatConfig;
 import com.riceawa.llm.logging.LLMLogUtils;
 import com.riceawa.llm.logging.LLMRequestLogEntry;
 import com.riceawa.llm.logging.LLMResponseLogEntry;
+import com.riceawa.llm.logging.LogLevel;
+import com.riceawa.llm.logging.LogManager;
 import okhttp3.*;
 
 import java.io.IOException;
@@ -104,10 +106,11 @@ public class OpenAIService implements LLMService {
 
         String playerName = context != null ? context.getPlayerName() : null;
         String playerUuid = context != null ? context.getPlayerUuid() : null;
+        String sessionId = context != null ? context.getSessionId() : null;
 
         for (int attempt = 1; attempt <= maxAttempts; attempt++) {
             try {
-                return executeRequest(messages, config, requestId, playerName, playerUuid);
+                return executeRequest(messages, config, requestId, playerName, playerUuid, sessionId);
             } catch (Exception e) {
                 lastException = e;
 
@@ -132,14 +135,14 @@ public class OpenAIService implements LLMService {
      * 执行单次请求
      */
     private LLMResponse executeRequest(List<LLMMessage> messages, LLMConfig config, String requestId) throws IOException {
-        return executeRequest(messages, config, requestId, null, null);
+        return executeRequest(messages, config, requestId, null, null, null);
     }
 
     /**
      * 执行单次请求（带上下文信息用于日志记录）
      */
     private LLMResponse executeRequest(List<LLMMessage> messages, LLMConfig config, String requestId,
-                                     String playerName, String playerUuid) throws IOException {
+                                     String playerName, String playerUuid, String sessionId) throws IOException {
         long startTime = System.currentTimeMillis();
         JsonObject requestBody = buildRequestBody(messages, config);
         String requestUrl = baseUrl + "/chat/completions";
@@ -150,20 +153,24 @@ public class OpenAIService implements LLMService {
         requestHeaders.put("Content-Type", "application/json");
         requestHeaders.put("X-Request-ID", requestId);
 
-        // 记录请求日志
-        LLMRequestLogEntry requestLog = LLMLogUtils.createRequestLogBuilder(requestId)
-                .serviceName(getServiceName())
-                .playerName(playerName)
-                .playerUuid(playerUuid)
-                .messages(messages)
-                .config(config)
-                .rawRequestJson(requestBody.toString())
-                .requestUrl(requestUrl)
-                .requestHeaders(LLMLogUtils.sanitizeHeaders(requestHeaders))
-                .estimatedTokens(LLMLogUtils.estimateTokens(messages))
-                .build();
+        // 记录请求日志（请求日志被禁用时不序列化）
+        boolean logRequests = LogManager.getInstance().isEnabled(LogLevel.INFO, "llm_request");
+        if (logRequests) {
+            LLMRequestLogEntry requestLog = LLMLogUtils.createRequestLogBuilder(requestId)
+                    .serviceName(getServiceName())
+                    .sessionId(sessionId)
+                    .playerName(playerName)
+                    .playerUuid(playerUuid)
+                    .messages(messages)
+                    .config(config)
+                    .rawRequestJson(requestBody.toString())
+                    .requestUrl(requestUrl)
+                    .requestHeaders(LLMLogUtils.sanitizeHeaders(requestHeaders))
+                    .estimatedTokens(LLMLogUtils.estimateTokens(messages))
+                    .build();
 
-        LLMLogUtils.logRequest(requestLog);
+            LLMLogUtils.logRequest(requestLog);
+        }
 
         Request request = new Request.Builder()
                 .url(requestUrl)
@@ -177,26 +184,30 @@ public class OpenAIService implements LLMService {
             long endTime = System.currentTimeMillis();
             long responseTime = endTime - startTime;
             String responseBody = response.body().string();
-            String responseId = LLMLogUtils.generateResponseId();
+            String responseId = logRequests ? LLMLogUtils.generateResponseId() : null;
 
             // 构建响应头
             Map<String, String> responseHeaders = new HashMap<>();
-            for (String headerName : response.headers().names()) {
-                responseHeaders.put(headerName, response.header(headerName));
+            if (logRequests) {
+                for (String headerName : response.headers().names()) {
+                    responseHeaders.put(headerName, response.header(headerName));
+                }
             }
 
             if (!response.isSuccessful()) {
                 // 记录错误响应日志
-                LLMResponseLogEntry responseLog = LLMLogUtils.createResponseLogBuilder(responseId, requestId)
-                        .httpStatusCode(response.code())
-                        .success(false)
-                        .errorMessage("HTTP " + response.code() + ": " + responseBody)
-                        .rawResponseJson(responseBody)
-                        .responseHeaders(responseHeaders)
-                        .responseTimeMs(responseTime)
-                        .build();
-
-                LLMLogUtils.logResponse(responseLog);
+                if (logRequests) {
+                    LLMResponseLogEntry responseLog = LLMLogUtils.createResponseLogBuilder(responseId, requestId)
+                            .httpStatusCode(response.code())
+                            .success(false)
+                            .errorMessage("HTTP " + response.code() + ": " + responseBody)
+                            .rawResponseJson(responseBody)
+                            .responseHeaders(responseHeaders)
+                            .responseTimeMs(responseTime)
+                            .build();
+
+                    LLMLogUtils.logResponse(responseLog);
+                }
 
                 LLMResponse errorResponse = new LLMResponse();
                 errorResponse.setError("HTTP " + response.code() + ": " + responseBody);
@@ -206,16 +217,18 @@ public class OpenAIService implements LLMService {
             LLMResponse llmResponse = parseResponse(responseBody);
 
             // 记录成功响应日志
-            LLMResponseLogEntry responseLog = LLMLogUtils.createResponseLogBuilder(responseId, requestId)
-                    .httpStatusCode(response.code())
-                    .success(llmResponse.isSuccess())
-                    .llmResponse(llmResponse)
-                    .rawResponseJson(responseBody)
-                    .responseHeaders(responseHeaders)
-                    .responseTimeMs(responseTime)
-                    .build();
+            if (logRequests) {
+                LLMResponseLogEntry responseLog = LLMLogUtils.createResponseLogBuilder(responseId, requestId)
+                        .httpStatusCode(response.code())
+                        .success(llmResponse.isSuccess())
+                        .llmResponse(llmResponse)
+                        .rawResponseJson(responseBody)
+                        .responseHeaders(responseHeaders)
+                        .responseTimeMs(responseTime)
+                        .build();
 
-            LLMLogUtils.logResponse(responseLog);
+                LLMLogUtils.logResponse(responseLog);
+            }
 
             // 记录token使用情况
             if (llmResponse.isSuccess() && llmResponse.getUsage() != null) {
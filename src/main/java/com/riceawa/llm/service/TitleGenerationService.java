@@ -1,35 +1,78 @@
 package com.riceawa.llm.service;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import com.riceawa.llm.config.LLMChatConfig;
+import com.riceawa.llm.core.ConcurrencyManager;
 import com.riceawa.llm.core.LLMConfig;
 import com.riceawa.llm.core.LLMMessage;
-import com.riceawa.llm.core.LLMResponse;
 import com.riceawa.llm.core.LLMService;
 import com.riceawa.llm.core.LLMContext;
 import com.riceawa.llm.core.LLMMessage.MessageRole;
 import com.riceawa.llm.logging.LogManager;
+import com.riceawa.llm.util.TextTokenizer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 /**
  * 对话标题生成服务
- * 使用LLM为对话会话生成简洁的标题
+ *
+ * 新会话先使用本地关键词提取的标题，同时进入待生成队列；队列中的会话按批合并成一个请求，
+ * 由LLM一次返回一组标题后再替换本地标题。批量请求只在交互请求空闲时发送，不与玩家的对话争抢容量。
  */
 public class TitleGenerationService {
     private static TitleGenerationService instance;
-    private static final String TITLE_GENERATION_PROMPT = 
-        "请为以下对话生成一个简洁的中文标题（10-20字），概括对话的主要内容：\n\n%s\n\n" +
+    private static final String BATCH_TITLE_PROMPT =
+        "请为以下%d段对话分别生成一个简洁的中文标题（10-20字），概括每段对话的主要内容：\n\n%s\n" +
         "要求：\n" +
         "- 标题要简洁明了，突出重点\n" +
         "- 使用中文\n" +
         "- 长度控制在10-20字\n" +
         "- 不要包含标点符号\n" +
-        "- 直接返回标题，不要其他内容";
+        "- 按对话编号顺序返回一个JSON字符串数组，例如 [\"标题一\", \"标题二\"]，数组长度为%d\n" +
+        "- 只返回JSON数组，不要其他内容";
+
+    private static final int BATCH_SIZE = 10; // 每个请求包含的会话数
+    private static final long BATCH_INTERVAL_SECONDS = 30; // 检查队列的间隔
+    private static final long BATCH_TIMEOUT_SECONDS = 30; // 批量请求超时
+    private static final int MAX_PENDING = 200; // 队列上限，超出时丢弃最早的会话（保留本地标题）
+    private static final int EXCERPT_MESSAGES = 4; // 每个会话摘录的消息数
+    private static final int EXCERPT_MESSAGE_LENGTH = 150; // 摘录中单条消息的最大长度
+    private static final int LOCAL_TITLE_LENGTH = 20; // 本地标题的最大长度
+    private static final Pattern LEADING_FILLER = Pattern.compile(
+        "^(你好|您好|请问|请帮我|请|帮我|麻烦|我想知道|我想问|能不能|可以|hi|hello|hey)[\\s,，.。!！~]*",
+        Pattern.CASE_INSENSITIVE);
+    private static final Pattern TITLE_PUNCTUATION = Pattern.compile("[\\p{Punct}，。！？；：、“”‘’（）《》【】…]+");
+
+    // 待生成标题的会话，按加入顺序排列；同一会话再次保存时只更新摘录
+    private final LinkedHashMap<String, PendingTitle> pending = new LinkedHashMap<>();
+    private final AtomicBoolean batchInFlight = new AtomicBoolean(false);
+    private final ScheduledExecutorService scheduler;
 
     private TitleGenerationService() {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "LLMChat-TitleBatch");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushIfIdle, BATCH_INTERVAL_SECONDS,
+                BATCH_INTERVAL_SECONDS, TimeUnit.SECONDS);
     }
 
     public static TitleGenerationService getInstance() {
@@ -44,130 +87,345 @@ public class TitleGenerationService {
     }
 
     /**
-     * 为对话消息生成标题
-     * @param messages 对话消息列表
-     * @return 异步返回生成的标题，失败时返回null
+     * 是否启用标题生成
      */
-    public CompletableFuture<String> generateTitle(List<LLMMessage> messages) {
-        LLMChatConfig config = LLMChatConfig.getInstance();
-        
-        // 检查是否启用标题生成
-        if (!config.isEnableTitleGeneration()) {
-            return CompletableFuture.completedFuture(null);
+    public boolean isEnabled() {
+        return LLMChatConfig.getInstance().isEnableTitleGeneration();
+    }
+
+    /**
+     * 将会话加入待生成队列，LLM标题生成后通过回调返回
+     *
+     * @param sessionId 会话ID，同一会话重复加入时替换摘录
+     * @param onTitle 在批量请求线程上调用
+     */
+    public void enqueue(String sessionId, List<LLMMessage> messages, Consumer<String> onTitle) {
+        String excerpt = buildConversationText(messages);
+        if (excerpt.isEmpty()) {
+            return;
         }
 
-        // 检查消息数量，至少需要2条消息（用户问题+AI回答）
-        if (messages == null || messages.size() < 2) {
-            return CompletableFuture.completedFuture(null);
+        int size;
+        synchronized (pending) {
+            pending.put(sessionId, new PendingTitle(excerpt, onTitle));
+            Iterator<String> it = pending.keySet().iterator();
+            while (pending.size() > MAX_PENDING && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+            size = pending.size();
         }
 
-        try {
-            // 获取LLM服务
-            LLMServiceManager serviceManager = LLMServiceManager.getInstance();
-            LLMService llmService = serviceManager.getDefaultService();
-            
-            if (llmService == null || !llmService.isAvailable()) {
-                LogManager.getInstance().system("LLM service not available for title generation");
-                return CompletableFuture.completedFuture(null);
+        if (size >= BATCH_SIZE && !scheduler.isShutdown()) {
+            scheduler.execute(this::flushIfIdle);
+        }
+    }
+
+    /**
+     * 如果会话仍在待生成队列中，用最新的消息更新其摘录
+     *
+     * @return 会话是否在队列中
+     */
+    public boolean updatePending(String sessionId, List<LLMMessage> messages) {
+        synchronized (pending) {
+            PendingTitle entry = pending.get(sessionId);
+            if (entry == null) {
+                return false;
             }
+            String excerpt = buildConversationText(messages);
+            if (!excerpt.isEmpty()) {
+                pending.put(sessionId, new PendingTitle(excerpt, entry.onTitle));
+            }
+            return true;
+        }
+    }
 
-            // 构建用于标题生成的对话内容
-            String conversationText = buildConversationText(messages);
-            
-            // 构建标题生成请求
-            List<LLMMessage> titleMessages = new ArrayList<>();
-            titleMessages.add(new LLMMessage(MessageRole.USER, 
-                String.format(TITLE_GENERATION_PROMPT, conversationText)));
-
-            // 配置标题生成参数
-            LLMConfig titleConfig = new LLMConfig();
-            titleConfig.setModel(config.getEffectiveTitleGenerationModel());
-            titleConfig.setTemperature(0.3); // 使用较低的温度获得更一致的结果
-            titleConfig.setMaxTokens(50); // 限制输出长度
-            
-            // 创建标题生成上下文
-            LLMContext titleContext = LLMContext.builder()
-                    .metadata("operation", "title_generation")
-                    .metadata("message_count", messages.size())
-                    .build();
-
-            // 异步生成标题
-            return llmService.chat(titleMessages, titleConfig, titleContext)
-                .thenApply(this::extractTitleFromResponse)
-                .completeOnTimeout(null, 10, TimeUnit.SECONDS) // 10秒超时
-                .exceptionally(throwable -> {
-                    LogManager.getInstance().system("Title generation failed: " + throwable.getMessage());
-                    return null;
-                });
+    /**
+     * 待生成标题的会话数
+     */
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 停止批量生成，队列中的会话保留本地标题
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        synchronized (pending) {
+            pending.clear();
+        }
+    }
 
+    /**
+     * 交互请求空闲时发送一批标题请求
+     */
+    private void flushIfIdle() {
+        if (!isEnabled()) {
+            synchronized (pending) {
+                pending.clear();
+            }
+            return;
+        }
+        if (getPendingCount() == 0 || !ConcurrencyManager.getInstance().hasSpareCapacity()) {
+            return; // 交互请求繁忙时等待下一次检查
+        }
+
+        LLMService llmService = LLMServiceManager.getInstance().getDefaultService();
+        if (llmService == null || !llmService.isAvailable()) {
+            return;
+        }
+        if (!batchInFlight.compareAndSet(false, true)) {
+            return;
+        }
+
+        List<PendingTitle> batch = new ArrayList<>();
+        synchronized (pending) {
+            Iterator<PendingTitle> it = pending.values().iterator();
+            while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                batch.add(it.next());
+                it.remove();
+            }
+        }
+
+        try {
+            sendBatch(llmService, batch)
+                .whenComplete((titles, throwable) -> {
+                    batchInFlight.set(false);
+                    if (throwable != null) {
+                        LogManager.getInstance().system("Batch title generation failed: " + throwable.getMessage());
+                        return;
+                    }
+                    applyTitles(batch, titles);
+                    if (getPendingCount() >= BATCH_SIZE && !scheduler.isShutdown()) {
+                        scheduler.execute(this::flushIfIdle);
+                    }
+                });
         } catch (Exception e) {
-            LogManager.getInstance().system("Title generation error: " + e.getMessage());
-            return CompletableFuture.completedFuture(null);
+            batchInFlight.set(false);
+            LogManager.getInstance().system("Batch title generation error: " + e.getMessage());
+        }
+    }
+
+    private CompletableFuture<List<String>> sendBatch(LLMService llmService, List<PendingTitle> batch) {
+        StringBuilder conversations = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            conversations.append("### 对话 ").append(i + 1).append("\n")
+                    .append(batch.get(i).excerpt).append("\n");
+        }
+
+        List<LLMMessage> titleMessages = new ArrayList<>();
+        titleMessages.add(new LLMMessage(MessageRole.USER,
+            String.format(BATCH_TITLE_PROMPT, batch.size(), conversations, batch.size())));
+
+        LLMConfig titleConfig = new LLMConfig();
+        titleConfig.setModel(LLMChatConfig.getInstance().getEffectiveTitleGenerationModel());
+        titleConfig.setTemperature(0.3); // 使用较低的温度获得更一致的结果
+        titleConfig.setMaxTokens(40 * batch.size()); // 每个标题约40个token
+
+        LLMContext titleContext = LLMContext.builder()
+                .metadata("operation", "title_generation")
+                .metadata("batch_size", batch.size())
+                .build();
+
+        return llmService.chat(titleMessages, titleConfig, titleContext)
+            .thenApply(response -> response != null && response.isSuccess() ?
+                parseBatchTitles(response.getContent(), batch.size()) : Collections.<String>emptyList())
+            .completeOnTimeout(Collections.emptyList(), BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void applyTitles(List<PendingTitle> batch, List<String> titles) {
+        int generated = 0;
+        for (int i = 0; i < batch.size() && i < titles.size(); i++) {
+            String title = titles.get(i);
+            if (title == null) {
+                continue;
+            }
+            try {
+                batch.get(i).onTitle.accept(title);
+                generated++;
+            } catch (Exception e) {
+                LogManager.getInstance().error("Failed to apply generated title", e);
+            }
+        }
+        LogManager.getInstance().system("Generated " + generated + "/" + batch.size() + " titles in one batch");
+    }
+
+    /**
+     * 解析批量请求返回的JSON数组，无效的标题位置为null
+     */
+    static List<String> parseBatchTitles(String content, int expected) {
+        List<String> titles = new ArrayList<>();
+        if (content == null) {
+            return titles;
+        }
+        // 模型可能用代码块包裹数组
+        int start = content.indexOf('[');
+        int end = content.lastIndexOf(']');
+        if (start < 0 || end <= start) {
+            return titles;
+        }
+        try {
+            JsonArray array = JsonParser.parseString(content.substring(start, end + 1)).getAsJsonArray();
+            for (int i = 0; i < array.size() && i < expected; i++) {
+                JsonElement element = array.get(i);
+                titles.add(element.isJsonPrimitive() ? cleanTitle(element.getAsString()) : null);
+            }
+        } catch (RuntimeException e) {
+            LogManager.getInstance().system("Unparseable batch title response: " + e.getMessage());
         }
+        return titles;
+    }
+
+    /**
+     * 用本地关键词提取为会话生成一个临时标题
+     *
+     * 从用户消息中挑选包含最多对话关键词（在整段对话中反复出现的词项）的句子，
+     * 去掉开头的客套语和标点后截断为标题。
+     *
+     * @return 标题；没有可用的用户消息时返回null
+     */
+    public String generateLocalTitle(List<LLMMessage> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return null;
+        }
+
+        // 统计对话中各词项出现的次数
+        Map<String, Integer> termCounts = new HashMap<>();
+        List<String> candidates = new ArrayList<>();
+        int used = 0;
+        for (LLMMessage message : messages) {
+            if (used >= EXCERPT_MESSAGES * 2) {
+                break;
+            }
+            if (message.getRole() == MessageRole.SYSTEM || message.getContent() == null) {
+                continue;
+            }
+            used++;
+            for (String token : TextTokenizer.tokenize(message.getContent())) {
+                termCounts.merge(token, 1, Integer::sum);
+            }
+            if (message.getRole() == MessageRole.USER) {
+                candidates.addAll(TextTokenizer.splitSentences(message.getContent()));
+            }
+        }
+
+        String best = null;
+        double bestScore = -1;
+        for (String sentence : candidates) {
+            String cleaned = stripFiller(sentence);
+            Set<String> terms = new HashSet<>(TextTokenizer.tokenize(cleaned));
+            if (terms.isEmpty()) {
+                continue;
+            }
+            double score = 0;
+            for (String term : terms) {
+                score += termCounts.getOrDefault(term, 0) - 1; // 只出现一次的词项不算关键词
+            }
+            score /= Math.sqrt(terms.size());
+            if (score > bestScore) {
+                bestScore = score;
+                best = cleaned;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        String title = TITLE_PUNCTUATION.matcher(best).replaceAll(" ").replaceAll("\\s+", " ").trim();
+        if (title.length() > LOCAL_TITLE_LENGTH) {
+            int cut = title.lastIndexOf(' ', LOCAL_TITLE_LENGTH);
+            title = title.substring(0, cut > LOCAL_TITLE_LENGTH / 2 ? cut : LOCAL_TITLE_LENGTH).trim();
+        }
+        return title.length() >= 2 ? title : null;
+    }
+
+    private static String stripFiller(String sentence) {
+        String result = sentence.trim();
+        String previous;
+        do {
+            previous = result;
+            result = LEADING_FILLER.matcher(result).replaceFirst("").trim();
+        } while (!result.equals(previous) && !result.isEmpty());
+        return result;
     }
 
     /**
      * 构建用于标题生成的对话文本
-     * 只使用前几轮对话，避免内容过长
+     * 只使用前几条消息，避免内容过长
      */
     private String buildConversationText(List<LLMMessage> messages) {
         StringBuilder conversationText = new StringBuilder();
+        if (messages == null) {
+            return "";
+        }
         int messageCount = 0;
-        int maxMessages = 6; // 最多使用前6条消息（约3轮对话）
-        
+
         for (LLMMessage message : messages) {
-            if (messageCount >= maxMessages) {
+            if (messageCount >= EXCERPT_MESSAGES) {
                 break;
             }
-            
+
             // 跳过系统消息
-            if (message.getRole() == MessageRole.SYSTEM) {
+            if (message.getRole() == MessageRole.SYSTEM || message.getContent() == null) {
                 continue;
             }
-            
+
             String roleText = message.getRole() == MessageRole.USER ? "用户" : "助手";
             conversationText.append(roleText).append(": ");
-            
+
             // 限制单条消息长度
-            String content = message.getContent();
-            if (content.length() > 200) {
-                content = content.substring(0, 200) + "...";
+            String content = message.getContent().replace('\n', ' ');
+            if (content.length() > EXCERPT_MESSAGE_LENGTH) {
+                content = content.substring(0, EXCERPT_MESSAGE_LENGTH) + "...";
             }
-            
+
             conversationText.append(content).append("\n");
             messageCount++;
         }
-        
+
         return conversationText.toString();
     }
 
     /**
-     * 从LLM响应中提取标题
+     * 验证并清理LLM生成的标题
      */
-    private String extractTitleFromResponse(LLMResponse response) {
-        if (response == null || !response.isSuccess() || response.getContent() == null) {
+    private static String cleanTitle(String title) {
+        if (title == null) {
             return null;
         }
-        
-        String title = response.getContent().trim();
-        
+        title = title.trim();
+
         // 验证标题长度和内容
         if (title.isEmpty() || title.length() > 50) {
             return null;
         }
-        
+
         // 移除可能的引号和标点符号
         title = title.replaceAll("[\"'。，！？；：]", "");
-        
+
         // 如果标题太短或太长，返回null
         if (title.length() < 2 || title.length() > 30) {
             return null;
         }
-        
-        LogManager.getInstance().system("Generated title: " + title);
         return title;
     }
 
+    /**
+     * 队列中的会话摘录
+     */
+    private static class PendingTitle {
+        final String excerpt;
+        final Consumer<String> onTitle;
+
+        PendingTitle(String excerpt, Consumer<String> onTitle) {
+            this.excerpt = excerpt;
+            this.onTitle = onTitle;
+        }
+    }
+
     /**
      * 检查消息列表是否适合生成标题
      */
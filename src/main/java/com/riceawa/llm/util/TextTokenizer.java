@@ -0,0 +1,126 @@
+package com.riceawa.llm.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 轻量级文本分词与分句工具
+ *
+ * 不依赖词典：中日韩文字按相邻字符二元组切分，拉丁文字按单词切分并转为小写。
+ * 用于本地摘要、检索等不需要精确分词的场景。
+ */
+public final class TextTokenizer {
+
+    private TextTokenizer() {} // 工具类，禁止实例化
+
+    /**
+     * 将文本切分为词项
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+
+        StringBuilder word = new StringBuilder();
+        int cjkRunStart = -1;
+        int length = text.length();
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+
+            if (isCjk(c)) {
+                flushWord(word, tokens);
+                if (cjkRunStart < 0) {
+                    cjkRunStart = i;
+                }
+                continue;
+            }
+
+            if (cjkRunStart >= 0) {
+                addCjkRun(text, cjkRunStart, i, tokens);
+                cjkRunStart = -1;
+            }
+
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else {
+                flushWord(word, tokens);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * 将文本切分为句子，句末标点保留在句子中
+     */
+    public static List<String> splitSentences(String text) {
+        List<String> sentences = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return sentences;
+        }
+
+        StringBuilder current = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                addSentence(current, sentences);
+                continue;
+            }
+            current.append(c);
+            if (isSentenceEnd(c)) {
+                // 英文句号后需跟空白才视为句末，避免切开小数和缩写
+                if ((c == '.' || c == '!' || c == '?') && i + 1 < length && !Character.isWhitespace(text.charAt(i + 1))) {
+                    continue;
+                }
+                addSentence(current, sentences);
+            }
+        }
+        addSentence(current, sentences);
+        return sentences;
+    }
+
+    /**
+     * 判断字符是否为中日韩文字
+     */
+    public static boolean isCjk(char c) {
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(c);
+        return block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS ||
+               block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A ||
+               block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS ||
+               block == Character.UnicodeBlock.HIRAGANA ||
+               block == Character.UnicodeBlock.KATAKANA ||
+               block == Character.UnicodeBlock.HANGUL_SYLLABLES;
+    }
+
+    private static boolean isSentenceEnd(char c) {
+        return c == '。' || c == '！' || c == '？' || c == '；' || c == '…' ||
+               c == '.' || c == '!' || c == '?' || c == ';';
+    }
+
+    private static void addSentence(StringBuilder current, List<String> sentences) {
+        String sentence = current.toString().trim();
+        if (!sentence.isEmpty()) {
+            sentences.add(sentence);
+        }
+        current.setLength(0);
+    }
+
+    private static void flushWord(StringBuilder word, List<String> tokens) {
+        if (word.length() > 0) {
+            tokens.add(word.toString().toLowerCase(Locale.ROOT));
+            word.setLength(0);
+        }
+    }
+
+    private static void addCjkRun(String text, int start, int end, List<String> tokens) {
+        if (end - start == 1) {
+            tokens.add(text.substring(start, end));
+            return;
+        }
+        for (int i = start; i + 1 < end; i++) {
+            tokens.add(text.substring(i, i + 2));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 上下文换出、恢复和过期测试
+ */
+public class ChatContextManagerTest {
+
+    @TempDir
+    Path contextDir;
+
+    private ChatContextManager manager;
+    private UUID playerId;
+
+    @BeforeEach
+    void setUp() {
+        ContextTestConfig.resetContextSettings();
+        System.setProperty("lllmchat.context.dir", contextDir.toString());
+        ChatContextManager.resetInstance();
+        manager = ChatContextManager.getInstance();
+        playerId = UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ChatContextManager.resetInstance();
+        System.clearProperty("lllmchat.context.dir");
+    }
+
+    /**
+     * 玩家退出，等待维护线程把上下文换出到磁盘
+     */
+    private void disconnectAndWaitForSpill() throws InterruptedException {
+        manager.onPlayerDisconnect(playerId);
+        for (int i = 0; i < 200 && manager.getSpilledContextCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, manager.getSpilledContextCount());
+        assertEquals(0, manager.getActiveContextCount());
+    }
+
+    @Test
+    void testRestoreSpilledContextAfterQuit() throws Exception {
+        ChatContext context = manager.getContext(playerId);
+        context.addMessage(new LLMMessage(MessageRole.USER, "怎么制作附魔台？"));
+        context.addMessage(new LLMMessage(MessageRole.ASSISTANT, "需要书、钻石和黑曜石。"));
+        String sessionId = context.getSessionId();
+        List<String> messageIds = new ArrayList<>();
+        for (LLMMessage message : context.getMessages()) {
+            messageIds.add(message.getId());
+        }
+
+        disconnectAndWaitForSpill();
+        assertTrue(Files.exists(contextDir.resolve(playerId + ".json.gz")));
+
+        ChatContext restored = manager.getContext(playerId);
+        assertEquals(sessionId, restored.getSessionId());
+        List<String> restoredIds = new ArrayList<>();
+        for (LLMMessage message : restored.getMessages()) {
+            restoredIds.add(message.getId());
+        }
+        assertEquals(messageIds, restoredIds);
+        assertEquals(0, manager.getSpilledContextCount());
+        assertFalse(Files.exists(contextDir.resolve(playerId + ".json.gz")));
+        assertSame(restored, manager.getContext(playerId));
+    }
+
+    @Test
+    void testDiscardSpilledContextOnExpiry() throws Exception {
+        ChatContext context = manager.getContext(playerId);
+        context.addMessage(new LLMMessage(MessageRole.USER, "怎么制作附魔台？"));
+        String sessionId = context.getSessionId();
+        disconnectAndWaitForSpill();
+
+        // 超过上下文超时时间后检查：丢弃磁盘上的副本，不再安排检查
+        long afterTimeout = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(3);
+        assertEquals(-1, manager.checkContext(playerId, afterTimeout));
+        assertEquals(0, manager.getSpilledContextCount());
+        assertFalse(Files.exists(contextDir.resolve(playerId + ".json.gz")));
+
+        ChatContext fresh = manager.getContext(playerId);
+        assertNotEquals(sessionId, fresh.getSessionId());
+        assertTrue(fresh.getMessages().isEmpty());
+    }
+}
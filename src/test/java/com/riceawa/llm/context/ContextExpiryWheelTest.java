@@ -0,0 +1,71 @@
+package com.riceawa.llm.context;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 上下文过期时间轮测试
+ */
+public class ContextExpiryWheelTest {
+
+    private static final long TICK_MS = 1000;
+
+    @Test
+    void testEntryFiresAfterDeadline() {
+        ContextExpiryWheel wheel = new ContextExpiryWheel(TICK_MS, 8);
+        long now = System.currentTimeMillis();
+        UUID playerId = UUID.randomUUID();
+
+        wheel.schedule(playerId, now + 3 * TICK_MS);
+
+        assertTrue(wheel.advance(now + TICK_MS).isEmpty());
+        List<UUID> due = wheel.advance(now + 5 * TICK_MS);
+        assertEquals(List.of(playerId), due);
+        assertFalse(wheel.contains(playerId));
+    }
+
+    @Test
+    void testDeadlineBeyondOneRotation() {
+        ContextExpiryWheel wheel = new ContextExpiryWheel(TICK_MS, 4);
+        long now = System.currentTimeMillis();
+        UUID playerId = UUID.randomUUID();
+
+        wheel.schedule(playerId, now + 10 * TICK_MS);
+
+        // 一圈只有4格，第一次经过该格时不应触发
+        assertTrue(wheel.advance(now + 8 * TICK_MS).isEmpty());
+        assertEquals(List.of(playerId), wheel.advance(now + 12 * TICK_MS));
+    }
+
+    @Test
+    void testEarlierDeadlineReplacesLaterOne() {
+        ContextExpiryWheel wheel = new ContextExpiryWheel(TICK_MS, 8);
+        long now = System.currentTimeMillis();
+        UUID playerId = UUID.randomUUID();
+
+        wheel.schedule(playerId, now + 6 * TICK_MS);
+        wheel.schedule(playerId, now + 2 * TICK_MS);
+        // 更晚的时间不会覆盖已有的更早检查
+        wheel.schedule(playerId, now + 7 * TICK_MS);
+
+        assertEquals(1, wheel.size());
+        assertEquals(List.of(playerId), wheel.advance(now + 4 * TICK_MS));
+        assertTrue(wheel.advance(now + 9 * TICK_MS).isEmpty());
+    }
+
+    @Test
+    void testCancel() {
+        ContextExpiryWheel wheel = new ContextExpiryWheel(TICK_MS, 8);
+        long now = System.currentTimeMillis();
+        UUID playerId = UUID.randomUUID();
+
+        wheel.schedule(playerId, now + 2 * TICK_MS);
+        wheel.cancel(playerId);
+
+        assertEquals(0, wheel.size());
+        assertTrue(wheel.advance(now + 4 * TICK_MS).isEmpty());
+    }
+}
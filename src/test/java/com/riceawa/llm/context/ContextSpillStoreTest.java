@@ -0,0 +1,112 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * 上下文磁盘存储测试
+ */
+public class ContextSpillStoreTest {
+
+    @TempDir
+    Path contextDir;
+
+    private ContextSpillStore store;
+    private UUID playerId;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("lllmchat.context.dir", contextDir.toString());
+        store = new ContextSpillStore();
+        playerId = UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.clearProperty("lllmchat.context.dir");
+    }
+
+    private ChatContext.Snapshot snapshot(long lastActivity, String... contents) {
+        ChatContext.Snapshot snapshot = new ChatContext.Snapshot();
+        snapshot.sessionId = "session-" + lastActivity;
+        snapshot.playerId = playerId;
+        snapshot.messages = new ArrayList<>();
+        for (String content : contents) {
+            snapshot.messages.add(new LLMMessage(MessageRole.USER, content));
+        }
+        snapshot.metadata = new HashMap<>();
+        snapshot.metadata.put("source", "test");
+        snapshot.currentPromptTemplate = "default";
+        snapshot.lastActivity = lastActivity;
+        return snapshot;
+    }
+
+    @Test
+    void testGzipRoundTrip() throws Exception {
+        ChatContext.Snapshot original = snapshot(1000, "怎么制作附魔台？", "书架要放几个？");
+        assertTrue(store.write(original));
+        assertTrue(store.contains(playerId));
+        assertEquals(1000, store.getLastActivity(playerId));
+
+        // 文件是gzip压缩的JSON
+        Path file = contextDir.resolve(playerId + ".json.gz");
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            assertTrue(new String(in.readAllBytes(), StandardCharsets.UTF_8).contains("怎么制作附魔台？"));
+        }
+
+        ChatContext.Snapshot restored = store.take(playerId);
+        assertEquals(original.sessionId, restored.sessionId);
+        assertEquals(playerId, restored.playerId);
+        assertEquals("default", restored.currentPromptTemplate);
+        assertEquals("test", restored.metadata.get("source"));
+        assertEquals(2, restored.messages.size());
+        assertEquals(original.messages.get(1).getId(), restored.messages.get(1).getId());
+        assertEquals("书架要放几个？", restored.messages.get(1).getContent());
+
+        // 读取后删除
+        assertFalse(store.contains(playerId));
+        assertFalse(Files.exists(file));
+        assertNull(store.take(playerId));
+    }
+
+    @Test
+    void testWriteReplacesAtomically() throws Exception {
+        assertTrue(store.write(snapshot(1000, "旧的问题")));
+        assertTrue(store.write(snapshot(2000, "新的问题")));
+
+        // 临时文件已被原子替换到目标位置，目录中只剩一个文件
+        try (Stream<Path> files = Files.list(contextDir)) {
+            List<Path> remaining = files.toList();
+            assertEquals(1, remaining.size());
+            assertEquals(playerId + ".json.gz", remaining.get(0).getFileName().toString());
+        }
+        assertEquals(2000, store.getLastActivity(playerId));
+        assertEquals("新的问题", store.take(playerId).messages.get(0).getContent());
+
+        // 清空时删除上次运行遗留的文件，包括中断写入留下的临时文件
+        store.write(snapshot(3000, "问题"));
+        Files.writeString(contextDir.resolve(UUID.randomUUID() + ".json.gz.tmp"), "partial");
+        ContextSpillStore reopened = new ContextSpillStore();
+        reopened.clear();
+        assertFalse(reopened.contains(playerId));
+        try (Stream<Path> files = Files.list(contextDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+}
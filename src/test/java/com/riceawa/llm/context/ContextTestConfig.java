@@ -0,0 +1,25 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.config.ContextSettings;
+import com.riceawa.llm.config.LLMChatConfig;
+
+import java.nio.file.Path;
+
+/**
+ * 上下文测试使用的配置：配置文件放在临时目录，每个测试使用默认的上下文设置
+ */
+final class ContextTestConfig {
+    private ContextTestConfig() {
+    }
+
+    /**
+     * 重置上下文设置并返回，测试可以直接修改返回的设置
+     */
+    static ContextSettings resetContextSettings() {
+        System.setProperty("lllmchat.config.dir",
+            Path.of(System.getProperty("java.io.tmpdir"), "lllmchat-test-config").toString());
+        ContextSettings settings = ContextSettings.createDefault();
+        LLMChatConfig.getInstance().setContextSettings(settings);
+        return settings;
+    }
+}
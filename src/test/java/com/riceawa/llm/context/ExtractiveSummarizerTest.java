@@ -0,0 +1,84 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import com.riceawa.llm.util.TextTokenizer;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 本地抽取式摘要器测试
+ */
+public class ExtractiveSummarizerTest {
+
+    private final ExtractiveSummarizer summarizer = new ExtractiveSummarizer();
+
+    @Test
+    void testTokenize_MixedCjkAndLatin() {
+        List<String> tokens = TextTokenizer.tokenize("我想建造Redstone农场");
+
+        assertTrue(tokens.contains("我想"));
+        assertTrue(tokens.contains("建造"));
+        assertTrue(tokens.contains("redstone"));
+        assertTrue(tokens.contains("农场"));
+    }
+
+    @Test
+    void testSplitSentences_KeepsDecimals() {
+        List<String> sentences = TextTokenizer.splitSentences("版本是1.21.11。怎么合成钻石镐？Use a crafting table. Done");
+
+        assertEquals(4, sentences.size());
+        assertEquals("版本是1.21.11。", sentences.get(0));
+    }
+
+    @Test
+    void testSummarize_RespectsCharacterBudget() {
+        List<LLMMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(new LLMMessage(MessageRole.USER, "我在第" + i + "层挖矿时找到了钻石。请问附魔台怎么做？"));
+            messages.add(new LLMMessage(MessageRole.ASSISTANT, "附魔台需要钻石、黑曜石和书。钻石通常在深层出现。"));
+        }
+
+        String summary = summarizer.summarize(null, messages, 200);
+
+        assertNotNull(summary);
+        assertTrue(summary.length() <= 200);
+    }
+
+    @Test
+    void testSummarize_SkipsRedundantSentences() {
+        List<LLMMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            messages.add(new LLMMessage(MessageRole.ASSISTANT, "附魔台需要钻石、黑曜石和书。"));
+        }
+        messages.add(new LLMMessage(MessageRole.USER, "我的基地坐标是100, 64, -200。"));
+
+        String summary = summarizer.summarize(null, messages, 500);
+
+        assertNotNull(summary);
+        assertEquals(summary.indexOf("附魔台"), summary.lastIndexOf("附魔台"));
+        assertTrue(summary.contains("坐标"));
+    }
+
+    @Test
+    void testSummarize_KeepsPreviousSummaryAndOrder() {
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "下一步我想建造自动甘蔗农场。"));
+
+        String summary = summarizer.summarize("玩家正在建造红石农场。", messages, 500);
+
+        assertNotNull(summary);
+        assertTrue(summary.indexOf("红石农场") < summary.indexOf("甘蔗农场"));
+    }
+
+    @Test
+    void testSummarize_NoContent() {
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.SYSTEM, "你是一个助手"));
+
+        assertNull(summarizer.summarize(null, messages, 500));
+    }
+}
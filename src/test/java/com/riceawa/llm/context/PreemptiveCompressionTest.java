@@ -0,0 +1,112 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.config.ContextSettings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * 软水位预压缩调度测试
+ */
+public class PreemptiveCompressionTest {
+
+    private static final int MAX_CONTEXT_CHARACTERS = 2000;
+
+    @TempDir
+    Path contextDir;
+
+    private ContextSettings settings;
+    private ChatContext context;
+
+    @BeforeEach
+    void setUp() {
+        settings = ContextTestConfig.resetContextSettings();
+        settings.setCompressionStrategy(ContextSettings.STRATEGY_EXTRACTIVE);
+        settings.setMaxSummaryCharacters(200);
+        settings.setIdleCompressionDelayMs(50);
+        System.setProperty("lllmchat.context.dir", contextDir.toString());
+        ChatContextManager.resetInstance();
+        context = new ChatContext(UUID.randomUUID());
+        context.setMaxContextCharacters(MAX_CONTEXT_CHARACTERS);
+    }
+
+    @AfterEach
+    void tearDown() {
+        ChatContextManager.resetInstance();
+        System.clearProperty("lllmchat.context.dir");
+    }
+
+    /**
+     * 添加对话直到总长度超过指定字符数
+     */
+    private void fillTo(int characters) {
+        for (int i = 0; context.calculateTotalCharacters() <= characters; i++) {
+            context.addUserMessage("第" + i + "个问题：怎么在下界找到要塞？");
+            context.addAssistantMessage("第" + i + "个回答：沿着下界的X轴方向探索。");
+        }
+    }
+
+    private void waitForCompression() throws InterruptedException {
+        for (int i = 0; i < 500 && context.hasPendingCompression(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(context.hasPendingCompression());
+    }
+
+    private boolean hasSummary() {
+        return context.getMessages().stream().anyMatch(ChatContext::isSummaryMessage);
+    }
+
+    @Test
+    void testBelowSoftThresholdSchedulesNothing() {
+        fillTo(MAX_CONTEXT_CHARACTERS / 2);
+        context.scheduleCompressionIfNeeded();
+        assertFalse(context.hasPendingCompression());
+    }
+
+    @Test
+    void testSoftThresholdCompressesAfterIdle() throws Exception {
+        int softThreshold = (int) (MAX_CONTEXT_CHARACTERS * settings.getSoftCompressionThreshold());
+        fillTo(softThreshold);
+        assertTrue(context.calculateTotalCharacters() < MAX_CONTEXT_CHARACTERS);
+
+        // 软水位只安排后台任务，不在当前请求中压缩
+        context.scheduleCompressionIfNeeded();
+        assertTrue(context.hasPendingCompression());
+        assertFalse(hasSummary());
+
+        waitForCompression();
+        assertTrue(hasSummary());
+        assertTrue(context.calculateTotalCharacters() <= softThreshold);
+    }
+
+    @Test
+    void testActivityPostponesPreemptiveCompression() throws Exception {
+        settings.setIdleCompressionDelayMs(400);
+        fillTo((int) (MAX_CONTEXT_CHARACTERS * settings.getSoftCompressionThreshold()));
+        context.scheduleCompressionIfNeeded();
+
+        // 玩家在等待期间仍有活动，到期时推迟到下一个空闲窗口
+        Thread.sleep(200);
+        context.addUserMessage("还在线吗？");
+        Thread.sleep(250);
+        assertTrue(context.hasPendingCompression());
+        assertFalse(hasSummary());
+
+        waitForCompression();
+        assertTrue(hasSummary());
+    }
+
+    @Test
+    void testPreemptiveCompressionDisabled() {
+        settings.setEnablePreemptiveCompression(false);
+        fillTo((int) (MAX_CONTEXT_CHARACTERS * settings.getSoftCompressionThreshold()));
+        context.scheduleCompressionIfNeeded();
+        assertFalse(context.hasPendingCompression());
+    }
+}
@@ -0,0 +1,101 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import com.riceawa.llm.history.ChatHistory;
+import com.riceawa.llm.history.MemoryIndex;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 请求消息组装测试
+ */
+public class RequestMessagesTest {
+
+    @TempDir
+    Path historyDir;
+
+    private UUID playerId;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        ContextTestConfig.resetContextSettings();
+        System.setProperty("lllmchat.history.dir", historyDir.toString());
+        ChatHistory.resetInstance();
+        playerId = UUID.randomUUID();
+
+        // 等待后台构建完（空的）记忆索引，之后的会话走增量索引
+        MemoryIndex index = MemoryIndex.getInstance();
+        int before = index.getIndexedPlayerCount();
+        index.buildMemoryPrompt(playerId, null, "预热", 3, 800);
+        for (int i = 0; i < 200 && index.getIndexedPlayerCount() == before; i++) {
+            Thread.sleep(10);
+        }
+
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "怎么制作附魔台？"));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "附魔台需要书、钻石和黑曜石。"));
+        index.indexSession(new ChatHistory.ChatSession("past", playerId, messages, LocalDateTime.now(), "default"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        MemoryIndex.getInstance().releasePlayer(playerId);
+        ChatHistory.resetInstance();
+        System.clearProperty("lllmchat.history.dir");
+    }
+
+    private static boolean isMemory(LLMMessage message) {
+        return message.getRole() == MessageRole.SYSTEM && message.getContent().startsWith(MemoryIndex.MEMORY_HEADER);
+    }
+
+    @Test
+    void testMemoryKeepsRequestPrefixStable() {
+        ChatContext context = new ChatContext(playerId);
+        context.addSystemMessage("你是一个Minecraft助手");
+        for (int i = 0; i < 3; i++) {
+            context.addUserMessage("第" + i + "个问题");
+            context.addAssistantMessage("第" + i + "个回答");
+        }
+        context.addUserMessage("附魔台要什么材料？");
+        List<LLMMessage> first = context.getRequestMessages();
+
+        context.addAssistantMessage("需要书、钻石和黑曜石。");
+        context.addUserMessage("附魔台旁边放几个书架？");
+        List<LLMMessage> second = context.getRequestMessages();
+
+        // 记忆紧贴在最新的问题之前
+        int memoryIndex = first.size() - 2;
+        assertTrue(isMemory(first.get(memoryIndex)));
+        assertTrue(isMemory(second.get(second.size() - 2)));
+        assertEquals("附魔台旁边放几个书架？", second.get(second.size() - 1).getContent());
+
+        // 上一次请求中记忆之前的消息原样出现在下一次请求的开头
+        assertEquals(7, memoryIndex);
+        for (int i = 0; i < memoryIndex; i++) {
+            assertSame(first.get(i), second.get(i));
+        }
+        assertSame(first.get(memoryIndex + 1), second.get(memoryIndex));
+        // 记忆只用于本次请求，不写入上下文
+        assertEquals(second.size() - 1, context.getMessageCount());
+    }
+
+    @Test
+    void testNoMemoryWithoutUserMessage() {
+        ChatContext context = new ChatContext(playerId);
+        context.addSystemMessage("你是一个Minecraft助手");
+
+        List<LLMMessage> request = context.getRequestMessages();
+        assertEquals(1, request.size());
+        assertFalse(isMemory(request.get(0)));
+    }
+}
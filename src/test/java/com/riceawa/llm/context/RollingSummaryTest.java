@@ -0,0 +1,112 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.config.ContextSettings;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 滚动摘要的压缩计划和应用测试
+ */
+public class RollingSummaryTest {
+
+    private static final int MAX_CONTEXT_CHARACTERS = 2000;
+    private static final int MAX_SUMMARY_CHARACTERS = 200;
+
+    private ContextSettings settings;
+    private ChatContext context;
+
+    @BeforeEach
+    void setUp() {
+        settings = ContextTestConfig.resetContextSettings();
+        settings.setCompressionStrategy(ContextSettings.STRATEGY_EXTRACTIVE);
+        settings.setMaxSummaryCharacters(MAX_SUMMARY_CHARACTERS);
+        context = new ChatContext(UUID.randomUUID());
+        context.setMaxContextCharacters(MAX_CONTEXT_CHARACTERS);
+        context.addSystemMessage("你是一个Minecraft助手。");
+    }
+
+    private static LLMMessage summary(String text) {
+        return new LLMMessage(MessageRole.SYSTEM,
+            ChatContext.SUMMARY_HEADER + "\n" + text + "\n" + ChatContext.SUMMARY_FOOTER);
+    }
+
+    private void addTurns(int count) {
+        for (int i = 0; i < count; i++) {
+            context.addUserMessage("第" + i + "个问题：" + "怎么在下界找到要塞？".repeat(10));
+            context.addAssistantMessage("第" + i + "个回答：" + "沿着下界的X轴方向探索。".repeat(10));
+        }
+    }
+
+    private long countSummaries() {
+        return context.getMessages().stream().filter(ChatContext::isSummaryMessage).count();
+    }
+
+    @Test
+    void testPreviousSummariesFoldIntoOne() {
+        context.addMessage(summary("玩家在准备附魔台。"));
+        context.addMessage(summary("玩家找到了钻石。"));
+        addTurns(10);
+
+        ChatContext.CompressionPlan plan = context.planCompression(MAX_CONTEXT_CHARACTERS / 2);
+        assertNotNull(plan);
+        assertEquals(2, plan.summaryMessages.size());
+        assertEquals("玩家在准备附魔台。\n玩家找到了钻石。", plan.previousSummary);
+
+        assertTrue(context.applySummary(plan, "玩家准备附魔并在寻找下界要塞。"));
+        List<LLMMessage> messages = context.getMessages();
+        assertEquals(1, countSummaries());
+        // 摘要紧跟在系统提示词之后，其后是保留的最近对话
+        assertEquals(MessageRole.SYSTEM, messages.get(0).getRole());
+        assertTrue(ChatContext.isSummaryMessage(messages.get(1)));
+        assertTrue(messages.get(1).getContent().contains("寻找下界要塞"));
+        assertFalse(messages.get(1).getContent().contains("钻石"));
+        assertEquals(MessageRole.USER, messages.get(2).getRole());
+        assertEquals(20 - plan.messagesToCompress, messages.size() - 2);
+    }
+
+    @Test
+    void testSummaryRespectsMaxSummaryCharacters() {
+        addTurns(10);
+        ChatContext.CompressionPlan plan = context.planCompression(MAX_CONTEXT_CHARACTERS / 2);
+        assertNotNull(plan);
+
+        String summary = context.summarize("已有的摘要很长。".repeat(100), plan.getMessagesToCompress());
+        assertNotNull(summary);
+        assertTrue(summary.length() <= MAX_SUMMARY_CHARACTERS);
+
+        // 计划为摘要预留了空间：应用后不超过目标长度（摘要的首尾标记除外）
+        assertTrue(context.applySummary(plan, summary));
+        int markers = ChatContext.SUMMARY_HEADER.length() + ChatContext.SUMMARY_FOOTER.length() + 2;
+        assertTrue(context.calculateTotalCharacters() <= MAX_CONTEXT_CHARACTERS / 2 + markers);
+    }
+
+    @Test
+    void testApplyRefusedWhenCompressedMessagesChanged() {
+        addTurns(10);
+        ChatContext.CompressionPlan plan = context.planCompression(MAX_CONTEXT_CHARACTERS / 2);
+        assertNotNull(plan);
+
+        // 压缩期间上下文被清空，再加入内容相同但不是同一实例的消息
+        context.clear();
+        for (LLMMessage message : plan.getMessagesToCompress()) {
+            context.addMessage(new LLMMessage(message.getRole(), message.getContent()));
+        }
+        int before = context.getMessageCount();
+
+        assertFalse(context.applySummary(plan, "不应被应用的摘要"));
+        assertEquals(before, context.getMessageCount());
+        assertEquals(0, countSummaries());
+    }
+
+    @Test
+    void testNoPlanWithinTarget() {
+        addTurns(1);
+        assertNull(context.planCompression(MAX_CONTEXT_CHARACTERS));
+    }
+}
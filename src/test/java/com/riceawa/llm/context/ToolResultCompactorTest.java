@@ -0,0 +1,90 @@
+package com.riceawa.llm.context;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 工具结果压缩测试
+ */
+public class ToolResultCompactorTest {
+
+    private static final int DIGEST_CHARACTERS = 20;
+
+    private LLMMessage toolResult(String callId, String content) {
+        LLMMessage message = new LLMMessage(MessageRole.TOOL, content);
+        message.setToolCallId(callId);
+        return message;
+    }
+
+    private String longText(String seed) {
+        return seed.repeat(50);
+    }
+
+    @Test
+    void testStaleToolResultIsDigested() {
+        String stale = longText("钻石矿石通常生成在Y=-58附近。");
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "钻石在哪一层？"));
+        messages.add(toolResult("call_1", stale));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "在Y=-58附近。"));
+        messages.add(new LLMMessage(MessageRole.USER, "附魔台怎么做？"));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "需要书、钻石和黑曜石。"));
+        messages.add(new LLMMessage(MessageRole.USER, "谢谢"));
+
+        int compacted = ToolResultCompactor.compact(messages, 2, DIGEST_CHARACTERS);
+
+        assertEquals(1, compacted);
+        LLMMessage digest = messages.get(1);
+        assertEquals("call_1", digest.getToolCallId());
+        assertTrue(digest.getContent().length() < stale.length());
+        assertTrue(digest.getContent().contains(String.valueOf(stale.length())));
+    }
+
+    @Test
+    void testRecentToolResultIsKept() {
+        String recent = longText("背包中有64个圆石。");
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "我背包里有什么？"));
+        messages.add(toolResult("call_1", recent));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "有64个圆石。"));
+        messages.add(new LLMMessage(MessageRole.USER, "够建房子吗？"));
+
+        assertEquals(0, ToolResultCompactor.compact(messages, 2, DIGEST_CHARACTERS));
+        assertSame(recent, messages.get(1).getContent());
+    }
+
+    @Test
+    void testDuplicateToolResultKeepsLatest() {
+        String page = longText("苦力怕会在靠近玩家时爆炸。");
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "苦力怕是什么？"));
+        messages.add(toolResult("call_1", page));
+        messages.add(toolResult("call_2", page));
+
+        assertEquals(1, ToolResultCompactor.compact(messages, 2, DIGEST_CHARACTERS));
+        assertEquals("call_1", messages.get(1).getToolCallId());
+        assertNotEquals(page, messages.get(1).getContent());
+        assertSame(page, messages.get(2).getContent());
+    }
+
+    @Test
+    void testOriginalMessageUnchanged() {
+        String stale = longText("附近有3只僵尸。");
+        LLMMessage original = toolResult("call_1", stale);
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "附近有什么？"));
+        messages.add(original);
+        messages.add(new LLMMessage(MessageRole.USER, "还有吗？"));
+        messages.add(new LLMMessage(MessageRole.USER, "好的"));
+
+        ToolResultCompactor.compact(messages, 2, DIGEST_CHARACTERS);
+
+        assertNotSame(original, messages.get(1));
+        assertSame(stale, original.getContent());
+    }
+}
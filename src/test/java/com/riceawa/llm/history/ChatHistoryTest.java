@@ -2,19 +2,42 @@ package com.riceawa.llm.history;
 
 import com.riceawa.llm.core.LLMMessage;
 import com.riceawa.llm.core.LLMMessage.MessageRole;
+import com.riceawa.llm.core.SharedTextStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 /**
  * 聊天历史记录测试
  */
 public class ChatHistoryTest {
-    
+
+    @TempDir
+    Path historyDir;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("lllmchat.history.dir", historyDir.toString());
+        ChatHistory.resetInstance();
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.clearProperty("lllmchat.history.dir");
+        ChatHistory.resetInstance();
+    }
+
     @Test
     void testChatSessionWithTitle() {
         UUID playerId = UUID.randomUUID();
@@ -99,4 +122,389 @@ public class ChatHistoryTest {
         assertTrue(displayTitle.contains("对话"));
         assertTrue(displayTitle.contains("3条消息"));
     }
+
+    @Test
+    void testSharedPromptsWrittenOnce() {
+        UUID playerId = UUID.randomUUID();
+        String systemPrompt = "你是一个Minecraft助手。".repeat(40);
+        Map<String, String> prompts = new LinkedHashMap<>();
+
+        for (int i = 0; i < 3; i++) {
+            List<LLMMessage> messages = new ArrayList<>();
+            messages.add(new LLMMessage(MessageRole.SYSTEM, systemPrompt));
+            messages.add(new LLMMessage(MessageRole.USER, "问题" + i));
+            ChatHistory.ChatSession stored = new ChatHistory.ChatSession(
+                "session-" + i, playerId, messages, LocalDateTime.now(), "default").withSharedPrompts(prompts);
+
+            assertNull(stored.getMessages().get(0).getContent());
+            assertEquals(SharedTextStore.hashOf(systemPrompt), stored.getMessages().get(0).getContentRef());
+            assertEquals("问题" + i, stored.getMessages().get(1).getContent());
+        }
+
+        assertEquals(1, prompts.size());
+        assertEquals(systemPrompt, prompts.values().iterator().next());
+    }
+
+    @Test
+    void testLoadLegacyFormat() throws Exception {
+        String systemPrompt = "你是一个Minecraft助手。".repeat(40);
+        UUID firstPlayer = UUID.randomUUID();
+        UUID secondPlayer = UUID.randomUUID();
+
+        for (UUID playerId : new UUID[]{firstPlayer, secondPlayer}) {
+            Files.writeString(historyDir.resolve(playerId + ".json"),
+                "[{\"sessionId\":\"s1\",\"messages\":[{\"id\":\"m1\",\"role\":\"system\",\"content\":\"" +
+                systemPrompt + "\"}]}]");
+        }
+
+        ChatHistory history = ChatHistory.getInstance();
+        String firstContent = history.loadPlayerHistory(firstPlayer).get(0).getMessages().get(0).getContent();
+        String secondContent = history.loadPlayerHistory(secondPlayer).get(0).getMessages().get(0).getContent();
+
+        assertEquals(systemPrompt, firstContent);
+        // 两个文件中的相同提示词在内存中共享同一个实例
+        assertSame(firstContent, secondContent);
+
+        // 旧的单文件历史已迁移为目录格式
+        assertFalse(Files.exists(historyDir.resolve(firstPlayer + ".json")));
+        assertTrue(Files.exists(historyDir.resolve(firstPlayer.toString()).resolve("index.jsonz")));
+    }
+
+    @Test
+    void testListSessionsReadsOnlyIndex() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+
+        for (int i = 1; i <= 2; i++) {
+            List<LLMMessage> messages = new ArrayList<>();
+            for (int j = 0; j < i; j++) {
+                messages.add(new LLMMessage(MessageRole.USER, "会话" + i + "的问题" + j));
+            }
+            ChatHistory.ChatSession session = new ChatHistory.ChatSession(
+                "s" + i, playerId, messages, LocalDateTime.now(), "default");
+            history.getStore().saveSession(session);
+            history.getStore().updateTitle(playerId, session.getSessionId(), "标题" + i);
+        }
+        history.releasePlayerCache(playerId);
+        history.flush();
+
+        // 删除较早会话的消息文件：列出会话不受影响，只有恢复该会话时才会读取
+        Files.delete(historyDir.resolve(playerId.toString()).resolve("sessions").resolve("s1.jsonz"));
+        ChatHistory.resetInstance();
+        history = ChatHistory.getInstance();
+
+        List<ChatHistory.SessionInfo> sessions = history.listSessions(playerId);
+        assertEquals(2, sessions.size());
+        assertEquals("标题1", sessions.get(0).getDisplayTitle());
+        assertEquals(1, sessions.get(0).getMessageCount());
+        assertEquals(2, sessions.get(1).getMessageCount());
+
+        ChatHistory.ChatSession latest = history.getSessionByIndex(playerId, 1);
+        assertEquals("标题2", latest.getTitle());
+        assertEquals(2, latest.getMessages().size());
+        assertNull(history.getSessionByIndex(playerId, 2));
+    }
+
+    @Test
+    void testJournalAppendsOnlyNewMessages() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "第一个问题"));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "第一个回答"));
+        assertTrue(history.getStore().saveSession(new ChatHistory.ChatSession(
+            "s1", playerId, messages, LocalDateTime.now(), "default")));
+
+        messages.add(new LLMMessage(MessageRole.USER, "第二个问题"));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "第二个回答"));
+        assertFalse(history.getStore().saveSession(new ChatHistory.ChatSession(
+            "s1", playerId, messages, LocalDateTime.now(), "default")));
+        history.flush();
+
+        List<String> lines = Files.readAllLines(historyDir.resolve(playerId.toString()).resolve("journal.jsonl"));
+        assertEquals(2, lines.size());
+        assertFalse(lines.get(1).contains("第一个问题"));
+        assertTrue(lines.get(1).contains("第二个问题"));
+        assertFalse(Files.exists(historyDir.resolve(playerId.toString()).resolve("index.jsonz")));
+
+        ChatHistory.resetInstance();
+        List<ChatHistory.ChatSession> loaded = ChatHistory.getInstance().loadPlayerHistory(playerId);
+        assertEquals(1, loaded.size());
+        assertEquals(4, loaded.get(0).getMessages().size());
+        assertEquals("第二个回答", loaded.get(0).getMessages().get(3).getContent());
+    }
+
+    @Test
+    void testAppendDecidedFromIndexWithoutReadingSession() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+        Path playerDir = historyDir.resolve(playerId.toString());
+
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "第一个问题"));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "第一个回答"));
+        history.getStore().saveSession(new ChatHistory.ChatSession(
+            "s1", playerId, messages, LocalDateTime.now(), "default"));
+        history.releasePlayerCache(playerId);
+        history.flush();
+
+        // 删除消息文件：只要索引记录的消息仍是前缀，保存时只追加新消息，不需要读取它
+        Files.delete(playerDir.resolve("sessions").resolve("s1.jsonz"));
+        ChatHistory.resetInstance();
+        history = ChatHistory.getInstance();
+        messages.add(new LLMMessage(MessageRole.USER, "第二个问题"));
+        assertFalse(history.getStore().saveSession(new ChatHistory.ChatSession(
+            "s1", playerId, messages, LocalDateTime.now(), "default")));
+        history.flush();
+        List<String> lines = Files.readAllLines(playerDir.resolve("journal.jsonl"));
+        assertEquals(1, lines.size());
+        assertFalse(lines.get(0).contains("第一个问题"));
+
+        // 中间的消息被替换时记录完整会话
+        history.releasePlayerCache(playerId);
+        history.flush();
+        ChatHistory.resetInstance();
+        history = ChatHistory.getInstance();
+        messages.set(0, new LLMMessage(MessageRole.USER, "改写的问题"));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "第二个回答"));
+        history.getStore().saveSession(new ChatHistory.ChatSession(
+            "s1", playerId, messages, LocalDateTime.now(), "default"));
+        history.flush();
+        lines = Files.readAllLines(playerDir.resolve("journal.jsonl"));
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("改写的问题"));
+        assertEquals(4, history.loadPlayerHistory(playerId).get(0).getMessages().size());
+    }
+
+    @Test
+    void testSavesAreWrittenBehind() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+        Path journal = historyDir.resolve(playerId.toString()).resolve("journal.jsonl");
+
+        List<LLMMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            messages.add(new LLMMessage(MessageRole.USER, "问题" + i));
+            history.getStore().saveSession(new ChatHistory.ChatSession(
+                "s1", playerId, messages, LocalDateTime.now(), "default"));
+        }
+
+        // 在写入之前，内存中的历史已经是最新的
+        assertEquals(3, history.loadPlayerHistory(playerId).get(0).getMessages().size());
+
+        // 关闭时写入剩余的变更
+        ChatHistory.resetInstance();
+        assertEquals(3, Files.readAllLines(journal).size());
+        assertEquals(0, history.getPendingFlushCount());
+        assertEquals(3, ChatHistory.getInstance().loadPlayerHistory(playerId).get(0).getMessages().size());
+    }
+
+    @Test
+    void testCompactionMergesJournalIntoSnapshot() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER, "怎么制作附魔台？"));
+        ChatHistory.ChatSession session = new ChatHistory.ChatSession(
+            "s1", playerId, messages, LocalDateTime.now(), "default");
+        history.getStore().saveSession(session);
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "需要书、钻石和黑曜石。"));
+        history.getStore().saveSession(new ChatHistory.ChatSession("s1", playerId, messages, LocalDateTime.now(), "default"));
+        history.getStore().updateTitle(playerId, session.getSessionId(), "附魔台配方");
+
+        history.flush();
+
+        Path journal = historyDir.resolve(playerId.toString()).resolve("journal.jsonl");
+        byte[] journalContent = Files.readAllBytes(journal);
+        // 释放缓存后，后台写入时把日志合并进索引和消息文件
+        history.releasePlayerCache(playerId);
+        history.flush();
+
+        assertFalse(Files.exists(journal));
+        assertTrue(Files.exists(historyDir.resolve(playerId.toString()).resolve("index.jsonz")));
+        assertTrue(Files.exists(historyDir.resolve(playerId.toString()).resolve("sessions").resolve("s1.jsonz")));
+
+        // 模拟合并后、删除日志前中断：重放旧日志不应产生重复消息
+        Files.write(journal, journalContent);
+        ChatHistory.resetInstance();
+        List<ChatHistory.ChatSession> loaded = ChatHistory.getInstance().loadPlayerHistory(playerId);
+        assertEquals(1, loaded.size());
+        assertEquals("附魔台配方", loaded.get(0).getTitle());
+        assertEquals(2, loaded.get(0).getMessages().size());
+    }
+
+    @Test
+    void testSearchUsesPersistedIndex() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+
+        List<LLMMessage> first = new ArrayList<>();
+        first.add(new LLMMessage(MessageRole.USER, "怎么制作附魔台？"));
+        first.add(new LLMMessage(MessageRole.ASSISTANT, null));
+        history.getStore().saveSession(new ChatHistory.ChatSession("s1", playerId, first, LocalDateTime.now(), "default"));
+        assertEquals(1, history.search(playerId, "附魔台", 10).size());
+
+        // 索引建立后保存的会话增量加入索引
+        List<LLMMessage> second = new ArrayList<>();
+        second.add(new LLMMessage(MessageRole.USER, "红石中继器有什么用？"));
+        history.getStore().saveSession(new ChatHistory.ChatSession("s2", playerId, second, LocalDateTime.now(), "default"));
+
+        // 合并时保存索引，重新加载后直接使用
+        history.releasePlayerCache(playerId);
+        history.flush();
+        assertTrue(Files.exists(historyDir.resolve(playerId.toString()).resolve("search.json.gz")));
+
+        ChatHistory.resetInstance();
+        List<ChatHistory.SearchResult> results = ChatHistory.getInstance().search(playerId, "中继器", 10);
+        assertEquals(1, results.size());
+        assertEquals("s2", results.get(0).getSession().getSessionId());
+        assertTrue(results.get(0).getSnippet().contains("红石中继器"));
+        assertEquals(1, ChatHistory.getInstance().searchHistory(playerId, "附魔台").size());
+        assertEquals(1, ChatHistory.getInstance().searchAll("附魔台", 10).size());
+    }
+
+    @Test
+    void testCacheEvictsWrittenPlayersOverBudget() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        ((FileHistoryStore) history.getStore()).setCacheBudgetBytes(1);
+
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        for (UUID playerId : List.of(first, second)) {
+            List<LLMMessage> messages = new ArrayList<>();
+            messages.add(new LLMMessage(MessageRole.USER, "怎么找到要塞？"));
+            history.getStore().saveSession(new ChatHistory.ChatSession("s1", playerId, messages, LocalDateTime.now(), "default"));
+        }
+        // 写入磁盘后才能淘汰
+        history.flush();
+        assertEquals(0, history.getCachedPlayerCount());
+        assertEquals(0, history.getCacheResidentBytes());
+        assertTrue(history.getCacheEvictionCount() >= 2);
+
+        // 淘汰后从磁盘重新加载
+        assertEquals("怎么找到要塞？", history.getLastSession(first).getMessages().get(0).getContent());
+    }
+
+    @Test
+    void testCompressedStorageAndMigration() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        ((FileHistoryStore) history.getStore()).setCompressionEnabled(false);
+        UUID playerId = UUID.randomUUID();
+        Path playerDir = historyDir.resolve(playerId.toString());
+
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.SYSTEM,
+            "你是一个红石电路专家。你精通各种红石元件、逻辑门、时序电路、自动化装置的设计和优化。请为玩家提供专业的红石技术指导。"));
+        for (int i = 0; i < 20; i++) {
+            messages.add(new LLMMessage(MessageRole.USER, "第" + i + "个问题：怎么做自动甘蔗机？"));
+            messages.add(new LLMMessage(MessageRole.ASSISTANT, "用侦测器检测甘蔗生长，触发活塞推掉甘蔗，再用漏斗收集。"));
+        }
+        history.getStore().saveSession(new ChatHistory.ChatSession("s1", playerId, messages, LocalDateTime.now(), "redstone"));
+        history.releasePlayerCache(playerId);
+        history.flush();
+        long plainSize = Files.size(playerDir.resolve("sessions").resolve("s1.json"));
+
+        // 开启压缩后，首次加载时在后台转换旧文件
+        ChatHistory.resetInstance();
+        history = ChatHistory.getInstance();
+        assertEquals(41, history.getLastSession(playerId).getMessages().size());
+        history.flush();
+
+        Path compressed = playerDir.resolve("sessions").resolve("s1.jsonz");
+        assertTrue(Files.exists(compressed));
+        assertTrue(Files.exists(playerDir.resolve("index.jsonz")));
+        assertFalse(Files.exists(playerDir.resolve("sessions").resolve("s1.json")));
+        assertFalse(Files.exists(playerDir.resolve("index.json")));
+        assertTrue(Files.size(compressed) * 5 < plainSize);
+
+        ChatHistory.resetInstance();
+        ChatHistory.ChatSession loaded = ChatHistory.getInstance().getLastSession(playerId);
+        assertEquals(41, loaded.getMessages().size());
+        assertEquals("第19个问题：怎么做自动甘蔗机？", loaded.getMessages().get(39).getContent());
+    }
+
+    @Test
+    void testLoadSessionsBetweenSkipsOtherSessions() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+
+        LocalDateTime base = LocalDateTime.of(2025, 6, 1, 12, 0);
+        for (int i = 0; i < 5; i++) {
+            List<LLMMessage> messages = new ArrayList<>();
+            messages.add(new LLMMessage(MessageRole.USER, "第" + i + "天的问题"));
+            history.getStore().saveSession(new ChatHistory.ChatSession("s" + i, playerId, messages, base.plusDays(i), "default"));
+        }
+        history.flush();
+
+        ChatHistory.resetInstance();
+        List<ChatHistory.ChatSession> loaded = ChatHistory.getInstance()
+            .loadSessionsBetween(playerId, base.plusDays(1), base.plusDays(3));
+        assertEquals(3, loaded.size());
+        assertEquals("s1", loaded.get(0).getSessionId());
+        assertEquals("第3天的问题", loaded.get(2).getMessages().get(0).getContent());
+    }
+
+    @Test
+    void testMaintenancePrunesExpiredSessions() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        UUID playerId = UUID.randomUUID();
+
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < 4; i++) {
+            List<LLMMessage> messages = new ArrayList<>();
+            messages.add(new LLMMessage(MessageRole.USER, "问题" + i));
+            history.getStore().saveSession(new ChatHistory.ChatSession("s" + i, playerId, messages, now.minusDays(20L * i), "default"));
+        }
+        history.releasePlayerCache(playerId);
+        history.flush();
+        Path sessionsDir = historyDir.resolve(playerId.toString()).resolve("sessions");
+        assertTrue(Files.exists(sessionsDir.resolve("s3.jsonz")));
+
+        new HistoryMaintenance(history.getStore(), () -> 30, Long.MAX_VALUE).runOnce();
+
+        assertEquals(2, history.listSessions(playerId).size());
+        assertFalse(Files.exists(sessionsDir.resolve("s2.jsonz")));
+        assertFalse(Files.exists(sessionsDir.resolve("s3.jsonz")));
+
+        ChatHistory.resetInstance();
+        List<ChatHistory.SessionInfo> sessions = ChatHistory.getInstance().listSessions(playerId);
+        assertEquals(2, sessions.size());
+        assertEquals("s0", sessions.get(0).getSessionId());
+        assertEquals("s1", sessions.get(1).getSessionId());
+    }
+
+    @Test
+    void testMaintenanceRewritesInBatchesAndSkipsUnchangedPlayers() throws Exception {
+        ChatHistory history = ChatHistory.getInstance();
+        HistoryStore store = history.getStore();
+        UUID playerId = UUID.randomUUID();
+
+        for (int i = 0; i < 40; i++) {
+            List<LLMMessage> messages = new ArrayList<>();
+            messages.add(new LLMMessage(MessageRole.USER, "问题" + i));
+            store.saveSession(new ChatHistory.ChatSession("s" + i, playerId, messages, LocalDateTime.now(), "default"));
+        }
+        store.flush();
+        Path playerDir = historyDir.resolve(playerId.toString());
+        assertTrue(Files.exists(playerDir.resolve("journal.jsonl")));
+
+        HistoryStore.MaintenanceResult result = store.maintainPlayer(playerId, null);
+        assertTrue(result.getIoBytes() > 0);
+        assertFalse(Files.exists(playerDir.resolve("journal.jsonl")));
+        for (int i = 0; i < 40; i++) {
+            assertTrue(Files.exists(playerDir.resolve("sessions").resolve("s" + i + ".jsonz")));
+        }
+
+        // 没有变更的玩家不重写文件，也就不计入需要限速的读写量
+        HistoryStore.MaintenanceResult unchanged = store.maintainPlayer(playerId, null);
+        assertTrue(unchanged.getBytesBefore() > 0);
+        assertEquals(0, unchanged.getIoBytes());
+
+        ChatHistory.resetInstance();
+        List<ChatHistory.ChatSession> loaded = ChatHistory.getInstance().loadPlayerHistory(playerId);
+        assertEquals(40, loaded.size());
+        assertEquals("问题39", loaded.get(39).getMessages().get(0).getContent());
+    }
 }
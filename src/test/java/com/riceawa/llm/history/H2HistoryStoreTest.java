@@ -0,0 +1,237 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * H2数据库历史记录存储测试
+ */
+public class H2HistoryStoreTest {
+
+    @TempDir
+    Path historyDir;
+
+    private H2HistoryStore store;
+    private UUID playerId;
+
+    @BeforeEach
+    void setUp() {
+        store = new H2HistoryStore(historyDir);
+        playerId = UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.shutdown();
+    }
+
+    private H2HistoryStore reopen() {
+        store.shutdown();
+        store = new H2HistoryStore(historyDir);
+        return store;
+    }
+
+    private static List<LLMMessage> conversation(String... contents) {
+        List<LLMMessage> messages = new ArrayList<>();
+        for (int i = 0; i < contents.length; i++) {
+            messages.add(new LLMMessage(i % 2 == 0 ? MessageRole.USER : MessageRole.ASSISTANT, contents[i]));
+        }
+        return messages;
+    }
+
+    private ChatHistory.ChatSession session(String sessionId, List<LLMMessage> messages, LocalDateTime time) {
+        return new ChatHistory.ChatSession(sessionId, playerId, messages, time, "default");
+    }
+
+    @Test
+    void testSaveAppendsAndRewritesFromDivergence() {
+        List<LLMMessage> messages = conversation("怎么制作附魔台？", "需要书、钻石和黑曜石。");
+        messages.add(0, new LLMMessage(MessageRole.SYSTEM, "你是一个Minecraft助手。".repeat(40)));
+        ChatHistory.ChatSession first = session("s1", messages, LocalDateTime.now());
+        first.setTitle("附魔台");
+        assertTrue(store.saveSession(first));
+
+        messages.add(new LLMMessage(MessageRole.USER, "书架要放几个？"));
+        ChatHistory.ChatSession second = session("s1", messages, LocalDateTime.now());
+        second.setTitle("本地标题");
+        assertFalse(store.saveSession(second));
+        store.flush();
+
+        // 已写入的会话再次保存时保留原有标题
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "15个。"));
+        ChatHistory.ChatSession third = session("s1", messages, LocalDateTime.now());
+        third.setTitle("另一个本地标题");
+        assertFalse(store.saveSession(third));
+
+        // 从第3条消息开始与已保存的内容不同，重写之后的部分
+        List<LLMMessage> edited = new ArrayList<>(messages.subList(0, 3));
+        edited.add(new LLMMessage(MessageRole.USER, "附魔台放在哪里最好？"));
+        store.saveSession(session("s1", edited, LocalDateTime.now()));
+
+        ChatHistory.ChatSession loaded = reopen().getSessionByIndex(playerId, 1);
+        assertEquals("附魔台", loaded.getTitle());
+        assertEquals(4, loaded.getMessages().size());
+        assertEquals("你是一个Minecraft助手。".repeat(40), loaded.getMessages().get(0).getContent());
+        assertEquals("附魔台放在哪里最好？", loaded.getMessages().get(3).getContent());
+        assertEquals(messages.get(1).getId(), loaded.getMessages().get(1).getId());
+    }
+
+    @Test
+    void testListAndGetSessionByIndex() throws Exception {
+        LocalDateTime base = LocalDateTime.of(2025, 6, 1, 12, 0);
+        for (int i = 0; i < 3; i++) {
+            store.saveSession(session("s" + i, conversation("第" + i + "个问题"), base.plusHours(i)));
+        }
+        store.updateTitle(playerId, "s1", "中间的会话");
+
+        List<ChatHistory.SessionInfo> sessions = store.listSessions(playerId);
+        assertEquals(3, sessions.size());
+        assertEquals("s0", sessions.get(0).getSessionId());
+        assertEquals("中间的会话", sessions.get(1).getDisplayTitle());
+        assertEquals(1, sessions.get(2).getMessageCount());
+
+        assertEquals("s2", store.getSessionByIndex(playerId, 1).getSessionId());
+        assertEquals("第0个问题", store.getSessionByIndex(playerId, 3).getMessages().get(0).getContent());
+        assertNull(store.getSessionByIndex(playerId, 4));
+        assertNull(store.getSessionByIndex(playerId, 0));
+
+        List<ChatHistory.ChatSession> between = store.loadSessionsBetween(playerId, base.plusHours(1), base.plusHours(2));
+        assertEquals(2, between.size());
+        List<String> visited = new ArrayList<>();
+        store.forEachSession(playerId, base.plusHours(1), null, session -> visited.add(session.getSessionId()));
+        assertEquals(List.of("s1", "s2"), visited);
+        visited.clear();
+        store.forEachSession(playerId, null, base, session -> visited.add(session.getSessionId()));
+        assertEquals(List.of("s0"), visited);
+        assertEquals(List.of(playerId), store.listPlayers());
+
+        // 重新打开后已保存的会话不再被当作新会话
+        assertFalse(reopen().saveSession(session("s0", conversation("第0个问题", "回答"), base)));
+        assertTrue(store.saveSession(session("s3", conversation("新问题"), base.plusHours(3))));
+    }
+
+    @Test
+    void testSearch() {
+        store.saveSession(session("s1", conversation("怎么制作附魔台？", "需要书、钻石和黑曜石。"), LocalDateTime.now()));
+        store.saveSession(session("s2", conversation("红石中继器有什么用？", "可以延迟和增强信号。"), LocalDateTime.now()));
+        UUID otherPlayer = UUID.randomUUID();
+        store.saveSession(new ChatHistory.ChatSession("s3", otherPlayer, conversation("附魔台附近放书架"),
+            LocalDateTime.now(), "default"));
+
+        List<ChatHistory.SearchResult> results = store.search(playerId, "中继器", 10);
+        assertEquals(1, results.size());
+        assertEquals("s2", results.get(0).getSession().getSessionId());
+        assertTrue(results.get(0).getSnippet().contains("红石中继器"));
+
+        assertEquals(1, store.searchHistory(playerId, "附魔台").size());
+        assertEquals(2, store.searchAll("附魔台", 10).size());
+        // LIKE的通配符按普通字符匹配
+        assertTrue(store.search(playerId, "100%", 10).isEmpty());
+        // 每一段都要出现在同一条消息中
+        assertEquals(1, store.search(playerId, "钻石 黑曜石", 10).size());
+        assertTrue(store.search(playerId, "钻石 中继器", 10).isEmpty());
+        // 单个中日韩文字无法用倒排表筛选，扫描消息内容
+        assertEquals(2, store.searchAll("台", 10).size());
+    }
+
+    @Test
+    void testIndexesExistingMessagesOnOpen() throws Exception {
+        store.saveSession(session("s1", conversation("How do I craft an enchanting table?", "Use books and diamonds."),
+            LocalDateTime.now()));
+        store.flush();
+        try (Connection other = DriverManager.getConnection(
+                "jdbc:h2:file:" + historyDir.resolve("history").toAbsolutePath());
+             Statement statement = other.createStatement()) {
+            statement.executeUpdate("DELETE FROM chat_terms");
+        }
+
+        List<ChatHistory.SearchResult> results = reopen().search(playerId, "ENCHANTING table", 10);
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).getSnippet().startsWith("How do I craft"));
+        // 词项按整个单词匹配
+        assertTrue(store.search(playerId, "diamond", 10).isEmpty());
+        assertEquals(1, store.search(playerId, "diamonds", 10).size());
+    }
+
+    @Test
+    void testTrimKeepsNewestSessions() {
+        LocalDateTime base = LocalDateTime.of(2025, 6, 1, 12, 0);
+        for (int i = 0; i < 105; i++) {
+            store.saveSession(session("s" + i, conversation("第" + i + "号问题"), base.plusMinutes(i)));
+        }
+        store.flush();
+
+        List<ChatHistory.SessionInfo> sessions = store.listSessions(playerId);
+        assertEquals(100, sessions.size());
+        assertEquals("s5", sessions.get(0).getSessionId());
+        assertTrue(store.search(playerId, "第4号问题", 10).isEmpty());
+        assertEquals(1, store.search(playerId, "第5号问题", 10).size());
+        // 被删除的会话再次保存时视为新会话
+        assertTrue(store.saveSession(session("s0", conversation("第0号问题"), base.plusDays(1))));
+    }
+
+    @Test
+    void testMaintainAndClearPlayer() {
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < 4; i++) {
+            store.saveSession(session("s" + i, conversation("问题" + i), now.minusDays(20L * i)));
+        }
+
+        HistoryStore.MaintenanceResult result = store.maintainPlayer(playerId, now.minusDays(30));
+        assertEquals(2, result.getRemovedSessions());
+        List<ChatHistory.SessionInfo> sessions = store.listSessions(playerId);
+        assertEquals(2, sessions.size());
+        assertEquals("s1", sessions.get(0).getSessionId());
+        assertTrue(store.search(playerId, "问题3", 10).isEmpty());
+        assertTrue(store.saveSession(session("s3", conversation("问题3"), now)));
+        assertEquals(0, store.maintainPlayer(playerId, null).getRemovedSessions());
+
+        store.clearPlayer(playerId);
+        assertTrue(store.listSessions(playerId).isEmpty());
+        assertTrue(store.listPlayers().isEmpty());
+        assertTrue(store.saveSession(session("s1", conversation("问题1"), now)));
+    }
+
+    @Test
+    void testFailedFlushKeepsBatchForRetry() throws Exception {
+        LocalDateTime time = LocalDateTime.of(2025, 6, 1, 12, 0);
+        try (Connection other = DriverManager.getConnection(
+                "jdbc:h2:file:" + historyDir.resolve("history").toAbsolutePath())) {
+            // 另一个未提交的事务占用同一主键，写入在等待锁超时后失败
+            other.setAutoCommit(false);
+            try (Statement statement = other.createStatement()) {
+                statement.executeUpdate("INSERT INTO chat_sessions (player_id, session_id, created_at, message_count) " +
+                    "VALUES ('" + playerId + "', 's1', CURRENT_TIMESTAMP, 0)");
+            }
+            store.saveSession(session("s1", conversation("第一个问题"), time));
+            store.updateTitle(playerId, "s1", "旧标题");
+            store.flush();
+            assertEquals(1, store.getPendingFlushCount());
+
+            // 失败期间保存的新版本不被放回的旧版本覆盖
+            store.saveSession(session("s1", conversation("第一个问题", "回答"), time));
+            store.updateTitle(playerId, "s1", "新标题");
+            other.rollback();
+        }
+
+        store.flush();
+        assertEquals(0, store.getPendingFlushCount());
+        ChatHistory.ChatSession loaded = reopen().getSessionByIndex(playerId, 1);
+        assertEquals("新标题", loaded.getTitle());
+        assertEquals(2, loaded.getMessages().size());
+    }
+}
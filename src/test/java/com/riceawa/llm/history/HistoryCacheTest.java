@@ -0,0 +1,50 @@
+package com.riceawa.llm.history;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+/**
+ * 历史缓存测试
+ */
+public class HistoryCacheTest {
+
+    @Test
+    void testEvictsLeastRecentlyUsedOverBudget() {
+        HistoryCache<String, String> cache = new HistoryCache<>(100);
+        cache.put("a", "A", 40);
+        cache.put("b", "B", 40);
+        cache.get("a");
+        cache.put("c", "C", 40);
+
+        List<String> candidates = cache.getEvictionCandidates();
+        assertEquals(List.of("b"), candidates);
+        assertTrue(cache.evict("b", value -> true));
+        assertEquals(80, cache.getResidentBytes());
+        assertFalse(cache.evict("a", value -> true)); // 已回到预算内
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    void testSkipsEntriesThatCannotBeEvicted() {
+        HistoryCache<String, String> cache = new HistoryCache<>(50);
+        cache.put("a", "A", 40);
+        cache.put("b", "B", 40);
+
+        assertFalse(cache.evict("a", value -> false));
+        assertTrue(cache.containsKey("a"));
+        cache.updateWeight("b", "B", 5);
+        assertTrue(cache.getEvictionCandidates().isEmpty());
+    }
+
+    @Test
+    void testHitRate() {
+        HistoryCache<String, String> cache = new HistoryCache<>(100);
+        assertNull(cache.get("a"));
+        cache.put("a", "A", 10);
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.peek("a"));
+        assertEquals(0.5, cache.getHitRate(), 1e-9);
+    }
+}
@@ -0,0 +1,114 @@
+package com.riceawa.llm.history;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * 流式导出测试
+ */
+public class HistoryExporterTest {
+
+    @AfterEach
+    void tearDown() {
+        ChatHistory.resetInstance();
+    }
+
+    private static FileHistoryStore createStore(Path historyDir, List<UUID> players, int sessionsPerPlayer) {
+        System.setProperty("lllmchat.history.dir", historyDir.toString());
+        FileHistoryStore store = new FileHistoryStore(historyDir);
+        for (UUID playerId : players) {
+            for (int i = 0; i < sessionsPerPlayer; i++) {
+                List<LLMMessage> messages = new ArrayList<>();
+                messages.add(new LLMMessage(MessageRole.USER, "问题" + i));
+                messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答" + i));
+                store.saveSession(new ChatHistory.ChatSession("s" + i, playerId, messages,
+                    LocalDateTime.of(2025, 6, 1 + i, 12, 0), "default"));
+            }
+        }
+        store.flush();
+        ChatHistory.useStore(store);
+        return store;
+    }
+
+    @Test
+    void testGzipJsonExport() throws Exception {
+        UUID playerId = UUID.randomUUID();
+        createStore(Files.createTempDirectory("export-history"), List.of(playerId), 3);
+        HistoryExporter exporter = new HistoryExporter(Files.createTempDirectory("exports"));
+
+        HistoryExporter.ExportResult result = exporter.exportPlayerHistory(
+            playerId, "Steve", HistoryExporter.ExportFormat.JSON, true);
+        assertTrue(result.isSuccess(), result.getMessage());
+        assertTrue(result.getExportFile().toString().endsWith(".json.gz"));
+
+        try (Reader reader = new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(result.getExportFile())), StandardCharsets.UTF_8)) {
+            JsonArray sessions = JsonParser.parseReader(reader).getAsJsonArray();
+            assertEquals(3, sessions.size());
+            assertEquals("s0", sessions.get(0).getAsJsonObject().get("sessionId").getAsString());
+        }
+
+        HistoryExporter.ExportResult range = exporter.exportByDateRange(playerId, "Steve",
+            LocalDateTime.of(2025, 6, 2, 0, 0), LocalDateTime.of(2025, 6, 30, 0, 0),
+            HistoryExporter.ExportFormat.TXT);
+        assertTrue(range.isSuccess());
+        String text = Files.readString(range.getExportFile());
+        assertTrue(text.contains("Total Sessions: 2"));
+        assertFalse(text.contains("问题0"));
+        assertTrue(text.contains("问题2"));
+    }
+
+    @Test
+    void testExportAllPlayersToArchive() throws Exception {
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            players.add(UUID.randomUUID());
+        }
+        createStore(Files.createTempDirectory("export-history"), players, 2);
+        Path exportDir = Files.createTempDirectory("exports");
+        HistoryExporter exporter = new HistoryExporter(exportDir);
+
+        List<Integer> progress = new ArrayList<>();
+        HistoryExporter.ExportResult result = exporter.exportAllPlayers(
+            HistoryExporter.ExportFormat.CSV, (completed, total) -> progress.add(completed));
+        assertTrue(result.isSuccess(), result.getMessage());
+        assertEquals(List.of(1, 2, 3, 4, 5, 6), progress);
+
+        Set<String> entries = new HashSet<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(result.getExportFile()))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.add(entry.getName());
+                String csv = new String(zip.readAllBytes(), StandardCharsets.UTF_8);
+                assertEquals(3, csv.split("\n").length);
+            }
+        }
+        for (UUID playerId : players) {
+            assertTrue(entries.contains("player_" + playerId + ".csv"));
+        }
+        // 临时文件已清理
+        try (var files = Files.list(exportDir)) {
+            assertEquals(1, files.count());
+        }
+    }
+}
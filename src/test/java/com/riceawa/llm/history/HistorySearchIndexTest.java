@@ -0,0 +1,78 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 历史记录全文索引测试
+ */
+public class HistorySearchIndexTest {
+
+    @Test
+    void testPhraseMustBeContiguous() {
+        HistorySearchIndex index = new HistorySearchIndex();
+        index.addMessages("s1", List.of(new LLMMessage(MessageRole.USER, "怎么制作附魔台？")));
+        index.addMessages("s2", List.of(new LLMMessage(MessageRole.USER, "附近有没有村庄，想找魔法台")));
+
+        List<HistorySearchIndex.Match> matches = index.search("附魔台", 10);
+        assertEquals(1, matches.size());
+        assertEquals("s1", matches.get(0).sessionId);
+    }
+
+    @Test
+    void testAllSegmentsMatchSameMessage() {
+        HistorySearchIndex index = new HistorySearchIndex();
+        index.addMessages("s1", List.of(
+            new LLMMessage(MessageRole.USER, "Where can I find diamonds?"),
+            new LLMMessage(MessageRole.ASSISTANT, "Enchanting needs obsidian.")));
+        index.addMessages("s2", List.of(
+            new LLMMessage(MessageRole.USER, "Diamonds and obsidian for an enchanting table")));
+
+        List<HistorySearchIndex.Match> matches = index.search("DIAMONDS obsidian", 10);
+        assertEquals(1, matches.size());
+        assertEquals("s2", matches.get(0).sessionId);
+    }
+
+    @Test
+    void testSingleCjkCharacterQuery() {
+        HistorySearchIndex index = new HistorySearchIndex();
+        index.addMessages("s1", List.of(new LLMMessage(MessageRole.USER, "苦力怕会爆炸")));
+        index.addMessages("s2", List.of(new LLMMessage(MessageRole.USER, "我怕黑")));
+
+        assertEquals(2, index.search("怕", 10).size());
+        assertEquals(1, index.search("爆", 10).size());
+    }
+
+    @Test
+    void testRemoveAndRetainSessions() {
+        HistorySearchIndex index = new HistorySearchIndex();
+        index.addMessages("s1", List.of(new LLMMessage(MessageRole.USER, "红石电路")));
+        index.addMessages("s2", List.of(new LLMMessage(MessageRole.USER, "红石火把")));
+        index.addMessages("s3", List.of(new LLMMessage(MessageRole.USER, "红石中继器")));
+
+        index.removeSession("s1");
+        index.retainSessions(Set.of("s3"));
+
+        List<HistorySearchIndex.Match> matches = index.search("红石", 10);
+        assertEquals(1, matches.size());
+        assertEquals("s3", matches.get(0).sessionId);
+        assertEquals(1, index.getSessionCount());
+    }
+
+    @Test
+    void testSkipsSystemPromptAndEmptyContent() {
+        HistorySearchIndex index = new HistorySearchIndex();
+        index.addMessages("s1", List.of(
+            new LLMMessage(MessageRole.SYSTEM, "你是一个Minecraft助手"),
+            new LLMMessage(MessageRole.ASSISTANT, null),
+            new LLMMessage(MessageRole.USER, "你好")));
+
+        assertEquals(1, index.getDocumentCount());
+        assertTrue(index.search("助手", 10).isEmpty());
+    }
+}
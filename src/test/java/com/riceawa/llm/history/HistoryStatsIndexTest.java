@@ -0,0 +1,87 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 增量统计测试
+ */
+public class HistoryStatsIndexTest {
+
+    private static ChatHistory.ChatSession session(UUID playerId, String sessionId, int rounds, String template) {
+        List<LLMMessage> messages = new ArrayList<>();
+        for (int i = 0; i < rounds; i++) {
+            messages.add(new LLMMessage(MessageRole.USER, "问题" + i));
+            LLMMessage answer = new LLMMessage(MessageRole.ASSISTANT, "回答" + i);
+            LLMMessage.MessageMetadata metadata = new LLMMessage.MessageMetadata();
+            metadata.setTokens(10);
+            metadata.setFunctionCall(new LLMMessage.FunctionCall("get_weather", "{}"));
+            answer.setMetadata(metadata);
+            messages.add(answer);
+        }
+        return new ChatHistory.ChatSession(sessionId, playerId, messages,
+            LocalDateTime.of(2025, 6, 1, 14, 30), template);
+    }
+
+    @Test
+    void testResavedSessionIsCountedOnce() throws Exception {
+        HistoryStatsIndex stats = new HistoryStatsIndex(Files.createTempDirectory("stats-test").resolve("stats.json"));
+        FileHistoryStore store = new FileHistoryStore(Files.createTempDirectory("stats-history"));
+        stats.load(store);
+        UUID playerId = UUID.randomUUID();
+
+        stats.recordSession(session(playerId, "s1", 1, "default"));
+        stats.recordSession(session(playerId, "s1", 3, "default"));
+        stats.recordSession(session(playerId, "s2", 2, "redstone"));
+
+        HistoryStatsIndex.Counters counters = stats.getPlayerCounters(playerId);
+        assertEquals(2, counters.getSessions());
+        assertEquals(10, counters.getMessages());
+        assertEquals(5, counters.getRoleCount(MessageRole.USER));
+        assertEquals(50, counters.getTokens());
+        assertEquals(Integer.valueOf(5), counters.getFunctionUsage().get("get_weather"));
+        assertEquals(Integer.valueOf(1), counters.getTemplateUsage().get("default"));
+        assertEquals(Integer.valueOf(2), counters.getHourlyActivity().get("14:00"));
+        store.shutdown();
+    }
+
+    @Test
+    void testBackfillAndReload() throws Exception {
+        Path historyDir = Files.createTempDirectory("stats-history");
+        FileHistoryStore store = new FileHistoryStore(historyDir);
+        List<UUID> players = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            UUID playerId = UUID.randomUUID();
+            players.add(playerId);
+            store.saveSession(session(playerId, "s1", 2, "default"));
+        }
+        store.flush();
+
+        Path statsFile = historyDir.resolve("stats.json");
+        HistoryStatsIndex stats = new HistoryStatsIndex(statsFile);
+        // 加载完成前保存的会话在补齐后应用
+        stats.recordSession(session(players.get(0), "s1", 4, "default"));
+        stats.load(store);
+        assertEquals(20, stats.getPlayerCount());
+        assertEquals(8, stats.getPlayerCounters(players.get(0)).getMessages());
+        assertEquals(20, stats.getGlobalCounters().getSessions());
+        assertEquals(8 + 19 * 4, stats.getGlobalCounters().getMessages());
+        assertTrue(Files.exists(statsFile));
+
+        HistoryStatsIndex reloaded = new HistoryStatsIndex(statsFile);
+        reloaded.load(store);
+        reloaded.recordSession(session(players.get(0), "s1", 5, "default"));
+        assertEquals(10, reloaded.getPlayerCounters(players.get(0)).getMessages());
+        assertEquals(1, reloaded.getPlayerCounters(players.get(0)).getSessions());
+        store.shutdown();
+    }
+}
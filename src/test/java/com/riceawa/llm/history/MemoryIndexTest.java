@@ -0,0 +1,142 @@
+package com.riceawa.llm.history;
+
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 长期记忆索引测试
+ */
+public class MemoryIndexTest {
+
+    @TempDir
+    Path historyDir;
+
+    private UUID playerId;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        System.setProperty("lllmchat.history.dir", historyDir.toString());
+        ChatHistory.resetInstance();
+        playerId = UUID.randomUUID();
+        // 触发后台构建索引（此时历史为空），构建完成后的会话走增量索引
+        awaitIndexBuilt(playerId);
+    }
+
+    @AfterEach
+    void tearDown() {
+        MemoryIndex.getInstance().releasePlayer(playerId);
+        ChatHistory.resetInstance();
+        System.clearProperty("lllmchat.history.dir");
+    }
+
+    private static void awaitIndexBuilt(UUID player) throws InterruptedException {
+        MemoryIndex index = MemoryIndex.getInstance();
+        int before = index.getIndexedPlayerCount();
+        assertNull(index.buildMemoryPrompt(player, null, "预热", 3, 800));
+        for (int i = 0; i < 200 && index.getIndexedPlayerCount() == before; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(before + 1, index.getIndexedPlayerCount());
+    }
+
+    private ChatHistory.ChatSession createSession(String sessionId, String question, String answer) {
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.SYSTEM, "你是一个Minecraft助手"));
+        messages.add(new LLMMessage(MessageRole.USER, question));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, answer));
+        return new ChatHistory.ChatSession(sessionId, playerId, messages, LocalDateTime.now(), "default");
+    }
+
+    @Test
+    void testRetrievesRelevantSession() {
+        MemoryIndex index = MemoryIndex.getInstance();
+        index.indexSession(createSession("s1", "我的基地坐标是多少？", "你的基地在坐标 100 64 -200 附近。"));
+        index.indexSession(createSession("s2", "怎么制作附魔台？", "附魔台需要书、钻石和黑曜石。"));
+        index.indexSession(createSession("s3", "今天天气怎么样？", "游戏里现在是晴天。"));
+
+        String prompt = index.buildMemoryPrompt(playerId, "current", "附魔台要什么材料", 1, 800);
+
+        assertNotNull(prompt);
+        assertTrue(prompt.startsWith(MemoryIndex.MEMORY_HEADER));
+        assertTrue(prompt.contains("黑曜石"));
+        assertFalse(prompt.contains("坐标"));
+    }
+
+    @Test
+    void testExcludesCurrentSession() {
+        MemoryIndex index = MemoryIndex.getInstance();
+        index.indexSession(createSession("current", "怎么制作附魔台？", "附魔台需要书、钻石和黑曜石。"));
+
+        assertNull(index.buildMemoryPrompt(playerId, "current", "附魔台要什么材料", 3, 800));
+    }
+
+    @Test
+    void testRespectsBudget() {
+        MemoryIndex index = MemoryIndex.getInstance();
+        index.indexSession(createSession("s1", "怎么制作附魔台？", "附魔台需要书、钻石和黑曜石。"));
+
+        assertNull(index.buildMemoryPrompt(playerId, "current", "附魔台要什么材料", 3, 10));
+    }
+
+    @Test
+    void testIndexesSessionOnlyOnce() {
+        MemoryIndex index = MemoryIndex.getInstance();
+        ChatHistory.ChatSession session = createSession("s1", "怎么制作附魔台？", "附魔台需要书、钻石和黑曜石。");
+        index.indexSession(session);
+        index.indexSession(session);
+
+        String prompt = index.buildMemoryPrompt(playerId, "current", "附魔台", 3, 800);
+
+        assertNotNull(prompt);
+        assertEquals(prompt.indexOf("黑曜石"), prompt.lastIndexOf("黑曜石"));
+    }
+
+    @Test
+    void testBuildsFromHistoryInBackground() throws Exception {
+        UUID otherPlayer = UUID.randomUUID();
+        ChatHistory.ChatSession session = new ChatHistory.ChatSession("old", otherPlayer,
+            createSession("old", "怎么制作附魔台？", "附魔台需要书、钻石和黑曜石。").getMessages(),
+            LocalDateTime.now(), "default");
+        ChatHistory.getInstance().getStore().saveSession(session);
+
+        // 构建完成前不检索，也不在调用线程上读取历史记录
+        awaitIndexBuilt(otherPlayer);
+        String prompt = MemoryIndex.getInstance().buildMemoryPrompt(otherPlayer, "current", "附魔台要什么材料", 3, 800);
+        MemoryIndex.getInstance().releasePlayer(otherPlayer);
+
+        assertNotNull(prompt);
+        assertTrue(prompt.contains("黑曜石"));
+    }
+
+    @Test
+    void testEvictsOldestSnippetsOverLimit() {
+        MemoryIndex index = MemoryIndex.getInstance();
+        int indexedPlayers = index.getIndexedPlayerCount();
+        index.indexSession(createSession("oldest", "怎么制作附魔台？", "附魔台需要书、钻石和黑曜石。"));
+
+        List<LLMMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            messages.add(new LLMMessage(MessageRole.USER, "第" + i + "号农场的产量"));
+            messages.add(new LLMMessage(MessageRole.ASSISTANT, "农场" + i + "每小时产出小麦"));
+        }
+        index.indexSession(new ChatHistory.ChatSession("farms", playerId, messages, LocalDateTime.now(), "default"));
+        index.indexSession(createSession("newest", "末影龙怎么打？", "先摧毁末地水晶再攻击末影龙。"));
+
+        // 超过上限时淘汰最早的片段，索引本身保留，不会丢弃后从历史记录重建
+        assertEquals(indexedPlayers, index.getIndexedPlayerCount());
+        assertNull(index.buildMemoryPrompt(playerId, "current", "附魔台要什么材料", 3, 800));
+        assertNotNull(index.buildMemoryPrompt(playerId, "current", "末影龙", 3, 800));
+        assertNotNull(index.buildMemoryPrompt(playerId, "current", "农场 4999 产量", 3, 800));
+    }
+}
@@ -0,0 +1,219 @@
+package com.riceawa.llm.logging;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.riceawa.llm.core.LLMMessage;
+import com.riceawa.llm.core.LLMMessage.MessageRole;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 请求日志增量记录与还原测试
+ */
+public class LLMRequestLogReconstructorTest {
+
+    private static LLMRequestLogEntry buildEntry(String requestId, String sessionId, List<LLMMessage> messages) {
+        JsonObject body = new JsonObject();
+        body.addProperty("model", "test-model");
+        JsonArray rawMessages = new JsonArray();
+        for (LLMMessage message : messages) {
+            JsonObject messageObj = new JsonObject();
+            messageObj.addProperty("role", message.getRole().getValue());
+            messageObj.addProperty("content", message.getContent());
+            rawMessages.add(messageObj);
+        }
+        body.add("messages", rawMessages);
+        return LLMLogUtils.createRequestLogBuilder(requestId)
+                .serviceName("TestService")
+                .sessionId(sessionId)
+                .messages(new ArrayList<>(messages))
+                .rawRequestJson(body.toString())
+                .build();
+    }
+
+    /**
+     * 转换为增量条目并视为已写入
+     */
+    private static LLMRequestLogEntry track(LLMRequestDeltaTracker tracker, LLMRequestLogEntry entry) {
+        LLMRequestDeltaTracker.Pending pending = tracker.prepare(entry, 0);
+        tracker.commit(pending);
+        return pending.getEntry();
+    }
+
+    /**
+     * 与LLMLogUtils.logRequest相同：日志被接受后才推进会话状态
+     */
+    private static void log(LogManager logManager, LLMRequestDeltaTracker tracker, LLMRequestLogEntry entry) {
+        LLMRequestDeltaTracker.Pending pending = tracker.prepare(entry, logManager.getRotationCount("llm_request"));
+        if (logManager.llmRequest("LLM Request", LLMLogUtils.toCompactJsonString(pending.getEntry()))) {
+            tracker.commit(pending);
+        }
+    }
+
+    private static LogManager createLogManager(Path logDir, boolean json) {
+        LogConfig config = LogConfig.createDefault();
+        config.setEnableConsoleLogging(false);
+        config.setEnableAsyncLogging(false);
+        config.setEnableJsonFormat(json);
+        return new LogManager(config, logDir);
+    }
+
+    @Test
+    void testDeltaEntriesStayLinearAndReconstruct() throws Exception {
+        for (boolean json : new boolean[]{true, false}) {
+            Path logDir = Files.createTempDirectory("request-logs");
+            LogManager logManager = createLogManager(logDir, json);
+            LLMRequestDeltaTracker tracker = new LLMRequestDeltaTracker();
+
+            List<LLMMessage> conversation = new ArrayList<>();
+            conversation.add(new LLMMessage(MessageRole.SYSTEM, "你是一个Minecraft助手"));
+            for (int turn = 0; turn < 30; turn++) {
+                conversation.add(new LLMMessage(MessageRole.USER, "问题 " + turn + " " + "x".repeat(200)));
+                log(logManager, tracker, buildEntry("req_" + turn, "session-1", conversation));
+                if (turn == 10) {
+                    // 重试同一个请求
+                    log(logManager, tracker, buildEntry("req_" + turn, "session-1", conversation));
+                }
+                conversation.add(new LLMMessage(MessageRole.ASSISTANT, "回答 " + turn + " " + "y".repeat(200)));
+            }
+            // 其他会话的请求不影响还原
+            log(logManager, tracker, buildEntry("other", "session-2", conversation.subList(0, 2)));
+
+            List<Path> files = logManager.getLogFiles("llm_request");
+            List<String> lines = Files.readAllLines(files.get(files.size() - 1));
+            assertEquals(32, lines.size());
+            // 每条增量日志只包含新增的两条消息，长度不随对话增长
+            assertTrue(lines.get(29).length() < lines.get(2).length() * 2);
+            // 连续FULL_ENTRY_INTERVAL个增量后记录一次完整请求（第11行是重试，不计入）
+            int full = LLMRequestDeltaTracker.FULL_ENTRY_INTERVAL + 2;
+            assertTrue(lines.get(full - 1).contains("previous_request_id"));
+            assertFalse(lines.get(full).contains("previous_request_id"));
+            assertTrue(lines.get(full + 1).contains("previous_request_id"));
+
+            LLMRequestLogReconstructor reconstructor = new LLMRequestLogReconstructor(files);
+            JsonObject request = reconstructor.reconstruct("req_29");
+            JsonArray messages = request.getAsJsonArray("messages");
+            assertEquals(conversation.size() - 1, messages.size());
+            assertEquals("问题 29 " + "x".repeat(200),
+                    messages.get(messages.size() - 1).getAsJsonObject().get("content").getAsString());
+            assertFalse(request.has("previous_request_id"));
+            JsonObject raw = JsonParser.parseString(request.get("raw_request_json").getAsString()).getAsJsonObject();
+            assertEquals(buildEntry("req_29", "session-1", conversation.subList(0, conversation.size() - 1))
+                    .getRawRequestJson(), raw.toString());
+
+            assertEquals(22, reconstructor.reconstruct("req_10").getAsJsonArray("messages").size());
+            assertEquals(2, reconstructor.reconstruct("req_0").getAsJsonArray("messages").size());
+            assertThrows(IllegalStateException.class, () -> reconstructor.reconstruct("missing"));
+            logManager.shutdown();
+        }
+    }
+
+    @Test
+    void testChangedPrefixLogsFullRequest() {
+        LLMRequestDeltaTracker tracker = new LLMRequestDeltaTracker();
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.SYSTEM, "提示词 A"));
+        messages.add(new LLMMessage(MessageRole.USER, "你好"));
+        assertFalse(track(tracker, buildEntry("r1", "s", messages)).isDelta());
+
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "你好！"));
+        messages.add(new LLMMessage(MessageRole.USER, "再见"));
+        LLMRequestLogEntry delta = track(tracker, buildEntry("r2", "s", messages));
+        assertTrue(delta.isDelta());
+        assertEquals("r1", delta.getPreviousRequestId());
+        assertEquals(Integer.valueOf(2), delta.getSharedPrefixCount());
+        assertEquals(2, delta.getMessages().size());
+        assertEquals(4, delta.getContextMessageCount());
+
+        // 系统提示词变化后前缀不同，记录完整请求
+        messages.set(0, new LLMMessage(MessageRole.SYSTEM, "提示词 B"));
+        assertFalse(track(tracker, buildEntry("r3", "s", messages)).isDelta());
+        // 没有会话的请求始终完整记录
+        assertFalse(track(tracker, buildEntry("r4", null, messages)).isDelta());
+    }
+
+    @Test
+    void testReusedPrefixHashesMatchFullHashing() {
+        LLMRequestDeltaTracker tracker = new LLMRequestDeltaTracker();
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.SYSTEM, "提示词"));
+        messages.add(new LLMMessage(MessageRole.TOOL, "很长的工具结果"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 1"));
+        assertFalse(track(tracker, buildEntry("r1", "s", messages)).isDelta());
+
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答 1"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 2"));
+        LLMRequestLogEntry r2 = buildEntry("r2", "s", messages);
+        LLMRequestLogEntry delta = track(tracker, r2);
+        String[] expected = LLMRequestDeltaTracker.prefixHashes(
+                JsonParser.parseString(r2.getRawRequestJson()).getAsJsonObject().getAsJsonArray("messages"));
+        assertEquals(expected[2], delta.getSharedPrefixHash());
+
+        // 同一条消息的内容被替换（ID不变），前缀从这里开始不同
+        messages.set(1, messages.get(1).withContent("[已压缩]", null));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答 2"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 3"));
+        LLMRequestLogEntry r3 = buildEntry("r3", "s", messages);
+        delta = track(tracker, r3);
+        expected = LLMRequestDeltaTracker.prefixHashes(
+                JsonParser.parseString(r3.getRawRequestJson()).getAsJsonObject().getAsJsonArray("messages"));
+        assertTrue(delta.isDelta());
+        assertEquals(Integer.valueOf(1), delta.getSharedPrefixCount());
+        assertEquals(expected[0], delta.getSharedPrefixHash());
+        assertEquals(6, delta.getMessages().size());
+
+        // 下一个请求沿用r3的哈希，结果仍与完整计算一致
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答 3"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 4"));
+        LLMRequestLogEntry r4 = buildEntry("r4", "s", messages);
+        delta = track(tracker, r4);
+        expected = LLMRequestDeltaTracker.prefixHashes(
+                JsonParser.parseString(r4.getRawRequestJson()).getAsJsonObject().getAsJsonArray("messages"));
+        assertEquals(Integer.valueOf(7), delta.getSharedPrefixCount());
+        assertEquals(expected[6], delta.getSharedPrefixHash());
+    }
+
+    @Test
+    void testLostEntryDoesNotBreakChain() throws Exception {
+        LLMRequestDeltaTracker tracker = new LLMRequestDeltaTracker();
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.SYSTEM, "提示词"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 1"));
+        assertFalse(track(tracker, buildEntry("r1", "s", messages)).isDelta());
+
+        // r2被丢弃，没有commit：r3仍以r1为基准
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答 1"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 2"));
+        assertTrue(tracker.prepare(buildEntry("r2", "s", messages), 0).getEntry().isDelta());
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答 2"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 3"));
+        LLMRequestLogEntry delta = track(tracker, buildEntry("r3", "s", messages));
+        assertEquals("r1", delta.getPreviousRequestId());
+        assertEquals(4, delta.getMessages().size());
+
+        // 日志文件轮转后的第一个请求完整记录
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答 3"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 4"));
+        LLMRequestDeltaTracker.Pending rotated = tracker.prepare(buildEntry("r4", "s", messages), 1);
+        assertFalse(rotated.getEntry().isDelta());
+        tracker.commit(rotated);
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "回答 4"));
+        messages.add(new LLMMessage(MessageRole.USER, "问题 5"));
+        assertEquals("r4", tracker.prepare(buildEntry("r5", "s", messages), 1).getEntry().getPreviousRequestId());
+
+        // 请求日志被关闭时不被接受，也就不会成为基准
+        LogConfig config = LogConfig.createDefault();
+        config.setEnableConsoleLogging(false);
+        config.setEnableAsyncLogging(false);
+        config.setEnableLLMRequestLog(false);
+        LogManager logManager = new LogManager(config, Files.createTempDirectory("request-logs"));
+        assertFalse(logManager.llmRequest("LLM Request", "{}"));
+        logManager.shutdown();
+    }
+}
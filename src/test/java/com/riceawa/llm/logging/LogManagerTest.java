@@ -0,0 +1,189 @@
+package com.riceawa.llm.logging;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日志写入测试
+ */
+public class LogManagerTest {
+
+    private static LogConfig fileOnlyConfig() {
+        LogConfig config = LogConfig.createDefault();
+        config.setEnableConsoleLogging(false);
+        config.setEnableJsonFormat(false);
+        return config;
+    }
+
+    @Test
+    void testAsyncWritesAreFlushedOnShutdown() throws Exception {
+        Path logDir = Files.createTempDirectory("logs");
+        LogConfig config = fileOnlyConfig();
+        config.setAsyncQueueSize(100000);
+        config.setFsyncPolicy(LogConfig.FsyncPolicy.INTERVAL);
+        LogManager logManager = new LogManager(config, logDir);
+
+        for (int i = 0; i < 20000; i++) {
+            logManager.system("entry " + i);
+        }
+        logManager.chat("chat entry");
+        logManager.shutdown();
+
+        List<String> lines = Files.readAllLines(logDir.resolve("system.log"));
+        assertEquals(20000, lines.size());
+        assertTrue(lines.get(19999).endsWith("entry 19999"));
+        assertEquals(1, Files.readAllLines(logDir.resolve("chat.log")).size());
+    }
+
+    @Test
+    void testRotationUsesTrackedSize() throws Exception {
+        Path logDir = Files.createTempDirectory("logs");
+        LogConfig config = fileOnlyConfig();
+        config.setEnableAsyncLogging(false);
+        config.setMaxFileSize(4096);
+        config.setMaxBackupFiles(100);
+        LogManager logManager = new LogManager(config, logDir);
+
+        for (int i = 0; i < 200; i++) {
+            logManager.system("rotation entry " + i);
+        }
+        logManager.shutdown();
+
+        assertTrue(Files.size(logDir.resolve("system.log")) <= 4096);
+        try (Stream<Path> files = Files.list(logDir)) {
+            List<String> rotated = files.map(file -> file.getFileName().toString())
+                .filter(name -> name.startsWith("system.") && name.endsWith(".log.gz"))
+                .collect(Collectors.toList());
+            assertFalse(rotated.isEmpty());
+        }
+    }
+
+    @Test
+    void testFileFromPreviousDayIsRotated() throws Exception {
+        Path logDir = Files.createTempDirectory("logs");
+        Path systemLog = logDir.resolve("system.log");
+        Files.writeString(systemLog, "yesterday\n");
+        Files.setLastModifiedTime(systemLog, FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS)));
+        // 上次运行遗留的未压缩文件
+        Files.writeString(logDir.resolve("chat.20250101-000000.log"), "old chat\n");
+
+        LogConfig config = fileOnlyConfig();
+        config.setEnableAsyncLogging(false);
+        LogManager logManager = new LogManager(config, logDir);
+        logManager.system("today");
+        logManager.shutdown();
+
+        List<String> lines = Files.readAllLines(systemLog);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith("today"));
+        try (Stream<Path> files = Files.list(logDir)) {
+            List<String> names = files.map(file -> file.getFileName().toString()).collect(Collectors.toList());
+            assertEquals(1, names.stream().filter(name -> name.startsWith("system.") && name.endsWith(".log.gz")).count());
+            // 超过保留天数的旧文件被清理
+            assertFalse(names.stream().anyMatch(name -> name.startsWith("chat.2025")));
+        }
+    }
+
+    @Test
+    void testRotationIndexKeepsNewestBackups() throws Exception {
+        Path logDir = Files.createTempDirectory("logs");
+        LogConfig config = fileOnlyConfig();
+        config.setMaxBackupFiles(2);
+        FileRotationManager rotationManager = new FileRotationManager(logDir, config);
+
+        for (int i = 0; i < 4; i++) {
+            Path logFile = rotationManager.createNewLogFile("audit");
+            Files.writeString(logFile, "batch " + i + "\n");
+            rotationManager.rotateFile(logFile);
+        }
+        rotationManager.shutdown();
+
+        List<Path> rotated = rotationManager.getRotatedFiles("audit");
+        assertEquals(2, rotated.size());
+        for (Path file : rotated) {
+            assertTrue(file.toString().endsWith(".log.gz"));
+            assertTrue(Files.exists(file));
+        }
+        try (Stream<Path> files = Files.list(logDir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    void testStaleUncompressedFileDeletedOnStartup() throws Exception {
+        Path logDir = Files.createTempDirectory("logs");
+        // 上次运行压缩完成后、删除原文件前中断
+        String stem = "audit." + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        Path stale = logDir.resolve(stem + ".log");
+        Path compressed = logDir.resolve(stem + ".log.gz");
+        Files.writeString(stale, "batch\n");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            out.write("batch\n".getBytes());
+        }
+
+        FileRotationManager rotationManager = new FileRotationManager(logDir, fileOnlyConfig());
+        rotationManager.shutdown();
+
+        assertFalse(Files.exists(stale));
+        assertTrue(Files.exists(compressed));
+        assertEquals(List.of(compressed), rotationManager.getRotatedFiles("audit"));
+    }
+
+    @Test
+    void testQueryJsonLogsThroughManager() throws Exception {
+        Path logDir = Files.createTempDirectory("logs");
+        LogConfig config = LogConfig.createDefault();
+        config.setEnableConsoleLogging(false);
+        config.setEnableAsyncLogging(false);
+        LogManager logManager = new LogManager(config, logDir);
+
+        for (int i = 0; i < 30; i++) {
+            logManager.log(i % 3 == 0 ? LogLevel.WARN : LogLevel.INFO, "system", "json entry " + i);
+        }
+        LogQueryEngine.QueryResult result = logManager.getQueryEngine()
+                .query(LogQuery.parse("system", "level=WARN"));
+        assertEquals(10, result.getRecords().size());
+        assertFalse(result.hasMore());
+        assertEquals("json entry 27", result.getRecords().get(9).getMessage());
+
+        List<LogQueryEngine.LogRecord> tail = logManager.getQueryEngine()
+                .tail(new LogQuery.Builder().category("system").build(), 2);
+        assertEquals("json entry 28", tail.get(0).getMessage());
+        assertEquals(LogLevel.INFO, tail.get(1).getLevel());
+        logManager.shutdown();
+    }
+
+    @Test
+    void testFilteredLogsAreNotBuilt() throws Exception {
+        Path logDir = Files.createTempDirectory("logs");
+        LogConfig config = fileOnlyConfig();
+        config.setEnableAsyncLogging(false);
+        LogManager logManager = new LogManager(config, logDir);
+
+        assertFalse(logManager.isEnabled(LogLevel.DEBUG, "system"));
+        logManager.log(LogLevel.DEBUG, "system", () -> {
+            throw new AssertionError("supplier of a filtered log must not be called");
+        });
+        logManager.logf(LogLevel.INFO, "system", "request {} took {}ms ({})", "req_1", 42);
+        logManager.log(LogLevel.WARN, "system", () -> "lazy warning");
+        logManager.shutdown();
+
+        List<String> lines = Files.readAllLines(logDir.resolve("system.log"));
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith("request req_1 took 42ms ({})"));
+        assertTrue(lines.get(1).endsWith("lazy warning"));
+    }
+}
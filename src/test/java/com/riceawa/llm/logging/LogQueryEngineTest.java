@@ -0,0 +1,145 @@
+package com.riceawa.llm.logging;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 日志查询引擎测试
+ */
+public class LogQueryEngineTest {
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * 每秒一条日志，每100条一条ERROR，偶数条属于Steve
+     */
+    private static void writeHour(Writer writer, int hour) throws IOException {
+        LocalDateTime start = LocalDateTime.of(2025, 6, 1, hour, 0);
+        for (int i = 0; i < 3600; i++) {
+            String level = i % 100 == 99 ? "ERROR" : "INFO";
+            String player = i % 2 == 0 ? "Steve" : "Alex";
+            writer.write("[" + start.plusSeconds(i).format(FORMATTER) + "] [" + level + "] [system] [worker] " +
+                    "event " + hour + "-" + i + " player=" + player + "\n");
+        }
+    }
+
+    private static long millis(int hour, int minute, int second) {
+        return LocalDateTime.of(2025, 6, 1, hour, minute, second)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static List<Path> createLogFiles() throws IOException {
+        Path logDir = Files.createTempDirectory("query-logs");
+        Path compressed = logDir.resolve("system.20250601-090000.log.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed));
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            writeHour(writer, 8);
+        }
+        Path rotated = logDir.resolve("system.20250601-100000.log");
+        try (Writer writer = Files.newBufferedWriter(rotated)) {
+            writeHour(writer, 9);
+        }
+        Path active = logDir.resolve("system.log");
+        try (Writer writer = Files.newBufferedWriter(active)) {
+            writeHour(writer, 10);
+            writer.write("[2025-06-01 11:00:00.000] [ERROR] [system] [worker] failure player=Steve\n");
+            writer.write("java.lang.IllegalStateException: boom\n");
+            writer.write("\tat com.example.Test.run(Test.java:1)\n");
+            writer.write("[2025-06-01 11:00:01.000] [INFO] [system] [worker] half written");
+        }
+        return List.of(compressed, rotated, active);
+    }
+
+    @Test
+    void testPaginatedLevelQuery() throws Exception {
+        List<Path> files = createLogFiles();
+        LogQueryEngine engine = new LogQueryEngine(category -> files);
+
+        LogQueryEngine.QueryResult first = engine.query(LogQuery.parse("system", "level=ERROR"));
+        assertTrue(first.hasMore());
+        List<LogQueryEngine.LogRecord> records = first.getRecords();
+        assertEquals(10, records.size());
+        // 最新的一条在页尾，包含异常堆栈
+        assertTrue(records.get(9).getText().contains("IllegalStateException"));
+        assertEquals("failure player=Steve", records.get(9).getMessage());
+        assertTrue(records.get(8).getMessage().startsWith("event 10-3599"));
+        assertTrue(records.get(0).getTimestampMillis() < records.get(8).getTimestampMillis());
+
+        // 翻页跨越到压缩文件
+        LogQueryEngine.QueryResult last = engine.query(LogQuery.parse("system", "level=ERROR page=11"));
+        assertFalse(last.hasMore());
+        assertEquals(9, last.getRecords().size());
+        assertTrue(last.getRecords().get(0).getMessage().startsWith("event 8-99 "));
+    }
+
+    @Test
+    void testTimeRangeAndPlayerFilters() throws Exception {
+        List<Path> files = createLogFiles();
+        LogQueryEngine engine = new LogQueryEngine(category -> files);
+
+        LogQuery range = new LogQuery.Builder().category("system")
+                .fromMillis(millis(9, 10, 0)).toMillis(millis(9, 10, 19)).player("Steve").build();
+        LogQueryEngine.QueryResult result = engine.query(range);
+        assertFalse(result.hasMore());
+        assertEquals(10, result.getRecords().size());
+        assertTrue(result.getRecords().get(0).getMessage().startsWith("event 9-600 "));
+
+        // 稀疏索引把读取位置定位到开始时间之前最近的检查点
+        LogFileIndex index = new LogFileIndex(files.get(1));
+        index.update();
+        long offset = index.seekOffset(millis(9, 30, 0), 2000);
+        assertTrue(offset > 0);
+        assertTrue(offset < Files.size(files.get(1)));
+        assertTrue(index.canSkip(new LogQuery.Builder().fromMillis(millis(10, 0, 0)).build()));
+
+        // 跨越压缩文件和未压缩文件的时间范围
+        LogQuery.Builder boundary = new LogQuery.Builder().category("system")
+                .fromMillis(millis(8, 59, 50)).toMillis(millis(9, 0, 9));
+        LogQueryEngine.QueryResult newer = engine.query(boundary.build());
+        assertTrue(newer.hasMore());
+        assertTrue(newer.getRecords().get(0).getMessage().startsWith("event 9-0 "));
+        LogQueryEngine.QueryResult older = engine.query(boundary.page(2).build());
+        assertFalse(older.hasMore());
+        assertEquals(10, older.getRecords().size());
+        assertTrue(older.getRecords().get(9).getMessage().startsWith("event 8-3599 "));
+    }
+
+    @Test
+    void testTailReadsBackwardsAndSkipsPartialLine() throws Exception {
+        List<Path> files = createLogFiles();
+        LogQueryEngine engine = new LogQueryEngine(category -> files);
+
+        List<LogQueryEngine.LogRecord> tail = engine.tail(new LogQuery.Builder().category("system").build(), 3);
+        assertEquals(3, tail.size());
+        assertTrue(tail.get(0).getMessage().startsWith("event 10-3598"));
+        assertEquals("failure player=Steve", tail.get(2).getMessage());
+        assertTrue(tail.get(2).getText().endsWith("\tat com.example.Test.run(Test.java:1)"));
+
+        List<LogQueryEngine.LogRecord> errors = engine.tail(
+                new LogQuery.Builder().category("system").minLevel(LogLevel.ERROR).build(), 40);
+        assertEquals(37, errors.size());
+    }
+
+    @Test
+    void testParseFilters() {
+        LogQuery query = LogQuery.parse("llm_request", "level=warn request=abc123 page=3");
+        assertEquals(LogLevel.WARN, query.getMinLevel());
+        assertEquals("abc123", query.getRequestId());
+        assertEquals(3, query.getPage());
+        assertTrue(LogQuery.parse("system", "from=2h").getFromMillis() < System.currentTimeMillis());
+        assertThrows(IllegalArgumentException.class, () -> LogQuery.parse("system", "level=LOUD"));
+        assertThrows(IllegalArgumentException.class, () -> LogQuery.parse("system", "colour=red"));
+    }
+}
@@ -0,0 +1,117 @@
+package com.riceawa.llm.logging;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 日志环形缓冲区测试
+ */
+public class LogRingBufferTest {
+
+    private static boolean offer(LogRingBuffer buffer, String message, int limit) {
+        long pos = buffer.claim(limit);
+        if (pos < 0) {
+            return false;
+        }
+        buffer.slot(pos).set(LogLevel.INFO, "system", message, 0, null, null, null, null, null);
+        buffer.publish(pos);
+        return true;
+    }
+
+    private static String poll(LogRingBuffer buffer) {
+        LogEntry entry = buffer.peek();
+        if (entry == null) {
+            return null;
+        }
+        String message = entry.getMessage();
+        buffer.release();
+        return message;
+    }
+
+    @Test
+    void testClaimRespectsCapacityAndLimit() {
+        LogRingBuffer buffer = new LogRingBuffer(6);
+        assertEquals(8, buffer.capacity());
+
+        for (int i = 0; i < 6; i++) {
+            assertTrue(offer(buffer, "e" + i, 6));
+        }
+        assertFalse(offer(buffer, "limited", 6));
+        assertTrue(offer(buffer, "e6", 8));
+        assertTrue(offer(buffer, "e7", 8));
+        assertFalse(offer(buffer, "full", 8));
+        assertEquals(8, buffer.size());
+
+        assertEquals("e0", poll(buffer));
+        assertTrue(offer(buffer, "e8", 8));
+
+        List<String> drained = new ArrayList<>();
+        String message;
+        while ((message = poll(buffer)) != null) {
+            drained.add(message);
+        }
+        assertEquals(8, drained.size());
+        assertEquals("e8", drained.get(7));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    void testReleasedSlotsAreReusedAndCleared() {
+        LogRingBuffer buffer = new LogRingBuffer(2);
+        long first = buffer.claim(buffer.capacity());
+        LogEntry slot = buffer.slot(first);
+        slot.set(LogLevel.ERROR, "error", "failed {}", 1, "task", null, null, null, new RuntimeException());
+        buffer.publish(first);
+
+        assertSame(slot, buffer.peek());
+        assertEquals("failed task", buffer.peek().getMessage());
+        buffer.release();
+        assertNull(slot.getThrowable());
+
+        for (int i = 0; i < buffer.capacity(); i++) {
+            assertTrue(offer(buffer, "again" + i, buffer.capacity()));
+            assertEquals("again" + i, poll(buffer));
+        }
+    }
+
+    @Test
+    void testConcurrentProducersKeepPerThreadOrder() throws Exception {
+        LogRingBuffer buffer = new LogRingBuffer(1024);
+        int producers = 4;
+        int perProducer = 50000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            String prefix = p + ":";
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!offer(buffer, prefix + i, buffer.capacity())) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            buffer.awaitEntries(TimeUnit.MILLISECONDS.toNanos(10));
+            String message;
+            while ((message = poll(buffer)) != null) {
+                String[] parts = message.split(":");
+                int producer = Integer.parseInt(parts[0]);
+                assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+                received++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -68,4 +68,47 @@ public class TitleGenerationServiceTest {
     void testShouldGenerateTitle_WithNullList() {
         assertFalse(titleService.shouldGenerateTitle(null));
     }
+
+    @Test
+    void testLocalTitlePrefersKeywordSentence() {
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.SYSTEM, "你是一个有用的助手"));
+        messages.add(new LLMMessage(MessageRole.USER, "你好！请问附魔台怎么合成？"));
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "附魔台需要书、钻石和黑曜石合成。"));
+
+        assertEquals("附魔台怎么合成", titleService.generateLocalTitle(messages));
+    }
+
+    @Test
+    void testLocalTitleIsTruncated() {
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.USER,
+            "How do I build an automatic sugar cane farm with observers and pistons"));
+
+        String title = titleService.generateLocalTitle(messages);
+        assertNotNull(title);
+        assertTrue(title.length() <= 20);
+        assertTrue(title.startsWith("How do I build"));
+    }
+
+    @Test
+    void testLocalTitleWithoutUserMessage() {
+        List<LLMMessage> messages = new ArrayList<>();
+        messages.add(new LLMMessage(MessageRole.ASSISTANT, "欢迎回来"));
+
+        assertNull(titleService.generateLocalTitle(messages));
+        assertNull(titleService.generateLocalTitle(null));
+    }
+
+    @Test
+    void testParseBatchTitles() {
+        List<String> titles = TitleGenerationService.parseBatchTitles(
+            "```json\n[\"附魔台合成方法\", \"\", \"下界要塞寻找技巧。\"]\n```", 3);
+
+        assertEquals(3, titles.size());
+        assertEquals("附魔台合成方法", titles.get(0));
+        assertNull(titles.get(1));
+        assertEquals("下界要塞寻找技巧", titles.get(2));
+        assertTrue(TitleGenerationService.parseBatchTitles("无法生成", 2).isEmpty());
+    }
 }